@@ -3,16 +3,12 @@ package eu.isas.reporter;
 import com.compomics.software.CompomicsWrapper;
 import com.compomics.software.settings.UtilitiesPathParameters;
 import com.compomics.util.experiment.biology.ions.impl.ReporterIon;
-import com.compomics.util.experiment.biology.proteins.Peptide;
 import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.features.IdentificationFeaturesGenerator;
 import com.compomics.util.experiment.identification.matches.IonMatch;
-import com.compomics.util.experiment.identification.matches.ModificationMatch;
 import com.compomics.util.experiment.identification.matches.PeptideMatch;
 import com.compomics.util.experiment.identification.matches.ProteinMatch;
 import com.compomics.util.experiment.identification.matches.SpectrumMatch;
-import com.compomics.util.experiment.identification.matches_iterators.PeptideMatchesIterator;
-import com.compomics.util.experiment.identification.matches_iterators.SpectrumMatchesIterator;
 import com.compomics.util.experiment.identification.spectrum_annotation.SpectrumAnnotator;
 import com.compomics.util.experiment.mass_spectrometry.SpectrumProvider;
 import com.compomics.util.experiment.mass_spectrometry.spectra.Precursor;
@@ -20,16 +16,22 @@ import com.compomics.util.experiment.mass_spectrometry.spectra.Spectrum;
 import com.compomics.util.experiment.quantification.reporterion.ReporterIonQuantification;
 import com.compomics.util.experiment.quantification.reporterion.ReporterMethod;
 import com.compomics.util.math.BasicMathFunctions;
-import com.compomics.util.parameters.identification.advanced.SequenceMatchingParameters;
 import com.compomics.util.parameters.identification.search.SearchParameters;
 import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.reporter.calculation.ChannelBuffers;
 import eu.isas.reporter.calculation.Deisotoper;
+import eu.isas.reporter.calculation.MatchIncidence;
+import eu.isas.reporter.calculation.PtmSiteIndex;
 import eu.isas.reporter.calculation.QuantificationFeaturesGenerator;
 import eu.isas.reporter.calculation.QuantificationFilter;
+import eu.isas.reporter.calculation.QuantificationFilterIndex;
 import eu.isas.reporter.calculation.RatioEstimator;
+import eu.isas.reporter.calculation.ReporterIntensityStore;
+import eu.isas.reporter.calculation.ReporterPeaks;
 import eu.isas.reporter.preferences.ReporterPathPreferences;
 import eu.isas.reporter.settings.RatioEstimationSettings;
 import eu.isas.reporter.settings.ReporterIonSelectionSettings;
+import eu.isas.reporter.quantificationdetails.ChannelLayout;
 import eu.isas.reporter.quantificationdetails.PeptideQuantificationDetails;
 import eu.isas.reporter.quantificationdetails.ProteinQuantificationDetails;
 import eu.isas.reporter.quantificationdetails.PsmQuantificationDetails;
@@ -38,10 +40,8 @@ import eu.isas.reporter.quantificationdetails.SpectrumQuantificationDetails;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Arrays;
 
 /**
  * Reporter performs reporter ion based quantification on MS2 spectra.
@@ -68,6 +68,10 @@ public class Reporter {
      * A folder used to store temporary files.
      */
     private static String tempFolderPath = null;
+    /**
+     * Buffers for the reporter and isotope peaks of a spectrum, one per thread.
+     */
+    private static final ThreadLocal<ReporterPeaks> reporterPeaksBuffers = ThreadLocal.withInitial(ReporterPeaks::new);
 
     /**
      * Empty constructor for instantiation purposes.
@@ -107,44 +111,47 @@ public class Reporter {
             WaitingHandler waitingHandler
     ) {
 
-        ProteinQuantificationDetails result = new ProteinQuantificationDetails();
-        HashMap<String, ArrayList<Double>> ratios = new HashMap<>();
-        HashMap<String, ArrayList<Double>> uniqueRatios = new HashMap<>();
-        HashMap<String, ArrayList<Double>> sharedRatios = new HashMap<>();
-        Set<String> indexes = reporterIonQuantification.getSampleIndexes();
+        ChannelLayout channelLayout = quantificationFeaturesGenerator.getChannelLayout();
+        ProteinQuantificationDetails result = new ProteinQuantificationDetails(channelLayout);
+        int nChannels = channelLayout.size();
+        ChannelBuffers ratios = ChannelBuffers.acquire(nChannels);
+        ChannelBuffers uniqueRatios = ChannelBuffers.acquire(nChannels);
+        ChannelBuffers sharedRatios = ChannelBuffers.acquire(nChannels);
+        double[] normalizationFactors = channelLayout.getPeptideNormalizationFactors(reporterIonQuantification.getNormalizationFactors());
+
+        boolean validPeptide = false;
 
-        PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(proteinMatch.getPeptideMatchesKeys(), waitingHandler);
-        PeptideMatch peptideMatch;
+        MatchIncidence matchIncidence = quantificationFeaturesGenerator.getMatchIncidence();
+        QuantificationFilterIndex quantificationFilterIndex = quantificationFeaturesGenerator.getQuantificationFilterIndex();
 
-        while ((peptideMatch = peptideMatchesIterator.next()) != null) {
+        int proteinIndex = matchIncidence.getProteinIndex(proteinMatch.getKey());
 
-            if (QuantificationFilter.isPeptideValid(ratioEstimationSettings, identification, searchParameters, peptideMatch)) {
+        if (proteinIndex < 0) {
+            throw new IllegalArgumentException("Protein match " + proteinMatch.getKey() + " not found in the match incidence.");
+        }
 
-                for (String index : indexes) {
+        for (int i = matchIncidence.getPeptidesStart(proteinIndex); i < matchIncidence.getPeptidesEnd(proteinIndex); i++) {
 
-                    PeptideQuantificationDetails peptideQuantification = quantificationFeaturesGenerator.getPeptideMatchQuantificationDetails(spectrumProvider, peptideMatch, waitingHandler);
-                    double ratio = peptideQuantification.getRatio(index, reporterIonQuantification.getNormalizationFactors());
-                    ArrayList<Double> channelRatios = ratios.get(index);
-                    ArrayList<Double> channelUniqueRatios = uniqueRatios.get(index);
-                    ArrayList<Double> channelSharedRatios = sharedRatios.get(index);
+            int peptideIndex = matchIncidence.getPeptideIndexAt(i);
 
-                    if (channelRatios == null) {
-                        channelRatios = new ArrayList<Double>(proteinMatch.getPeptideCount());
-                        ratios.put(index, channelRatios);
-                        channelUniqueRatios = new ArrayList<Double>(proteinMatch.getPeptideCount());
-                        uniqueRatios.put(index, channelUniqueRatios);
-                        channelSharedRatios = new ArrayList<Double>(proteinMatch.getPeptideCount());
-                        sharedRatios.put(index, channelSharedRatios);
-                    }
+            if (quantificationFilterIndex.isPeptideValidAt(peptideIndex)) {
+
+                validPeptide = true;
+                PeptideQuantificationDetails peptideQuantification = quantificationFeaturesGenerator.getPeptideMatchQuantificationDetails(spectrumProvider, matchIncidence.getPeptideKey(peptideIndex), waitingHandler);
+                boolean unique = matchIncidence.isUniquePeptide(peptideIndex);
+
+                for (int channel = 0; channel < nChannels; channel++) {
+
+                    double ratio = peptideQuantification.getRatio(channel, normalizationFactors);
 
                     if (QuantificationFilter.isRatioValid(ratioEstimationSettings, ratio)) {
 
-                        channelRatios.add(ratio);
+                        ratios.add(channel, ratio);
 
-                        if (identificationFeaturesGenerator.getNValidatedProteinGroups(peptideMatch.getKey()) == 1) {
-                            channelUniqueRatios.add(ratio);
+                        if (unique) {
+                            uniqueRatios.add(channel, ratio);
                         } else {
-                            channelSharedRatios.add(ratio);
+                            sharedRatios.add(channel, ratio);
                         }
 
                     }
@@ -155,125 +162,81 @@ public class Reporter {
 
         }
 
-        for (String index : indexes) {
+        for (int channel = 0; channel < nChannels; channel++) {
 
-            ArrayList<Double> channelUniqueRatios = uniqueRatios.get(index);
-            Double uniqueRatio = RatioEstimator.estimateRatios(ratioEstimationSettings, channelUniqueRatios);
-            result.setUniqueRawRatio(index, uniqueRatio);
-            ArrayList<Double> channelSharedRatios = sharedRatios.get(index);
-            result.setSharedRawRatio(index, RatioEstimator.estimateRatios(ratioEstimationSettings, channelSharedRatios));
+            int nUnique = uniqueRatios.getLength(channel);
+            double uniqueRatio = RatioEstimator.estimateRatios(ratioEstimationSettings, uniqueRatios.getValues(channel), nUnique);
+            result.setUniqueRawRatio(channel, uniqueRatio);
+            result.setSharedRawRatio(channel, RatioEstimator.estimateRatios(ratioEstimationSettings, sharedRatios.getValues(channel), sharedRatios.getLength(channel)));
 
-            if (ratioEstimationSettings.getMinUnique() >= 0 && channelUniqueRatios != null && channelUniqueRatios.size() >= ratioEstimationSettings.getMinUnique()) {
-                result.setRawRatio(index, uniqueRatio);
+            if (ratioEstimationSettings.getMinUnique() >= 0 && validPeptide && nUnique >= ratioEstimationSettings.getMinUnique()) {
+                result.setRawRatio(channel, uniqueRatio);
             } else {
-                ArrayList<Double> channelRatios = ratios.get(index);
-                result.setRawRatio(index, RatioEstimator.estimateRatios(ratioEstimationSettings, channelRatios));
+                result.setRawRatio(channel, RatioEstimator.estimateRatios(ratioEstimationSettings, ratios.getValues(channel), ratios.getLength(channel)));
             }
 
         }
 
+        ratios.release();
+        uniqueRatios.release();
+        sharedRatios.release();
+
         return result;
     }
 
     /**
-     * Returns the quantification details of a PTM on a protein.//@TODO:
-     * discriminate peptides according to the neighboring sites?
+     * Returns the quantification details of a PTM site. The ratios are
+     * estimated from the peptides where the PTM is confidently localized at
+     * this site.//@TODO: discriminate peptides according to the neighboring
+     * sites?
      *
-     * @param identification the identification containing identification
-     * details
      * @param spectrumProvider the spectrum provider
      * @param quantificationFeaturesGenerator the quantification features
      * generator used to store and retrieve quantification details
      * @param ratioEstimationSettings the ratio estimation settings
      * @param reporterIonQuantification the reporter quantification settings
-     * @param searchParameters the identification settings used
-     * @param sequenceMatchingParameters the sequence matching preferences
-     * @param ptmName the name of the PTM
-     * @param matchKey the key of the match of interest
-     * @param site the site of the PTM on the protein sequence
+     * @param siteIndex the index of the site in the PtmSiteIndex, -1 if no
+     * peptide carries the PTM at this site
      * @param waitingHandler waiting handler displaying progress to the user and
      * allowing canceling the process
      *
-     * @return the quantification details of the match
-     *
-     * @throws java.sql.SQLException exception thrown whenever an error occurred
-     * while interacting with the database
-     * @throws java.io.IOException exception thrown whenever an error occurred
-     * while interacting with a file
-     * @throws java.lang.ClassNotFoundException exception thrown whenever an
-     * error occurred while deserializing an object
-     * @throws java.lang.InterruptedException exception thrown whenever a
-     * threading error occurred
+     * @return the quantification details of the site
      */
-    public static ProteinPtmQuantificationDetails estimatePTMQuantificationDetails(
-            Identification identification,
+    public static ProteinPtmQuantificationDetails estimatePtmSiteQuantificationDetails(
             SpectrumProvider spectrumProvider,
             QuantificationFeaturesGenerator quantificationFeaturesGenerator,
             RatioEstimationSettings ratioEstimationSettings,
             ReporterIonQuantification reporterIonQuantification,
-            SearchParameters searchParameters,
-            SequenceMatchingParameters sequenceMatchingParameters,
-            String ptmName,
-            long matchKey,
-            int site,
+            int siteIndex,
             WaitingHandler waitingHandler
-    ) throws IllegalArgumentException, SQLException, IOException, ClassNotFoundException, InterruptedException {
-
-        ProteinPtmQuantificationDetails result = new ProteinPtmQuantificationDetails();
-        HashMap<String, ArrayList<Double>> ratios = new HashMap<>();
-        ProteinMatch proteinMatch = identification.getProteinMatch(matchKey);
-        Set<String> indexes = reporterIonQuantification.getSampleIndexes();
-
-        PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(proteinMatch.getPeptideMatchesKeys(), waitingHandler);
-        PeptideMatch peptideMatch;
-
-        while ((peptideMatch = peptideMatchesIterator.next()) != null) {
-
-            Peptide peptide = peptideMatch.getPeptide();
-
-            if (peptide.getNVariableModifications() > 0) {
-
-                boolean modified = false;
-
-                for (ModificationMatch modificationMatch : peptide.getVariableModifications()) {
-
-                    if (modificationMatch.getModification().equals(ptmName) && modificationMatch.getConfident()) {
-
-                        String leadingAccession = proteinMatch.getLeadingAccession();
-                        int[] startIndexes = peptideMatch.getPeptide().getProteinMapping().get(leadingAccession);
-
-                        for (int index : startIndexes) {
-                            if (index + modificationMatch.getSite() == site) {
-                                modified = true;
-                                break;
-                            }
-                        }
+    ) {
 
-                    }
+        ChannelLayout channelLayout = quantificationFeaturesGenerator.getChannelLayout();
+        ProteinPtmQuantificationDetails result = new ProteinPtmQuantificationDetails(channelLayout);
+        int nChannels = channelLayout.size();
+        ChannelBuffers ratios = ChannelBuffers.acquire(nChannels);
+        double[] normalizationFactors = channelLayout.getPeptideNormalizationFactors(reporterIonQuantification.getNormalizationFactors());
 
-                    if (modified) {
-                        break;
-                    }
+        MatchIncidence matchIncidence = quantificationFeaturesGenerator.getMatchIncidence();
+        QuantificationFilterIndex quantificationFilterIndex = quantificationFeaturesGenerator.getQuantificationFilterIndex();
+        PtmSiteIndex ptmSiteIndex = quantificationFeaturesGenerator.getPtmSiteIndex();
+        int peptidesStart = siteIndex == -1 ? 0 : ptmSiteIndex.getPeptidesStart(siteIndex);
+        int peptidesEnd = siteIndex == -1 ? 0 : ptmSiteIndex.getPeptidesEnd(siteIndex);
 
-                }
+        for (int i = peptidesStart; i < peptidesEnd; i++) {
 
-            }
+            int peptideIndex = ptmSiteIndex.getPeptideIndexAt(i);
 
-            if (QuantificationFilter.isPeptideValid(ratioEstimationSettings, identification, searchParameters, peptideMatch)) {
+            if (quantificationFilterIndex.isPeptideValidAt(peptideIndex)) {
 
-                for (String index : indexes) {
+                PeptideQuantificationDetails peptideQuantification = quantificationFeaturesGenerator.getPeptideMatchQuantificationDetails(spectrumProvider, matchIncidence.getPeptideKey(peptideIndex), waitingHandler);
 
-                    PeptideQuantificationDetails peptideQuantification = quantificationFeaturesGenerator.getPeptideMatchQuantificationDetails(spectrumProvider, peptideMatch, waitingHandler);
-                    double ratio = peptideQuantification.getRatio(index, reporterIonQuantification.getNormalizationFactors());
-                    ArrayList<Double> channelRatios = ratios.get(index);
+                for (int channel = 0; channel < nChannels; channel++) {
 
-                    if (channelRatios == null) {
-                        channelRatios = new ArrayList<>(proteinMatch.getPeptideCount());
-                        ratios.put(index, channelRatios);
-                    }
+                    double ratio = peptideQuantification.getRatio(channel, normalizationFactors);
 
                     if (QuantificationFilter.isRatioValid(ratioEstimationSettings, ratio)) {
-                        channelRatios.add(ratio);
+                        ratios.add(channel, ratio);
                     }
                 }
 
@@ -281,11 +244,12 @@ public class Reporter {
 
         }
 
-        for (String index : indexes) {
-            ArrayList<Double> channelRatios = ratios.get(index);
-            result.setRatio(index, RatioEstimator.estimateRatios(ratioEstimationSettings, channelRatios));
+        for (int channel = 0; channel < nChannels; channel++) {
+            result.setRatio(channel, RatioEstimator.estimateRatios(ratioEstimationSettings, ratios.getValues(channel), ratios.getLength(channel)));
         }
 
+        ratios.release();
+
         return result;
     }
 
@@ -315,30 +279,35 @@ public class Reporter {
             WaitingHandler waitingHandler
     ) {
 
-        PeptideQuantificationDetails result = new PeptideQuantificationDetails();
-        HashMap<String, ArrayList<Double>> ratios = new HashMap<>();
-        Set<String> indexes = reporterIonQuantification.getSampleIndexes();
+        ChannelLayout channelLayout = quantificationFeaturesGenerator.getChannelLayout();
+        PeptideQuantificationDetails result = new PeptideQuantificationDetails(channelLayout);
+        int nChannels = channelLayout.size();
+        ChannelBuffers ratios = ChannelBuffers.acquire(nChannels);
+        double[] normalizationFactors = channelLayout.getPsmNormalizationFactors(reporterIonQuantification.getNormalizationFactors());
 
-        SpectrumMatchesIterator spectrumMatchesIterator = identification.getSpectrumMatchesIterator(peptideMatch.getSpectrumMatchesKeys(), waitingHandler);
-        SpectrumMatch spectrumMatch;
+        MatchIncidence matchIncidence = quantificationFeaturesGenerator.getMatchIncidence();
+        QuantificationFilterIndex quantificationFilterIndex = quantificationFeaturesGenerator.getQuantificationFilterIndex();
 
-        while ((spectrumMatch = spectrumMatchesIterator.next()) != null) {
+        int peptideIndex = matchIncidence.getPeptideIndex(peptideMatch.getKey());
 
-            if (QuantificationFilter.isPsmValid(ratioEstimationSettings, identification, spectrumMatch.getKey())) {
+        if (peptideIndex < 0) {
+            throw new IllegalArgumentException("Peptide match " + peptideMatch.getKey() + " not found in the match incidence.");
+        }
 
-                for (String index : indexes) {
+        for (int i = matchIncidence.getPsmsStart(peptideIndex); i < matchIncidence.getPsmsEnd(peptideIndex); i++) {
 
-                    PsmQuantificationDetails spectrumQuantification = quantificationFeaturesGenerator.getPSMQuantificationDetails(spectrumProvider, spectrumMatch.getKey());
-                    double ratio = spectrumQuantification.getRatio(index, reporterIonQuantification.getNormalizationFactors());
-                    ArrayList<Double> channelRatios = ratios.get(index);
+            int psmIndex = matchIncidence.getPsmIndexAt(i);
 
-                    if (channelRatios == null) {
-                        channelRatios = new ArrayList<Double>(peptideMatch.getSpectrumCount());
-                        ratios.put(index, channelRatios);
-                    }
+            if (quantificationFilterIndex.isPsmValidAt(psmIndex)) {
+
+                PsmQuantificationDetails spectrumQuantification = quantificationFeaturesGenerator.getPSMQuantificationDetails(spectrumProvider, matchIncidence.getPsmKey(psmIndex));
+
+                for (int channel = 0; channel < nChannels; channel++) {
+
+                    double ratio = spectrumQuantification.getRatio(channel, normalizationFactors);
 
                     if (QuantificationFilter.isRatioValid(ratioEstimationSettings, ratio)) {
-                        channelRatios.add(ratio);
+                        ratios.add(channel, ratio);
                     }
                 }
 
@@ -346,11 +315,12 @@ public class Reporter {
 
         }
 
-        for (String index : indexes) {
-            ArrayList<Double> channelRatios = ratios.get(index);
-            result.setRawRatio(index, RatioEstimator.estimateRatios(ratioEstimationSettings, channelRatios));
+        for (int channel = 0; channel < nChannels; channel++) {
+            result.setRawRatio(channel, RatioEstimator.estimateRatios(ratioEstimationSettings, ratios.getValues(channel), ratios.getLength(channel)));
         }
 
+        ratios.release();
+
         return result;
 
     }
@@ -380,12 +350,14 @@ public class Reporter {
             Long matchKey
     ) {
 
-        PsmQuantificationDetails result = new PsmQuantificationDetails();
+        ChannelLayout channelLayout = quantificationFeaturesGenerator.getChannelLayout();
+        PsmQuantificationDetails result = new PsmQuantificationDetails(channelLayout);
 
         // find the spectra corresponding to this PSM according to the matching type selected by the user
         ArrayList<Long> spectra = new ArrayList<>(1);
         SpectrumMatch spectrumMatch = identification.getSpectrumMatch(matchKey);
         Long spectrumKey = spectrumMatch.getKey();
+        String refFile = spectrumMatch.getSpectrumFile();
 
         if (reporterIonSelectionSettings.isSameSpectra()) {
 
@@ -393,44 +365,34 @@ public class Reporter {
 
         } else {
 
-            String refFile = spectrumMatch.getSpectrumFile();
             Precursor refPrecursor = spectrumProvider.getPrecursor(
-                    spectrumMatch.getSpectrumFile(),
+                    refFile,
                     spectrumMatch.getSpectrumTitle()
             );
 
             // match spectra by mass and retention time
-            for (String spectrumTitle : spectrumProvider.getSpectrumTitles(refFile)) {
-
-                Precursor precursor = spectrumProvider.getPrecursor(refFile, spectrumTitle);
-
-                if (Math.abs(precursor.rt - refPrecursor.rt)
-                        <= reporterIonSelectionSettings.getPrecursorRTTolerance()) {
-
-                    if (reporterIonSelectionSettings.isPrecursorMzPpm()) {
-
-                        double error = (precursor.mz - refPrecursor.mz) / refPrecursor.mz * 1000000;
+            quantificationFeaturesGenerator.getPrecursorIndex(spectrumProvider, refFile).getSpectrumKeys(
+                    refPrecursor.rt,
+                    refPrecursor.mz,
+                    reporterIonSelectionSettings.getPrecursorRTTolerance(),
+                    reporterIonSelectionSettings.getPrecursorMzTolerance(),
+                    reporterIonSelectionSettings.isPrecursorMzPpm(),
+                    spectra
+            );
 
-                        if (Math.abs(error) <= reporterIonSelectionSettings.getPrecursorMzTolerance()) {
-                            Long key = SpectrumMatch.getKey(refFile, spectrumTitle);
-                            spectra.add(key);
-                        }
+        }
 
-                    } else if (Math.abs(precursor.mz - refPrecursor.mz)
-                            <= reporterIonSelectionSettings.getPrecursorMzTolerance()) {
-                        Long key = SpectrumMatch.getKey(refFile, spectrumTitle);
-                        spectra.add(key);
-                    }
-                }
+        // compute spectrum level ratios
+        int nChannels = channelLayout.size();
+        ChannelBuffers ratios = ChannelBuffers.acquire(nChannels);
+        ChannelBuffers controlIntensities = ChannelBuffers.acquire(1);
 
-            }
+        ArrayList<String> controlIndexes = reporterIonQuantification.getControlSamples();
 
+        if (controlIndexes == null || controlIndexes.isEmpty()) {
+            controlIndexes = new ArrayList<>(reporterIonQuantification.getSampleIndexes());
         }
 
-        // compute spectrum level ratios
-        Set<String> indexes = reporterIonQuantification.getSampleIndexes();
-        HashMap<String, ArrayList<Double>> ratios = new HashMap<>();
-
         for (Long tempSpectrumKey : spectra) {
 
             SpectrumQuantificationDetails spectrumQuantification
@@ -438,71 +400,61 @@ public class Reporter {
                             spectrumProvider,
                             reporterIonQuantification,
                             reporterIonSelectionSettings,
+                            refFile,
                             tempSpectrumKey
                     );
 
-            ArrayList<String> controlIndexes = reporterIonQuantification.getControlSamples();
-
-            if (controlIndexes == null || controlIndexes.isEmpty()) {
-                controlIndexes = new ArrayList<>(indexes);
-            }
-
-            ArrayList<Double> controlIntensities = new ArrayList<>(controlIndexes.size());
+            controlIntensities.reset(1);
 
             for (String index : controlIndexes) {
 
                 double intensity = spectrumQuantification.getDeisotopedIntensity(index);
 
                 if (intensity > 0) {
-                    controlIntensities.add(intensity);
+                    controlIntensities.add(0, intensity);
                 }
             }
 
-            if (controlIntensities.isEmpty()) {
+            if (controlIntensities.getLength(0) == 0) {
 
-                for (String index : indexes) {
+                for (int channel = 0; channel < nChannels; channel++) {
 
-                    double intensity = spectrumQuantification.getDeisotopedIntensity(index);
+                    double intensity = spectrumQuantification.getDeisotopedIntensity(channel);
 
                     if (intensity > 0) {
-                        controlIntensities.add(intensity);
+                        controlIntensities.add(0, intensity);
                     }
                 }
             }
 
             double normalization = 0;
 
-            if (!controlIntensities.isEmpty()) {
-                normalization = BasicMathFunctions.median(controlIntensities);
+            if (controlIntensities.getLength(0) > 0) {
+                normalization = BasicMathFunctions.median(Arrays.copyOf(controlIntensities.getValues(0), controlIntensities.getLength(0)));
             }
 
-            for (String index : indexes) {
+            for (int channel = 0; channel < nChannels; channel++) {
 
                 double ratio = 0;
 
                 if (normalization > 0) {
-                    double intensity = spectrumQuantification.getDeisotopedIntensity(index);
+                    double intensity = spectrumQuantification.getDeisotopedIntensity(channel);
                     ratio = intensity / normalization;
                 }
 
-                ArrayList<Double> channelRatios = ratios.get(index);
-
-                if (channelRatios == null) {
-                    channelRatios = new ArrayList<Double>(spectra.size());
-                    ratios.put(index, channelRatios);
-                }
-
                 if (QuantificationFilter.isRatioValid(ratioEstimationSettings, ratio)) {
-                    channelRatios.add(ratio);
+                    ratios.add(channel, ratio);
                 }
             }
         }
 
-        for (String index : indexes) {
-            ArrayList<Double> channelRatios = ratios.get(index);
-            result.setRawRatio(index, RatioEstimator.estimateRatios(ratioEstimationSettings, channelRatios));
+        for (int channel = 0; channel < nChannels; channel++) {
+            result.setRawRatio(channel, RatioEstimator.estimateRatios(ratioEstimationSettings, ratios.getValues(channel), ratios.getLength(channel)));
         }
 
+        ratios.release();
+        controlIntensities.release();
+
         return result;
 
     }
@@ -510,80 +462,121 @@ public class Reporter {
     /**
      * Returns the quantification details of a spectrum.
      *
-     * @param identification the identification containing identification
-     * details
      * @param spectrumProvider the spectrum provider
      * @param quantificationFeaturesGenerator the quantification features
      * generator used to store and retrieve quantification details
      * @param reporterIonQuantification the reporter ion quantification details
      * @param reporterIonSelectionSettings the reporter ion selection settings
+     * @param spectrumFile the name of the file of the spectrum
      * @param matchKey the key of the spectrum of interest
      *
      * @return the quantification details of the spectrum
      */
     public static SpectrumQuantificationDetails estimateSpectrumQuantificationDetails(
-            Identification identification,
             SpectrumProvider spectrumProvider,
             QuantificationFeaturesGenerator quantificationFeaturesGenerator,
             ReporterIonQuantification reporterIonQuantification,
             ReporterIonSelectionSettings reporterIonSelectionSettings,
+            String spectrumFile,
             Long matchKey
     ) {
 
         ReporterMethod reporterMethod = reporterIonQuantification.getReporterMethod();
-        SpectrumMatch tempSpectrumMatch = identification.getSpectrumMatch(matchKey);
 
-        Spectrum spectrum = spectrumProvider.getSpectrum(
-                tempSpectrumMatch.getSpectrumFile(),
-                tempSpectrumMatch.getSpectrumTitle()
-        );
+        // the spectrum is not necessarily identified, resolve its title from the spectrum titles of the file
+        String spectrumTitle = quantificationFeaturesGenerator.getSpectrumTitleIndex(spectrumProvider, spectrumFile).getSpectrumTitle(matchKey);
 
-        SpectrumQuantificationDetails result = new SpectrumQuantificationDetails();
+        if (spectrumTitle == null) {
+            throw new IllegalArgumentException("Spectrum " + matchKey + " not found in " + spectrumFile + ".");
+        }
 
-        // get reporter intensities
-        Set<String> labels = reporterIonQuantification.getSampleIndexes();
-        HashMap<String, IonMatch> matchesMap = new HashMap<>(labels.size());
+        ChannelLayout channelLayout = quantificationFeaturesGenerator.getChannelLayout();
+        SpectrumQuantificationDetails result = new SpectrumQuantificationDetails(channelLayout);
 
-        for (String ionName : labels) {
+        // use the extracted intensities if available
+        ReporterIntensityStore reporterIntensityStore = quantificationFeaturesGenerator.getReporterIntensityStore(spectrumFile);
 
-            ReporterIon reporterIon = reporterMethod.getReporterIon(ionName);
+        if (reporterIntensityStore != null) {
 
-            IonMatch bestMatch = getBestReporterIonMatch(
-                    reporterIon,
-                    1,
-                    spectrum,
-                    reporterIonSelectionSettings.getReporterIonsMzTolerance(),
-                    reporterIonSelectionSettings.isMostAccurate()
-            );
+            int spectrumIndex = reporterIntensityStore.getSpectrumIndex(spectrumTitle);
+
+            if (spectrumIndex != -1 && reporterIntensityStore.isExtracted(spectrumIndex)) {
+
+                for (int channel = 0; channel < channelLayout.size(); channel++) {
 
-            if (bestMatch != null) {
-                result.setReporterMatch(ionName, bestMatch);
-                matchesMap.put(ionName, bestMatch);
+                    float mzError = reporterIntensityStore.getMzError(spectrumIndex, channel);
+
+                    if (!Float.isNaN(mzError)) {
+
+                        ReporterIon reporterIon = reporterMethod.getReporterIon(channelLayout.getReagentName(channel));
+
+                        IonMatch bestMatch = new IonMatch(
+                                reporterIon.getTheoreticMz(1) + mzError,
+                                reporterIntensityStore.getIntensity(spectrumIndex, channel),
+                                reporterIon,
+                                1
+                        );
+
+                        result.setReporterMatch(channel, bestMatch);
+                    }
+
+                    result.setDeisotopedIntensity(channel, reporterIntensityStore.getDeisotopedIntensity(spectrumIndex, channel));
+                }
+
+                return result;
             }
         }
 
-        // get deisotoped intensities
+        Spectrum spectrum = spectrumProvider.getSpectrum(
+                spectrumFile,
+                spectrumTitle
+        );
+
+        // extract the reporter and isotope peaks
         Deisotoper deisotoper = quantificationFeaturesGenerator.getDeisotoper(
                 reporterMethod,
                 reporterIonSelectionSettings.getReporterIonsMzTolerance()
         );
 
-        HashMap<String, Double> deisotoped = deisotoper.deisotope(
-                matchesMap,
+        ReporterPeaks reporterPeaks = reporterPeaksBuffers.get();
+        deisotoper.getPeakExtractor().extract(
                 spectrum,
-                reporterIonSelectionSettings.getReporterIonsMzTolerance(),
-                reporterIonSelectionSettings.isMostAccurate()
+                reporterIonSelectionSettings.isMostAccurate(),
+                reporterPeaks
         );
 
-        for (String index : reporterIonQuantification.getSampleIndexes()) {
+        deisotoper.deisotope(reporterPeaks);
 
-            Double intensity = deisotoped.get(index);
+        double[] peakMz = reporterPeaks.getMz();
+        double[] peakIntensity = reporterPeaks.getIntensity();
+        double[] deisotopedIntensity = reporterPeaks.getDeisotopedIntensity();
 
-            if (intensity == null || intensity < 0) {
-                intensity = 0.0;
-            }
+        // get reporter and deisotoped intensities
+        for (int channel = 0; channel < channelLayout.size(); channel++) {
 
-            result.setDeisotopedIntensity(index, intensity);
+            String ionName = channelLayout.getReagentName(channel);
+            int target = deisotoper.getReporterIonTarget(ionName);
+
+            if (target == -1) {
+
+                result.setDeisotopedIntensity(channel, 0.0);
+
+            } else {
+
+                if (reporterPeaks.hasPeak(target)) {
+
+                    IonMatch bestMatch = new IonMatch(
+                            peakMz[target],
+                            peakIntensity[target],
+                            reporterMethod.getReporterIon(ionName),
+                            1
+                    );
+
+                    result.setReporterMatch(channel, bestMatch);
+                }
+
+                result.setDeisotopedIntensity(channel, deisotopedIntensity[target]);
+            }
         }
 
         return result;
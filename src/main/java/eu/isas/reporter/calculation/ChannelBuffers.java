@@ -0,0 +1,148 @@
+package eu.isas.reporter.calculation;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Growable primitive buffers storing values per channel. The buffers are
+ * meant to be reused by a thread between matches, they are therefore only
+ * reset and never shrunk. Every thread keeps a pool of buffers: buffers are
+ * acquired for the duration of an estimate and released afterwards, so that
+ * an estimate nested in another estimate on the same thread gets its own
+ * buffers.
+ *
+ * @author Marc Vaudel
+ */
+public class ChannelBuffers {
+
+    /**
+     * The initial capacity of a channel buffer.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+    /**
+     * The buffers of every thread which are not in use.
+     */
+    private static final ThreadLocal<ArrayDeque<ChannelBuffers>> FREE_BUFFERS = ThreadLocal.withInitial(ArrayDeque::new);
+    /**
+     * The values of every channel.
+     */
+    private double[][] values = new double[0][];
+    /**
+     * The number of values of every channel.
+     */
+    private int[] lengths = new int[0];
+    /**
+     * Indicates whether the buffers were acquired and not released yet.
+     */
+    private boolean inUse = false;
+
+    /**
+     * Constructor.
+     */
+    public ChannelBuffers() {
+
+    }
+
+    /**
+     * Returns empty buffers of the pool of the calling thread, new buffers if
+     * all buffers of the pool are in use. The buffers must be released by the
+     * same thread when not used anymore. Buffers which are not released, e.g.
+     * because of an exception, are left to the garbage collector.
+     *
+     * @param nChannels the number of channels
+     *
+     * @return empty buffers with the given number of channels
+     */
+    public static ChannelBuffers acquire(int nChannels) {
+
+        ChannelBuffers buffers = FREE_BUFFERS.get().pollFirst();
+
+        if (buffers == null) {
+            buffers = new ChannelBuffers();
+        }
+
+        buffers.inUse = true;
+        buffers.reset(nChannels);
+
+        return buffers;
+    }
+
+    /**
+     * Returns the buffers to the pool of the calling thread. The values of the
+     * buffers must not be used after the buffers are released.
+     */
+    public void release() {
+
+        if (!inUse) {
+            throw new IllegalStateException("Channel buffers released without being acquired.");
+        }
+
+        inUse = false;
+        FREE_BUFFERS.get().addFirst(this);
+    }
+
+    /**
+     * Empties the buffers and makes sure that the given number of channels is
+     * available.
+     *
+     * @param nChannels the number of channels
+     */
+    public void reset(int nChannels) {
+
+        if (nChannels > values.length) {
+
+            int previousLength = values.length;
+            values = Arrays.copyOf(values, nChannels);
+            lengths = Arrays.copyOf(lengths, nChannels);
+
+            for (int i = previousLength; i < nChannels; i++) {
+                values[i] = new double[INITIAL_CAPACITY];
+            }
+        }
+
+        Arrays.fill(lengths, 0);
+    }
+
+    /**
+     * Adds a value to the given channel.
+     *
+     * @param channel the index of the channel
+     * @param value the value to add
+     */
+    public void add(int channel, double value) {
+
+        double[] channelValues = values[channel];
+        int length = lengths[channel];
+
+        if (length == channelValues.length) {
+            channelValues = Arrays.copyOf(channelValues, 2 * length);
+            values[channel] = channelValues;
+        }
+
+        channelValues[length] = value;
+        lengths[channel] = length + 1;
+    }
+
+    /**
+     * Returns the values of the given channel. Only the first getLength(channel)
+     * values are set.
+     *
+     * @param channel the index of the channel
+     *
+     * @return the values of the given channel
+     */
+    public double[] getValues(int channel) {
+        return values[channel];
+    }
+
+    /**
+     * Returns the number of values of the given channel.
+     *
+     * @param channel the index of the channel
+     *
+     * @return the number of values of the given channel
+     */
+    public int getLength(int channel) {
+        return lengths[channel];
+    }
+}
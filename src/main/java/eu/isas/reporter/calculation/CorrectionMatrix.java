@@ -81,4 +81,16 @@ public class CorrectionMatrix {
     public double getValueAt(int i, int j) {
         return correctionMatrix[i][j];
     }
+
+    /**
+     * Returns the row i of the matrix. The returned array is not a copy and
+     * must not be modified.
+     *
+     * @param i the row number
+     *
+     * @return the row i of the matrix
+     */
+    public double[] getRow(int i) {
+        return correctionMatrix[i];
+    }
 }
@@ -2,13 +2,12 @@ package eu.isas.reporter.calculation;
 
 import com.compomics.util.experiment.biology.atoms.Atom;
 import com.compomics.util.experiment.biology.ions.impl.ReporterIon;
-import com.compomics.util.experiment.identification.matches.IonMatch;
-import com.compomics.util.experiment.mass_spectrometry.spectra.Spectrum;
 import com.compomics.util.experiment.quantification.reporterion.Reagent;
 import com.compomics.util.experiment.quantification.reporterion.ReporterMethod;
-import eu.isas.reporter.Reporter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.ujmp.core.doublematrix.calculation.general.decomposition.Ginv;
 
 /**
@@ -19,6 +18,21 @@ import org.ujmp.core.doublematrix.calculation.general.decomposition.Ginv;
  */
 public class Deisotoper {
 
+    /**
+     * The maximal number of deisotopers kept in the cache.
+     */
+    public static final int MAX_CACHED_DEISOTOPERS = 8;
+    /**
+     * The deisotopers last used indexed by method and tolerance, see getKey,
+     * in access order. The least recently used deisotoper is evicted when
+     * more than MAX_CACHED_DEISOTOPERS are cached.
+     */
+    private static final LinkedHashMap<String, Deisotoper> deisotopers = new LinkedHashMap<String, Deisotoper>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Deisotoper> eldest) {
+            return size() > MAX_CACHED_DEISOTOPERS;
+        }
+    };
     /**
      * The correction matrix corresponding to every label.
      */
@@ -27,9 +41,37 @@ public class Deisotoper {
      * The reporter method used.
      */
     private ReporterMethod method;
+    /**
+     * The extractor of the reporter and isotope peaks.
+     */
+    private ReporterPeakExtractor peakExtractor;
+    /**
+     * The index of the target of the reporter ion of every label in the peak
+     * extractor.
+     */
+    private HashMap<String, Integer> reporterIonTargets;
+    /**
+     * The distinct correction matrices.
+     */
+    private CorrectionMatrix[] matrices;
+    /**
+     * The index of the target of the first isotope of every distinct
+     * correction matrix in the peak extractor.
+     */
+    private int[] matrixOffsets;
+    /**
+     * The index of the target of the reporter ion of the labels of every
+     * distinct correction matrix.
+     */
+    private int[][] matrixLabelTargets;
+    /**
+     * The line of the labels of every distinct correction matrix.
+     */
+    private int[][] matrixLabelLines;
 
     /**
-     * Constructor.
+     * Constructor. Consider using getDeisotoper to reuse the correction
+     * matrices.
      *
      * @param method the reporter method used
      * @param tolerance the tolerance to use for reporter ions detection
@@ -37,6 +79,60 @@ public class Deisotoper {
     public Deisotoper(ReporterMethod method, double tolerance) {
         this.method = method;
         estimateCorrectionFactors(tolerance);
+        setPeakExtractor(tolerance);
+    }
+
+    /**
+     * Returns the deisotoper for the given method and tolerance. The last
+     * used deisotopers are shared in the process so that the correction
+     * matrices are not inverted again when reopening a project.
+     *
+     * @param method the reporter method used
+     * @param tolerance the tolerance to use for reporter ions detection
+     *
+     * @return the deisotoper for the given method and tolerance
+     */
+    public static Deisotoper getDeisotoper(ReporterMethod method, double tolerance) {
+
+        String key = getKey(method, tolerance);
+
+        synchronized (deisotopers) {
+
+            Deisotoper deisotoper = deisotopers.get(key);
+
+            if (deisotoper == null) {
+                deisotoper = new Deisotoper(method, tolerance);
+                deisotopers.put(key, deisotoper);
+            }
+
+            return deisotoper;
+        }
+    }
+
+    /**
+     * Returns the key of a deisotoper in the cache. The key contains the
+     * tolerance and the mass and isotopic distribution of every reagent so
+     * that an edited method does not reuse outdated matrices.
+     *
+     * @param method the reporter method used
+     * @param tolerance the tolerance to use for reporter ions detection
+     *
+     * @return the key of a deisotoper in the cache
+     */
+    static String getKey(ReporterMethod method, double tolerance) {
+        StringBuilder key = new StringBuilder();
+        key.append(method.getName()).append('|').append(tolerance);
+        for (String label : method.getReagentNames()) {
+            Reagent reagent = method.getReagent(label);
+            key.append('|').append(label)
+                    .append(',').append(reagent.getReporterIon().getTheoreticMass())
+                    .append(',').append(reagent.getMinus2())
+                    .append(',').append(reagent.getMinus1())
+                    .append(',').append(reagent.getRef())
+                    .append(',').append(reagent.getPlus1())
+                    .append(',').append(reagent.getPlus2());
+        }
+        return key.toString();
     }
 
     /**
@@ -110,56 +206,145 @@ public class Deisotoper {
     }
 
     /**
-     * This method returns deisotoped intensities.
+     * Sets the extractor for the reporter ions and for the isotopes of every
+     * correction matrix.
      *
-     * @param ionMatches the ion matches to deisotope
-     * @param spectrum the spectrum to search the isotopic intensities in
-     * @param mzTolerance the MS2 m/z tolerance
-     * @param mostAccurate boolean indicating whether the most accurate ion
-     * should be selected
-     *
-     * @return a map of the deisotoped intensities (ion index &gt; intensity)
+     * @param tolerance the tolerance to use for reporter ions detection
      */
-    public HashMap<String, Double> deisotope(HashMap<String, IonMatch> ionMatches, Spectrum spectrum, double mzTolerance, boolean mostAccurate) {
+    private void setPeakExtractor(double tolerance) {
 
-        HashMap<String, Double> result = new HashMap<>();
-        for (String label : method.getReagentNames()) {
-            IonMatch refMatch = ionMatches.get(label);
-            if (refMatch != null && refMatch.peakIntensity > 0) {
-                CorrectionMatrix correctionMatrix = correctionMatrices.get(label);
-                HashMap<Integer, String> involvedReagents = correctionMatrix.getReagentsNames();
-                int dimension = correctionMatrix.getDimension();
-                double[] intensities = new double[dimension];
-                int lineNumber = -1;
-                for (int i = 0; i < dimension; i++) {
-                    String reagentName = involvedReagents.get(i);
-                    if (reagentName != null) {
-                        if (reagentName.equals(label)) {
-                            lineNumber = i;
-                        }
-                    }
-                    double reagentMass = correctionMatrix.getReagentMass(i);
-                    ReporterIon tempIon = new ReporterIon("tempIon", reagentMass, false);
-                    IonMatch ionMatch = Reporter.getBestReporterIonMatch(tempIon, 1, spectrum, mzTolerance, mostAccurate);
-                    if (ionMatch != null) {
-                        intensities[i] = ionMatch.peakIntensity;
-                    }
+        ArrayList<String> labels = new ArrayList<>(method.getReagentNames());
+        reporterIonTargets = new HashMap<>(labels.size());
+        HashMap<String, Integer> matrixLines = new HashMap<>(labels.size());
+        HashMap<CorrectionMatrix, Integer> offsets = new HashMap<>();
+        ArrayList<CorrectionMatrix> distinctMatrices = new ArrayList<>();
+        int nTargets = labels.size();
+        for (String label : labels) {
+            CorrectionMatrix correctionMatrix = correctionMatrices.get(label);
+            Integer offset = offsets.get(correctionMatrix);
+            if (offset == null) {
+                offset = nTargets;
+                offsets.put(correctionMatrix, offset);
+                distinctMatrices.add(correctionMatrix);
+                nTargets += correctionMatrix.getDimension();
+            }
+            int lineNumber = -1;
+            for (int i = 0; i < correctionMatrix.getDimension(); i++) {
+                if (label.equals(correctionMatrix.getReagentsNames().get(i))) {
+                    lineNumber = i;
                 }
-                if (lineNumber == -1) {
-                    throw new IllegalArgumentException("Index of reagent " + label + " not found in the isotope correction matrix.");
+            }
+            if (lineNumber == -1) {
+                throw new IllegalArgumentException("Index of reagent " + label + " not found in the isotope correction matrix.");
+            }
+            matrixLines.put(label, lineNumber);
+        }
+        double[] targetMz = new double[nTargets];
+        for (int i = 0; i < labels.size(); i++) {
+            String label = labels.get(i);
+            reporterIonTargets.put(label, i);
+            targetMz[i] = method.getReporterIon(label).getTheoreticMz(1);
+        }
+        for (CorrectionMatrix correctionMatrix : distinctMatrices) {
+            int offset = offsets.get(correctionMatrix);
+            for (int i = 0; i < correctionMatrix.getDimension(); i++) {
+                ReporterIon tempIon = new ReporterIon("tempIon", correctionMatrix.getReagentMass(i), false);
+                targetMz[offset + i] = tempIon.getTheoreticMz(1);
+            }
+        }
+        peakExtractor = new ReporterPeakExtractor(targetMz, tolerance);
+        matrices = distinctMatrices.toArray(new CorrectionMatrix[distinctMatrices.size()]);
+        matrixOffsets = new int[matrices.length];
+        matrixLabelTargets = new int[matrices.length][];
+        matrixLabelLines = new int[matrices.length][];
+        for (int i = 0; i < matrices.length; i++) {
+            CorrectionMatrix correctionMatrix = matrices[i];
+            matrixOffsets[i] = offsets.get(correctionMatrix);
+            ArrayList<String> matrixLabels = new ArrayList<>();
+            for (String label : labels) {
+                if (correctionMatrices.get(label) == correctionMatrix) {
+                    matrixLabels.add(label);
                 }
+            }
+            matrixLabelTargets[i] = new int[matrixLabels.size()];
+            matrixLabelLines[i] = new int[matrixLabels.size()];
+            for (int j = 0; j < matrixLabels.size(); j++) {
+                String label = matrixLabels.get(j);
+                matrixLabelTargets[i][j] = reporterIonTargets.get(label);
+                matrixLabelLines[i][j] = matrixLines.get(label);
+            }
+        }
+    }
+
+    /**
+     * Returns the extractor of the reporter and isotope peaks needed by this
+     * deisotoper.
+     *
+     * @return the extractor of the reporter and isotope peaks
+     */
+    public ReporterPeakExtractor getPeakExtractor() {
+        return peakExtractor;
+    }
+
+    /**
+     * Returns the correction matrix of the given label, null if not found.
+     *
+     * @param label the label
+     *
+     * @return the correction matrix of the given label
+     */
+    public CorrectionMatrix getCorrectionMatrix(String label) {
+        return correctionMatrices.get(label);
+    }
+
+    /**
+     * Returns the index of the target of the reporter ion of the given label
+     * in the peak extractor, -1 if not found.
+     *
+     * @param label the label
+     *
+     * @return the index of the target of the reporter ion of the given label
+     */
+    public int getReporterIonTarget(String label) {
+        Integer target = reporterIonTargets.get(label);
+        return target == null ? -1 : target;
+    }
+
+    /**
+     * Deisotopes the intensities of all labels. Every distinct correction
+     * matrix is applied once to the isotope intensities extracted from the
+     * spectrum, yielding the deisotoped intensities of all its labels. The
+     * result is stored in the deisotoped intensities of the peaks at the
+     * target of the reporter ion of every label, 0 if the reporter ion of the
+     * label was not found.
+     *
+     * @param peaks the peaks extracted from the spectrum using the peak
+     * extractor of this deisotoper
+     */
+    public void deisotope(ReporterPeaks peaks) {
+
+        double[] intensities = peaks.getIntensity();
+        double[] deisotoped = peaks.getDeisotopedIntensity();
+        for (int i = 0; i < matrices.length; i++) {
+            CorrectionMatrix correctionMatrix = matrices[i];
+            int offset = matrixOffsets[i];
+            int dimension = correctionMatrix.getDimension();
+            int[] labelTargets = matrixLabelTargets[i];
+            int[] labelLines = matrixLabelLines[i];
+            for (int j = 0; j < labelTargets.length; j++) {
+                int refTarget = labelTargets[j];
                 double resultInt = 0;
-                for (int j = 0; j < intensities.length; j++) {
-                    resultInt += intensities[j] * correctionMatrix.getValueAt(lineNumber, j);
-                }
-                if (resultInt < 0) {
-                    resultInt = 0;
+                if (peaks.hasPeak(refTarget) && intensities[refTarget] > 0) {
+                    double[] row = correctionMatrix.getRow(labelLines[j]);
+                    for (int k = 0; k < dimension; k++) {
+                        resultInt += intensities[offset + k] * row[k];
+                    }
+                    if (resultInt < 0) {
+                        resultInt = 0;
+                    }
                 }
-                result.put(label, resultInt);
-            } else {
-                result.put(label, 0.0);
+                deisotoped[refTarget] = resultInt;
             }
         }
-        return result;
     }
 }
@@ -0,0 +1,468 @@
+package eu.isas.reporter.calculation;
+
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.features.IdentificationFeaturesGenerator;
+import com.compomics.util.experiment.identification.matches.PeptideMatch;
+import com.compomics.util.experiment.identification.matches.ProteinMatch;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.function.LongPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * Incidence of the matches of a project: the keys of the PSMs, peptides and
+ * proteins are sorted in dense arrays and the peptides of every protein and
+ * the PSMs of every peptide are stored as indexes in these arrays in
+ * compressed sparse rows, together with the transposed rows giving the
+ * proteins of every peptide. The rows are not copied when accessed: the
+ * start and end of a row give the positions of its indexes. The peptides mapping to a single validated protein
+ * group are flagged as unique. The incidence does not depend on the
+ * quantification settings and is built once per project.
+ *
+ * @author Marc Vaudel
+ */
+public class MatchIncidence {
+
+    /**
+     * The sorted keys of the spectrum matches.
+     */
+    private final long[] psmKeys;
+    /**
+     * The sorted keys of the peptide matches.
+     */
+    private final long[] peptideKeys;
+    /**
+     * The sorted keys of the protein matches.
+     */
+    private final long[] proteinKeys;
+    /**
+     * The start of the peptides of every protein in proteinPeptides, the last
+     * element is the number of peptide indexes.
+     */
+    private final int[] proteinPeptidesStart;
+    /**
+     * The indexes of the peptides of the proteins.
+     */
+    private final int[] proteinPeptides;
+    /**
+     * The start of the proteins of every peptide in peptideProteins, the last
+     * element is the number of protein indexes.
+     */
+    private final int[] peptideProteinsStart;
+    /**
+     * The indexes of the proteins of the peptides in ascending order.
+     */
+    private final int[] peptideProteins;
+    /**
+     * The start of the PSMs of every peptide in peptidePsms, the last element
+     * is the number of PSM indexes.
+     */
+    private final int[] peptidePsmsStart;
+    /**
+     * The indexes of the PSMs of the peptides.
+     */
+    private final int[] peptidePsms;
+    /**
+     * The peptides mapping to a single validated protein group.
+     */
+    private final long[] uniquePeptides;
+
+    /**
+     * Builds the incidence of all matches of the given identification. The
+     * matches are loaded in parallel using the pool of the calling thread.
+     *
+     * @param identification the identification
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     */
+    public MatchIncidence(
+            Identification identification,
+            IdentificationFeaturesGenerator identificationFeaturesGenerator
+    ) {
+        this(identification, peptideKey -> identificationFeaturesGenerator.getNValidatedProteinGroups(peptideKey) == 1);
+    }
+
+    /**
+     * Builds the incidence of all matches of the given identification. The
+     * matches are loaded in parallel using the pool of the calling thread.
+     *
+     * @param identification the identification
+     * @param uniquePeptide predicate indicating whether the peptide of the
+     * given key maps to a single validated protein group
+     */
+    public MatchIncidence(
+            Identification identification,
+            LongPredicate uniquePeptide
+    ) {
+
+        psmKeys = identification.getSpectrumIdentification().values().stream()
+                .flatMap(HashSet::stream)
+                .mapToLong(Long::longValue)
+                .sorted()
+                .toArray();
+        peptideKeys = identification.getPeptideIdentification().stream()
+                .mapToLong(Long::longValue)
+                .sorted()
+                .toArray();
+        proteinKeys = identification.getProteinIdentification().stream()
+                .mapToLong(Long::longValue)
+                .sorted()
+                .toArray();
+
+        // peptides, every word of the bitset is filled by a single thread
+        int[][] psmRows = new int[peptideKeys.length][];
+        uniquePeptides = new long[(peptideKeys.length + 63) >>> 6];
+
+        IntStream.range(0, uniquePeptides.length)
+                .parallel()
+                .forEach(word -> {
+
+                    int end = Math.min((word + 1) << 6, peptideKeys.length);
+
+                    for (int i = word << 6; i < end; i++) {
+
+                        long peptideKey = peptideKeys[i];
+                        PeptideMatch peptideMatch = identification.getPeptideMatch(peptideKey);
+                        psmRows[i] = getIndexes(peptideMatch.getSpectrumMatchesKeys(), psmKeys);
+
+                        if (uniquePeptide.test(peptideKey)) {
+                            uniquePeptides[word] |= 1L << i;
+                        }
+                    }
+                });
+
+        peptidePsmsStart = new int[peptideKeys.length + 1];
+        peptidePsms = compress(psmRows, peptidePsmsStart);
+
+        // proteins
+        int[][] peptideRows = new int[proteinKeys.length][];
+
+        IntStream.range(0, proteinKeys.length)
+                .parallel()
+                .forEach(i -> {
+
+                    ProteinMatch proteinMatch = identification.getProteinMatch(proteinKeys[i]);
+                    peptideRows[i] = getIndexes(proteinMatch.getPeptideMatchesKeys(), peptideKeys);
+
+                });
+
+        proteinPeptidesStart = new int[proteinKeys.length + 1];
+        proteinPeptides = compress(peptideRows, proteinPeptidesStart);
+
+        // transposed rows
+        peptideProteinsStart = new int[peptideKeys.length + 1];
+
+        for (int peptideIndex : proteinPeptides) {
+            peptideProteinsStart[peptideIndex + 1]++;
+        }
+
+        for (int i = 0; i < peptideKeys.length; i++) {
+            peptideProteinsStart[i + 1] += peptideProteinsStart[i];
+        }
+
+        peptideProteins = new int[proteinPeptides.length];
+        int[] peptideProteinsEnd = Arrays.copyOf(peptideProteinsStart, peptideKeys.length);
+
+        for (int proteinIndex = 0; proteinIndex < proteinKeys.length; proteinIndex++) {
+            for (int i = proteinPeptidesStart[proteinIndex]; i < proteinPeptidesStart[proteinIndex + 1]; i++) {
+                peptideProteins[peptideProteinsEnd[proteinPeptides[i]]++] = proteinIndex;
+            }
+        }
+    }
+
+    /**
+     * Returns the indexes of the given keys in the sorted keys in the order
+     * of the given keys. Keys not found are skipped.
+     *
+     * @param keys the keys
+     * @param sortedKeys the sorted keys
+     *
+     * @return the indexes of the keys
+     */
+    private static int[] getIndexes(long[] keys, long[] sortedKeys) {
+
+        int[] indexes = new int[keys.length];
+        int nIndexes = 0;
+
+        for (long key : keys) {
+
+            int index = Arrays.binarySearch(sortedKeys, key);
+
+            if (index >= 0) {
+                indexes[nIndexes++] = index;
+            }
+        }
+
+        return nIndexes == indexes.length ? indexes : Arrays.copyOf(indexes, nIndexes);
+    }
+
+    /**
+     * Concatenates the given rows and fills the start of every row.
+     *
+     * @param rows the rows
+     * @param rowsStart the array where to store the start of every row, must
+     * be one element longer than the rows
+     *
+     * @return the concatenated rows
+     */
+    private static int[] compress(int[][] rows, int[] rowsStart) {
+
+        for (int i = 0; i < rows.length; i++) {
+            rowsStart[i + 1] = rowsStart[i] + rows[i].length;
+        }
+
+        int[] result = new int[rowsStart[rows.length]];
+
+        for (int i = 0; i < rows.length; i++) {
+            System.arraycopy(rows[i], 0, result, rowsStart[i], rows[i].length);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the sorted keys of the spectrum matches. The array is not
+     * copied and must not be modified.
+     *
+     * @return the sorted keys of the spectrum matches
+     */
+    long[] getPsmKeys() {
+        return psmKeys;
+    }
+
+    /**
+     * Returns the sorted keys of the peptide matches. The array is not copied
+     * and must not be modified.
+     *
+     * @return the sorted keys of the peptide matches
+     */
+    long[] getPeptideKeys() {
+        return peptideKeys;
+    }
+
+    /**
+     * Returns the sorted keys of the protein matches. The array is not copied
+     * and must not be modified.
+     *
+     * @return the sorted keys of the protein matches
+     */
+    long[] getProteinKeys() {
+        return proteinKeys;
+    }
+
+    /**
+     * Returns the key of the spectrum match at the given index.
+     *
+     * @param psmIndex the index of the spectrum match
+     *
+     * @return the key of the spectrum match
+     */
+    public long getPsmKey(int psmIndex) {
+        return psmKeys[psmIndex];
+    }
+
+    /**
+     * Returns the key of the peptide match at the given index.
+     *
+     * @param peptideIndex the index of the peptide match
+     *
+     * @return the key of the peptide match
+     */
+    public long getPeptideKey(int peptideIndex) {
+        return peptideKeys[peptideIndex];
+    }
+
+    /**
+     * Returns the key of the protein match at the given index.
+     *
+     * @param proteinIndex the index of the protein match
+     *
+     * @return the key of the protein match
+     */
+    public long getProteinKey(int proteinIndex) {
+        return proteinKeys[proteinIndex];
+    }
+
+    /**
+     * Returns the index of a spectrum match, a negative value if not indexed.
+     *
+     * @param matchKey the key of the spectrum match
+     *
+     * @return the index of the spectrum match
+     */
+    public int getPsmIndex(long matchKey) {
+        return Arrays.binarySearch(psmKeys, matchKey);
+    }
+
+    /**
+     * Returns the index of a peptide match, a negative value if not indexed.
+     *
+     * @param matchKey the key of the peptide match
+     *
+     * @return the index of the peptide match
+     */
+    public int getPeptideIndex(long matchKey) {
+        return Arrays.binarySearch(peptideKeys, matchKey);
+    }
+
+    /**
+     * Returns the index of a protein match, a negative value if not indexed.
+     *
+     * @param matchKey the key of the protein match
+     *
+     * @return the index of the protein match
+     */
+    public int getProteinIndex(long matchKey) {
+        return Arrays.binarySearch(proteinKeys, matchKey);
+    }
+
+    /**
+     * Returns the start of the peptides of the protein at the given index:
+     * the position of its first peptide index, to be retrieved using
+     * getPeptideIndexAt.
+     *
+     * @param proteinIndex the index of the protein match
+     *
+     * @return the start of the peptides of the protein, inclusive
+     */
+    public int getPeptidesStart(int proteinIndex) {
+        return proteinPeptidesStart[proteinIndex];
+    }
+
+    /**
+     * Returns the end of the peptides of the protein at the given index.
+     *
+     * @param proteinIndex the index of the protein match
+     *
+     * @return the end of the peptides of the protein, exclusive
+     */
+    public int getPeptidesEnd(int proteinIndex) {
+        return proteinPeptidesStart[proteinIndex + 1];
+    }
+
+    /**
+     * Returns the index of the peptide at the given position in the peptides
+     * of the proteins.
+     *
+     * @param position the position between the start and the end of the
+     * peptides of a protein
+     *
+     * @return the index of the peptide match
+     */
+    public int getPeptideIndexAt(int position) {
+        return proteinPeptides[position];
+    }
+
+    /**
+     * Returns the start of the proteins of the peptide at the given index:
+     * the position of its first protein index, to be retrieved using
+     * getProteinIndexAt. The protein indexes of a peptide are in ascending
+     * order.
+     *
+     * @param peptideIndex the index of the peptide match
+     *
+     * @return the start of the proteins of the peptide, inclusive
+     */
+    public int getProteinsStart(int peptideIndex) {
+        return peptideProteinsStart[peptideIndex];
+    }
+
+    /**
+     * Returns the end of the proteins of the peptide at the given index.
+     *
+     * @param peptideIndex the index of the peptide match
+     *
+     * @return the end of the proteins of the peptide, exclusive
+     */
+    public int getProteinsEnd(int peptideIndex) {
+        return peptideProteinsStart[peptideIndex + 1];
+    }
+
+    /**
+     * Returns the index of the protein at the given position in the proteins
+     * of the peptides.
+     *
+     * @param position the position between the start and the end of the
+     * proteins of a peptide
+     *
+     * @return the index of the protein match
+     */
+    public int getProteinIndexAt(int position) {
+        return peptideProteins[position];
+    }
+
+    /**
+     * Returns the start of the PSMs of the peptide at the given index: the
+     * position of its first PSM index, to be retrieved using getPsmIndexAt.
+     *
+     * @param peptideIndex the index of the peptide match
+     *
+     * @return the start of the PSMs of the peptide, inclusive
+     */
+    public int getPsmsStart(int peptideIndex) {
+        return peptidePsmsStart[peptideIndex];
+    }
+
+    /**
+     * Returns the end of the PSMs of the peptide at the given index.
+     *
+     * @param peptideIndex the index of the peptide match
+     *
+     * @return the end of the PSMs of the peptide, exclusive
+     */
+    public int getPsmsEnd(int peptideIndex) {
+        return peptidePsmsStart[peptideIndex + 1];
+    }
+
+    /**
+     * Returns the index of the PSM at the given position in the PSMs of the
+     * peptides.
+     *
+     * @param position the position between the start and the end of the
+     * PSMs of a peptide
+     *
+     * @return the index of the spectrum match
+     */
+    public int getPsmIndexAt(int position) {
+        return peptidePsms[position];
+    }
+
+    /**
+     * Returns the number of spectrum matches.
+     *
+     * @return the number of spectrum matches
+     */
+    public int getNPsms() {
+        return psmKeys.length;
+    }
+
+    /**
+     * Returns the number of peptide matches.
+     *
+     * @return the number of peptide matches
+     */
+    public int getNPeptides() {
+        return peptideKeys.length;
+    }
+
+    /**
+     * Returns the number of protein matches.
+     *
+     * @return the number of protein matches
+     */
+    public int getNProteins() {
+        return proteinKeys.length;
+    }
+
+    /**
+     * Indicates whether the peptide at the given index maps to a single
+     * validated protein group.
+     *
+     * @param peptideIndex the index of the peptide match
+     *
+     * @return a boolean indicating whether the peptide is unique
+     */
+    public boolean isUniquePeptide(int peptideIndex) {
+        return (uniquePeptides[peptideIndex >>> 6] & (1L << peptideIndex)) != 0;
+    }
+}
@@ -0,0 +1,271 @@
+package eu.isas.reporter.calculation;
+
+import com.compomics.util.experiment.mass_spectrometry.SpectrumProvider;
+import com.compomics.util.experiment.mass_spectrometry.spectra.Precursor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Index of the precursors of a spectrum file sorted by retention time. The
+ * index is immutable and can be shared between threads. It also resolves the
+ * title of a spectrum from its key using the index of the spectrum titles it
+ * was built from.
+ *
+ * @author Marc Vaudel
+ */
+public class PrecursorIndex {
+
+    /**
+     * The index of the spectrum titles.
+     */
+    private final SpectrumTitleIndex spectrumTitleIndex;
+    /**
+     * The retention time of the precursors sorted in ascending order.
+     */
+    private final double[] rts;
+    /**
+     * The m/z of the precursors in retention time order.
+     */
+    private final double[] mzs;
+    /**
+     * The index of the spectrum in the file of the precursors in retention
+     * time order.
+     */
+    private final int[] spectrumIndexes;
+
+    /**
+     * Constructor. The index is built once, callers are responsible for
+     * discarding it when the spectra of the file change.
+     *
+     * @param spectrumProvider the spectrum provider
+     * @param spectrumFile the name of the spectrum file
+     */
+    public PrecursorIndex(SpectrumProvider spectrumProvider, String spectrumFile) {
+        this(spectrumProvider, new SpectrumTitleIndex(spectrumFile, spectrumProvider.getSpectrumTitles(spectrumFile)));
+    }
+
+    /**
+     * Constructor. The index is built once from the given index of the
+     * spectrum titles, callers are responsible for discarding it when the
+     * spectra of the file change.
+     *
+     * @param spectrumProvider the spectrum provider
+     * @param spectrumTitleIndex the index of the spectrum titles of the file
+     */
+    public PrecursorIndex(SpectrumProvider spectrumProvider, SpectrumTitleIndex spectrumTitleIndex) {
+
+        this.spectrumTitleIndex = spectrumTitleIndex;
+        String spectrumFile = spectrumTitleIndex.getSpectrumFile();
+        int nSpectra = spectrumTitleIndex.size();
+        double[] fileRts = new double[nSpectra];
+        double[] fileMzs = new double[nSpectra];
+        int[] order = new int[nSpectra];
+
+        for (int i = 0; i < nSpectra; i++) {
+
+            Precursor precursor = spectrumProvider.getPrecursor(spectrumFile, spectrumTitleIndex.getSpectrumTitleAt(i));
+            fileRts[i] = precursor.rt;
+            fileMzs[i] = precursor.mz;
+            order[i] = i;
+
+        }
+
+        sortIndexes(order, (i, j) -> Double.compare(fileRts[i], fileRts[j]));
+
+        rts = new double[nSpectra];
+        mzs = new double[nSpectra];
+        spectrumIndexes = new int[nSpectra];
+
+        for (int i = 0; i < nSpectra; i++) {
+
+            int spectrumIndex = order[i];
+            rts[i] = fileRts[spectrumIndex];
+            mzs[i] = fileMzs[spectrumIndex];
+            spectrumIndexes[i] = spectrumIndex;
+
+        }
+    }
+
+    /**
+     * Returns the name of the spectrum file.
+     *
+     * @return the name of the spectrum file
+     */
+    public String getSpectrumFile() {
+        return spectrumTitleIndex.getSpectrumFile();
+    }
+
+    /**
+     * Returns the index of the spectrum titles.
+     *
+     * @return the index of the spectrum titles
+     */
+    public SpectrumTitleIndex getSpectrumTitleIndex() {
+        return spectrumTitleIndex;
+    }
+
+    /**
+     * Returns the title of the spectrum of the given key, null if the
+     * spectrum is not in the file.
+     *
+     * @param spectrumKey the key of the spectrum
+     *
+     * @return the title of the spectrum
+     */
+    public String getSpectrumTitle(long spectrumKey) {
+        return spectrumTitleIndex.getSpectrumTitle(spectrumKey);
+    }
+
+    /**
+     * Adds the keys of the spectra whose precursor is within the given
+     * retention time and m/z tolerances of the given reference to the given
+     * list, in the order of the file. The tolerances are applied as in the
+     * previous linear search: |rt - refRt| &lt;= rtTolerance and |mz - refMz|
+     * &lt;= mzTolerance, the m/z error being relative to refMz in ppm if
+     * mzPpm is true.
+     *
+     * @param refRt the retention time of the reference precursor
+     * @param refMz the m/z of the reference precursor
+     * @param rtTolerance the retention time tolerance
+     * @param mzTolerance the m/z tolerance
+     * @param mzPpm boolean indicating whether the m/z tolerance is in ppm
+     * @param result the list where to add the keys of the matching spectra
+     */
+    public void getSpectrumKeys(
+            double refRt,
+            double refMz,
+            double rtTolerance,
+            double mzTolerance,
+            boolean mzPpm,
+            ArrayList<Long> result
+    ) {
+
+        int start = lowerBound(rts, refRt - rtTolerance);
+
+        // make sure that rounding does not exclude spectra at the lower bound
+        while (start > 0 && Math.abs(rts[start - 1] - refRt) <= rtTolerance) {
+            start--;
+        }
+
+        int[] matches = new int[16];
+        int nMatches = 0;
+        double maxRt = refRt + rtTolerance;
+
+        for (int i = start; i < rts.length; i++) {
+
+            double rt = rts[i];
+            boolean rtMatch = Math.abs(rt - refRt) <= rtTolerance;
+
+            if (!rtMatch && !(rt <= maxRt)) {
+                break;
+            }
+
+            if (rtMatch) {
+
+                double mz = mzs[i];
+                boolean mzMatch;
+
+                if (mzPpm) {
+
+                    double error = (mz - refMz) / refMz * 1000000;
+                    mzMatch = Math.abs(error) <= mzTolerance;
+
+                } else {
+
+                    mzMatch = Math.abs(mz - refMz) <= mzTolerance;
+
+                }
+
+                if (mzMatch) {
+
+                    if (nMatches == matches.length) {
+                        matches = Arrays.copyOf(matches, 2 * nMatches);
+                    }
+
+                    matches[nMatches++] = spectrumIndexes[i];
+
+                }
+            }
+        }
+
+        Arrays.sort(matches, 0, nMatches);
+
+        for (int i = 0; i < nMatches; i++) {
+            result.add(spectrumTitleIndex.getSpectrumKeyAt(matches[i]));
+        }
+    }
+
+    /**
+     * Sorts indexes according to the given comparator. The sort is a stable
+     * merge sort on primitive arrays, indexes comparing equal keep their
+     * order.
+     *
+     * @param indexes the indexes to sort
+     * @param comparator the comparator of the indexes
+     */
+    static void sortIndexes(int[] indexes, IntBinaryOperator comparator) {
+
+        int[] buffer = new int[indexes.length];
+        int[] source = indexes;
+        int[] destination = buffer;
+
+        for (int width = 1; width < indexes.length; width *= 2) {
+
+            for (int start = 0; start < indexes.length; start += 2 * width) {
+
+                int middle = Math.min(start + width, indexes.length);
+                int end = Math.min(start + 2 * width, indexes.length);
+                int i = start;
+                int j = middle;
+
+                for (int k = start; k < end; k++) {
+
+                    if (i < middle && (j >= end || comparator.applyAsInt(source[i], source[j]) <= 0)) {
+                        destination[k] = source[i++];
+                    } else {
+                        destination[k] = source[j++];
+                    }
+                }
+            }
+
+            int[] temp = source;
+            source = destination;
+            destination = temp;
+
+        }
+
+        if (source != indexes) {
+            System.arraycopy(source, 0, indexes, 0, indexes.length);
+        }
+    }
+
+    /**
+     * Returns the index of the first value greater than or equal to the given
+     * value in a sorted array, the length of the array if none.
+     *
+     * @param values the sorted values
+     * @param value the value
+     *
+     * @return the index of the first value greater than or equal to the given
+     * value
+     */
+    private static int lowerBound(double[] values, double value) {
+
+        int low = 0;
+        int high = values.length;
+
+        while (low < high) {
+
+            int middle = (low + high) >>> 1;
+
+            if (values[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+}
@@ -0,0 +1,403 @@
+package eu.isas.reporter.calculation;
+
+import com.compomics.util.experiment.biology.proteins.Peptide;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+
+/**
+ * Index of the PTM sites of a project. A site is a PTM at a position of the
+ * leading protein of a protein match, and is carried by the peptides where
+ * this PTM is confidently localized at this position. The sites are sorted by
+ * protein, PTM and position, and the index of a site in this order is used to
+ * retrieve its peptides, stored as indexes in the MatchIncidence. The index
+ * does not depend on the quantification settings and is built once per
+ * project.
+ *
+ * @author Marc Vaudel
+ */
+public class PtmSiteIndex {
+
+    /**
+     * The names of the PTMs in alphabetical order.
+     */
+    private final String[] ptmNames;
+    /**
+     * The leading accessions of the proteins indexed in the MatchIncidence.
+     */
+    private final String[] leadingAccessions;
+    /**
+     * The index of the protein of every site.
+     */
+    private final int[] siteProteins;
+    /**
+     * The index of the PTM of every site in ptmNames.
+     */
+    private final int[] sitePtms;
+    /**
+     * The position of every site on the protein sequence.
+     */
+    private final int[] sitePositions;
+    /**
+     * The start of the peptides of every site in sitePeptides, the last
+     * element is the number of peptide indexes.
+     */
+    private final int[] sitePeptidesStart;
+    /**
+     * The indexes of the peptides of the sites.
+     */
+    private final int[] sitePeptides;
+
+    /**
+     * Builds the index of the sites of all peptides of the given
+     * identification. The peptides are inspected in parallel using the pool
+     * of the calling thread.
+     *
+     * @param identification the identification
+     * @param matchIncidence the incidence of the matches
+     */
+    public PtmSiteIndex(
+            Identification identification,
+            MatchIncidence matchIncidence
+    ) {
+
+        leadingAccessions = new String[matchIncidence.getNProteins()];
+
+        IntStream.range(0, leadingAccessions.length)
+                .parallel()
+                .forEach(i -> leadingAccessions[i] = identification.getProteinMatch(matchIncidence.getProteinKey(i)).getLeadingAccession());
+
+        // the sites of every peptide
+        SiteEntry[][] peptideSites = new SiteEntry[matchIncidence.getNPeptides()][];
+
+        IntStream.range(0, peptideSites.length)
+                .parallel()
+                .forEach(i -> peptideSites[i] = getSites(identification, matchIncidence, i));
+
+        TreeSet<String> ptms = new TreeSet<>();
+        int nEntries = 0;
+
+        for (SiteEntry[] siteEntries : peptideSites) {
+
+            for (SiteEntry siteEntry : siteEntries) {
+                ptms.add(siteEntry.ptmName);
+            }
+
+            nEntries += siteEntries.length;
+        }
+
+        ptmNames = ptms.toArray(new String[ptms.size()]);
+
+        SiteEntry[] entries = new SiteEntry[nEntries];
+        nEntries = 0;
+
+        for (SiteEntry[] siteEntries : peptideSites) {
+            for (SiteEntry siteEntry : siteEntries) {
+                siteEntry.ptm = Arrays.binarySearch(ptmNames, siteEntry.ptmName);
+                entries[nEntries++] = siteEntry;
+            }
+        }
+
+        Arrays.sort(entries, Comparator.<SiteEntry>comparingInt(entry -> entry.protein)
+                .thenComparingInt(entry -> entry.ptm)
+                .thenComparingInt(entry -> entry.position)
+                .thenComparingInt(entry -> entry.peptide));
+
+        // compress the entries into sites
+        int nSites = 0;
+
+        for (int i = 0; i < entries.length; i++) {
+            if (i == 0 || !entries[i].isSameSite(entries[i - 1])) {
+                nSites++;
+            }
+        }
+
+        siteProteins = new int[nSites];
+        sitePtms = new int[nSites];
+        sitePositions = new int[nSites];
+        sitePeptidesStart = new int[nSites + 1];
+        int[] peptides = new int[entries.length];
+        int nPeptides = 0;
+        int site = -1;
+
+        for (int i = 0; i < entries.length; i++) {
+
+            SiteEntry entry = entries[i];
+
+            if (i == 0 || !entry.isSameSite(entries[i - 1])) {
+
+                site++;
+                siteProteins[site] = entry.protein;
+                sitePtms[site] = entry.ptm;
+                sitePositions[site] = entry.position;
+                sitePeptidesStart[site] = nPeptides;
+
+            } else if (entry.peptide == entries[i - 1].peptide) {
+
+                continue;
+
+            }
+
+            peptides[nPeptides++] = entry.peptide;
+        }
+
+        sitePeptidesStart[nSites] = nPeptides;
+        sitePeptides = Arrays.copyOf(peptides, nPeptides);
+    }
+
+    /**
+     * Returns the sites of a peptide on the leading protein of its protein
+     * matches.
+     *
+     * @param identification the identification
+     * @param matchIncidence the incidence of the matches
+     * @param peptideIndex the index of the peptide match
+     *
+     * @return the sites of the peptide
+     */
+    private SiteEntry[] getSites(
+            Identification identification,
+            MatchIncidence matchIncidence,
+            int peptideIndex
+    ) {
+
+        Peptide peptide = identification.getPeptideMatch(matchIncidence.getPeptideKey(peptideIndex)).getPeptide();
+
+        if (peptide.getNVariableModifications() == 0) {
+            return new SiteEntry[0];
+        }
+
+        ArrayList<SiteEntry> result = new ArrayList<>(0);
+        int proteinsStart = matchIncidence.getProteinsStart(peptideIndex);
+        int proteinsEnd = matchIncidence.getProteinsEnd(peptideIndex);
+
+        for (ModificationMatch modificationMatch : peptide.getVariableModifications()) {
+
+            if (modificationMatch.getConfident()) {
+
+                for (int i = proteinsStart; i < proteinsEnd; i++) {
+
+                    int proteinIndex = matchIncidence.getProteinIndexAt(i);
+                    int[] startIndexes = peptide.getProteinMapping().get(leadingAccessions[proteinIndex]);
+
+                    if (startIndexes != null) {
+
+                        for (int startIndex : startIndexes) {
+                            result.add(new SiteEntry(proteinIndex, modificationMatch.getModification(), startIndex + modificationMatch.getSite(), peptideIndex));
+                        }
+                    }
+                }
+            }
+        }
+
+        return result.toArray(new SiteEntry[result.size()]);
+    }
+
+    /**
+     * Returns the number of sites.
+     *
+     * @return the number of sites
+     */
+    public int getNSites() {
+        return siteProteins.length;
+    }
+
+    /**
+     * Returns the index of a site, -1 if no peptide carries the PTM at this
+     * site.
+     *
+     * @param proteinIndex the index of the protein match in the
+     * MatchIncidence
+     * @param ptmName the name of the PTM
+     * @param position the position of the site on the protein sequence
+     *
+     * @return the index of the site
+     */
+    public int getSiteIndex(int proteinIndex, String ptmName, int position) {
+
+        int ptm = Arrays.binarySearch(ptmNames, ptmName);
+
+        if (proteinIndex < 0 || ptm < 0) {
+            return -1;
+        }
+
+        int low = 0;
+        int high = siteProteins.length - 1;
+
+        while (low <= high) {
+
+            int middle = (low + high) >>> 1;
+            int comparison = Integer.compare(siteProteins[middle], proteinIndex);
+
+            if (comparison == 0) {
+                comparison = Integer.compare(sitePtms[middle], ptm);
+            }
+
+            if (comparison == 0) {
+                comparison = Integer.compare(sitePositions[middle], position);
+            }
+
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the index in the MatchIncidence of the protein of a site.
+     *
+     * @param siteIndex the index of the site
+     *
+     * @return the index of the protein of the site
+     */
+    public int getProteinIndex(int siteIndex) {
+        return siteProteins[siteIndex];
+    }
+
+    /**
+     * Returns the leading accession of the protein of a site.
+     *
+     * @param siteIndex the index of the site
+     *
+     * @return the leading accession of the protein of the site
+     */
+    public String getLeadingAccession(int siteIndex) {
+        return leadingAccessions[siteProteins[siteIndex]];
+    }
+
+    /**
+     * Returns the name of the PTM of a site.
+     *
+     * @param siteIndex the index of the site
+     *
+     * @return the name of the PTM of the site
+     */
+    public String getPtmName(int siteIndex) {
+        return ptmNames[sitePtms[siteIndex]];
+    }
+
+    /**
+     * Returns the position of a site on the protein sequence.
+     *
+     * @param siteIndex the index of the site
+     *
+     * @return the position of the site
+     */
+    public int getPosition(int siteIndex) {
+        return sitePositions[siteIndex];
+    }
+
+    /**
+     * Returns the number of peptides carrying the PTM at a site.
+     *
+     * @param siteIndex the index of the site
+     *
+     * @return the number of peptides of the site
+     */
+    public int getNPeptides(int siteIndex) {
+        return sitePeptidesStart[siteIndex + 1] - sitePeptidesStart[siteIndex];
+    }
+
+    /**
+     * Returns the start of the peptides carrying the PTM at a site: the
+     * position of its first peptide index, to be retrieved using
+     * getPeptideIndexAt. The peptide indexes of a site are in ascending order.
+     *
+     * @param siteIndex the index of the site
+     *
+     * @return the start of the peptides of the site, inclusive
+     */
+    public int getPeptidesStart(int siteIndex) {
+        return sitePeptidesStart[siteIndex];
+    }
+
+    /**
+     * Returns the end of the peptides carrying the PTM at a site.
+     *
+     * @param siteIndex the index of the site
+     *
+     * @return the end of the peptides of the site, exclusive
+     */
+    public int getPeptidesEnd(int siteIndex) {
+        return sitePeptidesStart[siteIndex + 1];
+    }
+
+    /**
+     * Returns the index in the MatchIncidence of the peptide at the given
+     * position in the peptides of the sites.
+     *
+     * @param position the position between the start and the end of the
+     * peptides of a site
+     *
+     * @return the index of the peptide match
+     */
+    public int getPeptideIndexAt(int position) {
+        return sitePeptides[position];
+    }
+
+    /**
+     * A peptide carrying a PTM at a site, used while building the index.
+     */
+    private static class SiteEntry {
+
+        /**
+         * The index of the protein.
+         */
+        private final int protein;
+        /**
+         * The name of the PTM.
+         */
+        private final String ptmName;
+        /**
+         * The index of the PTM, set once all PTMs are known.
+         */
+        private int ptm;
+        /**
+         * The position of the site on the protein sequence.
+         */
+        private final int position;
+        /**
+         * The index of the peptide.
+         */
+        private final int peptide;
+
+        /**
+         * Constructor.
+         *
+         * @param protein the index of the protein
+         * @param ptmName the name of the PTM
+         * @param position the position of the site on the protein sequence
+         * @param peptide the index of the peptide
+         */
+        SiteEntry(int protein, String ptmName, int position, int peptide) {
+            this.protein = protein;
+            this.ptmName = ptmName;
+            this.position = position;
+            this.peptide = peptide;
+        }
+
+        /**
+         * Indicates whether this entry is on the same site as another entry.
+         *
+         * @param other the other entry
+         *
+         * @return a boolean indicating whether the entries are on the same
+         * site
+         */
+        boolean isSameSite(SiteEntry other) {
+            return protein == other.protein
+                    && ptm == other.ptm
+                    && position == other.position;
+        }
+    }
+}
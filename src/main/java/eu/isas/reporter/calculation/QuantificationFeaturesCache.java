@@ -5,11 +5,12 @@ import eu.isas.reporter.quantificationdetails.ProteinQuantificationDetails;
 import eu.isas.reporter.quantificationdetails.PsmQuantificationDetails;
 import eu.isas.reporter.quantificationdetails.ProteinPtmQuantificationDetails;
 import eu.isas.reporter.quantificationdetails.SpectrumQuantificationDetails;
-import java.util.Collections;
 import java.util.HashMap;
 
 /**
- * The quantification features cache stores quantification features.
+ * The quantification features cache stores quantification features. The
+ * features are indexed by match key, or by site index for the PTM sites, in a
+ * weighted cache bounded by a budget in bytes.
  *
  * @author Marc Vaudel
  * @author Harald Barsnes
@@ -17,56 +18,59 @@ import java.util.HashMap;
 public class QuantificationFeaturesCache {
 
     /**
-     * Share of the memory to be used.
+     * The default share of the heap to use for the cache.
      */
-    private double memoryShare = 0.99;
+    public static final double DEFAULT_MEMORY_SHARE = 0.5;
     /**
-     * The protein quantification details in a map: number of peptides > protein
-     * match key > match quantification details.
+     * The estimated memory used by the cache to store an entry in bytes.
      */
-    private HashMap<Integer, HashMap<Long, ProteinQuantificationDetails>> proteinRatios = new HashMap<>();
+    private static final int ENTRY_OVERHEAD = 48;
     /**
-     * The protein level PTM quantification details in a map: PTM name > protein
-     * match key > site > match quantification details.
+     * The namespace of the protein quantification details.
      */
-    private HashMap<String, HashMap<Long, HashMap<String, ProteinPtmQuantificationDetails>>> proteinPtmRatios = new HashMap<>();
+    private static final int PROTEIN = 0;
     /**
-     * The peptide quantification details in a map: number of PSMs > peptide
-     * match key > match quantification details.
+     * The namespace of the peptide quantification details.
      */
-    private HashMap<Integer, HashMap<Long, PeptideQuantificationDetails>> peptideRatios = new HashMap<>();
+    private static final int PEPTIDE = 1;
     /**
-     * The PSM quantification details in a map: Spectrum file name > spectrum
-     * title > match quantification details.
+     * The namespace of the PSM quantification details.
      */
-    private HashMap<String, HashMap<String, PsmQuantificationDetails>> psmRatios = new HashMap<>();
+    private static final int PSM = 2;
     /**
-     * The spectrum quantification details in a map: Spectrum file name >
-     * spectrum title > match quantification details Note: this is used in
-     * precursor matching mode only, otherwise the spectrum ratios are the same
-     * as the PSM ratios.
+     * The namespace of the spectrum quantification details. Note: this is used
+     * in precursor matching mode only, otherwise the spectrum ratios are the
+     * same as the PSM ratios, see setSpectrumCaching.
      */
-    private HashMap<String, HashMap<String, SpectrumQuantificationDetails>> spectrumRatios = new HashMap<>();
+    private static final int SPECTRUM = 3;
     /**
-     * Boolean indicating whether a thread is editing the cache.
+     * The namespace of the protein level PTM quantification details.
      */
-    private boolean editing = false;
+    private static final int PTM = 4;
+    /**
+     * The cache.
+     */
+    private final WeightedCache cache;
+    /**
+     * Boolean indicating whether the spectrum quantification details are
+     * cached.
+     */
+    private volatile boolean spectrumCaching = false;
 
     /**
-     * Constructor.
+     * Constructor using the default share of the heap.
      */
     public QuantificationFeaturesCache() {
+        this((long) (DEFAULT_MEMORY_SHARE * Runtime.getRuntime().maxMemory()));
     }
 
     /**
-     * Checks whether there is still memory left and empties the cache if not.
+     * Constructor.
+     *
+     * @param byteBudget the budget of the cache in bytes
      */
-    private void adaptCacheSize() {
-        if (!editing
-                && !memoryCheck()
-                && !isEmpty()) {
-            adaptCacheSizeSynchronized();
-        }
+    public QuantificationFeaturesCache(long byteBudget) {
+        cache = new WeightedCache(byteBudget);
     }
 
     /**
@@ -75,384 +79,289 @@ public class QuantificationFeaturesCache {
      * @return true if the cache is empty
      */
     public boolean isEmpty() {
-        return peptideRatios.isEmpty()
-                && proteinRatios.isEmpty()
-                && spectrumRatios.isEmpty()
-                && proteinPtmRatios.isEmpty();
+        return cache.isEmpty();
     }
 
     /**
-     * Checks whether there is still memory left and empties the cache if not.
+     * Empties the cache.
      */
-    private synchronized void adaptCacheSizeSynchronized() {
-
-        if (editing || memoryCheck() || isEmpty()) {
-            return;
-        }
-
-        editing = true;
-
-        for (int i = 1; i < 10; i++) {
-
-            peptideRatios.remove(i);
-            if (memoryCheck()) {
-                editing = false;
-                return;
-            }
-        }
-
-        for (int i = 1; i < 10; i++) {
-
-            proteinRatios.remove(i);
-
-            if (memoryCheck()) {
-                editing = false;
-                return;
-            }
-        }
-
-        spectrumRatios.clear();
-
-        if (memoryCheck()) {
-            editing = false;
-            return;
-        }
-
-        psmRatios.clear();
-
-        if (memoryCheck()) {
-            editing = false;
-            return;
-        }
-
-        int keyMax = Collections.max(peptideRatios.keySet());
-
-        for (int i = 10; i <= keyMax; i++) {
+    public void clear() {
+        cache.clear();
+    }
 
-            peptideRatios.remove(i);
+    /**
+     * Empties the cache and stops listening to the memory notifications. The
+     * cache must not be used after being closed.
+     */
+    public void close() {
+        cache.clear();
+        cache.close();
+    }
 
-            if (memoryCheck()) {
-                editing = false;
-                return;
-            }
-        }
+    /**
+     * Indicates whether the spectrum quantification details are cached.
+     *
+     * @return a boolean indicating whether the spectrum quantification
+     * details are cached
+     */
+    public boolean isSpectrumCaching() {
+        return spectrumCaching;
+    }
 
-        keyMax = Collections.max(proteinRatios.keySet());
+    /**
+     * Sets whether the spectrum quantification details are cached. They are
+     * not cached by default: when the reporter ions are taken from the
+     * identified spectrum only, every spectrum is used by a single PSM whose
+     * details are cached.
+     *
+     * @param spectrumCaching a boolean indicating whether the spectrum
+     * quantification details are cached
+     */
+    public void setSpectrumCaching(boolean spectrumCaching) {
+        this.spectrumCaching = spectrumCaching;
+    }
 
-        for (int i = 10; i <= keyMax; i++) {
+    /**
+     * Returns the budget of the cache in bytes.
+     *
+     * @return the budget of the cache in bytes
+     */
+    public long getByteBudget() {
+        return cache.getByteBudget();
+    }
 
-            proteinRatios.remove(i);
+    /**
+     * Sets the budget of the cache in bytes, evicting entries if needed.
+     *
+     * @param byteBudget the budget of the cache in bytes
+     */
+    public void setByteBudget(long byteBudget) {
+        cache.setByteBudget(byteBudget);
+    }
 
-            if (memoryCheck()) {
-                editing = false;
-                return;
-            }
-        }
+    /**
+     * Returns the estimated memory used by the cache content in bytes.
+     *
+     * @return the estimated memory used by the cache content in bytes
+     */
+    public long getWeight() {
+        return cache.getWeight();
+    }
 
-        for (String ptm : proteinPtmRatios.keySet()) {
+    /**
+     * Returns the number of requests for which the quantification details
+     * were in cache.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
 
-            proteinPtmRatios.remove(ptm);
+    /**
+     * Returns the number of requests for which the quantification details
+     * were not in cache.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
 
-            if (memoryCheck()) {
-                editing = false;
-                return;
-            }
-        }
+    /**
+     * Returns the number of quantification details evicted from the cache.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
     }
 
     /**
-     * Indicates whether the memory used by the application is lower than a
-     * given share of the heap size. The share is set by memoryShare.
+     * Returns the number of quantification details which were not admitted in
+     * the cache.
      *
-     * @return a boolean indicating whether the memory used by the application
-     * is lower than 99% of the heap
+     * @return the number of rejections
      */
-    public boolean memoryCheck() {
-        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()
-                < (long) (memoryShare * Runtime.getRuntime().maxMemory());
+    public long getRejectionCount() {
+        return cache.getRejectionCount();
     }
 
     /**
      * Adds protein quantification details to the cache.
      *
-     * @param nPeptides the number of peptides of this protein match
      * @param matchKey the key of the protein match
      * @param matchQuantificationDetails the protein quantification details
      */
-    public synchronized void addProteinMatchQuantificationDetails(
-            int nPeptides,
+    public void addProteinMatchQuantificationDetails(
             long matchKey,
             ProteinQuantificationDetails matchQuantificationDetails
     ) {
-
-        editing = true;
-
-        HashMap<Long, ProteinQuantificationDetails> submap = proteinRatios.get(nPeptides);
-
-        if (submap == null) {
-            submap = new HashMap<Long, ProteinQuantificationDetails>();
-            proteinRatios.put(nPeptides, submap);
-        }
-
-        submap.put(matchKey, matchQuantificationDetails);
-        editing = false;
-        adaptCacheSize();
+        cache.put(PROTEIN, matchKey, matchQuantificationDetails, ENTRY_OVERHEAD + matchQuantificationDetails.getWeight());
     }
 
     /**
      * Returns protein quantification details, null if not in cache.
      *
-     * @param nPeptides the number of peptides of this protein match
      * @param matchKey the key of the protein match
      *
      * @return the protein quantification details
      */
     public ProteinQuantificationDetails getProteinMatchQuantificationDetails(
-            int nPeptides,
             long matchKey
     ) {
-
-        ProteinQuantificationDetails result = null;
-
-        HashMap<Long, ProteinQuantificationDetails> submap = proteinRatios.get(nPeptides);
-
-        if (submap != null) {
-            result = submap.get(matchKey);
-        }
-
-        adaptCacheSize();
-
-        return result;
+        return (ProteinQuantificationDetails) cache.get(PROTEIN, matchKey);
     }
 
     /**
      * Adds protein level PTM quantification details to the cache.
      *
-     * @param ptmName the name of the PTM
-     * @param matchKey the key of the protein match
-     * @param site the site of the PTM on the protein sequence
+     * @param siteIndex the index of the site in the PtmSiteIndex
      * @param matchQuantificationDetails the protein quantification details
      */
-    public synchronized void addPtmQuantificationDetails(
-            String ptmName,
-            long matchKey,
-            int site,
+    public void addPtmQuantificationDetails(
+            int siteIndex,
             ProteinPtmQuantificationDetails matchQuantificationDetails
     ) {
-
-        editing = true;
-
-        HashMap<Long, HashMap<String, ProteinPtmQuantificationDetails>> submap = proteinPtmRatios.get(ptmName);
-
-        if (submap == null) {
-            submap = new HashMap<Long, HashMap<String, ProteinPtmQuantificationDetails>>();
-            proteinPtmRatios.put(ptmName, submap);
-        }
-
-        HashMap<String, ProteinPtmQuantificationDetails> subsubmap = submap.get(matchKey);
-
-        if (subsubmap == null) {
-            subsubmap = new HashMap<String, ProteinPtmQuantificationDetails>();
-            submap.put(matchKey, subsubmap);
-        }
-
-        subsubmap.put(site + "", matchQuantificationDetails); //@TODO: implement site key
-        editing = false;
-        adaptCacheSize();
-
+        cache.put(PTM, siteIndex, matchQuantificationDetails, ENTRY_OVERHEAD + matchQuantificationDetails.getWeight());
     }
 
     /**
      * Returns protein level PTM quantification details, null if not in cache.
      *
-     * @param ptmName the name of the PTM
-     * @param matchKey the key of the protein match
-     * @param site the site of the PTM on the protein sequence
+     * @param siteIndex the index of the site in the PtmSiteIndex
      *
      * @return The protein quantification details
      */
     public ProteinPtmQuantificationDetails getPtmQuantificationDetails(
-            String ptmName,
-            long matchKey,
-            int site
+            int siteIndex
     ) {
-
-        ProteinPtmQuantificationDetails result = null;
-
-        HashMap<Long, HashMap<String, ProteinPtmQuantificationDetails>> submap = proteinPtmRatios.get(ptmName);
-
-        if (submap != null) {
-
-            HashMap<String, ProteinPtmQuantificationDetails> subsubmap = submap.get(matchKey);
-
-            if (subsubmap != null) {
-                result = subsubmap.get(site + ""); //@TODO: implement site key
-            }
-
-        }
-
-        adaptCacheSize();
-
-        return result;
+        return (ProteinPtmQuantificationDetails) cache.get(PTM, siteIndex);
     }
 
     /**
      * Adds peptide quantification details ratio to the cache.
      *
-     * @param nPeptides the number of peptides of this protein match
-     * @param matchKey the key of the protein match
-     * @param matchQuantificationDetails The protein quantification details
+     * @param matchKey the key of the peptide match
+     * @param matchQuantificationDetails The peptide quantification details
      */
-    public synchronized void addPeptideMatchQuantificationDetails(
-            int nPeptides, Long matchKey,
+    public void addPeptideMatchQuantificationDetails(
+            long matchKey,
             PeptideQuantificationDetails matchQuantificationDetails
     ) {
-
-        editing = true;
-
-        HashMap<Long, PeptideQuantificationDetails> submap = peptideRatios.get(nPeptides);
-
-        if (submap == null) {
-            submap = new HashMap<Long, PeptideQuantificationDetails>();
-            peptideRatios.put(nPeptides, submap);
-        }
-
-        submap.put(matchKey, matchQuantificationDetails);
-        editing = false;
-        adaptCacheSize();
-
+        cache.put(PEPTIDE, matchKey, matchQuantificationDetails, ENTRY_OVERHEAD + matchQuantificationDetails.getWeight());
     }
 
     /**
      * Returns peptide quantification details, null if not in cache.
      *
-     * @param nPsms the number of PSMs of this peptide match
      * @param matchKey the key of the peptide match
      *
      * @return the peptide quantification details
      */
     public PeptideQuantificationDetails getPeptideMatchQuantificationDetails(
-            int nPsms,
-            Long matchKey
+            long matchKey
     ) {
-
-        PeptideQuantificationDetails result = null;
-
-        HashMap<Long, PeptideQuantificationDetails> submap = peptideRatios.get(nPsms);
-
-        if (submap != null) {
-            result = submap.get(matchKey);
-        }
-
-        adaptCacheSize();
-
-        return result;
+        return (PeptideQuantificationDetails) cache.get(PEPTIDE, matchKey);
     }
 
     /**
      * Adds PSM quantification details ratio to the cache.
      *
-     * @param spectrumFile the spectrum file
-     * @param spectrumTitle the spectrum title
-     * @param matchQuantificationDetails the protein quantification details
+     * @param matchKey the key of the spectrum match
+     * @param matchQuantificationDetails the PSM quantification details
      */
-    public synchronized void addPSMQuantificationDetails(
-            String spectrumFile,
-            String spectrumTitle,
+    public void addPSMQuantificationDetails(
+            long matchKey,
             PsmQuantificationDetails matchQuantificationDetails
     ) {
-
-        editing = true;
-
-        HashMap<String, PsmQuantificationDetails> submap = psmRatios.get(spectrumFile);
-
-        if (submap == null) {
-            submap = new HashMap<String, PsmQuantificationDetails>();
-            psmRatios.put(spectrumFile, submap);
-        }
-
-        submap.put(spectrumTitle, matchQuantificationDetails);
-        editing = false;
-        adaptCacheSize();
-
+        cache.put(PSM, matchKey, matchQuantificationDetails, ENTRY_OVERHEAD + matchQuantificationDetails.getWeight());
     }
 
     /**
      * Returns PSM quantification details, null if not in cache.
      *
-     * @param spectrumFile the spectrum file
-     * @param spectrumTitle the spectrum title
+     * @param matchKey the key of the spectrum match
      *
      * @return the PSM quantification details
      */
     public PsmQuantificationDetails getPSMQuantificationDetails(
-            String spectrumFile,
-            String spectrumTitle
+            long matchKey
     ) {
-
-        PsmQuantificationDetails result = null;
-
-        HashMap<String, PsmQuantificationDetails> submap = psmRatios.get(spectrumFile);
-
-        if (submap != null) {
-            result = submap.get(spectrumTitle);
-        }
-
-        adaptCacheSize();
-        return result;
-
+        return (PsmQuantificationDetails) cache.get(PSM, matchKey);
     }
 
     /**
-     * Adds spectrum quantification details ratio to the cache.
+     * Adds spectrum quantification details ratio to the cache if spectrum
+     * caching is enabled.
      *
-     * @param spectrumFile the spectrum file
-     * @param spectrumTitle the spectrum title
+     * @param matchKey the key of the spectrum match
      * @param matchQuantificationDetails the spectrum quantification details
      */
-    public synchronized void addSpectrumQuantificationDetails(
-            String spectrumFile,
-            String spectrumTitle,
+    public void addSpectrumQuantificationDetails(
+            long matchKey,
             SpectrumQuantificationDetails matchQuantificationDetails
     ) {
 
-        editing = true;
-
-        HashMap<String, SpectrumQuantificationDetails> submap = spectrumRatios.get(spectrumFile);
-
-        if (submap == null) {
-            submap = new HashMap<String, SpectrumQuantificationDetails>();
-            spectrumRatios.put(spectrumFile, submap);
+        if (!spectrumCaching) {
+            return;
         }
 
-        submap.put(spectrumTitle, matchQuantificationDetails);
-        editing = false;
-        adaptCacheSize();
+        cache.put(SPECTRUM, matchKey, matchQuantificationDetails, ENTRY_OVERHEAD + matchQuantificationDetails.getWeight());
 
     }
 
     /**
      * Returns spectrum quantification details, null if not in cache.
      *
-     * @param spectrumFile the spectrum file
-     * @param spectrumTitle the spectrum title
+     * @param matchKey the key of the spectrum match
      *
      * @return the spectrum quantification details
      */
     public SpectrumQuantificationDetails getSpectrumQuantificationDetails(
-            String spectrumFile,
-            String spectrumTitle
+            long matchKey
     ) {
+        return (SpectrumQuantificationDetails) cache.get(SPECTRUM, matchKey);
+    }
 
-        SpectrumQuantificationDetails result = null;
+    /**
+     * Returns the protein quantification details currently in cache indexed
+     * by protein match key.
+     *
+     * @return the protein quantification details currently in cache
+     */
+    public HashMap<Long, ProteinQuantificationDetails> getProteinMatchQuantificationDetails() {
 
-        HashMap<String, SpectrumQuantificationDetails> submap = spectrumRatios.get(spectrumFile);
+        HashMap<Long, ProteinQuantificationDetails> result = new HashMap<>();
+        cache.forEach(PROTEIN, (details, key) -> result.put(key, (ProteinQuantificationDetails) details));
 
-        if (submap != null) {
-            result = submap.get(spectrumTitle);
-        }
+        return result;
+    }
+
+    /**
+     * Returns the peptide quantification details currently in cache indexed
+     * by peptide match key.
+     *
+     * @return the peptide quantification details currently in cache
+     */
+    public HashMap<Long, PeptideQuantificationDetails> getPeptideMatchQuantificationDetails() {
+
+        HashMap<Long, PeptideQuantificationDetails> result = new HashMap<>();
+        cache.forEach(PEPTIDE, (details, key) -> result.put(key, (PeptideQuantificationDetails) details));
+
+        return result;
+    }
+
+    /**
+     * Returns the PSM quantification details currently in cache indexed by
+     * spectrum match key.
+     *
+     * @return the PSM quantification details currently in cache
+     */
+    public HashMap<Long, PsmQuantificationDetails> getPSMQuantificationDetails() {
 
-        adaptCacheSize();
+        HashMap<Long, PsmQuantificationDetails> result = new HashMap<>();
+        cache.forEach(PSM, (details, key) -> result.put(key, (PsmQuantificationDetails) details));
 
         return result;
     }
@@ -4,7 +4,6 @@ import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.features.IdentificationFeaturesGenerator;
 import com.compomics.util.experiment.identification.matches.PeptideMatch;
 import com.compomics.util.experiment.identification.matches.ProteinMatch;
-import com.compomics.util.experiment.identification.matches.SpectrumMatch;
 import com.compomics.util.experiment.mass_spectrometry.SpectrumProvider;
 import com.compomics.util.experiment.quantification.reporterion.ReporterIonQuantification;
 import com.compomics.util.experiment.quantification.reporterion.ReporterMethod;
@@ -12,15 +11,24 @@ import com.compomics.util.parameters.identification.advanced.SequenceMatchingPar
 import com.compomics.util.parameters.identification.search.SearchParameters;
 import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.reporter.Reporter;
+import eu.isas.reporter.settings.NormalizationSettings;
+import eu.isas.reporter.settings.RatioEstimationSettings;
 import eu.isas.reporter.settings.ReporterIonSelectionSettings;
 import eu.isas.reporter.settings.ReporterSettings;
+import eu.isas.reporter.quantificationdetails.ChannelLayout;
 import eu.isas.reporter.quantificationdetails.PeptideQuantificationDetails;
 import eu.isas.reporter.quantificationdetails.ProteinQuantificationDetails;
 import eu.isas.reporter.quantificationdetails.PsmQuantificationDetails;
 import eu.isas.reporter.quantificationdetails.ProteinPtmQuantificationDetails;
 import eu.isas.reporter.quantificationdetails.SpectrumQuantificationDetails;
-import java.io.IOException;
-import java.sql.SQLException;
+import eu.isas.reporter.utils.Fnv1aHash;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 
 /**
  * The quantification features generator provides various quantification
@@ -63,6 +71,71 @@ public class QuantificationFeaturesGenerator {
      * The sequence matching parameters.
      */
     private SequenceMatchingParameters sequenceMatchingParameters;
+    /**
+     * The layout of the channels in the quantification details.
+     */
+    private final ChannelLayout channelLayout;
+    /**
+     * The precursor index of every spectrum file.
+     */
+    private final ConcurrentHashMap<String, PrecursorIndex> precursorIndexes = new ConcurrentHashMap<>();
+    /**
+     * The index of the spectrum titles of every spectrum file.
+     */
+    private final ConcurrentHashMap<String, SpectrumTitleIndex> spectrumTitleIndexes = new ConcurrentHashMap<>();
+    /**
+     * The store of the extracted reporter intensities of every spectrum file.
+     */
+    private final ConcurrentHashMap<String, ReporterIntensityStore> reporterIntensityStores = new ConcurrentHashMap<>();
+    /**
+     * The quantification results saved in the project, null if none or if
+     * obtained using other settings.
+     */
+    private volatile QuantificationResults savedResults = null;
+    /**
+     * The quantification results computed by the quantification pipeline,
+     * null if none. Only contains the levels quantified so far, the details
+     * of the other levels are taken from the saved results.
+     */
+    private volatile QuantificationResults computedResults = null;
+    /**
+     * The number of computations avoided because the same details were being
+     * computed by another thread.
+     */
+    private final LongAdder avoidedComputations = new LongAdder();
+    /**
+     * The ongoing computations of protein quantification details.
+     */
+    private final SingleFlight<Long, ProteinQuantificationDetails> proteinComputations = new SingleFlight<>(avoidedComputations);
+    /**
+     * The ongoing computations of PTM quantification details.
+     */
+    private final SingleFlight<Integer, ProteinPtmQuantificationDetails> ptmComputations = new SingleFlight<>(avoidedComputations);
+    /**
+     * The ongoing computations of peptide quantification details.
+     */
+    private final SingleFlight<Long, PeptideQuantificationDetails> peptideComputations = new SingleFlight<>(avoidedComputations);
+    /**
+     * The ongoing computations of PSM quantification details.
+     */
+    private final SingleFlight<Long, PsmQuantificationDetails> psmComputations = new SingleFlight<>(avoidedComputations);
+    /**
+     * The ongoing computations of spectrum quantification details.
+     */
+    private final SingleFlight<Long, SpectrumQuantificationDetails> spectrumComputations = new SingleFlight<>(avoidedComputations);
+    /**
+     * The status of the matches with regard to the quantification filters,
+     * null until needed.
+     */
+    private volatile QuantificationFilterIndex quantificationFilterIndex = null;
+    /**
+     * The incidence of the matches, null until needed.
+     */
+    private volatile MatchIncidence matchIncidence = null;
+    /**
+     * The index of the PTM sites, null until needed.
+     */
+    private volatile PtmSiteIndex ptmSiteIndex = null;
 
     /**
      * Constructor.
@@ -88,6 +161,8 @@ public class QuantificationFeaturesGenerator {
         this.reporterIonQuantification = reporterIonQuantification;
         this.searchParameters = searchParameters;
         this.sequenceMatchingParameters = sequenceMatchingParameters;
+        this.channelLayout = new ChannelLayout(reporterIonQuantification.getSampleIndexes());
+        quantificationFeaturesCache.setSpectrumCaching(!reporterSettings.getReporterIonSelectionSettings().isSameSpectra());
     }
 
     /**
@@ -101,12 +176,43 @@ public class QuantificationFeaturesGenerator {
      */
     public ProteinQuantificationDetails getProteinMatchQuantificationDetails(SpectrumProvider spectrumProvider, long matchKey, WaitingHandler waitingHandler) {
         
-        ProteinMatch proteinMatch = identification.getProteinMatch(matchKey);
-        int nPeptides = proteinMatch.getPeptideCount();
-        ProteinQuantificationDetails result = quantificationFeaturesCache.getProteinMatchQuantificationDetails(nPeptides, matchKey);
+        ProteinQuantificationDetails result = quantificationFeaturesCache.getProteinMatchQuantificationDetails(matchKey);
         
+        if (result == null) {
+            result = proteinComputations.get(matchKey, () -> computeProteinMatchQuantificationDetails(spectrumProvider, matchKey, waitingHandler));
+        }
+        
+        return result;
+        
+    }
+
+    /**
+     * Computes the quantification details of a protein match and stores them
+     * in cache.
+     *
+     * @param spectrumProvider the spectrum provider
+     * @param matchKey the key of the match of interest
+     * @param waitingHandler the waiting handler
+     *
+     * @return the quantification details of the match
+     */
+    private ProteinQuantificationDetails computeProteinMatchQuantificationDetails(SpectrumProvider spectrumProvider, long matchKey, WaitingHandler waitingHandler) {
+
+        // the details might have been stored by a computation finished in the meantime
+        ProteinQuantificationDetails result = quantificationFeaturesCache.getProteinMatchQuantificationDetails(matchKey);
+
+        if (result == null) {
+
+            result = getResultsProteinQuantificationDetails(matchKey);
+
+            if (result != null) {
+                quantificationFeaturesCache.addProteinMatchQuantificationDetails(matchKey, result);
+            }
+        }
+
         if (result == null) {
             
+            ProteinMatch proteinMatch = identification.getProteinMatch(matchKey);
             result = Reporter.estimateProteinMatchQuantificationDetails(
                     identification, 
                     spectrumProvider, 
@@ -119,12 +225,11 @@ public class QuantificationFeaturesGenerator {
                     waitingHandler
             );
             
-            quantificationFeaturesCache.addProteinMatchQuantificationDetails(nPeptides, matchKey, result);
+            quantificationFeaturesCache.addProteinMatchQuantificationDetails(matchKey, result);
         
         }
-        
+
         return result;
-        
     }
 
     /**
@@ -137,11 +242,6 @@ public class QuantificationFeaturesGenerator {
      * @param waitingHandler the waiting handler
      *
      * @return the quantification details of the match
-     *
-     * @throws SQLException thrown if an SQLException occurs
-     * @throws IOException thrown if an IOException
-     * @throws ClassNotFoundException thrown if a ClassNotFoundException
-     * @throws InterruptedException thrown if an InterruptedException
      */
     public ProteinPtmQuantificationDetails getPTMQuantificationDetails(
             SpectrumProvider spectrumProvider,
@@ -149,27 +249,82 @@ public class QuantificationFeaturesGenerator {
             long matchKey,
             int site,
             WaitingHandler waitingHandler
-    ) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+    ) {
+
+        int proteinIndex = getMatchIncidence().getProteinIndex(matchKey);
+        int siteIndex = getPtmSiteIndex().getSiteIndex(proteinIndex, ptmName, site);
+
+        if (siteIndex == -1) {
+
+            return Reporter.estimatePtmSiteQuantificationDetails(
+                    spectrumProvider,
+                    this,
+                    reporterSettings.getRatioEstimationSettings(),
+                    reporterIonQuantification,
+                    siteIndex,
+                    waitingHandler
+            );
+
+        }
+
+        return getPtmSiteQuantificationDetails(spectrumProvider, siteIndex, waitingHandler);
+    }
+
+    /**
+     * Returns the quantification details of a PTM site.
+     *
+     * @param spectrumProvider the spectrum provider
+     * @param siteIndex the index of the site in the PtmSiteIndex
+     * @param waitingHandler the waiting handler
+     *
+     * @return the quantification details of the site
+     */
+    public ProteinPtmQuantificationDetails getPtmSiteQuantificationDetails(
+            SpectrumProvider spectrumProvider,
+            int siteIndex,
+            WaitingHandler waitingHandler
+    ) {
 
-        ProteinPtmQuantificationDetails result = quantificationFeaturesCache.getPtmQuantificationDetails(ptmName, matchKey, site);
+        ProteinPtmQuantificationDetails result = quantificationFeaturesCache.getPtmQuantificationDetails(siteIndex);
 
         if (result == null) {
-            
-            result = Reporter.estimatePTMQuantificationDetails(
-                    identification, 
-                    spectrumProvider, 
-                    this, 
-                    reporterSettings.getRatioEstimationSettings(), 
-                    reporterIonQuantification, 
-                    searchParameters, 
-                    sequenceMatchingParameters, 
-                    ptmName, 
-                    matchKey, 
-                    site, 
+            result = ptmComputations.get(siteIndex, () -> computePtmSiteQuantificationDetails(spectrumProvider, siteIndex, waitingHandler));
+        }
+
+        return result;
+    }
+
+    /**
+     * Computes the quantification details of a PTM site and stores them in
+     * cache.
+     *
+     * @param spectrumProvider the spectrum provider
+     * @param siteIndex the index of the site in the PtmSiteIndex
+     * @param waitingHandler the waiting handler
+     *
+     * @return the quantification details of the site
+     */
+    private ProteinPtmQuantificationDetails computePtmSiteQuantificationDetails(
+            SpectrumProvider spectrumProvider,
+            int siteIndex,
+            WaitingHandler waitingHandler
+    ) {
+
+        // the details might have been stored by a computation finished in the meantime
+        ProteinPtmQuantificationDetails result = quantificationFeaturesCache.getPtmQuantificationDetails(siteIndex);
+
+        if (result == null) {
+
+            result = Reporter.estimatePtmSiteQuantificationDetails(
+                    spectrumProvider,
+                    this,
+                    reporterSettings.getRatioEstimationSettings(),
+                    reporterIonQuantification,
+                    siteIndex,
                     waitingHandler
             );
-            
-            quantificationFeaturesCache.addPtmQuantificationDetails(ptmName, matchKey, site, result);
+
+            quantificationFeaturesCache.addPtmQuantificationDetails(siteIndex, result);
         }
 
         return result;
@@ -190,9 +345,74 @@ public class QuantificationFeaturesGenerator {
             WaitingHandler waitingHandler
     ) {
 
-        int nPsms = peptideMatch.getSpectrumCount();
         long matchKey = peptideMatch.getKey();
-        PeptideQuantificationDetails result = quantificationFeaturesCache.getPeptideMatchQuantificationDetails(nPsms, matchKey);
+        PeptideQuantificationDetails result = quantificationFeaturesCache.getPeptideMatchQuantificationDetails(matchKey);
+
+        if (result == null) {
+            result = peptideComputations.get(matchKey, () -> computePeptideMatchQuantificationDetails(spectrumProvider, matchKey, peptideMatch, waitingHandler));
+        }
+
+        return result;
+
+    }
+
+    /**
+     * Returns the quantification details of a peptide match. The match is
+     * only loaded from the identification if its details need to be
+     * estimated.
+     *
+     * @param spectrumProvider the spectrum provider
+     * @param matchKey the key of the peptide match
+     * @param waitingHandler the waiting handler
+     *
+     * @return the quantification details of the match
+     */
+    public PeptideQuantificationDetails getPeptideMatchQuantificationDetails(
+            SpectrumProvider spectrumProvider,
+            long matchKey,
+            WaitingHandler waitingHandler
+    ) {
+
+        PeptideQuantificationDetails result = quantificationFeaturesCache.getPeptideMatchQuantificationDetails(matchKey);
+
+        if (result == null) {
+            result = peptideComputations.get(matchKey, () -> computePeptideMatchQuantificationDetails(spectrumProvider, matchKey, null, waitingHandler));
+        }
+
+        return result;
+
+    }
+
+    /**
+     * Computes the quantification details of a peptide match and stores them
+     * in cache.
+     *
+     * @param spectrumProvider the spectrum provider
+     * @param matchKey the key of the peptide match
+     * @param peptideMatch the peptide match, loaded from the identification
+     * if null
+     * @param waitingHandler the waiting handler
+     *
+     * @return the quantification details of the match
+     */
+    private PeptideQuantificationDetails computePeptideMatchQuantificationDetails(
+            SpectrumProvider spectrumProvider,
+            long matchKey,
+            PeptideMatch peptideMatch,
+            WaitingHandler waitingHandler
+    ) {
+
+        // the details might have been stored by a computation finished in the meantime
+        PeptideQuantificationDetails result = quantificationFeaturesCache.getPeptideMatchQuantificationDetails(matchKey);
+
+        if (result == null) {
+
+            result = getResultsPeptideQuantificationDetails(matchKey);
+
+            if (result != null) {
+                quantificationFeaturesCache.addPeptideMatchQuantificationDetails(matchKey, result);
+            }
+        }
 
         if (result == null) {
 
@@ -202,15 +422,14 @@ public class QuantificationFeaturesGenerator {
                     this,
                     reporterSettings.getRatioEstimationSettings(),
                     reporterIonQuantification,
-                    peptideMatch,
+                    peptideMatch != null ? peptideMatch : identification.getPeptideMatch(matchKey),
                     waitingHandler
             );
 
-            quantificationFeaturesCache.addPeptideMatchQuantificationDetails(nPsms, matchKey, result);
+            quantificationFeaturesCache.addPeptideMatchQuantificationDetails(matchKey, result);
         }
 
         return result;
-
     }
 
     /**
@@ -226,11 +445,39 @@ public class QuantificationFeaturesGenerator {
             Long matchKey
     ) {
 
-        SpectrumMatch spectrumMatch = identification.getSpectrumMatch(matchKey);
-        String spectrumFile = spectrumMatch.getSpectrumFile();
-        String spectrumTitle = spectrumMatch.getSpectrumTitle();
+        PsmQuantificationDetails result = quantificationFeaturesCache.getPSMQuantificationDetails(matchKey);
+
+        if (result == null) {
+            result = psmComputations.get(matchKey, () -> computePSMQuantificationDetails(spectrumProvider, matchKey));
+        }
+
+        return result;
+    }
+
+    /**
+     * Computes the quantification details of a PSM and stores them in cache.
+     *
+     * @param spectrumProvider the spectrum provider
+     * @param matchKey the key of the match of interest
+     *
+     * @return the quantification details of the match
+     */
+    private PsmQuantificationDetails computePSMQuantificationDetails(
+            SpectrumProvider spectrumProvider,
+            Long matchKey
+    ) {
+
+        // the details might have been stored by a computation finished in the meantime
+        PsmQuantificationDetails result = quantificationFeaturesCache.getPSMQuantificationDetails(matchKey);
+
+        if (result == null) {
 
-        PsmQuantificationDetails result = quantificationFeaturesCache.getPSMQuantificationDetails(spectrumFile, spectrumTitle);
+            result = getResultsPsmQuantificationDetails(matchKey);
+
+            if (result != null) {
+                quantificationFeaturesCache.addPSMQuantificationDetails(matchKey, result);
+            }
+        }
 
         if (result == null) {
 
@@ -244,19 +491,44 @@ public class QuantificationFeaturesGenerator {
                     matchKey
             );
 
-            quantificationFeaturesCache.addPSMQuantificationDetails(spectrumFile, spectrumTitle, result);
+            quantificationFeaturesCache.addPSMQuantificationDetails(matchKey, result);
         }
 
         return result;
     }
 
+    /**
+     * Returns the quantification details of a spectrum using the settings of
+     * this generator.
+     *
+     * @param spectrumProvider the spectrum provider
+     * @param spectrumFile the name of the file of the spectrum
+     * @param matchKey the key of the spectrum of interest
+     *
+     * @return the quantification details of the match
+     */
+    public SpectrumQuantificationDetails getSpectrumQuantificationDetails(
+            SpectrumProvider spectrumProvider,
+            String spectrumFile,
+            long matchKey
+    ) {
+        return getSpectrumQuantificationDetails(
+                spectrumProvider,
+                reporterIonQuantification,
+                reporterSettings.getReporterIonSelectionSettings(),
+                spectrumFile,
+                matchKey
+        );
+    }
+
     /**
      * Returns the quantification details of a spectrum.
      *
      * @param spectrumProvider the spectrum provider
      * @param reporterIonQuantification the quantification object
      * @param reporterIonSelectionSettings the reporter ion selection settings
-     * @param matchKey the key of the match of interest
+     * @param spectrumFile the name of the file of the spectrum
+     * @param matchKey the key of the spectrum of interest
      *
      * @return the quantification details of the match
      */
@@ -264,27 +536,35 @@ public class QuantificationFeaturesGenerator {
             SpectrumProvider spectrumProvider,
             ReporterIonQuantification reporterIonQuantification,
             ReporterIonSelectionSettings reporterIonSelectionSettings,
+            String spectrumFile,
             Long matchKey
     ) {
 
-        SpectrumMatch spectrumMatch = identification.getSpectrumMatch(matchKey);
-        String spectrumFile = spectrumMatch.getSpectrumFile();
-        String spectrumTitle = spectrumMatch.getSpectrumTitle();
-
-        SpectrumQuantificationDetails result = quantificationFeaturesCache.getSpectrumQuantificationDetails(spectrumFile, spectrumTitle);
+        SpectrumQuantificationDetails result = quantificationFeaturesCache.getSpectrumQuantificationDetails(matchKey);
 
         if (result == null) {
 
-            result = Reporter.estimateSpectrumQuantificationDetails(
-                    identification,
-                    spectrumProvider,
-                    this,
-                    reporterIonQuantification,
-                    reporterIonSelectionSettings,
-                    matchKey
-            );
+            result = spectrumComputations.get(matchKey, () -> {
+
+                // the details might have been stored by a computation finished in the meantime
+                SpectrumQuantificationDetails details = quantificationFeaturesCache.getSpectrumQuantificationDetails(matchKey);
 
-            quantificationFeaturesCache.addSpectrumQuantificationDetails(spectrumFile, spectrumTitle, result);
+                if (details == null) {
+
+                    details = Reporter.estimateSpectrumQuantificationDetails(
+                            spectrumProvider,
+                            this,
+                            reporterIonQuantification,
+                            reporterIonSelectionSettings,
+                            spectrumFile,
+                            matchKey
+                    );
+
+                    quantificationFeaturesCache.addSpectrumQuantificationDetails(matchKey, details);
+                }
+
+                return details;
+            });
         }
 
         return result;
@@ -301,11 +581,462 @@ public class QuantificationFeaturesGenerator {
      */
     public Deisotoper getDeisotoper(ReporterMethod reporterMethod, double reporterIonMassAccuracy) {
         if (deisotoper == null) {
-            deisotoper = new Deisotoper(reporterMethod, reporterIonMassAccuracy);
+            deisotoper = Deisotoper.getDeisotoper(reporterMethod, reporterIonMassAccuracy);
         }
         return deisotoper;
     }
 
+    /**
+     * Returns the index of the precursors of the given spectrum file. The index
+     * is built upon first request and kept until invalidated.
+     *
+     * @param spectrumProvider the spectrum provider
+     * @param spectrumFile the name of the spectrum file
+     *
+     * @return the index of the precursors of the given spectrum file
+     */
+    public PrecursorIndex getPrecursorIndex(SpectrumProvider spectrumProvider, String spectrumFile) {
+        return precursorIndexes.computeIfAbsent(spectrumFile, fileName -> new PrecursorIndex(spectrumProvider, getSpectrumTitleIndex(spectrumProvider, fileName)));
+    }
+
+    /**
+     * Returns the index of the spectrum titles of the given spectrum file.
+     * Only the titles are read, the index is built upon first request and
+     * kept until invalidated.
+     *
+     * @param spectrumProvider the spectrum provider
+     * @param spectrumFile the name of the spectrum file
+     *
+     * @return the index of the spectrum titles of the given spectrum file
+     */
+    public SpectrumTitleIndex getSpectrumTitleIndex(SpectrumProvider spectrumProvider, String spectrumFile) {
+        return spectrumTitleIndexes.computeIfAbsent(spectrumFile, fileName -> new SpectrumTitleIndex(fileName, spectrumProvider.getSpectrumTitles(fileName)));
+    }
+
+    /**
+     * Discards the indexes of the precursors and spectrum titles of the given
+     * spectrum file. Must be called when the spectra of the file change.
+     *
+     * @param spectrumFile the name of the spectrum file
+     */
+    public void invalidatePrecursorIndex(String spectrumFile) {
+        precursorIndexes.remove(spectrumFile);
+        spectrumTitleIndexes.remove(spectrumFile);
+    }
+
+    /**
+     * Discards the indexes of the precursors and spectrum titles of all
+     * spectrum files.
+     */
+    public void invalidatePrecursorIndexes() {
+        precursorIndexes.clear();
+        spectrumTitleIndexes.clear();
+    }
+
+    /**
+     * Returns the store of the extracted reporter intensities of the given
+     * spectrum file, null if the reporter intensities of this file were not
+     * extracted.
+     *
+     * @param spectrumFile the name of the spectrum file
+     *
+     * @return the store of the extracted reporter intensities of the given
+     * spectrum file
+     */
+    public ReporterIntensityStore getReporterIntensityStore(String spectrumFile) {
+        return reporterIntensityStores.get(spectrumFile);
+    }
+
+    /**
+     * Sets the store of the extracted reporter intensities of the given
+     * spectrum file. The store must have been extracted using the settings of
+     * this generator.
+     *
+     * @param spectrumFile the name of the spectrum file
+     * @param reporterIntensityStore the store of the extracted reporter
+     * intensities
+     */
+    public void setReporterIntensityStore(String spectrumFile, ReporterIntensityStore reporterIntensityStore) {
+        reporterIntensityStores.put(spectrumFile, reporterIntensityStore);
+    }
+
+    /**
+     * Sets the quantification results saved in the project. The results are
+     * only used if they were obtained with the settings of this generator, in
+     * which case the saved normalization factors are also set in the reporter
+     * ion quantification for the levels where none are set.
+     *
+     * @param quantificationResults the quantification results saved in the
+     * project, can be null
+     *
+     * @return a boolean indicating whether the saved results are used
+     */
+    public boolean setSavedResults(QuantificationResults quantificationResults) {
+
+        computedResults = null;
+
+        if (quantificationResults == null
+                || quantificationResults.getFingerprint() != getFingerprint(reporterSettings, reporterIonQuantification)) {
+
+            savedResults = null;
+            return false;
+
+        }
+
+        savedResults = quantificationResults;
+        savedResults.setNormalizationFactors(reporterIonQuantification.getNormalizationFactors(), channelLayout);
+
+        return true;
+    }
+
+    /**
+     * Sets quantification results computed with the settings of this
+     * generator. The details missing from the cache are taken from these
+     * results, and from the saved results for the matches not found, i.e. for
+     * the levels not computed yet.
+     *
+     * @param quantificationResults the quantification results
+     */
+    public void setComputedResults(QuantificationResults quantificationResults) {
+        computedResults = quantificationResults;
+    }
+
+    /**
+     * Returns a boolean indicating whether the saved results contain the
+     * quantification details of exactly the given matches of a level.
+     *
+     * @param level the level of the matches
+     * @param sortedKeys the keys of the matches in ascending order
+     *
+     * @return a boolean indicating whether the saved results contain the
+     * quantification details of the given matches
+     */
+    public boolean isSaved(QuantificationPipeline.Level level, long[] sortedKeys) {
+
+        QuantificationResults results = savedResults;
+
+        return results != null && results.hasQuantificationDetails(level, sortedKeys);
+    }
+
+    /**
+     * Returns the quantification details of a PSM from the computed results,
+     * or from the saved results if not computed, null if not found.
+     *
+     * @param matchKey the key of the match
+     *
+     * @return the quantification details of the match
+     */
+    private PsmQuantificationDetails getResultsPsmQuantificationDetails(long matchKey) {
+
+        QuantificationResults computed = computedResults;
+        QuantificationResults saved = savedResults;
+
+        PsmQuantificationDetails result = computed == null ? null : computed.getPsmQuantificationDetails(matchKey, channelLayout);
+
+        return result != null || saved == null ? result : saved.getPsmQuantificationDetails(matchKey, channelLayout);
+    }
+
+    /**
+     * Returns the quantification details of a peptide from the computed
+     * results, or from the saved results if not computed, null if not found.
+     *
+     * @param matchKey the key of the match
+     *
+     * @return the quantification details of the match
+     */
+    private PeptideQuantificationDetails getResultsPeptideQuantificationDetails(long matchKey) {
+
+        QuantificationResults computed = computedResults;
+        QuantificationResults saved = savedResults;
+
+        PeptideQuantificationDetails result = computed == null ? null : computed.getPeptideQuantificationDetails(matchKey, channelLayout);
+
+        return result != null || saved == null ? result : saved.getPeptideQuantificationDetails(matchKey, channelLayout);
+    }
+
+    /**
+     * Returns the quantification details of a protein from the computed
+     * results, or from the saved results if not computed, null if not found.
+     *
+     * @param matchKey the key of the match
+     *
+     * @return the quantification details of the match
+     */
+    private ProteinQuantificationDetails getResultsProteinQuantificationDetails(long matchKey) {
+
+        QuantificationResults computed = computedResults;
+        QuantificationResults saved = savedResults;
+
+        ProteinQuantificationDetails result = computed == null ? null : computed.getProteinQuantificationDetails(matchKey, channelLayout);
+
+        return result != null || saved == null ? result : saved.getProteinQuantificationDetails(matchKey, channelLayout);
+    }
+
+    /**
+     * Returns quantification results for the settings of this generator
+     * without quantification details.
+     *
+     * @return quantification results for the settings of this generator
+     */
+    public QuantificationResults getEmptyQuantificationResults() {
+
+        return new QuantificationResults(
+                getFingerprint(reporterSettings, reporterIonQuantification),
+                reporterSettings,
+                reporterIonQuantification,
+                channelLayout
+        );
+    }
+
+    /**
+     * Returns the quantification results to save in the project: the
+     * quantification details of all PSMs, peptides and proteins of the
+     * identification, and the current normalization factors. The details are
+     * taken from the cache or the saved results when available, and computed
+     * otherwise, so that details evicted from the cache are not lost.
+     *
+     * @param spectrumProvider the spectrum provider
+     * @param waitingHandler the waiting handler
+     *
+     * @return the quantification results to save in the project
+     */
+    public QuantificationResults getQuantificationResults(SpectrumProvider spectrumProvider, WaitingHandler waitingHandler) {
+
+        QuantificationResults quantificationResults = getEmptyQuantificationResults();
+
+        long[] psmKeys = identification.getSpectrumIdentification().values().stream()
+                .flatMap(HashSet::stream)
+                .mapToLong(Long::longValue)
+                .sorted()
+                .toArray();
+        PsmQuantificationDetails[] psmDetails = new PsmQuantificationDetails[psmKeys.length];
+        IntStream.range(0, psmKeys.length)
+                .parallel()
+                .forEach(i -> psmDetails[i] = getPSMQuantificationDetails(spectrumProvider, psmKeys[i]));
+        quantificationResults.setPsmQuantificationDetails(psmKeys, psmDetails);
+
+        long[] peptideKeys = identification.getPeptideIdentification().stream()
+                .mapToLong(Long::longValue)
+                .sorted()
+                .toArray();
+        PeptideQuantificationDetails[] peptideDetails = new PeptideQuantificationDetails[peptideKeys.length];
+        IntStream.range(0, peptideKeys.length)
+                .parallel()
+                .forEach(i -> peptideDetails[i] = getPeptideMatchQuantificationDetails(spectrumProvider, peptideKeys[i], waitingHandler));
+        quantificationResults.setPeptideQuantificationDetails(peptideKeys, peptideDetails);
+
+        long[] proteinKeys = identification.getProteinIdentification().stream()
+                .mapToLong(Long::longValue)
+                .sorted()
+                .toArray();
+        ProteinQuantificationDetails[] proteinDetails = new ProteinQuantificationDetails[proteinKeys.length];
+        IntStream.range(0, proteinKeys.length)
+                .parallel()
+                .forEach(i -> proteinDetails[i] = getProteinMatchQuantificationDetails(spectrumProvider, proteinKeys[i], waitingHandler));
+        quantificationResults.setProteinQuantificationDetails(proteinKeys, proteinDetails);
+
+        return quantificationResults;
+    }
+
+    /**
+     * Returns a fingerprint of the settings affecting the quantification
+     * results: the reporter ion selection, ratio estimation and normalization
+     * settings, the method and its isotopic corrections, the channels, and the
+     * control samples. The FASTA files used for the normalization are
+     * identified by path, size, and last modification time. The sample names are not included.
+     *
+     * @param reporterSettings the reporter settings
+     * @param reporterIonQuantification the reporter ion quantification
+     *
+     * @return a fingerprint of the settings affecting the quantification
+     * results
+     */
+    public static long getFingerprint(ReporterSettings reporterSettings, ReporterIonQuantification reporterIonQuantification) {
+
+        ReporterIonSelectionSettings selectionSettings = reporterSettings.getReporterIonSelectionSettings();
+        RatioEstimationSettings ratioEstimationSettings = reporterSettings.getRatioEstimationSettings();
+        NormalizationSettings normalizationSettings = reporterSettings.getNormalizationSettings();
+
+        long hash = Fnv1aHash.hash(Deisotoper.getKey(reporterIonQuantification.getReporterMethod(), selectionSettings.getReporterIonsMzTolerance()));
+        hash = Fnv1aHash.hash(hash, Boolean.toString(selectionSettings.isMostAccurate()));
+        hash = Fnv1aHash.hash(hash, Boolean.toString(selectionSettings.isSameSpectra()));
+        hash = Fnv1aHash.hash(hash, Double.toString(selectionSettings.getPrecursorMzTolerance()));
+        hash = Fnv1aHash.hash(hash, Boolean.toString(selectionSettings.isPrecursorMzPpm()));
+        hash = Fnv1aHash.hash(hash, Double.toString(selectionSettings.getPrecursorRTTolerance()));
+        hash = Fnv1aHash.hash(hash, Boolean.toString(ratioEstimationSettings.isIgnoreNullIntensities()));
+        hash = Fnv1aHash.hash(hash, Boolean.toString(ratioEstimationSettings.isIgnoreMissedCleavages()));
+        hash = Fnv1aHash.hash(hash, Double.toString(ratioEstimationSettings.getPercentile()));
+        hash = Fnv1aHash.hash(hash, Double.toString(ratioEstimationSettings.getRatioResolution()));
+        hash = Fnv1aHash.hash(hash, Integer.toString(ratioEstimationSettings.getMinUnique()));
+        hash = Fnv1aHash.hash(hash, String.valueOf(ratioEstimationSettings.getProteinValidationLevel()));
+        hash = Fnv1aHash.hash(hash, String.valueOf(ratioEstimationSettings.getPeptideValidationLevel()));
+        hash = Fnv1aHash.hash(hash, String.valueOf(ratioEstimationSettings.getPsmValidationLevel()));
+
+        ArrayList<String> excludedPtms = new ArrayList<>(ratioEstimationSettings.getExcludingPtms());
+        Collections.sort(excludedPtms);
+
+        for (String ptmName : excludedPtms) {
+            hash = Fnv1aHash.hash(hash, ptmName);
+        }
+
+        hash = Fnv1aHash.hash(hash, String.valueOf(normalizationSettings.getPsmNormalization()));
+        hash = Fnv1aHash.hash(hash, String.valueOf(normalizationSettings.getPeptideNormalization()));
+        hash = Fnv1aHash.hash(hash, String.valueOf(normalizationSettings.getProteinNormalization()));
+        hash = Fnv1aHash.hash(hash, Boolean.toString(normalizationSettings.isApproximateQuantiles()));
+
+        hash = Fnv1aHash.hash(hash, getFileVersion(normalizationSettings.getStableProteinsFastaFile()));
+        hash = Fnv1aHash.hash(hash, getFileVersion(normalizationSettings.getContaminantsFastaFile()));
+
+        ChannelLayout channelLayout = new ChannelLayout(reporterIonQuantification.getSampleIndexes());
+
+        for (int channel = 0; channel < channelLayout.size(); channel++) {
+            hash = Fnv1aHash.hash(hash, channelLayout.getReagentName(channel));
+        }
+
+        ArrayList<String> controlSamples = reporterIonQuantification.getControlSamples();
+
+        if (controlSamples != null) {
+
+            controlSamples = new ArrayList<>(controlSamples);
+            Collections.sort(controlSamples);
+
+            for (String controlSample : controlSamples) {
+                hash = Fnv1aHash.hash(hash, controlSample);
+            }
+        }
+
+        return hash;
+    }
+
+    /**
+     * Returns a string identifying the version of a file: its path, size and
+     * last modification time, so that editing the file changes the
+     * fingerprint.
+     *
+     * @param file the file, can be null
+     *
+     * @return a string identifying the version of the file
+     */
+    private static String getFileVersion(File file) {
+
+        if (file == null) {
+            return "";
+        }
+
+        return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+    }
+
+    /**
+     * Returns the layout of the channels in the quantification details.
+     *
+     * @return the layout of the channels in the quantification details
+     */
+    public ChannelLayout getChannelLayout() {
+        return channelLayout;
+    }
+
+    /**
+     * Returns the number of computations avoided because the same
+     * quantification details were being computed by another thread.
+     *
+     * @return the number of computations avoided
+     */
+    public long getAvoidedComputationsCount() {
+        return avoidedComputations.sum();
+    }
+
+    /**
+     * Returns the status of the matches with regard to the quantification
+     * filters. The index is built on first use and built again when the
+     * ratio estimation settings change.
+     *
+     * @return the status of the matches with regard to the quantification
+     * filters
+     */
+    public QuantificationFilterIndex getQuantificationFilterIndex() {
+
+        RatioEstimationSettings ratioEstimationSettings = reporterSettings.getRatioEstimationSettings();
+        QuantificationFilterIndex index = quantificationFilterIndex;
+
+        if (index != null && index.isUpToDate(ratioEstimationSettings)) {
+            return index;
+        }
+
+        synchronized (this) {
+
+            index = quantificationFilterIndex;
+
+            if (index == null || !index.isUpToDate(ratioEstimationSettings)) {
+
+                index = new QuantificationFilterIndex(identification, getMatchIncidence(), searchParameters, ratioEstimationSettings);
+                quantificationFilterIndex = index;
+
+            }
+
+            return index;
+        }
+    }
+
+    /**
+     * Returns the incidence of the matches of the project. The incidence is
+     * built on first use.
+     *
+     * @return the incidence of the matches of the project
+     */
+    public MatchIncidence getMatchIncidence() {
+
+        MatchIncidence incidence = matchIncidence;
+
+        if (incidence != null) {
+            return incidence;
+        }
+
+        synchronized (this) {
+
+            incidence = matchIncidence;
+
+            if (incidence == null) {
+
+                incidence = new MatchIncidence(identification, identificationFeaturesGenerator);
+                matchIncidence = incidence;
+
+            }
+
+            return incidence;
+        }
+    }
+
+    /**
+     * Returns the index of the PTM sites of the project. The index is built
+     * on first use.
+     *
+     * @return the index of the PTM sites of the project
+     */
+    public PtmSiteIndex getPtmSiteIndex() {
+
+        PtmSiteIndex index = ptmSiteIndex;
+
+        if (index != null) {
+            return index;
+        }
+
+        MatchIncidence incidence = getMatchIncidence();
+
+        synchronized (this) {
+
+            index = ptmSiteIndex;
+
+            if (index == null) {
+
+                index = new PtmSiteIndex(identification, incidence);
+                ptmSiteIndex = index;
+
+            }
+
+            return index;
+        }
+    }
+
     /**
      * Returns the quantification features cache.
      *
@@ -322,5 +1053,6 @@ public class QuantificationFeaturesGenerator {
      */
     public void setQuantificationFeaturesCache(QuantificationFeaturesCache quantificationFeaturesCache) {
         this.quantificationFeaturesCache = quantificationFeaturesCache;
+        quantificationFeaturesCache.setSpectrumCaching(!reporterSettings.getReporterIonSelectionSettings().isSameSpectra());
     }
 }
@@ -11,6 +11,7 @@ import com.compomics.util.parameters.identification.search.SearchParameters;
 import eu.isas.reporter.settings.RatioEstimationSettings;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Collection;
 
 /**
  * This class indicates whether identification features or ratios are valid
@@ -34,6 +35,19 @@ public class QuantificationFilter {
         return !ratio.isNaN() && (!ratioEstimationSettings.isIgnoreNullIntensities() || ratio > 0);
     }
 
+    /**
+     * Filters out NaN and 0 ratios.
+     *
+     * @param ratioEstimationSettings the ratio estimation settings
+     * @param ratio the ratio of interest
+     *
+     * @return true if the ratio is not NaN and should be accounted for
+     * according to the user settings
+     */
+    public static boolean isRatioValid(RatioEstimationSettings ratioEstimationSettings, double ratio) {
+        return !Double.isNaN(ratio) && (!ratioEstimationSettings.isIgnoreNullIntensities() || ratio > 0);
+    }
+
     /**
      * Filters the PSMs to be used for quantification according to the user
      * quantification preferences.
@@ -79,6 +93,28 @@ public class QuantificationFilter {
 
         // check enzymaticity
         Peptide peptide = peptideMatch.getPeptide();
+        if (ratioEstimationSettings.isIgnoreMissedCleavages() && hasMissedCleavages(searchParameters, peptide)) {
+            return false;
+        }
+
+        // check modifications
+        if (hasExcludedPtm(ratioEstimationSettings.getExcludingPtms(), peptide)) {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Indicates whether a peptide has missed cleavages for all the enzymes
+     * used for the search. Returns false if the search was not enzymatic.
+     *
+     * @param searchParameters the identification parameters
+     * @param peptide the peptide of interest
+     *
+     * @return true if the peptide has missed cleavages for all the enzymes
+     */
+    public static boolean hasMissedCleavages(SearchParameters searchParameters, Peptide peptide) {
         DigestionParameters digestionParameters = searchParameters.getDigestionParameters();
         if (digestionParameters.getCleavageParameter() == DigestionParameters.CleavageParameter.enzyme) {
             Integer minMissedCleavages = null;
@@ -88,21 +124,29 @@ public class QuantificationFilter {
                     minMissedCleavages = nMissedCleavages;
                 }
             }
-            if (minMissedCleavages != null && minMissedCleavages > 0 && ratioEstimationSettings.isIgnoreMissedCleavages()) {
-                return false;
-            }
+            return minMissedCleavages != null && minMissedCleavages > 0;
         }
+        return false;
+    }
 
-        // check modifications
+    /**
+     * Indicates whether a peptide carries one of the given variable
+     * modifications.
+     *
+     * @param excludingPtms the names of the modifications to exclude
+     * @param peptide the peptide of interest
+     *
+     * @return true if the peptide carries one of the given modifications
+     */
+    public static boolean hasExcludedPtm(Collection<String> excludingPtms, Peptide peptide) {
         if (peptide.getNVariableModifications() > 0) {
             for (ModificationMatch modificationMatch : peptide.getVariableModifications()) {
-                if (ratioEstimationSettings.getExcludingPtms().contains(modificationMatch.getModification())) {
-                    return false;
+                if (excludingPtms.contains(modificationMatch.getModification())) {
+                    return true;
                 }
             }
         }
-
-        return true;
+        return false;
     }
 
     /**
@@ -0,0 +1,357 @@
+package eu.isas.reporter.calculation;
+
+import com.compomics.util.experiment.biology.proteins.Peptide;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.matches.PeptideMatch;
+import com.compomics.util.experiment.identification.peptide_shaker.PSParameter;
+import com.compomics.util.parameters.identification.search.SearchParameters;
+import eu.isas.reporter.settings.RatioEstimationSettings;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.function.LongToIntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Status of all matches with regard to the QuantificationFilter, computed once
+ * for given ratio estimation settings. The index of a match in the sorted keys
+ * of the MatchIncidence is its position in the bitsets storing whether the
+ * match is validated, has missed cleavages, or carries an excluded PTM.
+ * Matches not indexed are filtered using the QuantificationFilter.
+ *
+ * @author Marc Vaudel
+ */
+public class QuantificationFilterIndex {
+
+    /**
+     * Flag set for the matches reaching the validation level.
+     */
+    private static final int VALIDATED = 1;
+    /**
+     * Flag set for the peptides with missed cleavages for all enzymes.
+     */
+    private static final int MISSED_CLEAVAGES = 2;
+    /**
+     * Flag set for the peptides carrying an excluded PTM.
+     */
+    private static final int EXCLUDED_PTM = 4;
+    /**
+     * The identification.
+     */
+    private final Identification identification;
+    /**
+     * The search parameters.
+     */
+    private final SearchParameters searchParameters;
+    /**
+     * The ratio estimation settings.
+     */
+    private final RatioEstimationSettings ratioEstimationSettings;
+    /**
+     * The PSM validation level used to build the index.
+     */
+    private final int psmValidationLevel;
+    /**
+     * The peptide validation level used to build the index.
+     */
+    private final int peptideValidationLevel;
+    /**
+     * The protein validation level used to build the index.
+     */
+    private final int proteinValidationLevel;
+    /**
+     * Indicates whether the peptides with missed cleavages were excluded when
+     * building the index.
+     */
+    private final boolean ignoreMissedCleavages;
+    /**
+     * The PTMs excluded when building the index.
+     */
+    private final HashSet<String> excludingPtms;
+    /**
+     * The sorted keys of the spectrum matches.
+     */
+    private final long[] psmKeys;
+    /**
+     * The sorted keys of the peptide matches.
+     */
+    private final long[] peptideKeys;
+    /**
+     * The sorted keys of the protein matches.
+     */
+    private final long[] proteinKeys;
+    /**
+     * The validated spectrum matches.
+     */
+    private final long[] validatedPsms;
+    /**
+     * The validated peptide matches.
+     */
+    private final long[] validatedPeptides;
+    /**
+     * The peptide matches excluded because of missed cleavages.
+     */
+    private final long[] missedCleavagePeptides;
+    /**
+     * The peptide matches excluded because of their PTMs.
+     */
+    private final long[] excludedPtmPeptides;
+    /**
+     * The validated protein matches.
+     */
+    private final long[] validatedProteins;
+
+    /**
+     * Builds the index of all matches of the given identification. The
+     * matches are inspected in parallel using the pool of the calling thread.
+     *
+     * @param identification the identification
+     * @param matchIncidence the incidence of the matches
+     * @param searchParameters the search parameters
+     * @param ratioEstimationSettings the ratio estimation settings
+     */
+    public QuantificationFilterIndex(
+            Identification identification,
+            MatchIncidence matchIncidence,
+            SearchParameters searchParameters,
+            RatioEstimationSettings ratioEstimationSettings
+    ) {
+
+        this.identification = identification;
+        this.searchParameters = searchParameters;
+        this.ratioEstimationSettings = ratioEstimationSettings;
+        this.psmValidationLevel = ratioEstimationSettings.getPsmValidationLevel().getIndex();
+        this.peptideValidationLevel = ratioEstimationSettings.getPeptideValidationLevel().getIndex();
+        this.proteinValidationLevel = ratioEstimationSettings.getProteinValidationLevel().getIndex();
+        this.ignoreMissedCleavages = ratioEstimationSettings.isIgnoreMissedCleavages();
+        this.excludingPtms = new HashSet<>(ratioEstimationSettings.getExcludingPtms());
+
+        psmKeys = matchIncidence.getPsmKeys();
+        peptideKeys = matchIncidence.getPeptideKeys();
+        proteinKeys = matchIncidence.getProteinKeys();
+
+        validatedPsms = getBitsets(psmKeys, 1, key -> {
+
+            PSParameter psParameter = (PSParameter) identification.getSpectrumMatch(key).getUrParam(PSParameter.dummy);
+
+            return psParameter.getMatchValidationLevel().getIndex() >= psmValidationLevel ? VALIDATED : 0;
+
+        })[0];
+
+        long[][] peptideBitsets = getBitsets(peptideKeys, 3, key -> {
+
+            PeptideMatch peptideMatch = identification.getPeptideMatch(key);
+            PSParameter psParameter = (PSParameter) peptideMatch.getUrParam(PSParameter.dummy);
+            Peptide peptide = peptideMatch.getPeptide();
+            int flags = 0;
+
+            if (psParameter.getMatchValidationLevel().getIndex() >= peptideValidationLevel) {
+                flags |= VALIDATED;
+            }
+
+            if (ignoreMissedCleavages && QuantificationFilter.hasMissedCleavages(searchParameters, peptide)) {
+                flags |= MISSED_CLEAVAGES;
+            }
+
+            if (QuantificationFilter.hasExcludedPtm(excludingPtms, peptide)) {
+                flags |= EXCLUDED_PTM;
+            }
+
+            return flags;
+
+        });
+        validatedPeptides = peptideBitsets[0];
+        missedCleavagePeptides = peptideBitsets[1];
+        excludedPtmPeptides = peptideBitsets[2];
+
+        validatedProteins = getBitsets(proteinKeys, 1, key -> {
+
+            PSParameter psParameter = (PSParameter) identification.getProteinMatch(key).getUrParam(PSParameter.dummy);
+
+            return psParameter.getMatchValidationLevel().getIndex() >= proteinValidationLevel ? VALIDATED : 0;
+
+        })[0];
+    }
+
+    /**
+     * Returns the bitsets of the flags of the given keys. Every word of the
+     * bitsets is filled by a single thread.
+     *
+     * @param keys the sorted keys
+     * @param nFlags the number of flags
+     * @param flagsFunction the function returning the flags of a key
+     *
+     * @return the bitsets of the flags in the order of the flags
+     */
+    private static long[][] getBitsets(long[] keys, int nFlags, LongToIntFunction flagsFunction) {
+
+        int nWords = (keys.length + 63) >>> 6;
+        long[][] bitsets = new long[nFlags][nWords];
+
+        IntStream.range(0, nWords)
+                .parallel()
+                .forEach(word -> {
+
+                    int end = Math.min((word + 1) << 6, keys.length);
+
+                    for (int i = word << 6; i < end; i++) {
+
+                        int flags = flagsFunction.applyAsInt(keys[i]);
+
+                        for (int flag = 0; flag < nFlags; flag++) {
+
+                            if ((flags & (1 << flag)) != 0) {
+                                bitsets[flag][word] |= 1L << i;
+                            }
+                        }
+                    }
+                });
+
+        return bitsets;
+    }
+
+    /**
+     * Indicates whether a bit is set.
+     *
+     * @param bitset the bitset
+     * @param index the index of the bit
+     *
+     * @return a boolean indicating whether the bit is set
+     */
+    private static boolean isSet(long[] bitset, int index) {
+        return (bitset[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Indicates whether the index was built using the given settings.
+     *
+     * @param ratioEstimationSettings the ratio estimation settings
+     *
+     * @return a boolean indicating whether the index was built using the
+     * given settings
+     */
+    public boolean isUpToDate(RatioEstimationSettings ratioEstimationSettings) {
+        return ratioEstimationSettings == this.ratioEstimationSettings
+                && ratioEstimationSettings.getPsmValidationLevel().getIndex() == psmValidationLevel
+                && ratioEstimationSettings.getPeptideValidationLevel().getIndex() == peptideValidationLevel
+                && ratioEstimationSettings.getProteinValidationLevel().getIndex() == proteinValidationLevel
+                && ratioEstimationSettings.isIgnoreMissedCleavages() == ignoreMissedCleavages
+                && ratioEstimationSettings.getExcludingPtms().equals(excludingPtms);
+    }
+
+    /**
+     * Indicates whether a PSM reaches the validation level required for
+     * quantification.
+     *
+     * @param matchKey the key of the spectrum match
+     *
+     * @return a boolean indicating whether the PSM reaches the validation
+     * level
+     */
+    public boolean isPsmValid(long matchKey) {
+
+        int index = Arrays.binarySearch(psmKeys, matchKey);
+
+        if (index < 0) {
+            return QuantificationFilter.isPsmValid(ratioEstimationSettings, identification, matchKey);
+        }
+
+        return isSet(validatedPsms, index);
+    }
+
+    /**
+     * Indicates whether the PSM at the given index of the MatchIncidence
+     * reaches the validation level required for quantification.
+     *
+     * @param psmIndex the index of the spectrum match
+     *
+     * @return a boolean indicating whether the PSM reaches the validation
+     * level
+     */
+    public boolean isPsmValidAt(int psmIndex) {
+        return isSet(validatedPsms, psmIndex);
+    }
+
+    /**
+     * Indicates whether a peptide reaches the validation level required for
+     * quantification, regardless of its missed cleavages and PTMs.
+     *
+     * @param matchKey the key of the peptide match
+     *
+     * @return a boolean indicating whether the peptide reaches the validation
+     * level
+     */
+    public boolean isPeptideValidated(long matchKey) {
+
+        int index = Arrays.binarySearch(peptideKeys, matchKey);
+
+        if (index < 0) {
+
+            PSParameter psParameter = (PSParameter) identification.getPeptideMatch(matchKey).getUrParam(PSParameter.dummy);
+
+            return psParameter.getMatchValidationLevel().getIndex() >= peptideValidationLevel;
+
+        }
+
+        return isSet(validatedPeptides, index);
+    }
+
+    /**
+     * Indicates whether a peptide can be used for quantification according to
+     * its validation level, missed cleavages, and PTMs.
+     *
+     * @param peptideMatch the peptide match
+     *
+     * @return a boolean indicating whether the peptide can be used for
+     * quantification
+     */
+    public boolean isPeptideValid(PeptideMatch peptideMatch) {
+
+        int index = Arrays.binarySearch(peptideKeys, peptideMatch.getKey());
+
+        if (index < 0) {
+            return QuantificationFilter.isPeptideValid(ratioEstimationSettings, identification, searchParameters, peptideMatch);
+        }
+
+        return isPeptideValidAt(index);
+    }
+
+    /**
+     * Indicates whether the peptide at the given index of the MatchIncidence
+     * can be used for quantification according to its validation level,
+     * missed cleavages, and PTMs.
+     *
+     * @param peptideIndex the index of the peptide match
+     *
+     * @return a boolean indicating whether the peptide can be used for
+     * quantification
+     */
+    public boolean isPeptideValidAt(int peptideIndex) {
+        return isSet(validatedPeptides, peptideIndex)
+                && !isSet(missedCleavagePeptides, peptideIndex)
+                && !isSet(excludedPtmPeptides, peptideIndex);
+    }
+
+    /**
+     * Indicates whether a protein reaches the validation level required for
+     * quantification.
+     *
+     * @param matchKey the key of the protein match
+     *
+     * @return a boolean indicating whether the protein reaches the validation
+     * level
+     */
+    public boolean isProteinValid(long matchKey) {
+
+        int index = Arrays.binarySearch(proteinKeys, matchKey);
+
+        if (index < 0) {
+
+            PSParameter psParameter = (PSParameter) identification.getProteinMatch(matchKey).getUrParam(PSParameter.dummy);
+
+            return psParameter.getMatchValidationLevel().getIndex() >= proteinValidationLevel;
+
+        }
+
+        return isSet(validatedProteins, index);
+    }
+}
@@ -0,0 +1,437 @@
+package eu.isas.reporter.calculation;
+
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.matches.PeptideMatch;
+import com.compomics.util.experiment.mass_spectrometry.SpectrumProvider;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.reporter.quantificationdetails.PeptideQuantificationDetails;
+import eu.isas.reporter.quantificationdetails.ProteinPtmQuantificationDetails;
+import eu.isas.reporter.quantificationdetails.ProteinQuantificationDetails;
+import eu.isas.reporter.quantificationdetails.PsmQuantificationDetails;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Quantifies all matches of a project bottom-up ahead of the display and
+ * export: first all PSMs, then all peptides, then all proteins, and finally
+ * all PTM sites. The ratios of a level are estimated from the normalized
+ * ratios of the level below, a listener is hence notified once a level is
+ * quantified so that its normalization factors can be set before the next
+ * level is quantified. Every level is processed in parallel on a fork/join
+ * pool. The results of the matches are stored in a dense QuantificationResults
+ * object which the quantification features generator uses to quantify the
+ * next level, the results of the PTM sites are cached. The matches of a level
+ * are processed and cached in the order of their keys, so that the results do
+ * not depend on the order in which the matches are displayed. A level is not
+ * quantified again when the results saved in the project contain all its
+ * matches and the levels below were not quantified again either, its details
+ * are then taken from the saved results when needed.
+ *
+ * @author Marc Vaudel
+ */
+public class QuantificationPipeline {
+
+    /**
+     * The text displayed while quantifying the matches.
+     */
+    private static final String WAITING_TEXT = "Quantifying Matches. Please Wait...";
+
+    /**
+     * The levels of matches quantified.
+     */
+    public enum Level {
+
+        /**
+         * The peptide spectrum matches.
+         */
+        psm,
+        /**
+         * The peptide matches.
+         */
+        peptide,
+        /**
+         * The protein matches.
+         */
+        protein
+    }
+
+    /**
+     * Listener notified when all matches of a level are quantified, before
+     * the next level is quantified.
+     */
+    public interface LevelListener {
+
+        /**
+         * Notifies the listener that all matches of the given level are
+         * quantified. The listener is expected to set the normalization
+         * factors of this level if not set.
+         *
+         * @param level the level
+         *
+         * @throws java.sql.SQLException exception thrown whenever an error
+         * occurred while interacting with the database
+         * @throws java.io.IOException exception thrown whenever an error
+         * occurred while interacting with a file
+         * @throws java.lang.ClassNotFoundException exception thrown whenever
+         * an error occurred while deserializing an object
+         * @throws java.lang.InterruptedException exception thrown whenever a
+         * threading error occurred
+         */
+        void levelQuantified(Level level) throws SQLException, IOException, ClassNotFoundException, InterruptedException;
+
+    }
+
+    /**
+     * Empty default constructor.
+     */
+    private QuantificationPipeline() {
+    }
+
+    /**
+     * Quantifies all PSMs, peptides, proteins, and PTM sites of the
+     * identification. The listener is notified after the PSMs, the peptides
+     * and the proteins are quantified, the next level is only quantified once
+     * the listener returns. The PTM sites are quantified after the proteins.
+     *
+     * @param identification the identification
+     * @param spectrumProvider the spectrum provider
+     * @param quantificationFeaturesGenerator the quantification features
+     * generator
+     * @param nThreads the number of threads to use
+     * @param waitingHandler the waiting handler, can be null
+     * @param levelListener the listener notified when a level is quantified
+     *
+     * @throws java.sql.SQLException exception thrown whenever an error
+     * occurred while interacting with the database
+     * @throws java.io.IOException exception thrown whenever an error occurred
+     * while interacting with a file
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserializing an object
+     * @throws InterruptedException exception thrown if a thread was
+     * interrupted
+     */
+    public static void run(
+            Identification identification,
+            SpectrumProvider spectrumProvider,
+            QuantificationFeaturesGenerator quantificationFeaturesGenerator,
+            int nThreads,
+            WaitingHandler waitingHandler,
+            LevelListener levelListener
+    ) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+
+        long[] psmKeys = getSortedKeys(identification, Level.psm);
+        long[] peptideKeys = getSortedKeys(identification, Level.peptide);
+        long[] proteinKeys = getSortedKeys(identification, Level.protein);
+
+        if (waitingHandler != null) {
+            waitingHandler.setWaitingText(WAITING_TEXT);
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.setMaxSecondaryProgressCounter(psmKeys.length + peptideKeys.length + proteinKeys.length);
+        }
+
+        int nMatches = psmKeys.length + peptideKeys.length + proteinKeys.length;
+
+        QuantificationResults quantificationResults = quantificationFeaturesGenerator.getEmptyQuantificationResults();
+        QuantificationFeaturesCache quantificationFeaturesCache = quantificationFeaturesGenerator.getQuantificationFeaturesCache();
+        ForkJoinPool pool = new ForkJoinPool(nThreads);
+
+        try {
+
+            // Status of the matches with regard to the quantification filters
+            pool.submit(quantificationFeaturesGenerator::getQuantificationFilterIndex).get();
+
+            // PSMs
+            boolean saved = quantificationFeaturesGenerator.isSaved(Level.psm, psmKeys);
+
+            if (!saved) {
+
+                PsmQuantificationDetails[] psmDetails = new PsmQuantificationDetails[psmKeys.length];
+
+                if (!process(pool, psmKeys.length, waitingHandler,
+                        i -> psmDetails[i] = quantificationFeaturesGenerator.getPSMQuantificationDetails(spectrumProvider, psmKeys[i]))) {
+                    return;
+                }
+
+                for (int i = 0; i < psmKeys.length; i++) {
+                    quantificationFeaturesCache.addPSMQuantificationDetails(psmKeys[i], psmDetails[i]);
+                }
+
+                quantificationResults.setPsmQuantificationDetails(psmKeys, psmDetails);
+                quantificationFeaturesGenerator.setComputedResults(quantificationResults);
+
+            }
+
+            if (!notifyListener(levelListener, Level.psm, nMatches, psmKeys.length, waitingHandler)) {
+                return;
+            }
+
+            // Peptides
+            saved = saved && quantificationFeaturesGenerator.isSaved(Level.peptide, peptideKeys);
+
+            if (!saved) {
+
+                PeptideQuantificationDetails[] peptideDetails = new PeptideQuantificationDetails[peptideKeys.length];
+
+                if (!process(pool, peptideKeys.length, waitingHandler, i -> {
+                    PeptideMatch peptideMatch = identification.getPeptideMatch(peptideKeys[i]);
+                    peptideDetails[i] = quantificationFeaturesGenerator.getPeptideMatchQuantificationDetails(spectrumProvider, peptideMatch, waitingHandler);
+                })) {
+                    return;
+                }
+
+                for (int i = 0; i < peptideKeys.length; i++) {
+                    quantificationFeaturesCache.addPeptideMatchQuantificationDetails(peptideKeys[i], peptideDetails[i]);
+                }
+
+                quantificationResults.setPeptideQuantificationDetails(peptideKeys, peptideDetails);
+                quantificationFeaturesGenerator.setComputedResults(quantificationResults);
+
+            }
+
+            if (!notifyListener(levelListener, Level.peptide, nMatches, psmKeys.length + peptideKeys.length, waitingHandler)) {
+                return;
+            }
+
+            // Proteins
+            saved = saved && quantificationFeaturesGenerator.isSaved(Level.protein, proteinKeys);
+
+            if (!saved) {
+
+                ProteinQuantificationDetails[] proteinDetails = new ProteinQuantificationDetails[proteinKeys.length];
+
+                if (!process(pool, proteinKeys.length, waitingHandler,
+                        i -> proteinDetails[i] = quantificationFeaturesGenerator.getProteinMatchQuantificationDetails(spectrumProvider, proteinKeys[i], waitingHandler))) {
+                    return;
+                }
+
+                for (int i = 0; i < proteinKeys.length; i++) {
+                    quantificationFeaturesCache.addProteinMatchQuantificationDetails(proteinKeys[i], proteinDetails[i]);
+                }
+
+                quantificationResults.setProteinQuantificationDetails(proteinKeys, proteinDetails);
+                quantificationFeaturesGenerator.setComputedResults(quantificationResults);
+
+            }
+
+            if (!notifyListener(levelListener, Level.protein, nMatches, nMatches, waitingHandler)) {
+                return;
+            }
+
+            // PTM sites, quantified from the normalized peptide ratios
+            PtmSiteIndex ptmSiteIndex = pool.submit(quantificationFeaturesGenerator::getPtmSiteIndex).get();
+            int nSites = ptmSiteIndex.getNSites();
+
+            if (waitingHandler != null) {
+                waitingHandler.setMaxSecondaryProgressCounter(psmKeys.length + peptideKeys.length + proteinKeys.length + nSites);
+            }
+
+            ProteinPtmQuantificationDetails[] siteDetails = new ProteinPtmQuantificationDetails[nSites];
+
+            if (!process(pool, nSites, waitingHandler,
+                    i -> siteDetails[i] = quantificationFeaturesGenerator.getPtmSiteQuantificationDetails(spectrumProvider, i, waitingHandler))) {
+                return;
+            }
+
+            for (int i = 0; i < nSites; i++) {
+                quantificationFeaturesCache.addPtmQuantificationDetails(i, siteDetails[i]);
+            }
+
+        } catch (ExecutionException e) {
+
+            throw getUncheckedCause(e);
+
+        } finally {
+
+            pool.shutdown();
+
+        }
+    }
+
+    /**
+     * Returns a boolean indicating whether the results saved in the project
+     * contain the quantification details of all matches of the given level.
+     * If the PSMs are saved, the spectra are not needed to quantify the
+     * project.
+     *
+     * @param identification the identification
+     * @param quantificationFeaturesGenerator the quantification features
+     * generator
+     * @param level the level
+     *
+     * @return a boolean indicating whether the results of the level are saved
+     */
+    public static boolean isSaved(
+            Identification identification,
+            QuantificationFeaturesGenerator quantificationFeaturesGenerator,
+            Level level
+    ) {
+        return quantificationFeaturesGenerator.isSaved(level, getSortedKeys(identification, level));
+    }
+
+    /**
+     * Notifies the listener that the given level is quantified, and restores
+     * the progress of the quantification afterwards.
+     *
+     * @param levelListener the listener
+     * @param level the level
+     * @param nMatches the number of matches to quantify
+     * @param nQuantified the number of matches quantified
+     * @param waitingHandler the waiting handler, can be null
+     *
+     * @return a boolean indicating whether the process should continue,
+     * false if canceled
+     *
+     * @throws java.sql.SQLException exception thrown whenever an error
+     * occurred while interacting with the database
+     * @throws java.io.IOException exception thrown whenever an error occurred
+     * while interacting with a file
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserializing an object
+     * @throws InterruptedException exception thrown if a thread was
+     * interrupted
+     */
+    private static boolean notifyListener(
+            LevelListener levelListener,
+            Level level,
+            int nMatches,
+            int nQuantified,
+            WaitingHandler waitingHandler
+    ) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+
+        levelListener.levelQuantified(level);
+
+        if (waitingHandler == null) {
+            return true;
+        }
+
+        if (waitingHandler.isRunCanceled()) {
+            return false;
+        }
+
+        waitingHandler.setWaitingText(WAITING_TEXT);
+        waitingHandler.resetSecondaryProgressCounter();
+        waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+        waitingHandler.setMaxSecondaryProgressCounter(nMatches);
+        waitingHandler.setSecondaryProgressCounter(nQuantified);
+
+        return true;
+    }
+
+    /**
+     * Processes the indexes from 0 to n in parallel on the given pool.
+     *
+     * @param pool the pool
+     * @param n the number of indexes to process
+     * @param waitingHandler the waiting handler, can be null
+     * @param task the task to run for every index
+     *
+     * @return a boolean indicating whether all indexes were processed, false
+     * if the process was canceled
+     *
+     * @throws InterruptedException exception thrown if a thread was
+     * interrupted
+     */
+    private static boolean process(
+            ForkJoinPool pool,
+            int n,
+            WaitingHandler waitingHandler,
+            IntConsumer task
+    ) throws InterruptedException {
+
+        try {
+
+            pool.submit(() -> IntStream.range(0, n)
+                    .parallel()
+                    .forEach(i -> {
+
+                        if (waitingHandler == null || !waitingHandler.isRunCanceled()) {
+
+                            task.accept(i);
+
+                            if (waitingHandler != null) {
+                                waitingHandler.increaseSecondaryProgressCounter();
+                            }
+                        }
+                    })
+            ).get();
+
+        } catch (ExecutionException e) {
+
+            throw getUncheckedCause(e);
+
+        }
+
+        return waitingHandler == null || !waitingHandler.isRunCanceled();
+    }
+
+    /**
+     * Returns the cause of an exception thrown by a task as unchecked
+     * exception.
+     *
+     * @param e the exception thrown by the task
+     *
+     * @return the cause as unchecked exception
+     */
+    private static RuntimeException getUncheckedCause(ExecutionException e) {
+
+        Throwable cause = e.getCause();
+
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+
+        return new RuntimeException(cause);
+    }
+
+    /**
+     * Returns the keys of the matches of the given level in ascending order,
+     * the order in which the matches are processed.
+     *
+     * @param identification the identification
+     * @param level the level
+     *
+     * @return the sorted keys
+     */
+    public static long[] getSortedKeys(Identification identification, Level level) {
+
+        long[] keys;
+
+        switch (level) {
+
+            case psm:
+                keys = identification.getSpectrumIdentification().values().stream()
+                        .flatMap(HashSet::stream)
+                        .mapToLong(Long::longValue)
+                        .toArray();
+                break;
+
+            case peptide:
+                keys = identification.getPeptideIdentification().stream()
+                        .mapToLong(Long::longValue)
+                        .toArray();
+                break;
+
+            case protein:
+                keys = identification.getProteinIdentification().stream()
+                        .mapToLong(Long::longValue)
+                        .toArray();
+                break;
+
+            default:
+                throw new UnsupportedOperationException("Level " + level + " not implemented.");
+        }
+
+        Arrays.sort(keys);
+
+        return keys;
+    }
+}
@@ -0,0 +1,474 @@
+package eu.isas.reporter.calculation;
+
+import com.compomics.util.db.object.DbObject;
+import com.compomics.util.experiment.normalization.NormalizationFactors;
+import com.compomics.util.experiment.personalization.ExperimentObject;
+import com.compomics.util.experiment.quantification.Quantification;
+import com.compomics.util.experiment.quantification.reporterion.ReporterIonQuantification;
+import com.compomics.util.experiment.quantification.reporterion.ReporterMethod;
+import eu.isas.reporter.quantificationdetails.ChannelLayout;
+import eu.isas.reporter.quantificationdetails.PeptideQuantificationDetails;
+import eu.isas.reporter.quantificationdetails.ProteinQuantificationDetails;
+import eu.isas.reporter.quantificationdetails.PsmQuantificationDetails;
+import eu.isas.reporter.settings.ReporterSettings;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The quantification results of a project as saved in the psdb file: the
+ * settings used, the raw ratios of the PSMs, peptides and proteins, and the
+ * normalization factors. The ratios are stored in primitive arrays, one row of
+ * channels per match in the order of the sorted match keys, and can only be
+ * reused when the fingerprint of the settings matches the current one.
+ *
+ * @author Marc Vaudel
+ */
+public class QuantificationResults extends DbObject {
+
+    /**
+     * The key of the object in the database.
+     */
+    public static final long KEY = ExperimentObject.asLong("Reporter_quantification_results");
+    /**
+     * The fingerprint of the settings used to compute the results.
+     */
+    private long fingerprint;
+    /**
+     * The reporter settings.
+     */
+    private ReporterSettings reporterSettings;
+    /**
+     * The reporter method.
+     */
+    private ReporterMethod reporterMethod;
+    /**
+     * The name of the sample of every sample index.
+     */
+    private HashMap<String, String> sampleNames;
+    /**
+     * The control samples.
+     */
+    private ArrayList<String> controlSamples;
+    /**
+     * The number of channels.
+     */
+    private int nChannels;
+    /**
+     * The sorted keys of the PSMs.
+     */
+    private long[] psmKeys = new long[0];
+    /**
+     * The raw ratios of the PSMs.
+     */
+    private double[] psmRatios = new double[0];
+    /**
+     * The sorted keys of the peptides.
+     */
+    private long[] peptideKeys = new long[0];
+    /**
+     * The raw ratios of the peptides.
+     */
+    private double[] peptideRatios = new double[0];
+    /**
+     * The sorted keys of the proteins.
+     */
+    private long[] proteinKeys = new long[0];
+    /**
+     * The raw ratios of the proteins.
+     */
+    private double[] proteinRatios = new double[0];
+    /**
+     * The raw ratios of the proteins using unique peptides only.
+     */
+    private double[] proteinUniqueRatios = new double[0];
+    /**
+     * The raw ratios of the proteins using shared peptides only.
+     */
+    private double[] proteinSharedRatios = new double[0];
+    /**
+     * The PSM normalization factors, null if not set.
+     */
+    private double[] psmNormalizationFactors = null;
+    /**
+     * The peptide normalization factors, null if not set.
+     */
+    private double[] peptideNormalizationFactors = null;
+    /**
+     * The protein normalization factors, null if not set.
+     */
+    private double[] proteinNormalizationFactors = null;
+
+    /**
+     * Constructor for serialization.
+     */
+    public QuantificationResults() {
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param fingerprint the fingerprint of the settings used to compute the
+     * results
+     * @param reporterSettings the reporter settings
+     * @param reporterIonQuantification the reporter ion quantification
+     * @param channelLayout the layout of the channels
+     */
+    public QuantificationResults(
+            long fingerprint,
+            ReporterSettings reporterSettings,
+            ReporterIonQuantification reporterIonQuantification,
+            ChannelLayout channelLayout
+    ) {
+
+        this.fingerprint = fingerprint;
+        this.reporterSettings = reporterSettings;
+        this.reporterMethod = reporterIonQuantification.getReporterMethod();
+        this.nChannels = channelLayout.size();
+
+        sampleNames = new HashMap<>(nChannels);
+
+        for (String sampleIndex : reporterIonQuantification.getSampleIndexes()) {
+            sampleNames.put(sampleIndex, reporterIonQuantification.getSample(sampleIndex));
+        }
+
+        ArrayList<String> controls = reporterIonQuantification.getControlSamples();
+        controlSamples = controls == null ? null : new ArrayList<>(controls);
+
+        NormalizationFactors normalizationFactors = reporterIonQuantification.getNormalizationFactors();
+
+        psmNormalizationFactors = channelLayout.getPsmNormalizationFactors(normalizationFactors);
+        peptideNormalizationFactors = channelLayout.getPeptideNormalizationFactors(normalizationFactors);
+        proteinNormalizationFactors = channelLayout.getProteinNormalizationFactors(normalizationFactors);
+    }
+
+    /**
+     * Returns the fingerprint of the settings used to compute the results.
+     *
+     * @return the fingerprint of the settings used to compute the results
+     */
+    public long getFingerprint() {
+        readDBMode();
+        return fingerprint;
+    }
+
+    /**
+     * Returns the reporter settings used to compute the results.
+     *
+     * @return the reporter settings used to compute the results
+     */
+    public ReporterSettings getReporterSettings() {
+        readDBMode();
+        return reporterSettings;
+    }
+
+    /**
+     * Returns a new reporter ion quantification with the method, samples and
+     * control samples used to compute the results. The normalization factors
+     * are not set.
+     *
+     * @return a new reporter ion quantification
+     */
+    public ReporterIonQuantification getReporterIonQuantification() {
+
+        readDBMode();
+
+        ReporterIonQuantification reporterIonQuantification = new ReporterIonQuantification(Quantification.QuantificationMethod.REPORTER_IONS);
+
+        for (String sampleIndex : sampleNames.keySet()) {
+            reporterIonQuantification.assignSample(sampleIndex, sampleNames.get(sampleIndex));
+        }
+
+        reporterIonQuantification.setMethod(reporterMethod);
+
+        if (controlSamples != null) {
+            reporterIonQuantification.setControlSamples(new ArrayList<>(controlSamples));
+        }
+
+        return reporterIonQuantification;
+    }
+
+    /**
+     * Sets the raw ratios of the PSMs.
+     *
+     * @param keys the keys of the PSMs
+     * @param details the quantification details of the PSMs
+     */
+    public void setPsmQuantificationDetails(long[] keys, PsmQuantificationDetails[] details) {
+
+        writeDBMode();
+
+        int[] order = getOrder(keys);
+        psmKeys = new long[keys.length];
+        psmRatios = new double[keys.length * nChannels];
+
+        for (int i = 0; i < order.length; i++) {
+
+            psmKeys[i] = keys[order[i]];
+            PsmQuantificationDetails matchDetails = details[order[i]];
+
+            for (int channel = 0; channel < nChannels; channel++) {
+                psmRatios[i * nChannels + channel] = matchDetails.getRawRatio(channel);
+            }
+        }
+    }
+
+    /**
+     * Sets the raw ratios of the peptides.
+     *
+     * @param keys the keys of the peptides
+     * @param details the quantification details of the peptides
+     */
+    public void setPeptideQuantificationDetails(long[] keys, PeptideQuantificationDetails[] details) {
+
+        writeDBMode();
+
+        int[] order = getOrder(keys);
+        peptideKeys = new long[keys.length];
+        peptideRatios = new double[keys.length * nChannels];
+
+        for (int i = 0; i < order.length; i++) {
+
+            peptideKeys[i] = keys[order[i]];
+            PeptideQuantificationDetails matchDetails = details[order[i]];
+
+            for (int channel = 0; channel < nChannels; channel++) {
+                peptideRatios[i * nChannels + channel] = matchDetails.getRawRatio(channel);
+            }
+        }
+    }
+
+    /**
+     * Sets the raw ratios of the proteins.
+     *
+     * @param keys the keys of the proteins
+     * @param details the quantification details of the proteins
+     */
+    public void setProteinQuantificationDetails(long[] keys, ProteinQuantificationDetails[] details) {
+
+        writeDBMode();
+
+        int[] order = getOrder(keys);
+        proteinKeys = new long[keys.length];
+        proteinRatios = new double[keys.length * nChannels];
+        proteinUniqueRatios = new double[keys.length * nChannels];
+        proteinSharedRatios = new double[keys.length * nChannels];
+
+        for (int i = 0; i < order.length; i++) {
+
+            proteinKeys[i] = keys[order[i]];
+            ProteinQuantificationDetails matchDetails = details[order[i]];
+
+            for (int channel = 0; channel < nChannels; channel++) {
+
+                int index = i * nChannels + channel;
+                proteinRatios[index] = matchDetails.getRawRatio(channel);
+                proteinUniqueRatios[index] = matchDetails.getUniqueRawRatio(channel);
+                proteinSharedRatios[index] = matchDetails.getSharedRawRatio(channel);
+
+            }
+        }
+    }
+
+    /**
+     * Returns the keys of the PSMs in ascending order.
+     *
+     * @return the keys of the PSMs in ascending order
+     */
+    public long[] getPsmKeys() {
+        readDBMode();
+        return psmKeys;
+    }
+
+    /**
+     * Returns the keys of the peptides in ascending order.
+     *
+     * @return the keys of the peptides in ascending order
+     */
+    public long[] getPeptideKeys() {
+        readDBMode();
+        return peptideKeys;
+    }
+
+    /**
+     * Returns the keys of the proteins in ascending order.
+     *
+     * @return the keys of the proteins in ascending order
+     */
+    public long[] getProteinKeys() {
+        readDBMode();
+        return proteinKeys;
+    }
+
+    /**
+     * Returns a boolean indicating whether the results contain the
+     * quantification details of exactly the given matches of a level.
+     *
+     * @param level the level of the matches
+     * @param sortedKeys the keys of the matches in ascending order
+     *
+     * @return a boolean indicating whether the results contain the
+     * quantification details of the given matches
+     */
+    public boolean hasQuantificationDetails(QuantificationPipeline.Level level, long[] sortedKeys) {
+
+        readDBMode();
+
+        switch (level) {
+
+            case psm:
+                return Arrays.equals(psmKeys, sortedKeys);
+
+            case peptide:
+                return Arrays.equals(peptideKeys, sortedKeys);
+
+            case protein:
+                return Arrays.equals(proteinKeys, sortedKeys);
+
+            default:
+                throw new UnsupportedOperationException("Level " + level + " not implemented.");
+        }
+    }
+
+    /**
+     * Returns the quantification details of a PSM, null if not saved.
+     *
+     * @param matchKey the key of the PSM
+     * @param channelLayout the layout of the channels
+     *
+     * @return the quantification details of the PSM
+     */
+    public PsmQuantificationDetails getPsmQuantificationDetails(long matchKey, ChannelLayout channelLayout) {
+
+        readDBMode();
+
+        int i = Arrays.binarySearch(psmKeys, matchKey);
+
+        if (i < 0) {
+            return null;
+        }
+
+        PsmQuantificationDetails result = new PsmQuantificationDetails(channelLayout);
+
+        for (int channel = 0; channel < nChannels; channel++) {
+            result.setRawRatio(channel, psmRatios[i * nChannels + channel]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the quantification details of a peptide, null if not saved.
+     *
+     * @param matchKey the key of the peptide
+     * @param channelLayout the layout of the channels
+     *
+     * @return the quantification details of the peptide
+     */
+    public PeptideQuantificationDetails getPeptideQuantificationDetails(long matchKey, ChannelLayout channelLayout) {
+
+        readDBMode();
+
+        int i = Arrays.binarySearch(peptideKeys, matchKey);
+
+        if (i < 0) {
+            return null;
+        }
+
+        PeptideQuantificationDetails result = new PeptideQuantificationDetails(channelLayout);
+
+        for (int channel = 0; channel < nChannels; channel++) {
+            result.setRawRatio(channel, peptideRatios[i * nChannels + channel]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the quantification details of a protein, null if not saved.
+     *
+     * @param matchKey the key of the protein
+     * @param channelLayout the layout of the channels
+     *
+     * @return the quantification details of the protein
+     */
+    public ProteinQuantificationDetails getProteinQuantificationDetails(long matchKey, ChannelLayout channelLayout) {
+
+        readDBMode();
+
+        int i = Arrays.binarySearch(proteinKeys, matchKey);
+
+        if (i < 0) {
+            return null;
+        }
+
+        ProteinQuantificationDetails result = new ProteinQuantificationDetails(channelLayout);
+
+        for (int channel = 0; channel < nChannels; channel++) {
+
+            int index = i * nChannels + channel;
+            result.setRawRatio(channel, proteinRatios[index]);
+            result.setUniqueRawRatio(channel, proteinUniqueRatios[index]);
+            result.setSharedRawRatio(channel, proteinSharedRatios[index]);
+
+        }
+
+        return result;
+    }
+
+    /**
+     * Adds the saved normalization factors to the given normalization factors
+     * for the levels where these are not set already.
+     *
+     * @param normalizationFactors the normalization factors to complete
+     * @param channelLayout the layout of the channels
+     */
+    public void setNormalizationFactors(NormalizationFactors normalizationFactors, ChannelLayout channelLayout) {
+
+        readDBMode();
+
+        if (psmNormalizationFactors != null && !normalizationFactors.hasPsmNormalisationFactors()) {
+            for (int channel = 0; channel < nChannels; channel++) {
+                normalizationFactors.addPsmNormalisationFactor(channelLayout.getReagentName(channel), psmNormalizationFactors[channel]);
+            }
+        }
+
+        if (peptideNormalizationFactors != null && !normalizationFactors.hasPeptideNormalisationFactors()) {
+            for (int channel = 0; channel < nChannels; channel++) {
+                normalizationFactors.addPeptideNormalisationFactor(channelLayout.getReagentName(channel), peptideNormalizationFactors[channel]);
+            }
+        }
+
+        if (proteinNormalizationFactors != null && !normalizationFactors.hasProteinNormalisationFactors()) {
+            for (int channel = 0; channel < nChannels; channel++) {
+                normalizationFactors.addProteinNormalisationFactor(channelLayout.getReagentName(channel), proteinNormalizationFactors[channel]);
+            }
+        }
+    }
+
+    /**
+     * Returns the indexes of the given keys sorted by key.
+     *
+     * @param keys the keys
+     *
+     * @return the indexes of the given keys sorted by key
+     */
+    private static int[] getOrder(long[] keys) {
+
+        Integer[] order = new Integer[keys.length];
+
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = i;
+        }
+
+        Arrays.sort(order, (i, j) -> Long.compare(keys[i], keys[j]));
+
+        int[] result = new int[keys.length];
+
+        for (int i = 0; i < keys.length; i++) {
+            result[i] = order[i];
+        }
+
+        return result;
+    }
+}
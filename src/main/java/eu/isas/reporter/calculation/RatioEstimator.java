@@ -3,7 +3,7 @@ package eu.isas.reporter.calculation;
 import com.compomics.util.math.BasicMathFunctions;
 import eu.isas.reporter.settings.RatioEstimationSettings;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import org.apache.commons.math.util.FastMath;
 
 /**
@@ -14,6 +14,12 @@ import org.apache.commons.math.util.FastMath;
  */
 public class RatioEstimator {
 
+    /**
+     * The tolerance under which the integrals of two candidate ratios are
+     * considered tied, relative to the number of ratios times the window.
+     */
+    public static final double TIE_TOLERANCE = 1e-9;
+
     /**
      * Estimate the ratio resulting from the compilation of several ratios.
      *
@@ -26,60 +32,89 @@ public class RatioEstimator {
         if (ratios == null || ratios.isEmpty()) {
             return 0.0;
         }
-        if (ratios.size() < 6) {
-            return BasicMathFunctions.median(ratios);
+        double[] values = new double[ratios.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = ratios.get(i);
+        }
+        return estimateRatios(ratioEstimationSettings, values, values.length);
+    }
+
+    /**
+     * Estimate the ratio resulting from the compilation of several ratios.
+     * Only the first length values of the array are used. Note that these
+     * values are sorted in place.
+     *
+     * @param ratioEstimationSettings the ratio estimation settings
+     * @param ratios The input ratios
+     * @param length the number of ratios to use
+     * @return the resulting ratio
+     */
+    public static double estimateRatios(RatioEstimationSettings ratioEstimationSettings, double[] ratios, int length) {
+
+        if (ratios == null || length == 0) {
+            return 0.0;
+        }
+        Arrays.sort(ratios, 0, length);
+        if (length < 6) {
+            return medianOfSorted(ratios, length);
         }
-        Collections.sort(ratios);
         int nZeros = 0;
-        Double ratioMin = null, ratioMax = null;
-        for (double ratio : ratios) {
-            if (ratio == 0) {
-                nZeros++;
-            } else {
-                if (ratioMin == null || ratioMin > ratio) {
-                    ratioMin = ratio;
-                }
-                if (ratioMax == null || ratioMax < ratio) {
-                    ratioMax = ratio;
-                }
-            }
+        while (nZeros < length && ratios[nZeros] == 0) {
+            nZeros++;
         }
-        if (nZeros == ratios.size()) {
+        if (nZeros == length) {
             return 0.0;
         }
-        if (ratioMin.equals(ratioMax)) {
+        double ratioMin = ratios[nZeros];
+        double ratioMax = ratios[length - 1];
+        if (ratioMin == ratioMax) {
             return ratioMin;
         }
-        int nLeft = ratios.size() - 2 * nZeros;
+        int nLeft = length - 2 * nZeros;
         if (nLeft < 6) {
-            return BasicMathFunctions.median(ratios);
+            return medianOfSorted(ratios, length);
         }
         double[] logRatios = new double[nLeft];
-        int index = nZeros;
-        ratioMin = null;
-        ratioMax = null;
-        for (int i = 0; i < nLeft; i++, index++) {
-            double ratio = ratios.get(index);
-            double logRatio = FastMath.log10(ratio);
-            if (ratioMin == null || logRatio < ratioMin) {
-                ratioMin = logRatio;
-            }
-            if (ratioMax == null || logRatio > ratioMax) {
-                ratioMax = logRatio;
-            }
-            logRatios[i] = logRatio;
+        for (int i = 0, index = nZeros; i < nLeft; i++, index++) {
+            logRatios[i] = FastMath.log10(ratios[index]);
         }
-        if (ratioMax - ratioMin <= ratioEstimationSettings.getRatioResolution()) {
-            return BasicMathFunctions.median(ratios);
+        if (logRatios[nLeft - 1] - logRatios[0] <= ratioEstimationSettings.getRatioResolution()) {
+            return medianOfSorted(ratios, length);
         }
         double logResult = mEstimate(ratioEstimationSettings, logRatios);
         double result = FastMath.pow(10, logResult);
         return result;
     }
 
+    /**
+     * Returns the median of the first length values of a sorted array.
+     *
+     * @param sortedValues the sorted values
+     * @param length the number of values to use
+     *
+     * @return the median
+     */
+    private static double medianOfSorted(double[] sortedValues, int length) {
+        if (length % 2 == 1) {
+            return sortedValues[length / 2];
+        }
+        return (sortedValues[length / 2 - 1] + sortedValues[length / 2]) / 2;
+    }
+
     /**
      * Returns the compilation of various ratios using a redescending
-     * M-estimator.
+     * M-estimator. The candidate centers are the same as in
+     * mEstimateReference, and the ratios falling in the window of every
+     * candidate are found by sliding two pointers along the sorted ratios.
+     * The biweight term (r - r0)(1 - ((r - r0) / w)^2)^2 is a polynomial of
+     * degree 5 in r, its sum over a window is therefore obtained in constant
+     * time from prefix sums of the powers 0 to 5 of the ratios, centered to
+     * limit the loss of precision. Integrals within TIE_TOLERANCE times the
+     * number of ratios times the window of the smallest integral are
+     * considered tied and their candidates averaged. The cost is hence
+     * n log(n) for the sort plus the number of candidates. The result
+     * matches the one of mEstimateReference on sorted ratios up to the
+     * rounding of the integrals. Unsorted ratios are sorted in a copy first.
      *
      * @param ratioEstimationSettings the ratio estimation settings
      * @param ratios various imput ratios
@@ -102,6 +137,159 @@ public class RatioEstimator {
             return BasicMathFunctions.median(ratios);
         }
 
+        double[] sortedRatios = ratios;
+        for (int i = 1; i < ratios.length; i++) {
+            if (ratios[i] < ratios[i - 1]) {
+                sortedRatios = Arrays.copyOf(ratios, ratios.length);
+                Arrays.sort(sortedRatios);
+                break;
+            }
+        }
+
+        int nRatiosTotal = sortedRatios.length;
+        double step = Math.min(0.01 * window, resolution);
+
+        // The candidates are increasing, the window bounds therefore only
+        // move forward.
+        int nCandidates = 0;
+        double[] candidates = new double[64];
+        int[] windowStarts = new int[64];
+        int[] windowEnds = new int[64];
+        int nRatiosMax = 0;
+        int windowStart = 0, windowEnd = 0;
+        double lastTest = sortedRatios[0] - halfWindow;
+        for (double ratioRef : sortedRatios) {
+            if (ratioRef + halfWindow > lastTest) {
+                double start = Math.max(lastTest, ratioRef - halfWindow);
+                lastTest = ratioRef + halfWindow;
+                for (double r0 = start; r0 <= lastTest; r0 += step) {
+                    while (windowStart < nRatiosTotal && sortedRatios[windowStart] - r0 < -halfWindow) {
+                        windowStart++;
+                    }
+                    while (windowEnd < nRatiosTotal && sortedRatios[windowEnd] - r0 <= halfWindow) {
+                        windowEnd++;
+                    }
+                    if (nCandidates == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, 2 * nCandidates);
+                        windowStarts = Arrays.copyOf(windowStarts, 2 * nCandidates);
+                        windowEnds = Arrays.copyOf(windowEnds, 2 * nCandidates);
+                    }
+                    candidates[nCandidates] = r0;
+                    windowStarts[nCandidates] = windowStart;
+                    windowEnds[nCandidates] = windowEnd;
+                    nCandidates++;
+                    nRatiosMax = Math.max(nRatiosMax, windowEnd - windowStart);
+                }
+            }
+        }
+
+        // prefix sums of the powers of the centered ratios
+        double center = (sortedRatios[0] + sortedRatios[nRatiosTotal - 1]) / 2;
+        int rowLength = nRatiosTotal + 1;
+        double[] prefixSums = new double[6 * rowLength];
+        for (int i = 0; i < nRatiosTotal; i++) {
+            double x = sortedRatios[i] - center;
+            double power = 1;
+            for (int exponent = 0; exponent < 6; exponent++) {
+                int index = exponent * rowLength + i;
+                prefixSums[index + 1] = prefixSums[index] + power;
+                power *= x;
+            }
+        }
+
+        double[] integrals = new double[nCandidates];
+        double bestIntegral = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < nCandidates; i++) {
+            if (windowEnds[i] - windowStarts[i] > 0.9 * nRatiosMax) {
+                integrals[i] = Math.abs(getIntegral(prefixSums, rowLength, windowStarts[i], windowEnds[i], candidates[i] - center, window));
+                bestIntegral = Math.min(bestIntegral, integrals[i]);
+            } else {
+                integrals[i] = Double.NaN;
+            }
+        }
+
+        if (bestIntegral == Double.POSITIVE_INFINITY) {
+            throw new IllegalArgumentException("Best ratio not found for the given set of ratios.");
+        }
+
+        double tieLimit = bestIntegral + TIE_TOLERANCE * nRatiosMax * window;
+        double bestRatiosSum = 0;
+        int nBestRatios = 0;
+        for (int i = 0; i < nCandidates; i++) {
+            if (integrals[i] <= tieLimit) {
+                bestRatiosSum += candidates[i];
+                nBestRatios++;
+            }
+        }
+        if (nBestRatios == 1) {
+            return bestRatiosSum;
+        } else {
+            return bestRatiosSum / nBestRatios;
+        }
+    }
+
+    /**
+     * Returns the sum of the biweight terms (r - r0)(1 - ((r - r0) / w)^2)^2
+     * over the ratios of a window, using the prefix sums of the powers of the
+     * centered ratios.
+     *
+     * @param prefixSums the prefix sums of the powers 0 to 5 of the centered
+     * ratios, one row per power
+     * @param rowLength the length of a row of prefix sums
+     * @param windowStart the index of the first ratio of the window
+     * @param windowEnd the index after the last ratio of the window
+     * @param x0 the centered candidate
+     * @param window the window w
+     *
+     * @return the sum of the biweight terms
+     */
+    private static double getIntegral(double[] prefixSums, int rowLength, int windowStart, int windowEnd, double x0, double window) {
+
+        double p0 = prefixSums[windowEnd] - prefixSums[windowStart];
+        double p1 = prefixSums[rowLength + windowEnd] - prefixSums[rowLength + windowStart];
+        double p2 = prefixSums[2 * rowLength + windowEnd] - prefixSums[2 * rowLength + windowStart];
+        double p3 = prefixSums[3 * rowLength + windowEnd] - prefixSums[3 * rowLength + windowStart];
+        double p4 = prefixSums[4 * rowLength + windowEnd] - prefixSums[4 * rowLength + windowStart];
+        double p5 = prefixSums[5 * rowLength + windowEnd] - prefixSums[5 * rowLength + windowStart];
+
+        // sums of the powers of d = x - x0 from the binomial expansion
+        double a = -x0;
+        double a2 = a * a;
+        double a3 = a2 * a;
+        double s1 = p1 + a * p0;
+        double s3 = p3 + 3 * a * p2 + 3 * a2 * p1 + a3 * p0;
+        double s5 = p5 + 5 * a * p4 + 10 * a2 * p3 + 10 * a3 * p2 + 5 * a3 * a * p1 + a3 * a2 * p0;
+        double window2 = window * window;
+
+        return s1 - 2 * s3 / window2 + s5 / (window2 * window2);
+    }
+
+    /**
+     * Returns the compilation of various ratios using a redescending
+     * M-estimator. Reference implementation scanning all ratios for every
+     * candidate center, mEstimate should be preferred.
+     *
+     * @param ratioEstimationSettings the ratio estimation settings
+     * @param ratios various imput ratios
+     *
+     * @return the resulting ratio
+     */
+    public static Double mEstimateReference(RatioEstimationSettings ratioEstimationSettings, double[] ratios) {
+
+        double complement = (100 - ratioEstimationSettings.getPercentile()) / 200;
+        if (complement < 0 || complement > 100) {
+            throw new IllegalArgumentException("Incorrect complement window size of " + complement + ".");
+        }
+        double percentileLow = BasicMathFunctions.percentile(ratios, complement);
+        double percentileHigh = BasicMathFunctions.percentile(ratios, 1 - complement);
+        double window = percentileHigh - percentileLow;
+        double halfWindow = window / 2;
+        double resolution = ratioEstimationSettings.getRatioResolution();
+
+        if (window == 0) {
+            return BasicMathFunctions.median(ratios);
+        }
+
         // Check how many ratios we can get in the window
         double lastTest = ratios[0] - halfWindow;
         int nRatios, nRatiosMax = 0;
@@ -147,9 +335,9 @@ public class RatioEstimator {
 
                     if (nRatios > 0.9 * nRatiosMax) {
                         integral = Math.abs(integral);
-                        if (integral == bestIntegral || bestIntegral == -1) {
+                        if (integral == bestIntegral) {
                             bestRatios.add(r0);
-                        } else if (integral < bestIntegral) {
+                        } else if (integral < bestIntegral || bestIntegral == -1) {
                             bestIntegral = integral;
                             bestRatios = new ArrayList<Double>();
                             bestRatios.add(r0);
@@ -0,0 +1,591 @@
+package eu.isas.reporter.calculation;
+
+import com.compomics.util.exceptions.ExceptionHandler;
+import com.compomics.util.experiment.biology.ions.impl.ReporterIon;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import com.compomics.util.experiment.mass_spectrometry.SpectrumProvider;
+import com.compomics.util.experiment.mass_spectrometry.spectra.Spectrum;
+import com.compomics.util.experiment.quantification.reporterion.ReporterIonQuantification;
+import com.compomics.util.experiment.quantification.reporterion.ReporterMethod;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.reporter.Reporter;
+import eu.isas.reporter.quantificationdetails.ChannelLayout;
+import eu.isas.reporter.settings.ReporterIonSelectionSettings;
+import eu.isas.reporter.utils.Fnv1aHash;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extracts the reporter intensities of all spectra of a project ahead of the
+ * quantification. Every spectrum file is read sequentially once, the reporter
+ * peaks are extracted and deisotoped in parallel, and the results are written
+ * to a ReporterIntensityStore which is registered in the quantification
+ * features generator. Stores from previous runs are reused when they
+ * correspond to the same spectra and settings. The fingerprint of the spectra
+ * and settings is part of the file name, and a store is written to a
+ * temporary file which is closed and renamed once complete, so that
+ * concurrent runs do not write to the same file, before being mapped
+ * read-only. Stores of the same spectrum file with another fingerprint are
+ * deleted.
+ *
+ * @author Marc Vaudel
+ */
+public class ReporterIntensityExtractor {
+
+    /**
+     * The name of the folder where the stores are saved.
+     */
+    private static final String STORE_FOLDER = "reporter_intensities";
+    /**
+     * The extension of the store files.
+     */
+    private static final String STORE_EXTENSION = ".rep";
+    /**
+     * The number of spectra processed per task.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Extracts the reporter intensities of all spectrum files of the
+     * identification and registers the stores in the quantification features
+     * generator. If a store cannot be written, the error is passed to the
+     * exception handler and the spectra of this file are quantified on demand
+     * as before.
+     *
+     * @param identification the identification
+     * @param spectrumProvider the spectrum provider
+     * @param quantificationFeaturesGenerator the quantification features
+     * generator
+     * @param reporterIonQuantification the reporter ion quantification
+     * @param reporterIonSelectionSettings the reporter ion selection settings
+     * @param nThreads the number of threads to use
+     * @param waitingHandler the waiting handler, can be null
+     * @param exceptionHandler the handler of the exceptions
+     *
+     * @throws InterruptedException exception thrown if a thread was
+     * interrupted
+     */
+    public static void extract(
+            Identification identification,
+            SpectrumProvider spectrumProvider,
+            QuantificationFeaturesGenerator quantificationFeaturesGenerator,
+            ReporterIonQuantification reporterIonQuantification,
+            ReporterIonSelectionSettings reporterIonSelectionSettings,
+            int nThreads,
+            WaitingHandler waitingHandler,
+            ExceptionHandler exceptionHandler
+    ) throws InterruptedException {
+
+        TreeSet<String> spectrumFiles = new TreeSet<>(identification.getSpectrumIdentification().keySet());
+
+        if (waitingHandler != null) {
+            waitingHandler.setWaitingText("Extracting Reporter Ions. Please Wait...");
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.setMaxSecondaryProgressCounter(spectrumFiles.size());
+        }
+
+        for (String spectrumFile : spectrumFiles) {
+
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return;
+            }
+
+            try {
+
+                ReporterIntensityStore store = getStore(
+                        identification,
+                        spectrumProvider,
+                        quantificationFeaturesGenerator,
+                        reporterIonQuantification,
+                        reporterIonSelectionSettings,
+                        spectrumFile,
+                        nThreads,
+                        waitingHandler,
+                        exceptionHandler
+                );
+
+                if (store != null) {
+                    quantificationFeaturesGenerator.setReporterIntensityStore(spectrumFile, store);
+                }
+
+            } catch (IOException e) {
+                exceptionHandler.catchException(e);
+            }
+
+            if (waitingHandler != null) {
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+        }
+    }
+
+    /**
+     * Returns the store of the given spectrum file, extracting the reporter
+     * intensities if no valid store is found. Null if the extraction was
+     * canceled.
+     *
+     * @param identification the identification
+     * @param spectrumProvider the spectrum provider
+     * @param quantificationFeaturesGenerator the quantification features
+     * generator
+     * @param reporterIonQuantification the reporter ion quantification
+     * @param reporterIonSelectionSettings the reporter ion selection settings
+     * @param spectrumFile the name of the spectrum file
+     * @param nThreads the number of threads to use
+     * @param waitingHandler the waiting handler, can be null
+     * @param exceptionHandler the handler of the exceptions occurring when
+     * renaming the store, the store then being used from its temporary file
+     *
+     * @return the store of the given spectrum file
+     *
+     * @throws IOException exception thrown if an error occurred while reading
+     * or writing the store
+     * @throws InterruptedException exception thrown if a thread was
+     * interrupted
+     */
+    private static ReporterIntensityStore getStore(
+            Identification identification,
+            SpectrumProvider spectrumProvider,
+            QuantificationFeaturesGenerator quantificationFeaturesGenerator,
+            ReporterIonQuantification reporterIonQuantification,
+            ReporterIonSelectionSettings reporterIonSelectionSettings,
+            String spectrumFile,
+            int nThreads,
+            WaitingHandler waitingHandler,
+            ExceptionHandler exceptionHandler
+    ) throws IOException, InterruptedException {
+
+        ReporterMethod reporterMethod = reporterIonQuantification.getReporterMethod();
+        double tolerance = reporterIonSelectionSettings.getReporterIonsMzTolerance();
+        boolean mostAccurate = reporterIonSelectionSettings.isMostAccurate();
+        ChannelLayout channelLayout = quantificationFeaturesGenerator.getChannelLayout();
+        Deisotoper deisotoper = quantificationFeaturesGenerator.getDeisotoper(reporterMethod, tolerance);
+        String[] spectrumTitles = spectrumProvider.getSpectrumTitles(spectrumFile);
+        int nChannels = channelLayout.size();
+
+        long fingerprint = getFingerprint(reporterMethod, tolerance, mostAccurate, channelLayout, spectrumFile, spectrumTitles);
+        File folder = new File(Reporter.getTempFolderPath(Reporter.getJarFilePath()), STORE_FOLDER);
+        String fileName = spectrumFile + "_" + Long.toHexString(fingerprint);
+        File file = new File(folder, fileName + STORE_EXTENSION);
+
+        ReporterIntensityStore store = ReporterIntensityStore.open(file, fingerprint, spectrumTitles, nChannels);
+
+        if (store != null) {
+            deleteSupersededStores(folder, spectrumFile, file);
+            return store;
+        }
+
+        folder.mkdirs();
+        File tempFile = File.createTempFile(fileName, STORE_EXTENSION + ".tmp", folder);
+        tempFile.deleteOnExit();
+        boolean completed = false;
+
+        try {
+
+            try (ReporterIntensityStoreWriter writer = new ReporterIntensityStoreWriter(tempFile, fingerprint, spectrumTitles.length, nChannels)) {
+
+                if (!write(
+                        identification,
+                        spectrumProvider,
+                        reporterMethod,
+                        reporterIonSelectionSettings,
+                        channelLayout,
+                        deisotoper,
+                        spectrumFile,
+                        spectrumTitles,
+                        writer,
+                        nThreads,
+                        waitingHandler
+                )) {
+                    return null;
+                }
+
+                writer.complete();
+                completed = true;
+
+            }
+
+        } finally {
+
+            if (!completed) {
+                tempFile.delete();
+            }
+        }
+
+        // the writer is closed, the store can be renamed and mapped read-only
+        File storeFile = file;
+
+        try {
+
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (IOException e) {
+
+            exceptionHandler.catchException(new IOException("The reporter intensities of " + spectrumFile + " could not be saved to " + file + ", they will be extracted again in the next run.", e));
+            storeFile = tempFile;
+
+        }
+
+        deleteSupersededStores(folder, spectrumFile, file);
+
+        store = ReporterIntensityStore.open(storeFile, fingerprint, spectrumTitles, nChannels);
+
+        if (store == null) {
+            throw new IOException("The reporter intensities of " + spectrumFile + " could not be read from " + storeFile + ".");
+        }
+
+        return store;
+    }
+
+    /**
+     * Extracts the reporter intensities of the spectra of a file and writes
+     * them to the given writer. Returns false if the extraction was canceled.
+     *
+     * @param identification the identification
+     * @param spectrumProvider the spectrum provider
+     * @param reporterMethod the reporter method
+     * @param reporterIonSelectionSettings the reporter ion selection settings
+     * @param channelLayout the channel layout
+     * @param deisotoper the deisotoper
+     * @param spectrumFile the name of the spectrum file
+     * @param spectrumTitles the spectrum titles
+     * @param writer the writer of the store
+     * @param nThreads the number of threads to use
+     * @param waitingHandler the waiting handler, can be null
+     *
+     * @return a boolean indicating whether all spectra were extracted
+     *
+     * @throws IOException exception thrown if an error occurred while writing
+     * the store
+     * @throws InterruptedException exception thrown if a thread was
+     * interrupted
+     */
+    private static boolean write(
+            Identification identification,
+            SpectrumProvider spectrumProvider,
+            ReporterMethod reporterMethod,
+            ReporterIonSelectionSettings reporterIonSelectionSettings,
+            ChannelLayout channelLayout,
+            Deisotoper deisotoper,
+            String spectrumFile,
+            String[] spectrumTitles,
+            ReporterIntensityStoreWriter writer,
+            int nThreads,
+            WaitingHandler waitingHandler
+    ) throws IOException, InterruptedException {
+
+        boolean mostAccurate = reporterIonSelectionSettings.isMostAccurate();
+        int nChannels = channelLayout.size();
+
+        // when only the identified spectra are used, the others are not extracted
+        HashSet<Long> identifiedSpectra = null;
+
+        if (reporterIonSelectionSettings.isSameSpectra()) {
+            identifiedSpectra = identification.getSpectrumIdentification().get(spectrumFile);
+        }
+
+        int[] channelTargets = new int[nChannels];
+        double[] channelMzs = new double[nChannels];
+
+        for (int channel = 0; channel < nChannels; channel++) {
+
+            String reagentName = channelLayout.getReagentName(channel);
+            channelTargets[channel] = deisotoper.getReporterIonTarget(reagentName);
+
+            if (channelTargets[channel] != -1) {
+
+                ReporterIon reporterIon = reporterMethod.getReporterIon(reagentName);
+                channelMzs[channel] = reporterIon.getTheoreticMz(1);
+
+            }
+        }
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                nThreads,
+                nThreads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(2 * nThreads),
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+        ArrayList<Future<?>> futures = new ArrayList<>();
+
+        Spectrum[] batchSpectra = new Spectrum[BATCH_SIZE];
+        int[] batchIndexes = new int[BATCH_SIZE];
+        int batchSize = 0;
+
+        // read the spectra in the file order and process them by batch
+        for (int i = 0; i < spectrumTitles.length; i++) {
+
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                pool.shutdownNow();
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+                return false;
+            }
+
+            String spectrumTitle = spectrumTitles[i];
+
+            // records not written are not extracted
+            if (identifiedSpectra != null && !identifiedSpectra.contains(SpectrumMatch.getKey(spectrumFile, spectrumTitle))) {
+                continue;
+            }
+
+            batchSpectra[batchSize] = spectrumProvider.getSpectrum(spectrumFile, spectrumTitle);
+            batchIndexes[batchSize] = i;
+            batchSize++;
+
+            if (batchSize == BATCH_SIZE) {
+
+                futures.add(pool.submit(new ExtractionRunnable(
+                        batchSpectra,
+                        batchIndexes,
+                        batchSize,
+                        writer,
+                        deisotoper,
+                        channelTargets,
+                        channelMzs,
+                        mostAccurate
+                )));
+
+                batchSpectra = new Spectrum[BATCH_SIZE];
+                batchIndexes = new int[BATCH_SIZE];
+                batchSize = 0;
+
+            }
+        }
+
+        if (batchSize > 0) {
+            futures.add(pool.submit(new ExtractionRunnable(
+                    batchSpectra,
+                    batchIndexes,
+                    batchSize,
+                    writer,
+                    deisotoper,
+                    channelTargets,
+                    channelMzs,
+                    mostAccurate
+            )));
+        }
+
+        pool.shutdown();
+
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Reporter ion extraction timed out. Please contact the developers.");
+        }
+
+        for (Future<?> future : futures) {
+
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IOException("An error occurred while extracting the reporter ions of " + spectrumFile + ".", e.getCause());
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Deletes the stores of the given spectrum file other than the current
+     * one, i.e. the stores obtained with other spectra or settings. Stores
+     * which cannot be deleted, for example because another process has them
+     * mapped, are left for a later run.
+     *
+     * @param folder the folder of the stores
+     * @param spectrumFile the name of the spectrum file
+     * @param currentFile the file of the current store
+     */
+    public static void deleteSupersededStores(File folder, String spectrumFile, File currentFile) {
+
+        String prefix = spectrumFile + "_";
+        File[] files = folder.listFiles((directory, name) -> name.startsWith(prefix)
+                && name.endsWith(STORE_EXTENSION)
+                && name.substring(prefix.length(), name.length() - STORE_EXTENSION.length()).matches("[0-9a-f]{1,16}"));
+
+        if (files != null) {
+
+            for (File file : files) {
+
+                if (!file.getName().equals(currentFile.getName())) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the fingerprint of an extraction.
+     *
+     * @param reporterMethod the reporter method
+     * @param tolerance the reporter ion m/z tolerance
+     * @param mostAccurate boolean indicating whether the most accurate peak is
+     * selected
+     * @param channelLayout the channel layout
+     * @param spectrumFile the name of the spectrum file
+     * @param spectrumTitles the spectrum titles
+     *
+     * @return the fingerprint of an extraction
+     */
+    private static long getFingerprint(
+            ReporterMethod reporterMethod,
+            double tolerance,
+            boolean mostAccurate,
+            ChannelLayout channelLayout,
+            String spectrumFile,
+            String[] spectrumTitles
+    ) {
+
+        long hash = Fnv1aHash.hash(Deisotoper.getKey(reporterMethod, tolerance));
+        hash = Fnv1aHash.hash(hash, Boolean.toString(mostAccurate));
+
+        for (int channel = 0; channel < channelLayout.size(); channel++) {
+            hash = Fnv1aHash.hash(hash, channelLayout.getReagentName(channel));
+        }
+
+        hash = Fnv1aHash.hash(hash, spectrumFile);
+
+        for (String spectrumTitle : spectrumTitles) {
+            hash = Fnv1aHash.hash(hash, spectrumTitle);
+        }
+
+        return hash;
+    }
+
+    /**
+     * Runnable extracting the reporter intensities of a batch of spectra.
+     */
+    private static class ExtractionRunnable implements Runnable {
+
+        /**
+         * The spectra of the batch.
+         */
+        private final Spectrum[] spectra;
+        /**
+         * The index of the spectra in the file.
+         */
+        private final int[] spectrumIndexes;
+        /**
+         * The number of spectra in the batch.
+         */
+        private final int nSpectra;
+        /**
+         * The writer of the store where to write the results.
+         */
+        private final ReporterIntensityStoreWriter writer;
+        /**
+         * The deisotoper.
+         */
+        private final Deisotoper deisotoper;
+        /**
+         * The target of the reporter ion of every channel in the peak
+         * extractor.
+         */
+        private final int[] channelTargets;
+        /**
+         * The theoretic m/z of the reporter ion of every channel.
+         */
+        private final double[] channelMzs;
+        /**
+         * Boolean indicating whether the most accurate peak is selected.
+         */
+        private final boolean mostAccurate;
+
+        /**
+         * Constructor.
+         *
+         * @param spectra the spectra of the batch
+         * @param spectrumIndexes the index of the spectra in the file
+         * @param nSpectra the number of spectra in the batch
+         * @param writer the writer of the store where to write the results
+         * @param deisotoper the deisotoper
+         * @param channelTargets the target of the reporter ion of every
+         * channel in the peak extractor
+         * @param channelMzs the theoretic m/z of the reporter ion of every
+         * channel
+         * @param mostAccurate boolean indicating whether the most accurate
+         * peak is selected
+         */
+        public ExtractionRunnable(
+                Spectrum[] spectra,
+                int[] spectrumIndexes,
+                int nSpectra,
+                ReporterIntensityStoreWriter writer,
+                Deisotoper deisotoper,
+                int[] channelTargets,
+                double[] channelMzs,
+                boolean mostAccurate
+        ) {
+            this.spectra = spectra;
+            this.spectrumIndexes = spectrumIndexes;
+            this.nSpectra = nSpectra;
+            this.writer = writer;
+            this.deisotoper = deisotoper;
+            this.channelTargets = channelTargets;
+            this.channelMzs = channelMzs;
+            this.mostAccurate = mostAccurate;
+        }
+
+        @Override
+        public void run() {
+
+            ReporterPeaks peaks = new ReporterPeaks();
+            float[] values = new float[3 * channelTargets.length];
+
+            for (int i = 0; i < nSpectra; i++) {
+
+                deisotoper.getPeakExtractor().extract(spectra[i], mostAccurate, peaks);
+                deisotoper.deisotope(peaks);
+
+                double[] peakMz = peaks.getMz();
+                double[] peakIntensity = peaks.getIntensity();
+                double[] deisotopedIntensity = peaks.getDeisotopedIntensity();
+
+                for (int channel = 0; channel < channelTargets.length; channel++) {
+
+                    int target = channelTargets[channel];
+                    int position = 3 * channel;
+
+                    if (target == -1) {
+
+                        values[position] = Float.NaN;
+                        values[position + 1] = Float.NaN;
+                        values[position + 2] = 0f;
+
+                    } else if (peaks.hasPeak(target)) {
+
+                        values[position] = (float) peakIntensity[target];
+                        values[position + 1] = (float) (peakMz[target] - channelMzs[channel]);
+                        values[position + 2] = (float) deisotopedIntensity[target];
+
+                    } else {
+
+                        values[position] = Float.NaN;
+                        values[position + 1] = Float.NaN;
+                        values[position + 2] = (float) deisotopedIntensity[target];
+
+                    }
+                }
+
+                try {
+                    writer.writeRecord(spectrumIndexes[i], values);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                spectra[i] = null;
+            }
+        }
+    }
+}
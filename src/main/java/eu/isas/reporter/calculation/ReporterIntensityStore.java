@@ -0,0 +1,285 @@
+package eu.isas.reporter.calculation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * Read-only memory-mapped store of the reporter intensities extracted from a
+ * spectrum file, written using a ReporterIntensityStoreWriter. The file
+ * contains a header followed by one fixed-width record per
+ * spectrum, in the order of the spectrum titles, holding a flag indicating
+ * whether the spectrum was extracted and for every channel the intensity of
+ * the reporter peak, its m/z error, and the deisotoped intensity as floats.
+ * The records are mapped in segments of at most MAX_SEGMENT_SIZE bytes so
+ * that files larger than 2 GB can be mapped.
+ *
+ * @author Marc Vaudel
+ */
+public class ReporterIntensityStore {
+
+    /**
+     * Identifier of the file format.
+     */
+    static final int MAGIC = 0x52504931;
+    /**
+     * The version of the file format.
+     */
+    static final int VERSION = 2;
+    /**
+     * The size of the header in bytes: magic, version, fingerprint, number of
+     * spectra, number of channels, completion flag, padding.
+     */
+    static final int HEADER_SIZE = 32;
+    /**
+     * The position of the completion flag in the header.
+     */
+    static final int COMPLETE_POSITION = 24;
+    /**
+     * The size of the extraction flag of a record in bytes.
+     */
+    static final int FLAG_SIZE = 4;
+    /**
+     * The number of values stored per channel.
+     */
+    static final int VALUES_PER_CHANNEL = 3;
+    /**
+     * The maximal size of a mapped segment of records in bytes.
+     */
+    public static final int MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+    /**
+     * The mapped segments of records.
+     */
+    private final MappedByteBuffer[] segments;
+    /**
+     * The number of records per segment.
+     */
+    private final int recordsPerSegment;
+    /**
+     * The number of channels.
+     */
+    private final int nChannels;
+    /**
+     * The size of a record in bytes.
+     */
+    private final int recordSize;
+    /**
+     * The index of every spectrum title.
+     */
+    private final HashMap<String, Integer> spectrumIndexes;
+
+    /**
+     * Constructor.
+     *
+     * @param fileChannel the channel of the file
+     * @param spectrumTitles the spectrum titles in the order of the records
+     * @param nChannels the number of channels
+     * @param maxSegmentSize the maximal size of a mapped segment of records
+     * in bytes
+     *
+     * @throws IOException exception thrown if an error occurred while mapping
+     * the file
+     */
+    private ReporterIntensityStore(FileChannel fileChannel, String[] spectrumTitles, int nChannels, int maxSegmentSize) throws IOException {
+
+        this.nChannels = nChannels;
+        this.recordSize = getRecordSize(nChannels);
+        recordsPerSegment = Math.max(1, maxSegmentSize / recordSize);
+
+        int nSpectra = spectrumTitles.length;
+        int nSegments = (nSpectra + recordsPerSegment - 1) / recordsPerSegment;
+        segments = new MappedByteBuffer[nSegments];
+
+        for (int segment = 0; segment < nSegments; segment++) {
+
+            int nRecords = Math.min(recordsPerSegment, nSpectra - segment * recordsPerSegment);
+            long position = HEADER_SIZE + ((long) segment) * recordsPerSegment * recordSize;
+            segments[segment] = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, ((long) nRecords) * recordSize);
+
+        }
+
+        spectrumIndexes = new HashMap<>(spectrumTitles.length);
+
+        for (int i = spectrumTitles.length - 1; i >= 0; i--) {
+            spectrumIndexes.put(spectrumTitles[i], i);
+        }
+    }
+
+    /**
+     * Opens an existing store. Returns null if the file does not exist, was
+     * not completed, or does not correspond to the given fingerprint, spectra
+     * and channels.
+     *
+     * @param file the file
+     * @param fingerprint the fingerprint of the extraction
+     * @param spectrumTitles the spectrum titles in the order of the records
+     * @param nChannels the number of channels
+     *
+     * @return the store, null if not valid
+     *
+     * @throws IOException exception thrown if an error occurred while reading
+     * the file
+     */
+    public static ReporterIntensityStore open(File file, long fingerprint, String[] spectrumTitles, int nChannels) throws IOException {
+        return open(file, fingerprint, spectrumTitles, nChannels, MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens an existing store mapping the records in segments of at most the
+     * given size.
+     *
+     * @param file the file
+     * @param fingerprint the fingerprint of the extraction
+     * @param spectrumTitles the spectrum titles in the order of the records
+     * @param nChannels the number of channels
+     * @param maxSegmentSize the maximal size of a mapped segment of records
+     * in bytes
+     *
+     * @return the store, null if not valid
+     *
+     * @throws IOException exception thrown if an error occurred while reading
+     * the file
+     */
+    public static ReporterIntensityStore open(File file, long fingerprint, String[] spectrumTitles, int nChannels, int maxSegmentSize) throws IOException {
+
+        if (!file.exists() || file.length() != getFileSize(spectrumTitles.length, nChannels)) {
+            return null;
+        }
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+
+            if (buffer.getInt(0) != MAGIC
+                    || buffer.getInt(4) != VERSION
+                    || buffer.getLong(8) != fingerprint
+                    || buffer.getInt(16) != spectrumTitles.length
+                    || buffer.getInt(20) != nChannels
+                    || buffer.getInt(COMPLETE_POSITION) != 1) {
+                return null;
+            }
+
+            return new ReporterIntensityStore(randomAccessFile.getChannel(), spectrumTitles, nChannels, maxSegmentSize);
+        }
+    }
+
+    /**
+     * Returns the index of the record of the given spectrum, -1 if not found.
+     *
+     * @param spectrumTitle the title of the spectrum
+     *
+     * @return the index of the record of the given spectrum
+     */
+    public int getSpectrumIndex(String spectrumTitle) {
+        Integer index = spectrumIndexes.get(spectrumTitle);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Indicates whether the given spectrum was extracted.
+     *
+     * @param spectrumIndex the index of the spectrum
+     *
+     * @return a boolean indicating whether the given spectrum was extracted
+     */
+    public boolean isExtracted(int spectrumIndex) {
+        return getSegment(spectrumIndex).getInt(getRecordPosition(spectrumIndex)) == 1;
+    }
+
+    /**
+     * Returns the intensity of the reporter peak, NaN if none.
+     *
+     * @param spectrumIndex the index of the spectrum
+     * @param channel the index of the channel
+     *
+     * @return the intensity of the reporter peak
+     */
+    public float getIntensity(int spectrumIndex, int channel) {
+        return getSegment(spectrumIndex).getFloat(getPosition(spectrumIndex, channel));
+    }
+
+    /**
+     * Returns the m/z error of the reporter peak, NaN if none.
+     *
+     * @param spectrumIndex the index of the spectrum
+     * @param channel the index of the channel
+     *
+     * @return the m/z error of the reporter peak
+     */
+    public float getMzError(int spectrumIndex, int channel) {
+        return getSegment(spectrumIndex).getFloat(getPosition(spectrumIndex, channel) + 4);
+    }
+
+    /**
+     * Returns the deisotoped intensity.
+     *
+     * @param spectrumIndex the index of the spectrum
+     * @param channel the index of the channel
+     *
+     * @return the deisotoped intensity
+     */
+    public float getDeisotopedIntensity(int spectrumIndex, int channel) {
+        return getSegment(spectrumIndex).getFloat(getPosition(spectrumIndex, channel) + 8);
+    }
+
+    /**
+     * Returns the mapped segment containing the record of a spectrum.
+     *
+     * @param spectrumIndex the index of the spectrum
+     *
+     * @return the mapped segment containing the record of the spectrum
+     */
+    private MappedByteBuffer getSegment(int spectrumIndex) {
+        return segments[spectrumIndex / recordsPerSegment];
+    }
+
+    /**
+     * Returns the position of the record of a spectrum in its segment.
+     *
+     * @param spectrumIndex the index of the spectrum
+     *
+     * @return the position of the record of the spectrum in its segment
+     */
+    private int getRecordPosition(int spectrumIndex) {
+        return (spectrumIndex % recordsPerSegment) * recordSize;
+    }
+
+    /**
+     * Returns the position of the values of a channel of a spectrum in its
+     * segment.
+     *
+     * @param spectrumIndex the index of the spectrum
+     * @param channel the index of the channel
+     *
+     * @return the position of the values of a channel of a spectrum
+     */
+    private int getPosition(int spectrumIndex, int channel) {
+        return getRecordPosition(spectrumIndex) + FLAG_SIZE + channel * VALUES_PER_CHANNEL * 4;
+    }
+
+    /**
+     * Returns the size of a record in bytes.
+     *
+     * @param nChannels the number of channels
+     *
+     * @return the size of a record in bytes
+     */
+    static int getRecordSize(int nChannels) {
+        return FLAG_SIZE + nChannels * VALUES_PER_CHANNEL * 4;
+    }
+
+    /**
+     * Returns the size of a file in bytes.
+     *
+     * @param nSpectra the number of spectra
+     * @param nChannels the number of channels
+     *
+     * @return the size of a file in bytes
+     */
+    static long getFileSize(int nSpectra, int nChannels) {
+        return HEADER_SIZE + ((long) nSpectra) * getRecordSize(nChannels);
+    }
+}
@@ -0,0 +1,153 @@
+package eu.isas.reporter.calculation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a ReporterIntensityStore without mapping the file, so that the file
+ * can be renamed and mapped read-only once the writer is closed. Records are
+ * written at their position in the file and records of different spectra can
+ * be written concurrently. Spectra whose record is not written are not
+ * extracted.
+ *
+ * @author Marc Vaudel
+ */
+public class ReporterIntensityStoreWriter implements Closeable {
+
+    /**
+     * The file.
+     */
+    private final RandomAccessFile randomAccessFile;
+    /**
+     * The channel of the file.
+     */
+    private final FileChannel fileChannel;
+    /**
+     * The number of channels.
+     */
+    private final int nChannels;
+    /**
+     * The size of a record in bytes.
+     */
+    private final int recordSize;
+
+    /**
+     * Constructor. Creates the file, overwriting it if it exists, and writes
+     * the header. The store must be completed using complete once all records
+     * are written.
+     *
+     * @param file the file
+     * @param fingerprint the fingerprint of the extraction
+     * @param nSpectra the number of spectra
+     * @param nChannels the number of channels
+     *
+     * @throws IOException exception thrown if an error occurred while writing
+     * the file
+     */
+    public ReporterIntensityStoreWriter(File file, long fingerprint, int nSpectra, int nChannels) throws IOException {
+
+        this.nChannels = nChannels;
+        this.recordSize = ReporterIntensityStore.getRecordSize(nChannels);
+
+        File folder = file.getParentFile();
+
+        if (folder != null && !folder.exists()) {
+            folder.mkdirs();
+        }
+
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        fileChannel = randomAccessFile.getChannel();
+
+        try {
+
+            randomAccessFile.setLength(0);
+            randomAccessFile.setLength(ReporterIntensityStore.getFileSize(nSpectra, nChannels));
+
+            ByteBuffer header = ByteBuffer.allocate(ReporterIntensityStore.HEADER_SIZE);
+            header.putInt(0, ReporterIntensityStore.MAGIC);
+            header.putInt(4, ReporterIntensityStore.VERSION);
+            header.putLong(8, fingerprint);
+            header.putInt(16, nSpectra);
+            header.putInt(20, nChannels);
+            header.putInt(ReporterIntensityStore.COMPLETE_POSITION, 0);
+            write(header, 0);
+
+        } catch (IOException e) {
+
+            randomAccessFile.close();
+            throw e;
+
+        }
+    }
+
+    /**
+     * Writes the record of an extracted spectrum.
+     *
+     * @param spectrumIndex the index of the spectrum
+     * @param values for every channel the intensity of the reporter peak, NaN
+     * if none, its m/z error, NaN if none, and the deisotoped intensity
+     *
+     * @throws IOException exception thrown if an error occurred while writing
+     * the file
+     */
+    public void writeRecord(int spectrumIndex, float[] values) throws IOException {
+
+        if (values.length != ReporterIntensityStore.VALUES_PER_CHANNEL * nChannels) {
+            throw new IllegalArgumentException(values.length + " values provided for " + nChannels + " channels.");
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(1);
+
+        for (float value : values) {
+            record.putFloat(value);
+        }
+
+        record.flip();
+        write(record, ReporterIntensityStore.HEADER_SIZE + ((long) spectrumIndex) * recordSize);
+    }
+
+    /**
+     * Writes all records to the disk, flags the store as complete, and closes
+     * the file.
+     *
+     * @throws IOException exception thrown if an error occurred while writing
+     * the file
+     */
+    public void complete() throws IOException {
+
+        fileChannel.force(false);
+
+        ByteBuffer flag = ByteBuffer.allocate(4);
+        flag.putInt(0, 1);
+        write(flag, ReporterIntensityStore.COMPLETE_POSITION);
+
+        fileChannel.force(true);
+        close();
+    }
+
+    /**
+     * Writes a buffer at the given position of the file.
+     *
+     * @param buffer the buffer
+     * @param position the position in the file
+     *
+     * @throws IOException exception thrown if an error occurred while writing
+     * the file
+     */
+    private void write(ByteBuffer buffer, long position) throws IOException {
+
+        while (buffer.hasRemaining()) {
+            position += fileChannel.write(buffer, position);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+}
@@ -0,0 +1,200 @@
+package eu.isas.reporter.calculation;
+
+import com.compomics.util.experiment.mass_spectrometry.spectra.Spectrum;
+import java.util.Arrays;
+
+/**
+ * Extracts the peaks matching a fixed set of theoretical reporter and isotope
+ * m/z in a single pass over the spectrum. The theoretical m/z are sorted once
+ * at construction, the spectrum is then binary searched for the first peak of
+ * the reporter region and walked together with the theoretical m/z.
+ *
+ * @author Marc Vaudel
+ */
+public class ReporterPeakExtractor {
+
+    /**
+     * The distinct theoretical m/z sorted in ascending order.
+     */
+    private final double[] sortedMz;
+    /**
+     * The index in sortedMz of every target.
+     */
+    private final int[] targetToSorted;
+    /**
+     * The m/z tolerance.
+     */
+    private final double tolerance;
+
+    /**
+     * Constructor.
+     *
+     * @param targetMz the theoretical m/z of the targets, in any order,
+     * duplicates are allowed
+     * @param tolerance the m/z tolerance
+     */
+    public ReporterPeakExtractor(double[] targetMz, double tolerance) {
+
+        this.tolerance = tolerance;
+
+        double[] sorted = Arrays.copyOf(targetMz, targetMz.length);
+        Arrays.sort(sorted);
+        int nDistinct = 0;
+
+        for (int i = 0; i < sorted.length; i++) {
+            if (nDistinct == 0 || sorted[i] != sorted[nDistinct - 1]) {
+                sorted[nDistinct++] = sorted[i];
+            }
+        }
+
+        sortedMz = Arrays.copyOf(sorted, nDistinct);
+        targetToSorted = new int[targetMz.length];
+
+        for (int i = 0; i < targetMz.length; i++) {
+            targetToSorted[i] = Arrays.binarySearch(sortedMz, targetMz[i]);
+        }
+    }
+
+    /**
+     * Returns the number of targets.
+     *
+     * @return the number of targets
+     */
+    public int getNTargets() {
+        return targetToSorted.length;
+    }
+
+    /**
+     * Extracts the peak matching every target. The best peak is selected as in
+     * Reporter.getBestReporterIonMatch. For targets without peak the m/z is set
+     * to NaN and the intensity to 0.
+     *
+     * @param spectrum the spectrum
+     * @param mostAccurate boolean indicating whether the most accurate peak
+     * should be selected, the most intense otherwise
+     * @param peaks the buffer where to store the m/z and intensity of the peak
+     * matching every target
+     */
+    public void extract(Spectrum spectrum, boolean mostAccurate, ReporterPeaks peaks) {
+
+        peaks.reset(targetToSorted.length, sortedMz.length);
+        int[] sortedPeaks = peaks.getSortedPeakIndexes();
+        double[] spectrumMz = spectrum.mz;
+        int nPeaks = spectrumMz.length;
+
+        if (nPeaks > 0 && sortedMz.length > 0) {
+
+            int windowStart = lowerBound(spectrumMz, sortedMz[0] - tolerance);
+
+            for (int i = 0; i < sortedMz.length && windowStart < nPeaks; i++) {
+
+                double targetMz = sortedMz[i];
+                double minMz = targetMz - tolerance;
+                double maxMz = targetMz + tolerance;
+
+                while (windowStart < nPeaks && spectrumMz[windowStart] < minMz) {
+                    windowStart++;
+                }
+
+                sortedPeaks[i] = getBestPeak(spectrum, windowStart, maxMz, targetMz, mostAccurate);
+            }
+        }
+
+        double[] mz = peaks.getMz();
+        double[] intensity = peaks.getIntensity();
+
+        for (int i = 0; i < targetToSorted.length; i++) {
+
+            int peakIndex = sortedPeaks[targetToSorted[i]];
+
+            if (peakIndex >= 0) {
+                mz[i] = spectrumMz[peakIndex];
+                intensity[i] = spectrum.intensity[peakIndex];
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the best peak in the window starting at the given
+     * index, -1 if none. The selection follows
+     * Reporter.getBestReporterIonMatch so that both give the same peak.
+     *
+     * @param spectrum the spectrum
+     * @param windowStart the index of the first peak of the window
+     * @param maxMz the maximal m/z of the window
+     * @param targetMz the theoretical m/z
+     * @param mostAccurate boolean indicating whether the most accurate peak
+     * should be selected, the most intense otherwise
+     *
+     * @return the index of the best peak in the window
+     */
+    private int getBestPeak(Spectrum spectrum, int windowStart, double maxMz, double targetMz, boolean mostAccurate) {
+
+        double[] spectrumMz = spectrum.mz;
+        double[] spectrumIntensity = spectrum.intensity;
+        int bestPeak = -1;
+        double bestError = tolerance;
+        double bestIntensity = 0;
+
+        for (int i = windowStart; i < spectrumMz.length && spectrumMz[i] <= maxMz; i++) {
+
+            if (bestPeak == -1) {
+
+                bestPeak = i;
+
+            } else if (mostAccurate) {
+
+                double error = Math.abs(spectrumMz[i] - targetMz);
+
+                if (error < bestError) {
+
+                    bestPeak = i;
+                    bestError = error;
+
+                } else if (error == bestError && spectrumIntensity[i] > bestIntensity) {
+
+                    bestPeak = i;
+                    bestIntensity = spectrumIntensity[i];
+
+                }
+
+            } else if (spectrumIntensity[i] > bestIntensity) {
+
+                bestPeak = i;
+                bestIntensity = spectrumIntensity[i];
+
+            }
+        }
+
+        return bestPeak;
+    }
+
+    /**
+     * Returns the index of the first value greater than or equal to the given
+     * value in a sorted array, the length of the array if none.
+     *
+     * @param values the sorted values
+     * @param value the value
+     *
+     * @return the index of the first value greater than or equal to the given
+     * value
+     */
+    private static int lowerBound(double[] values, double value) {
+
+        int low = 0;
+        int high = values.length;
+
+        while (low < high) {
+
+            int middle = (low + high) >>> 1;
+
+            if (values[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+}
@@ -0,0 +1,119 @@
+package eu.isas.reporter.calculation;
+
+import java.util.Arrays;
+
+/**
+ * Reusable buffer for the peaks extracted by a ReporterPeakExtractor and their
+ * deisotoped intensities. The
+ * buffer is meant to be reused by a thread between spectra, it is therefore
+ * only reset and never shrunk.
+ *
+ * @author Marc Vaudel
+ */
+public class ReporterPeaks {
+
+    /**
+     * The m/z of the peak of every target, NaN if none.
+     */
+    private double[] mz = new double[0];
+    /**
+     * The intensity of the peak of every target, 0 if none.
+     */
+    private double[] intensity = new double[0];
+    /**
+     * The deisotoped intensity of every target corresponding to a reporter
+     * ion, 0 if none.
+     */
+    private double[] deisotopedIntensity = new double[0];
+    /**
+     * The index in the spectrum of the peak of every distinct theoretical m/z,
+     * -1 if none.
+     */
+    private int[] sortedPeakIndexes = new int[0];
+
+    /**
+     * Constructor.
+     */
+    public ReporterPeaks() {
+
+    }
+
+    /**
+     * Empties the buffer and makes sure that the given number of targets is
+     * available.
+     *
+     * @param nTargets the number of targets
+     * @param nDistinct the number of distinct theoretical m/z
+     */
+    void reset(int nTargets, int nDistinct) {
+
+        if (nTargets > mz.length) {
+            mz = new double[nTargets];
+            intensity = new double[nTargets];
+            deisotopedIntensity = new double[nTargets];
+        }
+
+        if (nDistinct > sortedPeakIndexes.length) {
+            sortedPeakIndexes = new int[nDistinct];
+        }
+
+        Arrays.fill(mz, Double.NaN);
+        Arrays.fill(intensity, 0.0);
+        Arrays.fill(deisotopedIntensity, 0.0);
+        Arrays.fill(sortedPeakIndexes, -1);
+    }
+
+    /**
+     * Returns the index in the spectrum of the peak of every distinct
+     * theoretical m/z.
+     *
+     * @return the index in the spectrum of the peak of every distinct
+     * theoretical m/z
+     */
+    int[] getSortedPeakIndexes() {
+        return sortedPeakIndexes;
+    }
+
+    /**
+     * Returns the m/z of the peak of every target, NaN if none. Only the first
+     * getNTargets() values of the extractor are set.
+     *
+     * @return the m/z of the peak of every target
+     */
+    public double[] getMz() {
+        return mz;
+    }
+
+    /**
+     * Returns the intensity of the peak of every target, 0 if none. Only the
+     * first getNTargets() values of the extractor are set.
+     *
+     * @return the intensity of the peak of every target
+     */
+    public double[] getIntensity() {
+        return intensity;
+    }
+
+    /**
+     * Returns the deisotoped intensity of every target corresponding to a
+     * reporter ion, as set by Deisotoper.deisotope, 0 if none.
+     *
+     * @return the deisotoped intensity of every target corresponding to a
+     * reporter ion
+     */
+    public double[] getDeisotopedIntensity() {
+        return deisotopedIntensity;
+    }
+
+    /**
+     * Indicates whether a peak was found for the given target.
+     *
+     * @param target the index of the target
+     *
+     * @return a boolean indicating whether a peak was found for the given
+     * target
+     */
+    public boolean hasPeak(int target) {
+        return !Double.isNaN(mz[target]);
+    }
+}
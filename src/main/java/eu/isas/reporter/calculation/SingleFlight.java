@@ -0,0 +1,98 @@
+package eu.isas.reporter.calculation;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Ensures that a value is computed only once for a given key at a time:
+ * threads requesting a key which is being computed wait for the result of the
+ * ongoing computation instead of computing it again.
+ *
+ * @author Marc Vaudel
+ * @param <K> the type of key
+ * @param <V> the type of value
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * The ongoing computations.
+     */
+    private final ConcurrentHashMap<K, CompletableFuture<V>> computations = new ConcurrentHashMap<>();
+    /**
+     * The number of computations avoided.
+     */
+    private final LongAdder avoided;
+
+    /**
+     * Constructor.
+     *
+     * @param avoided the counter where to count the computations avoided
+     */
+    public SingleFlight(LongAdder avoided) {
+        this.avoided = avoided;
+    }
+
+    /**
+     * Returns the value of the given key, computed using the given computation
+     * unless it is being computed by another thread, in which case the result
+     * of this computation is returned. Exceptions thrown by the computation
+     * are thrown to all the threads waiting for the result, unchecked
+     * exceptions wrapped by the waiting threads are unwrapped.
+     *
+     * @param key the key
+     * @param computation the computation
+     *
+     * @return the value of the given key
+     */
+    public V get(K key, Supplier<V> computation) {
+
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> ongoing = computations.putIfAbsent(key, future);
+
+        if (ongoing != null) {
+
+            avoided.increment();
+
+            try {
+
+                return ongoing.join();
+
+            } catch (CompletionException e) {
+
+                Throwable cause = e.getCause();
+
+                if (cause instanceof RuntimeException && !(cause instanceof CompletionException)) {
+                    throw (RuntimeException) cause;
+                }
+
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+
+                throw e;
+
+            }
+        }
+
+        try {
+
+            V value = computation.get();
+            future.complete(value);
+
+            return value;
+
+        } catch (RuntimeException | Error e) {
+
+            future.completeExceptionally(e);
+            throw e;
+
+        } finally {
+
+            computations.remove(key, future);
+
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package eu.isas.reporter.calculation;
+
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import java.util.Arrays;
+
+/**
+ * Index of the titles of the spectra of a spectrum file by spectrum key. Only
+ * the titles are read from the spectrum provider, the precursors are not. The
+ * index is immutable and can be shared between threads.
+ *
+ * @author Marc Vaudel
+ */
+public class SpectrumTitleIndex {
+
+    /**
+     * The name of the spectrum file.
+     */
+    private final String spectrumFile;
+    /**
+     * The spectrum titles in the file order.
+     */
+    private final String[] spectrumTitles;
+    /**
+     * The spectrum keys in the file order.
+     */
+    private final long[] spectrumKeys;
+    /**
+     * The spectrum keys sorted in ascending order.
+     */
+    private final long[] sortedKeys;
+    /**
+     * The index of the spectrum in the file of the sorted spectrum keys.
+     */
+    private final int[] sortedKeyIndexes;
+
+    /**
+     * Constructor.
+     *
+     * @param spectrumFile the name of the spectrum file
+     * @param spectrumTitles the spectrum titles in the file order as given by
+     * the spectrum provider
+     */
+    public SpectrumTitleIndex(String spectrumFile, String[] spectrumTitles) {
+
+        this.spectrumFile = spectrumFile;
+        this.spectrumTitles = spectrumTitles;
+        int nSpectra = spectrumTitles.length;
+        spectrumKeys = new long[nSpectra];
+        int[] keyOrder = new int[nSpectra];
+
+        for (int i = 0; i < nSpectra; i++) {
+            spectrumKeys[i] = SpectrumMatch.getKey(spectrumFile, spectrumTitles[i]);
+            keyOrder[i] = i;
+        }
+
+        PrecursorIndex.sortIndexes(keyOrder, (i, j) -> Long.compare(spectrumKeys[i], spectrumKeys[j]));
+
+        sortedKeys = new long[nSpectra];
+        sortedKeyIndexes = keyOrder;
+
+        for (int i = 0; i < nSpectra; i++) {
+            sortedKeys[i] = spectrumKeys[keyOrder[i]];
+        }
+    }
+
+    /**
+     * Returns the name of the spectrum file.
+     *
+     * @return the name of the spectrum file
+     */
+    public String getSpectrumFile() {
+        return spectrumFile;
+    }
+
+    /**
+     * Returns the number of spectra in the file.
+     *
+     * @return the number of spectra in the file
+     */
+    public int size() {
+        return spectrumTitles.length;
+    }
+
+    /**
+     * Returns the title of the spectrum at the given index in the file.
+     *
+     * @param index the index of the spectrum in the file
+     *
+     * @return the title of the spectrum
+     */
+    public String getSpectrumTitleAt(int index) {
+        return spectrumTitles[index];
+    }
+
+    /**
+     * Returns the key of the spectrum at the given index in the file.
+     *
+     * @param index the index of the spectrum in the file
+     *
+     * @return the key of the spectrum
+     */
+    public long getSpectrumKeyAt(int index) {
+        return spectrumKeys[index];
+    }
+
+    /**
+     * Returns the title of the spectrum of the given key, null if the
+     * spectrum is not in the file.
+     *
+     * @param spectrumKey the key of the spectrum
+     *
+     * @return the title of the spectrum
+     */
+    public String getSpectrumTitle(long spectrumKey) {
+
+        int index = Arrays.binarySearch(sortedKeys, spectrumKey);
+
+        return index < 0 ? null : spectrumTitles[sortedKeyIndexes[index]];
+    }
+}
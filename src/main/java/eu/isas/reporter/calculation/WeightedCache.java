@@ -0,0 +1,959 @@
+package eu.isas.reporter.calculation;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjLongConsumer;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Thread-safe cache of objects indexed by primitive long keys and bounded by a
+ * budget in bytes. Every entry is given a namespace, allowing different types
+ * of objects with the same keys to share the cache and its budget. The cache
+ * is split in segments locked independently. Every segment evicts its least
+ * recently used entries when over budget, a new entry being admitted only if
+ * it is not used less frequently than the entries it would evict, as estimated
+ * by a TinyLFU frequency sketch. When the heap remains full after a garbage
+ * collection, the cache is notified and evicts half of its content. The
+ * collection usage thresholds of the heap pools are only set if not set
+ * already, and restored when the last cache is closed.
+ *
+ * @author Marc Vaudel
+ */
+public class WeightedCache {
+
+    /**
+     * The number of segments, must be a power of two.
+     */
+    private static final int N_SEGMENTS = 16;
+    /**
+     * The budget in bytes per word of the frequency sketches. A word holds
+     * sixteen counters.
+     */
+    private static final int BYTES_PER_SKETCH_WORD = 1024;
+    /**
+     * The share of the heap above which the cache is notified after a garbage
+     * collection.
+     */
+    private static final double MEMORY_THRESHOLD = 0.9;
+    /**
+     * The segments.
+     */
+    private final Segment[] segments;
+    /**
+     * The number of hits.
+     */
+    private final LongAdder hits = new LongAdder();
+    /**
+     * The number of misses.
+     */
+    private final LongAdder misses = new LongAdder();
+    /**
+     * The number of entries evicted.
+     */
+    private final LongAdder evictions = new LongAdder();
+    /**
+     * The number of entries not admitted in the cache.
+     */
+    private final LongAdder rejections = new LongAdder();
+    /**
+     * The budget in bytes.
+     */
+    private volatile long byteBudget;
+    /**
+     * The listener of the memory notifications.
+     */
+    private final MemoryPressureListener memoryPressureListener;
+
+    /**
+     * Constructor.
+     *
+     * @param byteBudget the budget in bytes
+     */
+    public WeightedCache(long byteBudget) {
+
+        this.byteBudget = byteBudget;
+        segments = new Segment[N_SEGMENTS];
+
+        for (int i = 0; i < N_SEGMENTS; i++) {
+            segments[i] = new Segment(byteBudget / N_SEGMENTS);
+        }
+
+        memoryPressureListener = MemoryPressureListener.register(this);
+    }
+
+    /**
+     * Stops listening to the memory notifications. The collection usage
+     * thresholds set by the caches are restored when the last cache is
+     * closed.
+     */
+    public void close() {
+        MemoryPressureListener.unregister(memoryPressureListener);
+    }
+
+    /**
+     * Returns the object stored for the given key in the given namespace, null
+     * if not in cache.
+     *
+     * @param namespace the namespace
+     * @param key the key
+     *
+     * @return the object stored for the given key
+     */
+    public Object get(int namespace, long key) {
+
+        long hash = hash(namespace, key);
+        Object result = getSegment(hash).get(namespace, key, hash);
+
+        if (result == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+
+        return result;
+    }
+
+    /**
+     * Stores an object for the given key in the given namespace. The object
+     * might not be stored if its weight exceeds the budget of a segment, or if
+     * it is estimated to be used less frequently than the objects it would
+     * replace.
+     *
+     * @param namespace the namespace
+     * @param key the key
+     * @param value the object to store
+     * @param weight the estimated weight of the object in bytes
+     */
+    public void put(int namespace, long key, Object value, long weight) {
+
+        long hash = hash(namespace, key);
+        getSegment(hash).put(namespace, key, hash, value, (int) Math.min(weight, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Passes the key and object of every entry of the given namespace to the
+     * given consumer. Segments are locked one after the other, entries added
+     * or evicted concurrently might therefore be missed.
+     *
+     * @param namespace the namespace
+     * @param consumer the consumer
+     */
+    public void forEach(int namespace, ObjLongConsumer<Object> consumer) {
+        for (Segment segment : segments) {
+            segment.forEach(namespace, consumer);
+        }
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.evict(0);
+        }
+    }
+
+    /**
+     * Evicts entries until the weight of every segment is below the given
+     * share of its current weight.
+     *
+     * @param share the share of the weight to keep
+     */
+    public void shrink(double share) {
+        for (Segment segment : segments) {
+            segment.evict((long) (share * segment.getWeight()));
+        }
+    }
+
+    /**
+     * Indicates whether the cache is empty.
+     *
+     * @return a boolean indicating whether the cache is empty
+     */
+    public boolean isEmpty() {
+
+        for (Segment segment : segments) {
+            if (segment.getSize() > 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the number of entries in the cache.
+     *
+     * @return the number of entries in the cache
+     */
+    public int size() {
+
+        int size = 0;
+
+        for (Segment segment : segments) {
+            size += segment.getSize();
+        }
+
+        return size;
+    }
+
+    /**
+     * Returns the estimated weight of the cache content in bytes.
+     *
+     * @return the estimated weight of the cache content in bytes
+     */
+    public long getWeight() {
+
+        long weight = 0;
+
+        for (Segment segment : segments) {
+            weight += segment.getWeight();
+        }
+
+        return weight;
+    }
+
+    /**
+     * Returns the budget in bytes.
+     *
+     * @return the budget in bytes
+     */
+    public long getByteBudget() {
+        return byteBudget;
+    }
+
+    /**
+     * Sets the budget in bytes, evicting entries if needed.
+     *
+     * @param byteBudget the budget in bytes
+     */
+    public void setByteBudget(long byteBudget) {
+
+        this.byteBudget = byteBudget;
+
+        for (Segment segment : segments) {
+            segment.setBudget(byteBudget / N_SEGMENTS);
+        }
+    }
+
+    /**
+     * Returns the number of requests for which an object was found.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of requests for which no object was found.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of entries evicted to make room for others or upon
+     * memory pressure.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the number of objects which were not admitted in the cache.
+     *
+     * @return the number of rejections
+     */
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    /**
+     * Returns the segment of the given hash.
+     *
+     * @param hash the hash of the entry
+     *
+     * @return the segment of the given hash
+     */
+    private Segment getSegment(long hash) {
+        return segments[(int) (hash >>> 60) & (N_SEGMENTS - 1)];
+    }
+
+    /**
+     * Returns the hash of a key in a namespace.
+     *
+     * @param namespace the namespace
+     * @param key the key
+     *
+     * @return the hash of the key
+     */
+    private static long hash(int namespace, long key) {
+
+        long hash = key ^ (namespace * 0x9e3779b97f4a7c15L);
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * A segment of the cache: an open addressing hash table pointing to nodes
+     * stored in parallel arrays and chained in a least recently used list.
+     */
+    private final class Segment {
+
+        /**
+         * The budget of the segment in bytes.
+         */
+        private long budget;
+        /**
+         * The weight of the entries of the segment in bytes.
+         */
+        private long weight = 0;
+        /**
+         * The number of entries.
+         */
+        private int size = 0;
+        /**
+         * The hash table: index of the node plus one, zero if empty.
+         */
+        private int[] table = new int[16];
+        /**
+         * The keys of the nodes.
+         */
+        private long[] keys = new long[8];
+        /**
+         * The hashes of the nodes.
+         */
+        private long[] hashes = new long[8];
+        /**
+         * The namespaces of the nodes.
+         */
+        private int[] namespaces = new int[8];
+        /**
+         * The objects of the nodes.
+         */
+        private Object[] values = new Object[8];
+        /**
+         * The weights of the nodes.
+         */
+        private int[] weights = new int[8];
+        /**
+         * The previous node in the least recently used list, or the next free
+         * node for free nodes.
+         */
+        private int[] previous = new int[8];
+        /**
+         * The next node in the least recently used list.
+         */
+        private int[] next = new int[8];
+        /**
+         * The least recently used node, -1 if none.
+         */
+        private int head = -1;
+        /**
+         * The most recently used node, -1 if none.
+         */
+        private int tail = -1;
+        /**
+         * The first free node, -1 if none.
+         */
+        private int free = -1;
+        /**
+         * The number of nodes ever allocated.
+         */
+        private int nNodes = 0;
+        /**
+         * The frequency sketch.
+         */
+        private FrequencySketch sketch;
+
+        /**
+         * Constructor.
+         *
+         * @param budget the budget of the segment in bytes
+         */
+        Segment(long budget) {
+            this.budget = budget;
+            sketch = new FrequencySketch(budget / BYTES_PER_SKETCH_WORD);
+        }
+
+        /**
+         * Returns the object of the given entry, null if not found.
+         *
+         * @param namespace the namespace
+         * @param key the key
+         * @param hash the hash
+         *
+         * @return the object of the given entry
+         */
+        synchronized Object get(int namespace, long key, long hash) {
+
+            sketch.increment(hash);
+            int node = find(namespace, key, hash);
+
+            if (node == -1) {
+                return null;
+            }
+
+            moveToTail(node);
+
+            return values[node];
+        }
+
+        /**
+         * Stores an object.
+         *
+         * @param namespace the namespace
+         * @param key the key
+         * @param hash the hash
+         * @param value the object
+         * @param entryWeight the weight of the object
+         */
+        synchronized void put(int namespace, long key, long hash, Object value, int entryWeight) {
+
+            if (entryWeight > budget) {
+                rejections.increment();
+                return;
+            }
+
+            int node = find(namespace, key, hash);
+
+            if (node != -1) {
+
+                weight += entryWeight - weights[node];
+                values[node] = value;
+                weights[node] = entryWeight;
+                moveToTail(node);
+                evict(budget);
+                return;
+
+            }
+
+            int frequency = sketch.frequency(hash);
+
+            while (weight + entryWeight > budget) {
+
+                if (sketch.frequency(hashes[head]) > frequency) {
+                    rejections.increment();
+                    return;
+                }
+
+                remove(head);
+                evictions.increment();
+
+            }
+
+            insert(namespace, key, hash, value, entryWeight);
+        }
+
+        /**
+         * Passes the entries of a namespace to a consumer.
+         *
+         * @param namespace the namespace
+         * @param consumer the consumer
+         */
+        synchronized void forEach(int namespace, ObjLongConsumer<Object> consumer) {
+            for (int node = head; node != -1; node = next[node]) {
+                if (namespaces[node] == namespace) {
+                    consumer.accept(values[node], keys[node]);
+                }
+            }
+        }
+
+        /**
+         * Evicts the least recently used entries until the weight is below the
+         * given value.
+         *
+         * @param maxWeight the maximal weight
+         */
+        synchronized void evict(long maxWeight) {
+            while (weight > maxWeight && head != -1) {
+                remove(head);
+                evictions.increment();
+            }
+        }
+
+        /**
+         * Sets the budget and evicts entries if needed.
+         *
+         * @param budget the budget in bytes
+         */
+        synchronized void setBudget(long budget) {
+            this.budget = budget;
+            sketch = new FrequencySketch(budget / BYTES_PER_SKETCH_WORD);
+            evict(budget);
+        }
+
+        /**
+         * Returns the weight of the segment.
+         *
+         * @return the weight of the segment
+         */
+        synchronized long getWeight() {
+            return weight;
+        }
+
+        /**
+         * Returns the number of entries.
+         *
+         * @return the number of entries
+         */
+        synchronized int getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the node of an entry, -1 if not found.
+         *
+         * @param namespace the namespace
+         * @param key the key
+         * @param hash the hash
+         *
+         * @return the node of the entry
+         */
+        private int find(int namespace, long key, long hash) {
+
+            int mask = table.length - 1;
+
+            for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+
+                int node = table[slot] - 1;
+
+                if (node == -1) {
+                    return -1;
+                }
+
+                if (keys[node] == key && namespaces[node] == namespace) {
+                    return node;
+                }
+            }
+        }
+
+        /**
+         * Inserts a new entry at the tail of the list.
+         *
+         * @param namespace the namespace
+         * @param key the key
+         * @param hash the hash
+         * @param value the object
+         * @param entryWeight the weight of the object
+         */
+        private void insert(int namespace, long key, long hash, Object value, int entryWeight) {
+
+            if (2 * (size + 1) > table.length) {
+                resizeTable(2 * table.length);
+            }
+
+            int node;
+
+            if (free != -1) {
+
+                node = free;
+                free = previous[node];
+
+            } else {
+
+                if (nNodes == keys.length) {
+                    growNodes(2 * nNodes);
+                }
+
+                node = nNodes++;
+
+            }
+
+            keys[node] = key;
+            hashes[node] = hash;
+            namespaces[node] = namespace;
+            values[node] = value;
+            weights[node] = entryWeight;
+            previous[node] = tail;
+            next[node] = -1;
+
+            if (tail == -1) {
+                head = node;
+            } else {
+                next[tail] = node;
+            }
+
+            tail = node;
+            placeInTable(node);
+            size++;
+            weight += entryWeight;
+        }
+
+        /**
+         * Removes a node.
+         *
+         * @param node the node
+         */
+        private void remove(int node) {
+
+            unlink(node);
+
+            int mask = table.length - 1;
+            int slot = (int) hashes[node] & mask;
+
+            while (table[slot] != node + 1) {
+                slot = (slot + 1) & mask;
+            }
+
+            // backward shift deletion
+            table[slot] = 0;
+
+            for (int other = (slot + 1) & mask; table[other] != 0; other = (other + 1) & mask) {
+
+                int ideal = (int) hashes[table[other] - 1] & mask;
+                boolean movable = other > slot ? ideal <= slot || ideal > other : ideal <= slot && ideal > other;
+
+                if (movable) {
+                    table[slot] = table[other];
+                    table[other] = 0;
+                    slot = other;
+                }
+            }
+
+            weight -= weights[node];
+            size--;
+            values[node] = null;
+            previous[node] = free;
+            free = node;
+        }
+
+        /**
+         * Moves a node to the tail of the list.
+         *
+         * @param node the node
+         */
+        private void moveToTail(int node) {
+
+            if (node != tail) {
+
+                unlink(node);
+                previous[node] = tail;
+                next[node] = -1;
+                next[tail] = node;
+                tail = node;
+
+            }
+        }
+
+        /**
+         * Removes a node from the list.
+         *
+         * @param node the node
+         */
+        private void unlink(int node) {
+
+            int before = previous[node];
+            int after = next[node];
+
+            if (before == -1) {
+                head = after;
+            } else {
+                next[before] = after;
+            }
+
+            if (after == -1) {
+                tail = before;
+            } else {
+                previous[after] = before;
+            }
+        }
+
+        /**
+         * Places a node in the first free slot of the hash table.
+         *
+         * @param node the node
+         */
+        private void placeInTable(int node) {
+
+            int mask = table.length - 1;
+            int slot = (int) hashes[node] & mask;
+
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+
+            table[slot] = node + 1;
+        }
+
+        /**
+         * Resizes the hash table.
+         *
+         * @param length the new length
+         */
+        private void resizeTable(int length) {
+
+            table = new int[length];
+
+            for (int node = head; node != -1; node = next[node]) {
+                placeInTable(node);
+            }
+        }
+
+        /**
+         * Grows the node arrays.
+         *
+         * @param length the new length
+         */
+        private void growNodes(int length) {
+            keys = Arrays.copyOf(keys, length);
+            hashes = Arrays.copyOf(hashes, length);
+            namespaces = Arrays.copyOf(namespaces, length);
+            values = Arrays.copyOf(values, length);
+            weights = Arrays.copyOf(weights, length);
+            previous = Arrays.copyOf(previous, length);
+            next = Arrays.copyOf(next, length);
+        }
+    }
+
+    /**
+     * Count-min sketch of the access frequency of the entries with four bit
+     * counters and a depth of four. The counters are halved periodically so
+     * that the frequencies reflect recent usage.
+     */
+    private static final class FrequencySketch {
+
+        /**
+         * Seeds of the hash functions.
+         */
+        private static final long[] SEEDS = new long[]{0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        /**
+         * Mask to halve all counters of a word.
+         */
+        private static final long RESET_MASK = 0x7777777777777777L;
+        /**
+         * The counters, sixteen per word.
+         */
+        private final long[] table;
+        /**
+         * The number of increments after which the counters are halved.
+         */
+        private final int sampleSize;
+        /**
+         * The number of increments since the last halving.
+         */
+        private int additions = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param nWords the number of words to use, rounded to a power of two
+         */
+        FrequencySketch(long nWords) {
+
+            int length = Integer.highestOneBit((int) Math.max(16, Math.min(nWords, 1 << 20)) - 1) << 1;
+            table = new long[length];
+            sampleSize = 10 * length;
+        }
+
+        /**
+         * Increments the frequency of an entry.
+         *
+         * @param hash the hash of the entry
+         */
+        void increment(long hash) {
+
+            int start = ((int) hash & 3) << 2;
+            boolean added = false;
+
+            for (int i = 0; i < 4; i++) {
+
+                int index = indexOf(hash, i);
+                int offset = (start + i) << 2;
+                long mask = 0xfL << offset;
+
+                if ((table[index] & mask) != mask) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+
+            if (added && ++additions == sampleSize) {
+
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+
+                additions /= 2;
+
+            }
+        }
+
+        /**
+         * Returns the estimated frequency of an entry.
+         *
+         * @param hash the hash of the entry
+         *
+         * @return the estimated frequency of the entry
+         */
+        int frequency(long hash) {
+
+            int start = ((int) hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+
+            for (int i = 0; i < 4; i++) {
+
+                int offset = (start + i) << 2;
+                int count = (int) ((table[indexOf(hash, i)] >>> offset) & 0xfL);
+                frequency = Math.min(frequency, count);
+
+            }
+
+            return frequency;
+        }
+
+        /**
+         * Returns the index of the word of an entry for the given hash
+         * function.
+         *
+         * @param hash the hash of the entry
+         * @param i the index of the hash function
+         *
+         * @return the index of the word
+         */
+        private int indexOf(long hash, int i) {
+
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+
+            return (int) h & (table.length - 1);
+        }
+    }
+
+    /**
+     * Listener of the heap usage after garbage collection, shrinking the cache
+     * when the heap remains full. The listener only holds a weak reference to
+     * the cache and unregisters itself once the cache is garbage collected.
+     */
+    private static final class MemoryPressureListener implements NotificationListener {
+
+        /**
+         * The number of registered listeners.
+         */
+        private static int nListeners = 0;
+        /**
+         * The collection usage thresholds set by the listeners indexed by
+         * pool.
+         */
+        private static final HashMap<MemoryPoolMXBean, Long> thresholds = new HashMap<>();
+        /**
+         * The cache.
+         */
+        private final WeakReference<WeightedCache> cache;
+
+        /**
+         * Constructor.
+         *
+         * @param cache the cache
+         */
+        private MemoryPressureListener(WeightedCache cache) {
+            this.cache = new WeakReference<>(cache);
+        }
+
+        /**
+         * Registers a listener for the given cache. When registering the
+         * first listener, sets the collection usage threshold of the heap
+         * pools where none is set.
+         *
+         * @param cache the cache
+         *
+         * @return the listener
+         */
+        static synchronized MemoryPressureListener register(WeightedCache cache) {
+
+            if (nListeners == 0) {
+
+                for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+
+                    if (pool.getType() == MemoryType.HEAP
+                            && pool.isCollectionUsageThresholdSupported()
+                            && pool.getCollectionUsageThreshold() == 0) {
+
+                        long max = pool.getUsage().getMax();
+
+                        if (max > 0) {
+
+                            long threshold = (long) (MEMORY_THRESHOLD * max);
+                            pool.setCollectionUsageThreshold(threshold);
+                            thresholds.put(pool, threshold);
+
+                        }
+                    }
+                }
+            }
+
+            MemoryPressureListener listener = new MemoryPressureListener(cache);
+            NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+            emitter.addNotificationListener(listener, null, null);
+            nListeners++;
+
+            return listener;
+        }
+
+        /**
+         * Unregisters the given listener. When unregistering the last
+         * listener, unsets the collection usage thresholds set by the
+         * listeners unless changed in the meantime.
+         *
+         * @param listener the listener
+         */
+        static synchronized void unregister(MemoryPressureListener listener) {
+
+            try {
+                ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(listener);
+            } catch (ListenerNotFoundException e) {
+                // already removed
+                return;
+            }
+
+            nListeners--;
+
+            if (nListeners == 0) {
+
+                for (Entry<MemoryPoolMXBean, Long> entry : thresholds.entrySet()) {
+
+                    MemoryPoolMXBean pool = entry.getKey();
+
+                    if (pool.getCollectionUsageThreshold() == entry.getValue()) {
+                        pool.setCollectionUsageThreshold(0);
+                    }
+                }
+
+                thresholds.clear();
+            }
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+
+            WeightedCache weightedCache = cache.get();
+
+            if (weightedCache == null) {
+
+                unregister(this);
+
+            } else if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+
+                weightedCache.shrink(0.5);
+
+            }
+        }
+    }
+}
@@ -4,20 +4,13 @@ import com.compomics.util.experiment.biology.proteins.Peptide;
 import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.matches.ModificationMatch;
 import com.compomics.util.experiment.identification.matches.PeptideMatch;
-import com.compomics.util.experiment.identification.matches.ProteinMatch;
-import com.compomics.util.experiment.identification.matches.SpectrumMatch;
-import com.compomics.util.experiment.identification.matches_iterators.PeptideMatchesIterator;
-import com.compomics.util.experiment.identification.matches_iterators.ProteinMatchesIterator;
-import com.compomics.util.experiment.identification.matches_iterators.SpectrumMatchesIterator;
 import com.compomics.util.experiment.identification.peptide_shaker.Metrics;
 import com.compomics.util.experiment.identification.peptide_shaker.PSParameter;
 import com.compomics.util.experiment.identification.utils.PeptideUtils;
 import com.compomics.util.experiment.io.biology.protein.SequenceProvider;
 import com.compomics.util.experiment.mass_spectrometry.SpectrumProvider;
-import com.compomics.util.experiment.personalization.UrParameter;
 import com.compomics.util.experiment.quantification.reporterion.ReporterIonQuantification;
 import com.compomics.util.math.BasicMathFunctions;
-import com.compomics.util.math.clustering.KMeansClustering;
 import com.compomics.util.parameters.identification.IdentificationParameters;
 import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.reporter.calculation.QuantificationFeaturesGenerator;
@@ -33,11 +26,14 @@ import eu.isas.reporter.settings.ClusteringSettings;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map.Entry;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.TreeMap;
+import java.util.function.Function;
 
 /**
  * Methods for building clusters based on a reporter project.
@@ -86,11 +82,15 @@ public class ClusterBuilder {
     /**
      * The matches keys of the ratios used for clustering.
      */
-    private ArrayList<String> clusterKeys;
+    private long[] clusterKeys;
     /**
-     * The ratios used for clustering.
+     * The ratios used for clustering in a row-major matrix.
      */
-    private double[][] ratios;
+    private float[] ratios;
+    /**
+     * The number of samples, i.e. the number of ratios of every row.
+     */
+    private int nSamples;
     /**
      * The minimal ratio.
      */
@@ -99,6 +99,44 @@ public class ClusterBuilder {
      * The maximal ratio.
      */
     private Double maxRatio = null;
+    /**
+     * The protein matches loaded so far.
+     */
+    private MatchLevel<MatchProfile> proteinLevel;
+    /**
+     * The type of ratio of the loaded protein profiles.
+     */
+    private ProteinRatioType loadedProteinRatioType;
+    /**
+     * The peptide matches loaded so far.
+     */
+    private MatchLevel<MatchProfile> peptideLevel;
+    /**
+     * The spectrum matches loaded so far.
+     */
+    private MatchLevel<MatchProfile> psmLevel;
+    /**
+     * The spectrum files in the order of the PSM level.
+     */
+    private String[] psmFiles;
+    /**
+     * The row of the first PSM of every spectrum file in the PSM level.
+     */
+    private int[] psmFilesStart;
+    /**
+     * The last completed k-means clustering, used to warm-start the next one.
+     */
+    private ProfileKMeansClustering lastClustering;
+    /**
+     * The last completed hierarchical clustering, cut again when only the
+     * number of clusters changes.
+     */
+    private ProfileHierarchicalClustering lastHierarchicalClustering;
+    /**
+     * The last completed selection of the number of clusters, null if the
+     * number of clusters was not selected automatically.
+     */
+    private ClusterCountSelection clusterCountSelection;
 
     /**
      * Constructor.
@@ -108,7 +146,14 @@ public class ClusterBuilder {
     }
 
     /**
-     * Clusters the profiles according to the given parameters.
+     * Clusters the profiles according to the given parameters. The
+     * clustering is warm-started from the previous one. If the number of
+     * clusters is selected automatically, the profiles are clustered for the
+     * range of numbers of clusters of the settings, and the number of
+     * clusters with the best score is stored in the k-means settings. If the
+     * profiles are clustered hierarchically, the dendrogram is cut into the
+     * number of clusters of the k-means settings, and the previous dendrogram
+     * is reused if the data was not reloaded.
      *
      * @param identification the identification
      * @param identificationParameters the identification parameters
@@ -122,14 +167,15 @@ public class ClusterBuilder {
      * @param loadData if true, the data is (re-)loaded
      * @param waitingHandler a waiting handler
      *
-     * @return the k-means clustering of every class
+     * @return the clustering of every class, null if no profile could be
+     * clustered, the previous clustering if the loading was canceled
      *
      * @throws SQLException if an SQLException occurs
      * @throws IOException if an IOException occurs
      * @throws ClassNotFoundException if a ClassNotFoundException occurs
      * @throws InterruptedException if an InterruptedException occurs
      */
-    public KMeansClustering clusterProfiles(
+    public ProfileClustering clusterProfiles(
             Identification identification,
             IdentificationParameters identificationParameters,
             SequenceProvider sequenceProvider,
@@ -161,6 +207,10 @@ public class ClusterBuilder {
                     waitingHandler
             );
 
+            if (waitingHandler.isRunCanceled()) {
+                return getLastClustering(displayPreferences.getClusteringSettings());
+            }
+
             waitingHandler.setSecondaryProgressCounterIndeterminate(true);
             waitingHandler.setWaitingText("Clustering Data (2/2). Please Wait...");
 
@@ -171,32 +221,128 @@ public class ClusterBuilder {
         }
 
         // Perform the clustering
-        KMeansClustering kMeansClutering = null;
+        ProfileKMeansClustering kMeansClutering = null;
+        ClusteringSettings clusteringSettings = displayPreferences.getClusteringSettings();
+        int maxNClusters = Math.min(clusteringSettings.getMaxNClusters(), clusterKeys.length);
+        int minNClusters = Math.max(2, Math.min(clusteringSettings.getMinNClusters(), maxNClusters));
+
+        if (clusteringSettings.isHierarchicalClustering()) {
+
+            if (clusterKeys.length == 0 || nSamples == 0) {
+                return null;
+            }
+
+            int numClusters = Math.min(clusteringSettings.getKMeansClusteringSettings().getnClusters(), clusterKeys.length);
+            clusteringSettings.getKMeansClusteringSettings().setnClusters(numClusters);
+
+            if (!loadData
+                    && lastHierarchicalClustering != null
+                    && lastHierarchicalClustering.profiles == ratios
+                    && lastHierarchicalClustering.getLinkage() == clusteringSettings.getHierarchicalLinkage()) {
+
+                lastHierarchicalClustering.cut(numClusters);
 
-        if (ratios.length > 0) {
+                return lastHierarchicalClustering;
+
+            }
+
+            ProfileHierarchicalClustering hierarchicalClustering = new ProfileHierarchicalClustering(
+                    ratios,
+                    nSamples,
+                    clusterKeys,
+                    clusteringSettings.getHierarchicalLinkage(),
+                    numClusters
+            );
+            hierarchicalClustering.cluster(waitingHandler);
+
+            if (waitingHandler.isRunCanceled()) {
+                return lastHierarchicalClustering;
+            }
+
+            lastHierarchicalClustering = hierarchicalClustering;
+
+            return hierarchicalClustering;
+
+        } else if (clusteringSettings.isAutoNClusters() && nSamples > 0 && maxNClusters >= 2) {
+
+            waitingHandler.setWaitingText("Selecting the Number of Clusters. Please Wait...");
+
+            ClusterCountSelection selection = new ClusterCountSelection(
+                    ratios,
+                    nSamples,
+                    clusterKeys,
+                    minNClusters,
+                    maxNClusters
+            );
+            selection.select(waitingHandler);
+
+            if (waitingHandler.isRunCanceled()) {
+                return lastClustering;
+            }
+
+            kMeansClutering = selection.getClustering();
+            clusteringSettings.getKMeansClusteringSettings().setnClusters(selection.getBestNClusters());
+            clusterCountSelection = selection;
+            lastClustering = kMeansClutering;
+
+        } else if (clusterKeys.length > 0 && nSamples > 0) {
 
-            String[] keysArray = clusterKeys.toArray(new String[clusterKeys.size()]);
             int numClusters = displayPreferences.getClusteringSettings().getKMeansClusteringSettings().getnClusters();
 
-            if (ratios.length < numClusters) {
-                displayPreferences.getClusteringSettings().getKMeansClusteringSettings().setnClusters(ratios.length);
+            if (clusterKeys.length < numClusters) {
+                displayPreferences.getClusteringSettings().getKMeansClusteringSettings().setnClusters(clusterKeys.length);
             }
 
-            kMeansClutering = new KMeansClustering(
+            kMeansClutering = new ProfileKMeansClustering(
                     ratios,
-                    keysArray,
+                    nSamples,
+                    clusterKeys,
                     displayPreferences.getClusteringSettings().getKMeansClusteringSettings().getnClusters()
             );
 
-            kMeansClutering.kMeanCluster(waitingHandler);
+            if (lastClustering != null) {
+                kMeansClutering.warmStart(lastClustering);
+            }
+
+            kMeansClutering.cluster(waitingHandler);
+
+            if (!waitingHandler.isRunCanceled()) {
+                lastClustering = kMeansClutering;
+                clusterCountSelection = null;
+            }
         }
 
         return kMeansClutering;
     }
 
+    /**
+     * Returns the last completed clustering of the method of the given
+     * settings.
+     *
+     * @param clusteringSettings the clustering settings
+     *
+     * @return the last completed clustering
+     */
+    private ProfileClustering getLastClustering(ClusteringSettings clusteringSettings) {
+        return clusteringSettings.isHierarchicalClustering() ? lastHierarchicalClustering : lastClustering;
+    }
+
+    /**
+     * Returns the last completed selection of the number of clusters, null
+     * if the number of clusters was not selected automatically.
+     *
+     * @return the last completed selection of the number of clusters
+     */
+    public ClusterCountSelection getClusterCountSelection() {
+        return clusterCountSelection;
+    }
+
     /**
      * Filters the proteins and indexes them according to the clustering
-     * settings and stores the result in the attribute maps.
+     * settings and stores the result in the attribute maps. The class
+     * membership and profile of the matches are kept between calls, only the
+     * classes not evaluated before and the profiles not loaded before are
+     * loaded from the identification.
      *
      * @param identification the identification
      * @param identificationParameters the identification parameters
@@ -230,437 +376,574 @@ public class ClusterBuilder {
     ) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
         ClusteringSettings clusteringSettings = displayPreferences.getClusteringSettings();
-        HashSet<Long> proteinKeys = identification.getProteinIdentification();
-        HashSet<Long> peptideKeys = identification.getPeptideIdentification();
+        ArrayList<String> selectedProteinClasses = clusteringSettings.getSelectedProteinClasses();
+        ArrayList<String> selectedPeptideClasses = clusteringSettings.getSelectedPeptideClasses();
+        ArrayList<String> selectedPsmClasses = clusteringSettings.getSelectedPsmClasses();
+        ProteinRatioType proteinRatioType = null;
 
-        int nProteinClusters = clusteringSettings.getSelectedProteinClasses().size();
-        int nPeptideClusters = clusteringSettings.getSelectedPeptideClasses().size();
-        int nPsmClusters = clusteringSettings.getSelectedPsmClasses().size();
-        int progressTotal = 1;
+        if (!selectedProteinClasses.isEmpty()) {
 
-        if (nProteinClusters > 0) {
-            progressTotal += proteinKeys.size();
-        }
+            int selectedRatioType = displayPreferences.getProteinRatioType();
+            proteinRatioType = ProteinRatioType.getProteinRatioType(selectedRatioType);
 
-        if (nPeptideClusters > 0) {
-            progressTotal += peptideKeys.size();
+            if (proteinRatioType == null) {
+                throw new IllegalArgumentException("Ratio type of index " + selectedRatioType + " not recognized.");
+            }
+
+            if (proteinLevel == null) {
+                proteinLevel = new MatchLevel<>(metrics.getProteinKeys());
+            }
+
+            if (proteinRatioType != loadedProteinRatioType) {
+                proteinLevel.clearProfiles();
+                loadedProteinRatioType = proteinRatioType;
+            }
         }
 
-        if (nPsmClusters > 0) {
-            progressTotal += identification.getSpectrumIdentificationSize();
+        if (!selectedPeptideClasses.isEmpty() && peptideLevel == null) {
+            peptideLevel = new MatchLevel<>(
+                    identification.getPeptideIdentification().stream()
+                            .mapToLong(Long::longValue)
+                            .sorted()
+                            .toArray()
+            );
         }
 
-        waitingHandler.resetPrimaryProgressCounter();
-        waitingHandler.setPrimaryProgressCounterIndeterminate(false);
-        waitingHandler.setMaxPrimaryProgressCounter(progressTotal);
-        waitingHandler.increasePrimaryProgressCounter();
+        if (!selectedPsmClasses.isEmpty() && psmLevel == null) {
+            setPsmLevel(identification);
+        }
 
-        PSParameter psParameter = new PSParameter();
-        ArrayList<UrParameter> parameters = new ArrayList<>(1);
-        parameters.add(psParameter);
+        // the classes not evaluated yet
+        ArrayList<String> newProteinClasses = selectedProteinClasses.isEmpty() ? new ArrayList<>(0) : proteinLevel.getNewClasses(selectedProteinClasses);
+        ArrayList<String> newPeptideClasses = selectedPeptideClasses.isEmpty() ? new ArrayList<>(0) : peptideLevel.getNewClasses(selectedPeptideClasses);
+        ArrayList<String> newPsmClasses = selectedPsmClasses.isEmpty() ? new ArrayList<>(0) : psmLevel.getNewClasses(selectedPsmClasses);
+        int nEvaluations = 0;
 
-        ArrayList<String> sampleIndexes = new ArrayList<>(reporterIonQuantification.getSampleIndexes());
-        Collections.sort(sampleIndexes);
+        if (!newProteinClasses.isEmpty()) {
+            nEvaluations += proteinLevel.size();
+        }
 
-        Integer clusteringIndex = 0;
-        clusterKeys = new ArrayList<>(metrics.getnValidatedProteins());
-        ArrayList<double[]> ratiosList = new ArrayList<>(metrics.getnValidatedProteins());
+        if (!newPeptideClasses.isEmpty()) {
+            nEvaluations += peptideLevel.size();
+        }
 
-        proteinClusters = new HashMap<Long, ArrayList<String>>(nProteinClusters);
-        proteinKeysIndexes = new HashMap<Long, Integer>(metrics.getnValidatedProteins());
-        filteredProteinKeys = new HashMap<String, ArrayList<Long>>(metrics.getnValidatedProteins());
+        if (!newPsmClasses.isEmpty()) {
+            nEvaluations += psmLevel.size();
+        }
 
-        if (nProteinClusters > 0) {
+        waitingHandler.resetPrimaryProgressCounter();
+        waitingHandler.setPrimaryProgressCounterIndeterminate(false);
+        waitingHandler.setMaxPrimaryProgressCounter(nEvaluations + 1);
+        waitingHandler.increasePrimaryProgressCounter();
 
-            int selectedRatioType = displayPreferences.getProteinRatioType();
-            ProteinRatioType proteinRatioType = ProteinRatioType.getProteinRatioType(selectedRatioType);
-            
-            if (proteinRatioType == null) {
-                throw new IllegalArgumentException("Ratio type of index " + selectedRatioType + " not recognized.");
-            }
+        if (!newProteinClasses.isEmpty()) {
 
-            ProteinMatchesIterator proteinMatchesIterator;
-            
-            if (quantificationFeaturesGenerator.getQuantificationFeaturesCache().memoryCheck()) {
-                proteinMatchesIterator = identification.getProteinMatchesIterator(metrics.getProteinKeys(), waitingHandler);
-            } else {
-                proteinMatchesIterator = identification.getProteinMatchesIterator(metrics.getProteinKeys(), waitingHandler);
-            }
+            MatchLevel<MatchProfile> level = proteinLevel;
+            level.evaluateClasses(
+                    newProteinClasses,
+                    row -> evaluateProteinClasses(identification, clusteringSettings, newProteinClasses, level.getKey(row)),
+                    waitingHandler
+            );
+        }
 
-            ProteinMatch proteinMatch;
-
-            while ((proteinMatch = proteinMatchesIterator.next()) != null) {
-
-                long proteinKey = proteinMatch.getKey();
-                String proteinKeyAsString = Long.toString(proteinKey);
-                psParameter = (PSParameter) identification.getProteinMatch(proteinKey).getUrParam(psParameter);
-
-                if (psParameter.getMatchValidationLevel().isValidated()) {
-                    
-                    boolean found = false;
-                    
-                    for (String keyName : clusteringSettings.getSelectedProteinClasses()) {
-                        
-                        boolean inCluster = true;
-                        ProteinClusterClassKey proteinClusterClassKey = clusteringSettings.getProteinClassKey(keyName);
-                        
-                        if (proteinClusterClassKey.isStarred() && !psParameter.getStarred()) {
-                            inCluster = false;
-                        }
-                        
-                        if (inCluster) {
-                            
-                            ArrayList<Long> tempClusterKeys = filteredProteinKeys.get(keyName);
-                            
-                            if (tempClusterKeys == null) {
-                                tempClusterKeys = new ArrayList<Long>();
-                                filteredProteinKeys.put(keyName, tempClusterKeys);
-                            }
-                            
-                            tempClusterKeys.add(proteinKey);
-                            ArrayList<String> clusters = proteinClusters.get(proteinKey);
-                            
-                            if (clusters == null) {
-                                clusters = new ArrayList<String>(nProteinClusters);
-                                proteinClusters.put(proteinKey, clusters);
-                            }
-                            
-                            clusters.add(keyName);
-                            found = true;
-                        
-                        }
-                    }
-                    
-                    if (found) {
-                        
-                        ProteinQuantificationDetails quantificationDetails = quantificationFeaturesGenerator.getProteinMatchQuantificationDetails(spectrumProvider, proteinKey, waitingHandler);
-                        double[] proteinRatios = new double[sampleIndexes.size()];
+        if (!newPeptideClasses.isEmpty()) {
 
-                        for (int sampleIndex = 0; sampleIndex < sampleIndexes.size(); sampleIndex++) {
+            MatchLevel<MatchProfile> level = peptideLevel;
+            level.evaluateClasses(
+                    newPeptideClasses,
+                    row -> evaluatePeptideClasses(identification, sequenceProvider, clusteringSettings, newPeptideClasses, level.getKey(row)),
+                    waitingHandler
+            );
+        }
 
-                            Double ratio;
+        if (!newPsmClasses.isEmpty()) {
 
-                            switch (proteinRatioType) {
+            MatchLevel<MatchProfile> level = psmLevel;
+            level.evaluateClasses(
+                    newPsmClasses,
+                    row -> evaluatePsmClasses(identification, clusteringSettings, newPsmClasses, getPsmFile(row), level.getKey(row)),
+                    waitingHandler
+            );
+        }
 
-                                case all:
-                                    ratio = quantificationDetails.getRatio(
-                                            sampleIndexes.get(sampleIndex),
-                                            reporterIonQuantification.getNormalizationFactors()
-                                    );
-                                    break;
+        if (waitingHandler.isRunCanceled()) {
+            return;
+        }
 
-                                case shared:
-                                    ratio = quantificationDetails.getSharedRatio(
-                                            sampleIndexes.get(sampleIndex),
-                                            reporterIonQuantification.getNormalizationFactors()
-                                    );
-                                    break;
+        // the profiles not loaded yet
+        int[] proteinRows = selectedProteinClasses.isEmpty() ? new int[0] : proteinLevel.getRows(selectedProteinClasses);
+        int[] peptideRows = selectedPeptideClasses.isEmpty() ? new int[0] : peptideLevel.getRows(selectedPeptideClasses);
+        int[] psmRows = selectedPsmClasses.isEmpty() ? new int[0] : psmLevel.getRows(selectedPsmClasses);
+        int[] newProteinProfiles = selectedProteinClasses.isEmpty() ? new int[0] : proteinLevel.getRowsWithoutProfile(proteinRows);
+        int[] newPeptideProfiles = selectedPeptideClasses.isEmpty() ? new int[0] : peptideLevel.getRowsWithoutProfile(peptideRows);
+        int[] newPsmProfiles = selectedPsmClasses.isEmpty() ? new int[0] : psmLevel.getRowsWithoutProfile(psmRows);
 
-                                case unique:
-                                    ratio = quantificationDetails.getUniqueRatio(
-                                            sampleIndexes.get(sampleIndex),
-                                            reporterIonQuantification.getNormalizationFactors()
-                                    );
-                                    break;
+        waitingHandler.setMaxPrimaryProgressCounter(nEvaluations + newProteinProfiles.length + newPeptideProfiles.length + newPsmProfiles.length + 1);
 
-                                default:
-                                    throw new IllegalArgumentException(
-                                            "Ratio type "
-                                            + proteinRatioType
-                                            + " not supported."
-                                    );
-                            }
+        ArrayList<String> sampleIndexes = new ArrayList<>(reporterIonQuantification.getSampleIndexes());
+        Collections.sort(sampleIndexes);
 
-                            if (ratio != null) {
+        if (newProteinProfiles.length > 0) {
+
+            MatchLevel<MatchProfile> level = proteinLevel;
+            ProteinRatioType ratioType = proteinRatioType;
+            level.loadProfiles(
+                    newProteinProfiles,
+                    row -> getProteinProfile(
+                            spectrumProvider,
+                            reporterIonQuantification,
+                            quantificationFeaturesGenerator,
+                            sampleIndexes,
+                            ratioType,
+                            level.getKey(row),
+                            waitingHandler
+                    ),
+                    waitingHandler
+            );
+        }
 
-                                if (ratio != 0) {
+        if (newPeptideProfiles.length > 0) {
 
-                                    double logRatio = BasicMathFunctions.log(ratio, 2);
-                                    proteinRatios[sampleIndex] = logRatio;
+            MatchLevel<MatchProfile> level = peptideLevel;
+            level.loadProfiles(
+                    newPeptideProfiles,
+                    row -> {
 
-                                    if (maxRatio == null || logRatio > maxRatio) {
-                                        maxRatio = logRatio;
-                                    }
+                        PeptideQuantificationDetails quantificationDetails = quantificationFeaturesGenerator.getPeptideMatchQuantificationDetails(spectrumProvider, level.getKey(row), waitingHandler);
 
-                                    if (minRatio == null || logRatio < minRatio) {
-                                        minRatio = logRatio;
-                                    }
+                        return new MatchProfile(
+                                sampleIndexes,
+                                sampleIndex -> quantificationDetails.getRatio(sampleIndex, reporterIonQuantification.getNormalizationFactors())
+                        );
+                    },
+                    waitingHandler
+            );
+        }
 
-                                }
+        if (newPsmProfiles.length > 0) {
 
-                            }
-                        }
+            MatchLevel<MatchProfile> level = psmLevel;
+            level.loadProfiles(
+                    newPsmProfiles,
+                    row -> {
 
-                        clusterKeys.add(proteinKeyAsString);
-                        proteinKeysIndexes.put(proteinKey, clusteringIndex);
-                        ratiosList.add(proteinRatios);
-                        clusteringIndex++;
-                    }
-                }
+                        PsmQuantificationDetails quantificationDetails = quantificationFeaturesGenerator.getPSMQuantificationDetails(spectrumProvider, level.getKey(row));
 
-                waitingHandler.increasePrimaryProgressCounter();
-            }
+                        return new MatchProfile(
+                                sampleIndexes,
+                                sampleIndex -> quantificationDetails.getRatio(sampleIndex, reporterIonQuantification.getNormalizationFactors())
+                        );
+                    },
+                    waitingHandler
+            );
         }
 
-        filteredPeptideKeys = new HashMap<String, ArrayList<Long>>(metrics.getnValidatedProteins());
-        peptideKeysIndexes = new HashMap<Long, Integer>(metrics.getnValidatedProteins());
-        peptideClusters = new HashMap<Long, ArrayList<String>>(nPeptideClusters);
-
-        if (nPeptideClusters > 0) {
+        if (waitingHandler.isRunCanceled()) {
+            return;
+        }
 
-            PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(waitingHandler);
-            PeptideMatch peptideMatch;
+        // merge the levels in the order of the rows
+        int nRows = proteinRows.length + peptideRows.length + psmRows.length;
+        nSamples = sampleIndexes.size();
+        clusterKeys = new long[nRows];
+        ratios = new float[nRows * nSamples];
+        minRatio = null;
+        maxRatio = null;
+        int clusteringIndex = 0;
+
+        proteinClusters = new HashMap<Long, ArrayList<String>>(proteinRows.length);
+        proteinKeysIndexes = new HashMap<Long, Integer>(proteinRows.length);
+        filteredProteinKeys = new HashMap<String, ArrayList<Long>>(selectedProteinClasses.size());
+        clusteringIndex = merge(proteinLevel, selectedProteinClasses, proteinRows, filteredProteinKeys, proteinClusters, proteinKeysIndexes, clusteringIndex);
+
+        peptideClusters = new HashMap<Long, ArrayList<String>>(peptideRows.length);
+        peptideKeysIndexes = new HashMap<Long, Integer>(peptideRows.length);
+        filteredPeptideKeys = new HashMap<String, ArrayList<Long>>(selectedPeptideClasses.size());
+        clusteringIndex = merge(peptideLevel, selectedPeptideClasses, peptideRows, filteredPeptideKeys, peptideClusters, peptideKeysIndexes, clusteringIndex);
+
+        psmClusters = new HashMap<Long, ArrayList<String>>(psmRows.length);
+        psmKeysIndexes = new HashMap<Long, Integer>(psmRows.length);
+        filteredPsmKeys = new HashMap<String, ArrayList<Long>>(selectedPsmClasses.size());
+        merge(psmLevel, selectedPsmClasses, psmRows, filteredPsmKeys, psmClusters, psmKeysIndexes, clusteringIndex);
+    }
 
-            while ((peptideMatch = peptideMatchesIterator.next()) != null) {
+    /**
+     * Sets the PSM level with the keys of the PSMs of all spectrum files,
+     * sorted by spectrum file and key.
+     *
+     * @param identification the identification
+     */
+    private void setPsmLevel(Identification identification) {
 
-                Peptide peptide = peptideMatch.getPeptide();
-                long peptideKey = peptideMatch.getKey();
-                String peptideKeyAsString = Long.toString(peptideKey);
+        TreeMap<String, HashSet<Long>> spectrumIdentification = new TreeMap<>(identification.getSpectrumIdentification());
+        ArrayList<String> files = new ArrayList<>(spectrumIdentification.size());
+        ArrayList<long[]> filesKeys = new ArrayList<>(spectrumIdentification.size());
+        int nKeys = 0;
 
-                psParameter = (PSParameter) identification.getPeptideMatch(peptideKey).getUrParam(psParameter);
+        for (Entry<String, HashSet<Long>> entry : spectrumIdentification.entrySet()) {
 
-                if (psParameter.getMatchValidationLevel().isValidated()) {
+            if (!entry.getValue().isEmpty()) {
 
-                    boolean found = false;
+                long[] fileKeys = entry.getValue().stream()
+                        .mapToLong(Long::longValue)
+                        .sorted()
+                        .toArray();
+                files.add(entry.getKey());
+                filesKeys.add(fileKeys);
+                nKeys += fileKeys.length;
 
-                    for (String keyName : clusteringSettings.getSelectedPeptideClasses()) {
+            }
+        }
 
-                        boolean inCluster = true;
-                        PeptideClusterClassKey peptideClusterClassKey = clusteringSettings.getPeptideClassKey(keyName);
+        psmFiles = files.toArray(new String[files.size()]);
+        psmFilesStart = new int[psmFiles.length];
+        long[] keys = new long[nKeys];
+        nKeys = 0;
 
-                        if (peptideClusterClassKey.isStarred() && !psParameter.getStarred()) {
-                            inCluster = false;
-                        }
+        for (int i = 0; i < psmFiles.length; i++) {
 
-                        if (inCluster && peptideClusterClassKey.isNotModified()) {
+            psmFilesStart[i] = nKeys;
+            long[] fileKeys = filesKeys.get(i);
+            System.arraycopy(fileKeys, 0, keys, nKeys, fileKeys.length);
+            nKeys += fileKeys.length;
 
-                            if (peptide.getNVariableModifications() > 0) {
-                                inCluster = false;
-                                break;
+        }
 
-                            }
-                        }
+        psmLevel = new MatchLevel<>(keys);
+    }
 
-                        if (inCluster && peptideClusterClassKey.getPossiblePtms() != null) {
+    /**
+     * Returns the spectrum file of the PSM at the given row of the PSM level.
+     *
+     * @param row the row
+     *
+     * @return the spectrum file of the PSM
+     */
+    private String getPsmFile(int row) {
 
-                            boolean possiblePtms = false;
+        int index = Arrays.binarySearch(psmFilesStart, row);
 
-                            if (peptide.getNVariableModifications() > 0) {
+        return psmFiles[index >= 0 ? index : -index - 2];
+    }
 
-                                for (ModificationMatch modificationMatch : peptide.getVariableModifications()) {
+    /**
+     * Merges the given rows of a level in order into the given maps, copies
+     * their keys and profiles to the clustering rows, and updates the minimal
+     * and maximal ratios.
+     *
+     * @param level the level
+     * @param classNames the names of the selected classes
+     * @param rows the rows of the level retained in the selected classes
+     * @param filteredKeys the filtered keys indexed by cluster class key
+     * @param clusters the cluster classes indexed by match key
+     * @param keysIndexes the index of the matches in the clustering rows
+     * @param clusteringIndex the index of the first clustering row
+     *
+     * @return the index of the next clustering row
+     */
+    private int merge(
+            MatchLevel<MatchProfile> level,
+            ArrayList<String> classNames,
+            int[] rows,
+            HashMap<String, ArrayList<Long>> filteredKeys,
+            HashMap<Long, ArrayList<String>> clusters,
+            HashMap<Long, Integer> keysIndexes,
+            int clusteringIndex
+    ) {
 
-                                    if (peptideClusterClassKey.getPossiblePtmsAsSet().contains(modificationMatch.getModification())) {
-                                        possiblePtms = true;
-                                        break;
-                                    }
+        for (int row : rows) {
 
-                                }
+            long key = level.getKey(row);
+            ArrayList<String> classes = new ArrayList<String>(classNames.size());
 
-                            }
+            for (String keyName : classNames) {
 
-                            if (!possiblePtms) {
-                                inCluster = false;
-                            }
-                        }
+                if (level.isMember(keyName, row)) {
 
-                        if (inCluster && peptideClusterClassKey.getForbiddenPtms() != null) {
+                    ArrayList<Long> tempClusterKeys = filteredKeys.get(keyName);
 
-                            boolean forbiddenPtms = false;
+                    if (tempClusterKeys == null) {
+                        tempClusterKeys = new ArrayList<Long>();
+                        filteredKeys.put(keyName, tempClusterKeys);
+                    }
 
-                            if (peptide.getNVariableModifications() > 0) {
+                    tempClusterKeys.add(key);
+                    classes.add(keyName);
 
-                                for (ModificationMatch modificationMatch : peptide.getVariableModifications()) {
+                }
+            }
 
-                                    if (peptideClusterClassKey.getForbiddenPtmsAsSet().contains(modificationMatch.getModification())) {
-                                        forbiddenPtms = true;
-                                        break;
-                                    }
+            clusters.put(key, classes);
 
-                                }
+            MatchProfile profile = level.getProfile(row);
 
-                            }
+            if (profile.minRatio <= profile.maxRatio) {
 
-                            if (forbiddenPtms) {
-                                inCluster = false;
-                            }
-                        }
+                if (maxRatio == null || profile.maxRatio > maxRatio) {
+                    maxRatio = profile.maxRatio;
+                }
 
-                        if (inCluster && peptideClusterClassKey.isNTerm() && PeptideUtils.isNterm(peptide, sequenceProvider)) {
-                            inCluster = false;
-                        }
+                if (minRatio == null || profile.minRatio < minRatio) {
+                    minRatio = profile.minRatio;
+                }
+            }
 
-                        if (inCluster && peptideClusterClassKey.isCTerm() && PeptideUtils.isCterm(peptide, sequenceProvider)) {
-                            inCluster = false;
-                        }
+            clusterKeys[clusteringIndex] = key;
+            keysIndexes.put(key, clusteringIndex);
+            System.arraycopy(profile.logRatios, 0, ratios, clusteringIndex * nSamples, nSamples);
+            clusteringIndex++;
 
-                        if (inCluster) {
+        }
 
-                            ArrayList<Long> tempClusterKeys = filteredPeptideKeys.get(keyName);
+        return clusteringIndex;
+    }
 
-                            if (tempClusterKeys == null) {
-                                tempClusterKeys = new ArrayList<Long>();
-                                filteredPeptideKeys.put(keyName, tempClusterKeys);
-                            }
+    /**
+     * Evaluates a protein match against the given protein classes.
+     *
+     * @param identification the identification
+     * @param clusteringSettings the clustering settings
+     * @param classNames the names of the classes
+     * @param proteinKey the key of the protein match
+     *
+     * @return whether the match belongs to every class, null if not validated
+     */
+    private static boolean[] evaluateProteinClasses(
+            Identification identification,
+            ClusteringSettings clusteringSettings,
+            ArrayList<String> classNames,
+            long proteinKey
+    ) {
 
-                            tempClusterKeys.add(peptideKey);
-                            ArrayList<String> clusters = peptideClusters.get(peptideKey);
+        PSParameter psParameter = (PSParameter) identification.getProteinMatch(proteinKey).getUrParam(PSParameter.dummy);
 
-                            if (clusters == null) {
-                                clusters = new ArrayList<String>(nPeptideClusters);
-                                peptideClusters.put(peptideKey, clusters);
-                            }
+        if (!psParameter.getMatchValidationLevel().isValidated()) {
+            return null;
+        }
 
-                            clusters.add(keyName);
-                            found = true;
-                        }
-                    }
+        boolean[] result = new boolean[classNames.size()];
 
-                    if (found) {
+        for (int i = 0; i < classNames.size(); i++) {
 
-                        PeptideQuantificationDetails quantificationDetails = quantificationFeaturesGenerator.getPeptideMatchQuantificationDetails(spectrumProvider, peptideMatch, waitingHandler);
-                        double[] peptideRatios = new double[sampleIndexes.size()];
+            ProteinClusterClassKey proteinClusterClassKey = clusteringSettings.getProteinClassKey(classNames.get(i));
+            result[i] = !proteinClusterClassKey.isStarred() || psParameter.getStarred();
 
-                        for (int sampleIndex = 0; sampleIndex < sampleIndexes.size(); sampleIndex++) {
+        }
 
-                            Double ratio = quantificationDetails.getRatio(sampleIndexes.get(sampleIndex), reporterIonQuantification.getNormalizationFactors());
+        return result;
+    }
 
-                            if (ratio != null) {
+    /**
+     * Evaluates a peptide match against the given peptide classes.
+     *
+     * @param identification the identification
+     * @param sequenceProvider the sequence provider
+     * @param clusteringSettings the clustering settings
+     * @param classNames the names of the classes
+     * @param peptideKey the key of the peptide match
+     *
+     * @return whether the match belongs to every class, null if not validated
+     */
+    private static boolean[] evaluatePeptideClasses(
+            Identification identification,
+            SequenceProvider sequenceProvider,
+            ClusteringSettings clusteringSettings,
+            ArrayList<String> classNames,
+            long peptideKey
+    ) {
 
-                                if (ratio != 0) {
+        PeptideMatch peptideMatch = identification.getPeptideMatch(peptideKey);
+        PSParameter psParameter = (PSParameter) peptideMatch.getUrParam(PSParameter.dummy);
 
-                                    double logRatio = BasicMathFunctions.log(ratio, 2);
-                                    peptideRatios[sampleIndex] = logRatio;
+        if (!psParameter.getMatchValidationLevel().isValidated()) {
+            return null;
+        }
 
-                                    if (maxRatio == null || logRatio > maxRatio) {
-                                        maxRatio = logRatio;
-                                    }
+        Peptide peptide = peptideMatch.getPeptide();
+        boolean[] result = new boolean[classNames.size()];
 
-                                    if (minRatio == null || logRatio < minRatio) {
-                                        minRatio = logRatio;
-                                    }
-                                }
-                            }
-                        }
+        for (int i = 0; i < classNames.size(); i++) {
 
-                        clusterKeys.add(peptideKeyAsString);
-                        peptideKeysIndexes.put(peptideKey, clusteringIndex);
-                        ratiosList.add(peptideRatios);
-                        clusteringIndex++;
-                    }
-                }
+            boolean inCluster = true;
+            PeptideClusterClassKey peptideClusterClassKey = clusteringSettings.getPeptideClassKey(classNames.get(i));
 
-                waitingHandler.increasePrimaryProgressCounter();
+            if (peptideClusterClassKey.isStarred() && !psParameter.getStarred()) {
+                inCluster = false;
             }
-        }
 
-        filteredPsmKeys = new HashMap<String, ArrayList<Long>>(metrics.getnValidatedProteins());
-        psmKeysIndexes = new HashMap<Long, Integer>(metrics.getnValidatedProteins());
-        psmClusters = new HashMap<Long, ArrayList<String>>(nPsmClusters);
+            if (inCluster && peptideClusterClassKey.isNotModified() && peptide.getNVariableModifications() > 0) {
+                inCluster = false;
+            }
 
-        if (nPsmClusters > 0) {
+            if (inCluster && peptideClusterClassKey.getPossiblePtms() != null) {
 
-            TreeSet<String> allMsFiles = new TreeSet<>(identification.getSpectrumIdentification().keySet());
-            HashSet<String> neededFiles = new HashSet<>();
+                boolean possiblePtms = false;
 
-            for (String keyName : clusteringSettings.getSelectedPsmClasses()) {
+                if (peptide.getNVariableModifications() > 0) {
 
-                PsmClusterClassKey psmClusterClassKey = clusteringSettings.getPsmClassKey(keyName);
+                    for (ModificationMatch modificationMatch : peptide.getVariableModifications()) {
 
-                if (psmClusterClassKey.getFile() == null) {
-                    neededFiles.addAll(allMsFiles);
-                    break;
+                        if (peptideClusterClassKey.getPossiblePtmsAsSet().contains(modificationMatch.getModification())) {
+                            possiblePtms = true;
+                            break;
+                        }
+                    }
                 }
 
-                neededFiles.add(psmClusterClassKey.getFile());
+                if (!possiblePtms) {
+                    inCluster = false;
+                }
             }
 
-            for (String spectrumFile : neededFiles) {
+            if (inCluster && peptideClusterClassKey.getForbiddenPtms() != null) {
 
-                SpectrumMatchesIterator spectrumMatchesIterator = identification.getSpectrumMatchesIterator(waitingHandler); //@TODO: sort the PSMs in some way?
-                SpectrumMatch spectrumMatch;
+                boolean forbiddenPtms = false;
 
-                while ((spectrumMatch = spectrumMatchesIterator.next()) != null) {
+                if (peptide.getNVariableModifications() > 0) {
 
-                    long spectrumKey = spectrumMatch.getKey();
-                    String spectrumKeyAsString = Long.toString(spectrumKey);
-                    psParameter = (PSParameter) identification.getSpectrumMatch(spectrumMatch.getKey()).getUrParam(psParameter);
+                    for (ModificationMatch modificationMatch : peptide.getVariableModifications()) {
 
-                    if (psParameter.getMatchValidationLevel().isValidated()) {
-
-                        boolean found = false;
-
-                        for (String keyName : clusteringSettings.getSelectedPsmClasses()) {
+                        if (peptideClusterClassKey.getForbiddenPtmsAsSet().contains(modificationMatch.getModification())) {
+                            forbiddenPtms = true;
+                            break;
+                        }
+                    }
+                }
 
-                            boolean inCluster = true;
-                            PsmClusterClassKey psmClusterClassKey = clusteringSettings.getPsmClassKey(keyName);
+                if (forbiddenPtms) {
+                    inCluster = false;
+                }
+            }
 
-                            if (psmClusterClassKey.getFile() != null && !spectrumFile.equals(psmClusterClassKey.getFile())) {
-                                inCluster = false;
-                            }
+            if (inCluster && peptideClusterClassKey.isNTerm() && PeptideUtils.isNterm(peptide, sequenceProvider)) {
+                inCluster = false;
+            }
 
-                            if (inCluster && psmClusterClassKey.isStarred() && !psParameter.getStarred()) {
-                                inCluster = false;
-                            }
+            if (inCluster && peptideClusterClassKey.isCTerm() && PeptideUtils.isCterm(peptide, sequenceProvider)) {
+                inCluster = false;
+            }
 
-                            if (inCluster) {
+            result[i] = inCluster;
+        }
 
-                                ArrayList<Long> tempClusterKeys = filteredPsmKeys.get(keyName);
+        return result;
+    }
 
-                                if (tempClusterKeys == null) {
-                                    tempClusterKeys = new ArrayList<Long>();
-                                    filteredPsmKeys.put(keyName, tempClusterKeys);
-                                }
+    /**
+     * Evaluates a PSM against the given PSM classes. The match is only loaded
+     * if a class accepts its spectrum file.
+     *
+     * @param identification the identification
+     * @param clusteringSettings the clustering settings
+     * @param classNames the names of the classes
+     * @param spectrumFile the spectrum file of the PSM
+     * @param spectrumKey the key of the spectrum match
+     *
+     * @return whether the match belongs to every class, null if not validated
+     * or if no class accepts its spectrum file
+     */
+    private static boolean[] evaluatePsmClasses(
+            Identification identification,
+            ClusteringSettings clusteringSettings,
+            ArrayList<String> classNames,
+            String spectrumFile,
+            long spectrumKey
+    ) {
 
-                                tempClusterKeys.add(spectrumKey);
-                                ArrayList<String> clusters = psmClusters.get(spectrumKey);
+        boolean[] result = new boolean[classNames.size()];
+        boolean found = false;
 
-                                if (clusters == null) {
-                                    clusters = new ArrayList<String>(nPsmClusters);
-                                    psmClusters.put(spectrumKey, clusters);
-                                }
+        for (int i = 0; i < classNames.size(); i++) {
 
-                                clusters.add(keyName);
-                                found = true;
-                            }
-                        }
-                        if (found) {
+            PsmClusterClassKey psmClusterClassKey = clusteringSettings.getPsmClassKey(classNames.get(i));
+            result[i] = psmClusterClassKey.getFile() == null || spectrumFile.equals(psmClusterClassKey.getFile());
+            found = found || result[i];
 
-                            PsmQuantificationDetails quantificationDetails = quantificationFeaturesGenerator.getPSMQuantificationDetails(spectrumProvider, spectrumKey);
-                            double[] psmRatios = new double[sampleIndexes.size()];
+        }
 
-                            for (int sampleIndex = 0; sampleIndex < sampleIndexes.size(); sampleIndex++) {
+        if (!found) {
+            return null;
+        }
 
-                                Double ratio = quantificationDetails.getRatio(sampleIndexes.get(sampleIndex), reporterIonQuantification.getNormalizationFactors());
+        PSParameter psParameter = (PSParameter) identification.getSpectrumMatch(spectrumKey).getUrParam(PSParameter.dummy);
 
-                                if (ratio != null) {
+        if (!psParameter.getMatchValidationLevel().isValidated()) {
+            return null;
+        }
 
-                                    if (ratio != 0) {
+        for (int i = 0; i < classNames.size(); i++) {
 
-                                        double logRatio = BasicMathFunctions.log(ratio, 2);
-                                        psmRatios[sampleIndex] = logRatio;
+            PsmClusterClassKey psmClusterClassKey = clusteringSettings.getPsmClassKey(classNames.get(i));
+            result[i] = result[i] && (!psmClusterClassKey.isStarred() || psParameter.getStarred());
 
-                                        if (maxRatio == null || logRatio > maxRatio) {
-                                            maxRatio = logRatio;
-                                        }
+        }
 
-                                        if (minRatio == null || logRatio < minRatio) {
-                                            minRatio = logRatio;
-                                        }
-                                    }
-                                }
-                            }
+        return result;
+    }
 
-                            clusterKeys.add(spectrumKeyAsString);
-                            psmKeysIndexes.put(spectrumKey, clusteringIndex);
-                            ratiosList.add(psmRatios);
-                            clusteringIndex++;
-                        }
-                    }
-                    waitingHandler.increasePrimaryProgressCounter();
-                }
-            }
+    /**
+     * Returns the profile of a protein match.
+     *
+     * @param spectrumProvider the spectrum provider
+     * @param reporterIonQuantification the reporter ion quantification
+     * @param quantificationFeaturesGenerator the quantification features
+     * generator
+     * @param sampleIndexes the sorted sample indexes
+     * @param proteinRatioType the type of protein ratio to use
+     * @param proteinKey the key of the protein match
+     * @param waitingHandler the waiting handler
+     *
+     * @return the profile of the protein match
+     */
+    private static MatchProfile getProteinProfile(
+            SpectrumProvider spectrumProvider,
+            ReporterIonQuantification reporterIonQuantification,
+            QuantificationFeaturesGenerator quantificationFeaturesGenerator,
+            ArrayList<String> sampleIndexes,
+            ProteinRatioType proteinRatioType,
+            long proteinKey,
+            WaitingHandler waitingHandler
+    ) {
+
+        ProteinQuantificationDetails quantificationDetails = quantificationFeaturesGenerator.getProteinMatchQuantificationDetails(spectrumProvider, proteinKey, waitingHandler);
+
+        switch (proteinRatioType) {
+
+            case all:
+                return new MatchProfile(
+                        sampleIndexes,
+                        sampleIndex -> quantificationDetails.getRatio(sampleIndex, reporterIonQuantification.getNormalizationFactors())
+                );
+
+            case shared:
+                return new MatchProfile(
+                        sampleIndexes,
+                        sampleIndex -> quantificationDetails.getSharedRatio(sampleIndex, reporterIonQuantification.getNormalizationFactors())
+                );
+
+            case unique:
+                return new MatchProfile(
+                        sampleIndexes,
+                        sampleIndex -> quantificationDetails.getUniqueRatio(sampleIndex, reporterIonQuantification.getNormalizationFactors())
+                );
+
+            default:
+                throw new IllegalArgumentException(
+                        "Ratio type "
+                        + proteinRatioType
+                        + " not supported."
+                );
         }
-        ratios = ratiosList.toArray(new double[ratiosList.size()][sampleIndexes.size()]);
+    }
+
+    /**
+     * Returns the keys of the matches in the order of the rows of the ratios
+     * used for clustering. The array is not copied and must not be modified.
+     *
+     * @return the keys of the matches used for clustering
+     */
+    public long[] getClusterKeys() {
+        return clusterKeys;
     }
 
     /**
@@ -808,4 +1091,53 @@ public class ClusterBuilder {
     public ArrayList<String> getPsmClasses(Long key) {
         return psmClusters.get(key);
     }
+
+    /**
+     * The log2 ratios of a match.
+     */
+    private static class MatchProfile {
+
+        /**
+         * The log2 ratios of the match in the order of the samples, 0 if not
+         * available.
+         */
+        private final float[] logRatios;
+        /**
+         * The minimal log2 ratio of the match, positive infinity if none.
+         */
+        private double minRatio = Double.POSITIVE_INFINITY;
+        /**
+         * The maximal log2 ratio of the match, negative infinity if none.
+         */
+        private double maxRatio = Double.NEGATIVE_INFINITY;
+
+        /**
+         * Constructor.
+         *
+         * @param sampleIndexes the sorted sample indexes
+         * @param ratioFunction function returning the ratio of the match for
+         * a given sample index
+         */
+        MatchProfile(
+                ArrayList<String> sampleIndexes,
+                Function<String, Double> ratioFunction
+        ) {
+
+            logRatios = new float[sampleIndexes.size()];
+
+            for (int sampleIndex = 0; sampleIndex < sampleIndexes.size(); sampleIndex++) {
+
+                Double ratio = ratioFunction.apply(sampleIndexes.get(sampleIndex));
+
+                if (ratio != null && ratio != 0) {
+
+                    double logRatio = BasicMathFunctions.log(ratio, 2);
+                    logRatios[sampleIndex] = (float) logRatio;
+                    minRatio = Math.min(minRatio, logRatio);
+                    maxRatio = Math.max(maxRatio, logRatio);
+
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,405 @@
+package eu.isas.reporter.calculation.clustering;
+
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Selection of the number of clusters of the k-means clustering of the ratio
+ * profiles. The profiles are clustered for every number of clusters of a range
+ * and every clustering is scored by the mean silhouette of a sample of the
+ * rows. The clusterings of the range are run concurrently on a sample of at
+ * most SWEEP_SAMPLE_SIZE rows, and the distances between the rows of the
+ * silhouette sample are computed once and shared by all clusterings. The
+ * profiles are then clustered with the best number of clusters, warm-started
+ * from the centroids obtained on the sample. The range of numbers of clusters
+ * is capped to the number of rows. For a given seed the result does not
+ * depend on the number of threads.
+ *
+ * @author Marc Vaudel
+ */
+public class ClusterCountSelection {
+
+    /**
+     * The maximal number of rows clustered for every number of clusters.
+     */
+    public static final int SWEEP_SAMPLE_SIZE = 20000;
+    /**
+     * The maximal number of rows used to estimate the silhouette.
+     */
+    public static final int SILHOUETTE_SAMPLE_SIZE = 1000;
+    /**
+     * The profiles in a row-major matrix.
+     */
+    private final float[] profiles;
+    /**
+     * The number of dimensions of the profiles.
+     */
+    private final int nDimensions;
+    /**
+     * The keys of the matches of the rows.
+     */
+    private final long[] keys;
+    /**
+     * The smallest number of clusters tested.
+     */
+    private final int minNClusters;
+    /**
+     * The largest number of clusters tested.
+     */
+    private final int maxNClusters;
+    /**
+     * The seed of the random number generator.
+     */
+    private final long seed;
+    /**
+     * The mean silhouette of every number of clusters tested, NaN if not
+     * scored.
+     */
+    private final double[] scores;
+    /**
+     * The number of clusters with the best score.
+     */
+    private int bestNClusters;
+    /**
+     * The clustering of the profiles with the best number of clusters.
+     */
+    private ProfileKMeansClustering clustering;
+
+    /**
+     * Constructor.
+     *
+     * @param profiles the profiles in a row-major matrix
+     * @param nDimensions the number of dimensions of the profiles
+     * @param keys the keys of the matches of the rows
+     * @param minNClusters the smallest number of clusters to test, at least
+     * two, capped to the number of rows
+     * @param maxNClusters the largest number of clusters to test, capped to
+     * the number of rows
+     */
+    public ClusterCountSelection(float[] profiles, int nDimensions, long[] keys, int minNClusters, int maxNClusters) {
+        this(profiles, nDimensions, keys, minNClusters, maxNClusters, ProfileKMeansClustering.DEFAULT_SEED);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param profiles the profiles in a row-major matrix
+     * @param nDimensions the number of dimensions of the profiles
+     * @param keys the keys of the matches of the rows
+     * @param minNClusters the smallest number of clusters to test, at least
+     * two, capped to the number of rows
+     * @param maxNClusters the largest number of clusters to test, capped to
+     * the number of rows
+     * @param seed the seed of the random number generator
+     */
+    public ClusterCountSelection(float[] profiles, int nDimensions, long[] keys, int minNClusters, int maxNClusters, long seed) {
+
+        if (minNClusters < 2 || maxNClusters < minNClusters) {
+            throw new IllegalArgumentException(
+                    "Invalid range of number of clusters: "
+                    + minNClusters
+                    + " to "
+                    + maxNClusters
+                    + "."
+            );
+        }
+
+        this.profiles = profiles;
+        this.nDimensions = nDimensions;
+        this.keys = keys;
+        // the clusterings cannot have more clusters than rows
+        this.maxNClusters = Math.max(1, Math.min(maxNClusters, keys.length));
+        this.minNClusters = Math.min(minNClusters, this.maxNClusters);
+        this.seed = seed;
+        scores = new double[this.maxNClusters - this.minNClusters + 1];
+        Arrays.fill(scores, Double.NaN);
+        bestNClusters = this.minNClusters;
+    }
+
+    /**
+     * Clusters the profiles for every number of clusters of the range and
+     * selects the number of clusters with the best score. Ties are resolved
+     * in favor of the smallest number of clusters.
+     *
+     * @param waitingHandler the waiting handler, can be null
+     */
+    public void select(WaitingHandler waitingHandler) {
+
+        int nRows = keys.length;
+        Random random = new Random(seed);
+
+        // the rows of the sweep
+        int[] sweepRows = sampleRows(nRows, SWEEP_SAMPLE_SIZE, random);
+        float[] sweepProfiles;
+        long[] sweepKeys;
+
+        if (sweepRows.length == nRows) {
+
+            sweepProfiles = profiles;
+            sweepKeys = keys;
+
+        } else {
+
+            sweepProfiles = new float[sweepRows.length * nDimensions];
+            sweepKeys = new long[sweepRows.length];
+
+            for (int i = 0; i < sweepRows.length; i++) {
+                System.arraycopy(profiles, sweepRows[i] * nDimensions, sweepProfiles, i * nDimensions, nDimensions);
+                sweepKeys[i] = keys[sweepRows[i]];
+            }
+        }
+
+        // the distances between the rows of the silhouette sample, shared by all clusterings
+        int[] silhouetteRows = sampleRows(sweepRows.length, SILHOUETTE_SAMPLE_SIZE, random);
+        int nSilhouette = silhouetteRows.length;
+        float[] distances = new float[nSilhouette * nSilhouette];
+
+        IntStream.range(0, nSilhouette)
+                .parallel()
+                .forEach(i -> {
+
+                    int rowStart = silhouetteRows[i] * nDimensions;
+
+                    for (int j = 0; j < nSilhouette; j++) {
+
+                        int otherStart = silhouetteRows[j] * nDimensions;
+                        double distance = 0.0;
+
+                        for (int dimension = 0; dimension < nDimensions; dimension++) {
+                            double difference = sweepProfiles[rowStart + dimension] - sweepProfiles[otherStart + dimension];
+                            distance += difference * difference;
+                        }
+
+                        distances[i * nSilhouette + j] = (float) Math.sqrt(distance);
+                    }
+                });
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(scores.length);
+        }
+
+        // cluster the sample for every number of clusters concurrently
+        ProfileKMeansClustering[] sweepClusterings = new ProfileKMeansClustering[scores.length];
+
+        IntStream.range(0, scores.length)
+                .parallel()
+                .forEach(i -> {
+
+                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                        return;
+                    }
+
+                    ProfileKMeansClustering sweepClustering = new ProfileKMeansClustering(sweepProfiles, nDimensions, sweepKeys, minNClusters + i, seed);
+                    sweepClustering.cluster(null);
+                    sweepClusterings[i] = sweepClustering;
+                    scores[i] = getSilhouette(sweepClustering, silhouetteRows, distances);
+
+                    if (waitingHandler != null) {
+                        synchronized (this) {
+                            waitingHandler.increaseSecondaryProgressCounter();
+                        }
+                    }
+                });
+
+        if (waitingHandler != null) {
+
+            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+        }
+
+        int best = 0;
+
+        for (int i = 1; i < scores.length; i++) {
+            if (scores[i] > scores[best]) {
+                best = i;
+            }
+        }
+
+        bestNClusters = minNClusters + best;
+
+        // cluster all profiles starting from the best clustering of the sample
+        if (sweepRows.length == nRows) {
+
+            clustering = sweepClusterings[best];
+
+        } else {
+
+            clustering = new ProfileKMeansClustering(profiles, nDimensions, keys, bestNClusters, seed);
+            clustering.warmStart(sweepClusterings[best]);
+            clustering.cluster(waitingHandler);
+
+        }
+    }
+
+    /**
+     * Draws a sample of rows without replacement. All rows are returned if
+     * there are not more rows than the sample size.
+     *
+     * @param nRows the number of rows
+     * @param sampleSize the maximal size of the sample
+     * @param random the random number generator
+     *
+     * @return the indexes of the rows of the sample in ascending order
+     */
+    private static int[] sampleRows(int nRows, int sampleSize, Random random) {
+
+        int[] rows = IntStream.range(0, nRows).toArray();
+
+        if (nRows <= sampleSize) {
+            return rows;
+        }
+
+        // partial Fisher-Yates shuffle
+        for (int i = 0; i < sampleSize; i++) {
+
+            int j = i + random.nextInt(nRows - i);
+            int row = rows[j];
+            rows[j] = rows[i];
+            rows[i] = row;
+
+        }
+
+        int[] sample = Arrays.copyOf(rows, sampleSize);
+        Arrays.sort(sample);
+
+        return sample;
+    }
+
+    /**
+     * Returns the mean silhouette of the rows of the silhouette sample. The
+     * silhouette of a row alone in its cluster of the sample is zero.
+     *
+     * @param sweepClustering the clustering of the rows of the sweep
+     * @param silhouetteRows the rows of the silhouette sample
+     * @param distances the distances between the rows of the silhouette
+     * sample
+     *
+     * @return the mean silhouette
+     */
+    private static double getSilhouette(ProfileKMeansClustering sweepClustering, int[] silhouetteRows, float[] distances) {
+
+        int nSilhouette = silhouetteRows.length;
+        int nClusters = sweepClustering.getNumberOfClusters();
+        int[] clusters = new int[nSilhouette];
+        int[] clusterSizes = new int[nClusters];
+
+        for (int i = 0; i < nSilhouette; i++) {
+            clusters[i] = sweepClustering.getCluster(silhouetteRows[i]);
+            clusterSizes[clusters[i]]++;
+        }
+
+        double[] silhouettes = new double[nSilhouette];
+
+        IntStream.range(0, nSilhouette)
+                .parallel()
+                .forEach(i -> {
+
+                    int cluster = clusters[i];
+
+                    if (clusterSizes[cluster] < 2) {
+                        return;
+                    }
+
+                    double[] sums = new double[nClusters];
+
+                    for (int j = 0; j < nSilhouette; j++) {
+                        sums[clusters[j]] += distances[i * nSilhouette + j];
+                    }
+
+                    double a = sums[cluster] / (clusterSizes[cluster] - 1);
+                    double b = Double.POSITIVE_INFINITY;
+
+                    for (int other = 0; other < nClusters; other++) {
+                        if (other != cluster && clusterSizes[other] > 0) {
+                            b = Math.min(b, sums[other] / clusterSizes[other]);
+                        }
+                    }
+
+                    double max = Math.max(a, b);
+
+                    if (b < Double.POSITIVE_INFINITY && max > 0) {
+                        silhouettes[i] = (b - a) / max;
+                    }
+                });
+
+        double sum = 0.0;
+
+        for (double silhouette : silhouettes) {
+            sum += silhouette;
+        }
+
+        return nSilhouette == 0 ? 0.0 : sum / nSilhouette;
+    }
+
+    /**
+     * Returns the smallest number of clusters tested.
+     *
+     * @return the smallest number of clusters tested
+     */
+    public int getMinNClusters() {
+        return minNClusters;
+    }
+
+    /**
+     * Returns the largest number of clusters tested.
+     *
+     * @return the largest number of clusters tested
+     */
+    public int getMaxNClusters() {
+        return maxNClusters;
+    }
+
+    /**
+     * Returns a copy of the scores of the numbers of clusters tested, from
+     * the smallest to the largest number of clusters. The score is the mean
+     * silhouette of the sample, NaN if the selection was canceled before
+     * scoring.
+     *
+     * @return the scores of the numbers of clusters tested
+     */
+    public double[] getScores() {
+        return scores.clone();
+    }
+
+    /**
+     * Returns the score of the given number of clusters, NaN if not scored.
+     *
+     * @param nClusters the number of clusters
+     *
+     * @return the score of the number of clusters
+     */
+    public double getScore(int nClusters) {
+
+        if (nClusters < minNClusters || nClusters > maxNClusters) {
+            return Double.NaN;
+        }
+
+        return scores[nClusters - minNClusters];
+    }
+
+    /**
+     * Returns the number of clusters with the best score.
+     *
+     * @return the number of clusters with the best score
+     */
+    public int getBestNClusters() {
+        return bestNClusters;
+    }
+
+    /**
+     * Returns the clustering of the profiles with the best number of
+     * clusters, null if the selection was canceled or not run.
+     *
+     * @return the clustering of the profiles with the best number of clusters
+     */
+    public ProfileKMeansClustering getClustering() {
+        return clustering;
+    }
+}
@@ -0,0 +1,70 @@
+package eu.isas.reporter.calculation.clustering;
+
+/**
+ * Enum for the linkages of the hierarchical clustering.
+ *
+ * @author Marc Vaudel
+ */
+public enum HierarchicalLinkage {
+
+    ward(0, "Ward", "Merges the clusters with the smallest increase of the within-cluster variance."),
+    average(1, "Average", "Merges the clusters with the smallest average distance between their members.");
+
+    /**
+     * Index of the linkage.
+     */
+    public final int index;
+    /**
+     * Name of the linkage.
+     */
+    public final String name;
+    /**
+     * Description of the linkage.
+     */
+    public final String description;
+
+    /**
+     * Constructor.
+     *
+     * @param index the index of the linkage
+     * @param name the name of the linkage
+     * @param description the description of the linkage
+     */
+    private HierarchicalLinkage(int index, String name, String description) {
+        this.index = index;
+        this.name = name;
+        this.description = description;
+    }
+
+    /**
+     * Returns an array of names of the different options.
+     *
+     * @return an array of names of the different options
+     */
+    public static String[] names() {
+        HierarchicalLinkage[] values = values();
+        String[] names = new String[values.length];
+        int i = 0;
+        for (HierarchicalLinkage linkage : values) {
+            names[i] = linkage.name;
+            i++;
+        }
+        return names;
+    }
+
+    /**
+     * Returns the linkage corresponding to the given index.
+     *
+     * @param index the index
+     *
+     * @return the corresponding linkage
+     */
+    public static HierarchicalLinkage getLinkage(int index) {
+        for (HierarchicalLinkage linkage : values()) {
+            if (linkage.index == index) {
+                return linkage;
+            }
+        }
+        return null;
+    }
+}
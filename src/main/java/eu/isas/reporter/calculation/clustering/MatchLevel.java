@@ -0,0 +1,227 @@
+package eu.isas.reporter.calculation.clustering;
+
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * The matches of a level with the classes they belong to and their profiles,
+ * kept between loadings. Classes are only evaluated once and profiles only
+ * loaded once, until cleared.
+ *
+ * @param <T> the type of profile
+ *
+ * @author Marc Vaudel
+ */
+public class MatchLevel<T> {
+
+    /**
+     * The keys of the matches in the order of the rows.
+     */
+    private final long[] keys;
+    /**
+     * The members of the classes evaluated so far as bitsets over the rows,
+     * indexed by class name.
+     */
+    private final HashMap<String, long[]> classMembers = new HashMap<>();
+    /**
+     * The profiles of the rows, null if not loaded.
+     */
+    private Object[] profiles;
+
+    /**
+     * Constructor.
+     *
+     * @param keys the keys of the matches in the order of the rows
+     */
+    public MatchLevel(long[] keys) {
+        this.keys = keys;
+        profiles = new Object[keys.length];
+    }
+
+    /**
+     * Returns the number of rows.
+     *
+     * @return the number of rows
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * Returns the key of the match of a row.
+     *
+     * @param row the row
+     *
+     * @return the key of the match
+     */
+    public long getKey(int row) {
+        return keys[row];
+    }
+
+    /**
+     * Returns the classes of the given list not evaluated yet.
+     *
+     * @param classNames the names of the classes
+     *
+     * @return the names of the classes not evaluated
+     */
+    public ArrayList<String> getNewClasses(ArrayList<String> classNames) {
+
+        ArrayList<String> result = new ArrayList<>(0);
+
+        for (String className : classNames) {
+
+            if (!classMembers.containsKey(className)) {
+                result.add(className);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Evaluates all rows against the given classes in parallel using the pool
+     * of the calling thread, and stores the members of the classes if the
+     * evaluation was not canceled. Every word of the bitsets is filled by a
+     * single thread.
+     *
+     * @param classNames the names of the classes
+     * @param evaluation the evaluation of the row at a given index returning
+     * whether it belongs to every class, null if it belongs to none
+     * @param waitingHandler the waiting handler
+     */
+    public void evaluateClasses(ArrayList<String> classNames, IntFunction<boolean[]> evaluation, WaitingHandler waitingHandler) {
+
+        int nRows = keys.length;
+        int nClasses = classNames.size();
+        int nWords = (nRows + 63) >>> 6;
+        long[][] members = new long[nClasses][nWords];
+
+        IntStream.range(0, nWords)
+                .parallel()
+                .forEach(word -> {
+
+                    int end = Math.min((word + 1) << 6, nRows);
+
+                    for (int row = word << 6; row < end && !waitingHandler.isRunCanceled(); row++) {
+
+                        boolean[] membership = evaluation.apply(row);
+
+                        if (membership != null) {
+
+                            for (int i = 0; i < nClasses; i++) {
+
+                                if (membership[i]) {
+                                    members[i][word] |= 1L << row;
+                                }
+                            }
+                        }
+
+                        waitingHandler.increasePrimaryProgressCounter();
+                    }
+                });
+
+        if (!waitingHandler.isRunCanceled()) {
+
+            for (int i = 0; i < nClasses; i++) {
+                classMembers.put(classNames.get(i), members[i]);
+            }
+        }
+    }
+
+    /**
+     * Indicates whether a row belongs to a class.
+     *
+     * @param className the name of the class
+     * @param row the row
+     *
+     * @return a boolean indicating whether the row belongs to the class
+     */
+    public boolean isMember(String className, int row) {
+        return (classMembers.get(className)[row >>> 6] & (1L << row)) != 0;
+    }
+
+    /**
+     * Returns the rows belonging to at least one of the given classes in
+     * ascending order.
+     *
+     * @param classNames the names of the classes
+     *
+     * @return the rows belonging to the classes
+     */
+    public int[] getRows(ArrayList<String> classNames) {
+
+        long[] union = new long[(keys.length + 63) >>> 6];
+
+        for (String className : classNames) {
+
+            long[] members = classMembers.get(className);
+
+            for (int word = 0; word < union.length; word++) {
+                union[word] |= members[word];
+            }
+        }
+
+        return BitSet.valueOf(union).stream().toArray();
+    }
+
+    /**
+     * Returns the rows among the given ones without profile.
+     *
+     * @param rows the rows
+     *
+     * @return the rows without profile
+     */
+    public int[] getRowsWithoutProfile(int[] rows) {
+        return Arrays.stream(rows)
+                .filter(row -> profiles[row] == null)
+                .toArray();
+    }
+
+    /**
+     * Loads the profiles of the given rows in parallel using the pool of the
+     * calling thread.
+     *
+     * @param rows the rows
+     * @param profileFunction the function returning the profile of a row
+     * @param waitingHandler the waiting handler
+     */
+    public void loadProfiles(int[] rows, IntFunction<T> profileFunction, WaitingHandler waitingHandler) {
+
+        Arrays.stream(rows)
+                .parallel()
+                .forEach(row -> {
+
+                    if (!waitingHandler.isRunCanceled()) {
+
+                        profiles[row] = profileFunction.apply(row);
+                        waitingHandler.increasePrimaryProgressCounter();
+
+                    }
+                });
+    }
+
+    /**
+     * Returns the profile of a row.
+     *
+     * @param row the row
+     *
+     * @return the profile of the row, null if not loaded
+     */
+    @SuppressWarnings("unchecked")
+    public T getProfile(int row) {
+        return (T) profiles[row];
+    }
+
+    /**
+     * Clears the profiles.
+     */
+    public void clearProfiles() {
+        profiles = new Object[keys.length];
+    }
+}
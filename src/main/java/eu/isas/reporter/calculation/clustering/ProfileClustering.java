@@ -0,0 +1,202 @@
+package eu.isas.reporter.calculation.clustering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Partition of the ratio profiles of the matches into clusters. The profiles
+ * are stored in a contiguous row-major matrix and every row is assigned to a
+ * cluster. This class provides the members of the clusters to the display
+ * independently of the clustering method.
+ *
+ * @author Marc Vaudel
+ */
+public abstract class ProfileClustering {
+
+    /**
+     * The profiles in a row-major matrix.
+     */
+    protected final float[] profiles;
+    /**
+     * The number of dimensions of the profiles.
+     */
+    protected final int nDimensions;
+    /**
+     * The number of rows.
+     */
+    protected final int nRows;
+    /**
+     * The keys of the matches of the rows.
+     */
+    protected final long[] keys;
+    /**
+     * The cluster of every row.
+     */
+    protected final int[] assignments;
+    /**
+     * The rows of every cluster in ascending order.
+     */
+    private int[][] clusterRows;
+
+    /**
+     * Constructor.
+     *
+     * @param profiles the profiles in a row-major matrix
+     * @param nDimensions the number of dimensions of the profiles
+     * @param keys the keys of the matches of the rows
+     */
+    protected ProfileClustering(float[] profiles, int nDimensions, long[] keys) {
+
+        if (nDimensions < 1 || profiles.length != keys.length * nDimensions) {
+            throw new IllegalArgumentException(
+                    "Profiles of length "
+                    + profiles.length
+                    + " do not match "
+                    + keys.length
+                    + " rows of "
+                    + nDimensions
+                    + " dimensions."
+            );
+        }
+
+        this.profiles = profiles;
+        this.nDimensions = nDimensions;
+        this.keys = keys;
+        nRows = keys.length;
+        assignments = new int[nRows];
+    }
+
+    /**
+     * Returns the number of clusters.
+     *
+     * @return the number of clusters
+     */
+    public abstract int getNumberOfClusters();
+
+    /**
+     * Indexes the rows of every cluster. Must be called once the assignments
+     * are final.
+     */
+    protected void indexClusters() {
+
+        int nClusters = getNumberOfClusters();
+        int[] clusterSizes = new int[nClusters];
+
+        for (int cluster : assignments) {
+            clusterSizes[cluster]++;
+        }
+
+        clusterRows = new int[nClusters][];
+
+        for (int cluster = 0; cluster < nClusters; cluster++) {
+            clusterRows[cluster] = new int[clusterSizes[cluster]];
+        }
+
+        Arrays.fill(clusterSizes, 0);
+
+        for (int row = 0; row < nRows; row++) {
+            int cluster = assignments[row];
+            clusterRows[cluster][clusterSizes[cluster]++] = row;
+        }
+    }
+
+    /**
+     * Indicates whether the rows of the clusters are indexed, i.e. whether
+     * the clustering was completed.
+     *
+     * @return a boolean indicating whether the rows of the clusters are
+     * indexed
+     */
+    public boolean isIndexed() {
+        return clusterRows != null;
+    }
+
+    /**
+     * Returns the cluster of a row.
+     *
+     * @param row the index of the row
+     *
+     * @return the index of the cluster of the row
+     */
+    public int getCluster(int row) {
+        return assignments[row];
+    }
+
+    /**
+     * Returns the number of members of a cluster.
+     *
+     * @param cluster the index of the cluster
+     *
+     * @return the number of members of the cluster
+     */
+    public int getClusterSize(int cluster) {
+        return clusterRows[cluster].length;
+    }
+
+    /**
+     * Returns the keys of the members of a cluster in the order of the rows.
+     *
+     * @param cluster the index of the cluster
+     *
+     * @return the keys of the members of the cluster
+     */
+    public long[] getClusterMemberKeys(int cluster) {
+
+        int[] rows = clusterRows[cluster];
+        long[] result = new long[rows.length];
+
+        for (int i = 0; i < rows.length; i++) {
+            result[i] = keys[rows[i]];
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the keys of the members of a cluster as strings in the order of
+     * the rows.
+     *
+     * @param cluster the index of the cluster
+     *
+     * @return the keys of the members of the cluster
+     */
+    public ArrayList<String> getClusterMembers(int cluster) {
+
+        int[] rows = clusterRows[cluster];
+        ArrayList<String> result = new ArrayList<>(rows.length);
+
+        for (int row : rows) {
+            result.add(Long.toString(keys[row]));
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the profiles of the members of a cluster indexed by key as
+     * string.
+     *
+     * @param cluster the index of the cluster
+     *
+     * @return the profiles of the members of the cluster
+     */
+    public HashMap<String, ArrayList<Double>> getClusterMembersData(int cluster) {
+
+        int[] rows = clusterRows[cluster];
+        HashMap<String, ArrayList<Double>> result = new HashMap<>(rows.length);
+
+        for (int row : rows) {
+
+            ArrayList<Double> profile = new ArrayList<>(nDimensions);
+
+            for (int dimension = 0; dimension < nDimensions; dimension++) {
+                profile.add((double) profiles[row * nDimensions + dimension]);
+            }
+
+            result.put(Long.toString(keys[row]), profile);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,704 @@
+package eu.isas.reporter.calculation.clustering;
+
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Hierarchical agglomerative clustering of the ratio profiles of the matches
+ * using the nearest-neighbour chain algorithm. The Ward and average linkages
+ * are reducible, hence the chain yields the same dendrogram as the naive
+ * algorithm without storing the nearest neighbours of all clusters. For Ward,
+ * the distances are computed on demand from the centroids and sizes of the
+ * clusters, which for the few dimensions of reporter ion profiles is cheaper
+ * than reading them from memory. For the average linkage, the distances are
+ * stored in a condensed float matrix when it fits in a quarter of the heap,
+ * and computed on demand from the members of the clusters otherwise. The
+ * nearest neighbour searches and the updates of the matrix are run in
+ * parallel using the pool of the calling thread, ties are resolved by index
+ * so that the dendrogram does not depend on the number of threads. The
+ * dendrogram is cut into a given number of clusters.
+ *
+ * @author Marc Vaudel
+ */
+public class ProfileHierarchicalClustering extends ProfileClustering {
+
+    /**
+     * The maximal number of elements of the condensed distance matrix.
+     */
+    public static final long MAX_CONDENSED_SIZE = Integer.MAX_VALUE - 8;
+    /**
+     * The maximal number of partitions of the clusters searched for a
+     * nearest neighbour.
+     */
+    private static final int MAX_PARTITIONS = 64;
+    /**
+     * The minimal number of clusters of a partition.
+     */
+    private static final int PARTITION_SIZE = 1024;
+    /**
+     * The linkage.
+     */
+    private final HierarchicalLinkage linkage;
+    /**
+     * The number of clusters of the cut.
+     */
+    private int nClusters;
+    /**
+     * A row of the first cluster of every merge, in order of height.
+     */
+    private int[] mergeRows1;
+    /**
+     * A row of the second cluster of every merge, in order of height.
+     */
+    private int[] mergeRows2;
+    /**
+     * The node of the first cluster of every merge. The rows are the nodes 0
+     * to nRows - 1 and the merge i is the node nRows + i.
+     */
+    private int[] mergeLeft;
+    /**
+     * The node of the second cluster of every merge.
+     */
+    private int[] mergeRight;
+    /**
+     * The height of every merge.
+     */
+    private double[] mergeHeights;
+    /**
+     * The number of rows of the cluster of every merge.
+     */
+    private int[] mergeSizes;
+    /**
+     * The condensed matrix of the average distances between the clusters
+     * while building the dendrogram, null if computed on demand.
+     */
+    private float[] condensed;
+    /**
+     * The centroids of the clusters while building the dendrogram with the
+     * Ward linkage on demand.
+     */
+    private double[] centroids;
+    /**
+     * The first row of every cluster while building the dendrogram with the
+     * average linkage on demand.
+     */
+    private int[] memberHeads;
+    /**
+     * The last row of every cluster while building the dendrogram with the
+     * average linkage on demand.
+     */
+    private int[] memberTails;
+    /**
+     * The next row of the cluster of every row while building the dendrogram
+     * with the average linkage on demand, -1 for the last row.
+     */
+    private int[] memberNext;
+    /**
+     * The number of rows of every cluster while building the dendrogram.
+     */
+    private int[] sizes;
+    /**
+     * The clusters remaining while building the dendrogram, indexed by their
+     * smallest row, in ascending order.
+     */
+    private int[] activeClusters;
+    /**
+     * The number of clusters remaining while building the dendrogram.
+     */
+    private int nActive;
+
+    /**
+     * Constructor.
+     *
+     * @param profiles the profiles in a row-major matrix
+     * @param nDimensions the number of dimensions of the profiles
+     * @param keys the keys of the matches of the rows
+     * @param linkage the linkage
+     * @param nClusters the number of clusters of the cut, capped to the
+     * number of rows
+     */
+    public ProfileHierarchicalClustering(float[] profiles, int nDimensions, long[] keys, HierarchicalLinkage linkage, int nClusters) {
+
+        super(profiles, nDimensions, keys);
+
+        if (nClusters < 1) {
+            throw new IllegalArgumentException("At least one cluster is needed, " + nClusters + " requested.");
+        }
+
+        this.linkage = linkage;
+        this.nClusters = nClusters;
+    }
+
+    /**
+     * Builds the dendrogram and cuts it into the number of clusters given to
+     * the constructor. If the run is canceled, the dendrogram is not built.
+     *
+     * @param waitingHandler the waiting handler, can be null
+     */
+    public void cluster(WaitingHandler waitingHandler) {
+
+        int nMerges = Math.max(0, nRows - 1);
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(nMerges);
+        }
+
+        initialize();
+
+        int[] rows1 = new int[nMerges];
+        int[] rows2 = new int[nMerges];
+        double[] heights = new double[nMerges];
+        int[] chain = new int[nRows];
+        int chainLength = 0;
+
+        for (int merge = 0; merge < nMerges; merge++) {
+
+            if (waitingHandler != null) {
+
+                if (waitingHandler.isRunCanceled()) {
+                    release();
+                    return;
+                }
+
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+
+            if (chainLength == 0) {
+                chain[chainLength++] = activeClusters[0];
+            }
+
+            // grow the chain until two clusters are reciprocal nearest neighbours
+            while (true) {
+
+                int cluster = chain[chainLength - 1];
+                Neighbour neighbour = getNearestNeighbour(cluster);
+
+                if (chainLength > 1) {
+
+                    int previous = chain[chainLength - 2];
+                    double previousDistance = distance(cluster, previous);
+
+                    if (previousDistance <= neighbour.distance) {
+
+                        chainLength -= 2;
+                        rows1[merge] = Math.min(cluster, previous);
+                        rows2[merge] = Math.max(cluster, previous);
+                        heights[merge] = linkage == HierarchicalLinkage.ward ? Math.sqrt(previousDistance) : previousDistance;
+                        merge(cluster, previous);
+                        break;
+
+                    }
+                }
+
+                chain[chainLength++] = neighbour.cluster;
+            }
+        }
+
+        release();
+        buildDendrogram(rows1, rows2, heights);
+        cut(nClusters);
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+        }
+    }
+
+    /**
+     * Sets up the distances and clusters before building the dendrogram,
+     * every row being its own cluster.
+     */
+    private void initialize() {
+
+        activeClusters = IntStream.range(0, nRows).toArray();
+        nActive = nRows;
+        sizes = new int[nRows];
+        Arrays.fill(sizes, 1);
+
+        long condensedSize = (long) nRows * (nRows - 1) / 2;
+
+        if (linkage == HierarchicalLinkage.ward) {
+
+            centroids = new double[profiles.length];
+
+            for (int i = 0; i < profiles.length; i++) {
+                centroids[i] = profiles[i];
+            }
+
+        } else if (condensedSize <= MAX_CONDENSED_SIZE && condensedSize * Float.BYTES <= Runtime.getRuntime().maxMemory() / 4) {
+
+            condensed = new float[(int) condensedSize];
+
+            IntStream.range(0, nRows)
+                    .parallel()
+                    .forEach(row1 -> {
+
+                        for (int row2 = row1 + 1; row2 < nRows; row2++) {
+                            condensed[getCondensedIndex(row1, row2)] = (float) Math.sqrt(squaredDistance(row1, row2));
+                        }
+                    });
+
+        } else {
+
+            memberHeads = IntStream.range(0, nRows).toArray();
+            memberTails = IntStream.range(0, nRows).toArray();
+            memberNext = new int[nRows];
+            Arrays.fill(memberNext, -1);
+
+        }
+    }
+
+    /**
+     * Releases the memory used to build the dendrogram.
+     */
+    private void release() {
+
+        condensed = null;
+        centroids = null;
+        memberHeads = null;
+        memberTails = null;
+        memberNext = null;
+        sizes = null;
+        activeClusters = null;
+
+    }
+
+    /**
+     * Returns the index of the distance between two rows in the condensed
+     * matrix.
+     *
+     * @param row1 the smallest row
+     * @param row2 the largest row
+     *
+     * @return the index of the distance in the condensed matrix
+     */
+    private int getCondensedIndex(int row1, int row2) {
+        return (int) ((long) nRows * row1 - (long) row1 * (row1 + 1) / 2 + row2 - row1 - 1);
+    }
+
+    /**
+     * Returns the squared Euclidean distance between two rows.
+     *
+     * @param row1 the index of the first row
+     * @param row2 the index of the second row
+     *
+     * @return the squared distance between the rows
+     */
+    private double squaredDistance(int row1, int row2) {
+
+        int start1 = row1 * nDimensions;
+        int start2 = row2 * nDimensions;
+        double distance = 0.0;
+
+        for (int dimension = 0; dimension < nDimensions; dimension++) {
+            double difference = profiles[start1 + dimension] - profiles[start2 + dimension];
+            distance += difference * difference;
+        }
+
+        return distance;
+    }
+
+    /**
+     * Returns the distance between two clusters: the Ward distance, i.e.
+     * twice the increase of the within-cluster sum of squares when merging
+     * the clusters, for the Ward linkage, and the mean Euclidean distance
+     * between the members for the average linkage.
+     *
+     * @param cluster1 the first cluster
+     * @param cluster2 the second cluster
+     *
+     * @return the distance between the clusters
+     */
+    private double distance(int cluster1, int cluster2) {
+
+        int low = Math.min(cluster1, cluster2);
+        int high = Math.max(cluster1, cluster2);
+
+        if (condensed != null) {
+            return condensed[getCondensedIndex(low, high)];
+        }
+
+        if (linkage == HierarchicalLinkage.ward) {
+
+            int start1 = low * nDimensions;
+            int start2 = high * nDimensions;
+            double distance = 0.0;
+
+            for (int dimension = 0; dimension < nDimensions; dimension++) {
+                double difference = centroids[start1 + dimension] - centroids[start2 + dimension];
+                distance += difference * difference;
+            }
+
+            double size1 = sizes[low];
+            double size2 = sizes[high];
+
+            return 2 * size1 * size2 / (size1 + size2) * distance;
+
+        }
+
+        double sum = 0.0;
+
+        for (int row1 = memberHeads[low]; row1 != -1; row1 = memberNext[row1]) {
+            for (int row2 = memberHeads[high]; row2 != -1; row2 = memberNext[row2]) {
+                sum += Math.sqrt(squaredDistance(row1, row2));
+            }
+        }
+
+        return sum / ((double) sizes[low] * sizes[high]);
+    }
+
+    /**
+     * Returns the nearest neighbour of a cluster among the remaining
+     * clusters. Ties are resolved in favor of the smallest cluster index.
+     *
+     * @param cluster the cluster
+     *
+     * @return the nearest neighbour of the cluster
+     */
+    private Neighbour getNearestNeighbour(int cluster) {
+
+        int nPartitions = Math.max(1, Math.min(MAX_PARTITIONS, nActive / PARTITION_SIZE));
+        Neighbour[] partitionNeighbours = new Neighbour[nPartitions];
+
+        IntStream.range(0, nPartitions)
+                .parallel()
+                .forEach(partition -> {
+
+                    Neighbour neighbour = new Neighbour();
+                    int end = (int) ((long) nActive * (partition + 1) / nPartitions);
+
+                    for (int i = (int) ((long) nActive * partition / nPartitions); i < end; i++) {
+
+                        int other = activeClusters[i];
+
+                        if (other != cluster) {
+
+                            double distance = distance(cluster, other);
+
+                            if (distance < neighbour.distance) {
+                                neighbour.distance = distance;
+                                neighbour.cluster = other;
+                            }
+                        }
+                    }
+
+                    partitionNeighbours[partition] = neighbour;
+
+                });
+
+        Neighbour result = partitionNeighbours[0];
+
+        for (int partition = 1; partition < nPartitions; partition++) {
+            if (partitionNeighbours[partition].distance < result.distance) {
+                result = partitionNeighbours[partition];
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Merges two clusters. The merged cluster takes the index of the smallest
+     * one.
+     *
+     * @param cluster1 the first cluster
+     * @param cluster2 the second cluster
+     */
+    private void merge(int cluster1, int cluster2) {
+
+        int kept = Math.min(cluster1, cluster2);
+        int removed = Math.max(cluster1, cluster2);
+        double keptSize = sizes[kept];
+        double removedSize = sizes[removed];
+
+        if (linkage == HierarchicalLinkage.ward) {
+
+            int keptStart = kept * nDimensions;
+            int removedStart = removed * nDimensions;
+
+            for (int dimension = 0; dimension < nDimensions; dimension++) {
+                centroids[keptStart + dimension] = (keptSize * centroids[keptStart + dimension] + removedSize * centroids[removedStart + dimension]) / (keptSize + removedSize);
+            }
+
+        } else if (condensed != null) {
+
+            // Lance-Williams update of the distances to the merged cluster
+            IntStream.range(0, nActive)
+                    .parallel()
+                    .forEach(i -> {
+
+                        int other = activeClusters[i];
+
+                        if (other != kept && other != removed) {
+
+                            int index1 = getCondensedIndex(Math.min(other, kept), Math.max(other, kept));
+                            int index2 = getCondensedIndex(Math.min(other, removed), Math.max(other, removed));
+                            condensed[index1] = (float) ((keptSize * condensed[index1] + removedSize * condensed[index2]) / (keptSize + removedSize));
+
+                        }
+                    });
+
+        } else {
+
+            memberNext[memberTails[kept]] = memberHeads[removed];
+            memberTails[kept] = memberTails[removed];
+
+        }
+
+        sizes[kept] += sizes[removed];
+
+        int index = Arrays.binarySearch(activeClusters, 0, nActive, removed);
+        System.arraycopy(activeClusters, index + 1, activeClusters, index, nActive - index - 1);
+        nActive--;
+    }
+
+    /**
+     * Sorts the merges by height and labels the nodes of the dendrogram.
+     *
+     * @param rows1 a row of the first cluster of every merge
+     * @param rows2 a row of the second cluster of every merge
+     * @param heights the height of every merge
+     */
+    private void buildDendrogram(int[] rows1, int[] rows2, double[] heights) {
+
+        int nMerges = heights.length;
+        int[] order = IntStream.range(0, nMerges)
+                .boxed()
+                .sorted((merge1, merge2) -> Double.compare(heights[merge1], heights[merge2]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        mergeRows1 = new int[nMerges];
+        mergeRows2 = new int[nMerges];
+        mergeLeft = new int[nMerges];
+        mergeRight = new int[nMerges];
+        mergeHeights = new double[nMerges];
+        mergeSizes = new int[nMerges];
+
+        int[] parents = IntStream.range(0, nRows).toArray();
+        int[] nodes = IntStream.range(0, nRows).toArray();
+        int[] nodeSizes = new int[nRows];
+        Arrays.fill(nodeSizes, 1);
+
+        for (int i = 0; i < nMerges; i++) {
+
+            int merge = order[i];
+            int root1 = getRoot(parents, rows1[merge]);
+            int root2 = getRoot(parents, rows2[merge]);
+
+            mergeRows1[i] = rows1[merge];
+            mergeRows2[i] = rows2[merge];
+            mergeLeft[i] = Math.min(nodes[root1], nodes[root2]);
+            mergeRight[i] = Math.max(nodes[root1], nodes[root2]);
+            mergeHeights[i] = heights[merge];
+            mergeSizes[i] = nodeSizes[root1] + nodeSizes[root2];
+
+            parents[root2] = root1;
+            nodes[root1] = nRows + i;
+            nodeSizes[root1] = mergeSizes[i];
+
+        }
+    }
+
+    /**
+     * Returns the root of a row in a union-find forest and compresses the
+     * path.
+     *
+     * @param parents the parent of every row
+     * @param row the row
+     *
+     * @return the root of the row
+     */
+    private static int getRoot(int[] parents, int row) {
+
+        int root = row;
+
+        while (parents[root] != root) {
+            root = parents[root];
+        }
+
+        while (parents[row] != root) {
+            int parent = parents[row];
+            parents[row] = root;
+            row = parent;
+        }
+
+        return root;
+    }
+
+    /**
+     * Cuts the dendrogram into the given number of clusters. The clusters
+     * are numbered in the order of their first row.
+     *
+     * @param nClusters the number of clusters, capped to the number of rows
+     */
+    public void cut(int nClusters) {
+
+        if (!isBuilt()) {
+            throw new IllegalStateException("The dendrogram is not built.");
+        }
+
+        this.nClusters = Math.max(1, Math.min(nClusters, nRows));
+
+        int[] parents = IntStream.range(0, nRows).toArray();
+
+        for (int i = 0; i < nRows - this.nClusters; i++) {
+
+            int root1 = getRoot(parents, mergeRows1[i]);
+            int root2 = getRoot(parents, mergeRows2[i]);
+            parents[Math.max(root1, root2)] = Math.min(root1, root2);
+
+        }
+
+        int[] labels = new int[nRows];
+        Arrays.fill(labels, -1);
+        int nLabels = 0;
+
+        for (int row = 0; row < nRows; row++) {
+
+            int root = getRoot(parents, row);
+
+            if (labels[root] == -1) {
+                labels[root] = nLabels++;
+            }
+
+            assignments[row] = labels[root];
+        }
+
+        indexClusters();
+    }
+
+    /**
+     * Indicates whether the dendrogram is built.
+     *
+     * @return a boolean indicating whether the dendrogram is built
+     */
+    public boolean isBuilt() {
+        return mergeHeights != null;
+    }
+
+    /**
+     * Returns the linkage.
+     *
+     * @return the linkage
+     */
+    public HierarchicalLinkage getLinkage() {
+        return linkage;
+    }
+
+    @Override
+    public int getNumberOfClusters() {
+        return nClusters;
+    }
+
+    /**
+     * Returns the number of merges of the dendrogram.
+     *
+     * @return the number of merges of the dendrogram
+     */
+    public int getNMerges() {
+        return mergeHeights.length;
+    }
+
+    /**
+     * Returns the node of the first cluster of a merge. The rows are the
+     * nodes 0 to nRows - 1 and the merge i is the node nRows + i.
+     *
+     * @param merge the index of the merge in order of height
+     *
+     * @return the node of the first cluster of the merge
+     */
+    public int getMergeLeft(int merge) {
+        return mergeLeft[merge];
+    }
+
+    /**
+     * Returns the node of the second cluster of a merge.
+     *
+     * @param merge the index of the merge in order of height
+     *
+     * @return the node of the second cluster of the merge
+     */
+    public int getMergeRight(int merge) {
+        return mergeRight[merge];
+    }
+
+    /**
+     * Returns the height of a merge: the Ward distance for the Ward linkage
+     * and the mean Euclidean distance between the members for the average
+     * linkage.
+     *
+     * @param merge the index of the merge in order of height
+     *
+     * @return the height of the merge
+     */
+    public double getMergeHeight(int merge) {
+        return mergeHeights[merge];
+    }
+
+    /**
+     * Returns the number of rows of the cluster of a merge.
+     *
+     * @param merge the index of the merge in order of height
+     *
+     * @return the number of rows of the cluster of the merge
+     */
+    public int getMergeSize(int merge) {
+        return mergeSizes[merge];
+    }
+
+    /**
+     * Returns the rows in the order of the leaves of the dendrogram, the
+     * first cluster of every merge being drawn first.
+     *
+     * @return the rows in the order of the leaves of the dendrogram
+     */
+    public int[] getLeafOrder() {
+
+        int[] result = new int[nRows];
+
+        if (nRows == 0) {
+            return result;
+        }
+
+        int[] stack = new int[nRows];
+        int stackSize = 0;
+        int nLeaves = 0;
+        stack[stackSize++] = 2 * nRows - 2;
+
+        while (stackSize > 0) {
+
+            int node = stack[--stackSize];
+
+            if (node < nRows) {
+
+                result[nLeaves++] = node;
+
+            } else {
+
+                stack[stackSize++] = mergeRight[node - nRows];
+                stack[stackSize++] = mergeLeft[node - nRows];
+
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * The nearest neighbour of a cluster.
+     */
+    private static class Neighbour {
+
+        /**
+         * The index of the neighbour cluster, -1 if none.
+         */
+        private int cluster = -1;
+        /**
+         * The distance to the neighbour cluster.
+         */
+        private double distance = Double.POSITIVE_INFINITY;
+    }
+}
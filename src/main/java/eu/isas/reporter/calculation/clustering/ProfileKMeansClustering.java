@@ -0,0 +1,671 @@
+package eu.isas.reporter.calculation.clustering;
+
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * K-means clustering of the ratio profiles of the matches. The profiles are
+ * stored in a contiguous row-major matrix. The centroids are seeded using
+ * k-means++ and refined by Lloyd iterations where distance computations are
+ * skipped using the bounds of Hamerly. The assignment of the rows and the
+ * update of the centroids are run in parallel using the pool of the calling
+ * thread. Inputs of more than MINI_BATCH_THRESHOLD rows are refined using
+ * mini-batch k-means followed by a single assignment of all rows. The
+ * clustering can be warm-started from the centroids of a previous clustering.
+ * For a given seed and starting point the result does not depend on the
+ * number of threads.
+ *
+ * @author Marc Vaudel
+ */
+public class ProfileKMeansClustering extends ProfileClustering {
+
+    /**
+     * The number of rows above which the mini-batch mode is used.
+     */
+    public static final int MINI_BATCH_THRESHOLD = 100000;
+    /**
+     * The number of rows sampled in every mini-batch.
+     */
+    public static final int MINI_BATCH_SIZE = 4096;
+    /**
+     * The maximal number of iterations or mini-batches.
+     */
+    public static final int MAX_ITERATIONS = 100;
+    /**
+     * The default seed.
+     */
+    public static final long DEFAULT_SEED = 42L;
+    /**
+     * The maximal number of partitions of the rows used to sum the centroids.
+     */
+    private static final int MAX_PARTITIONS = 64;
+    /**
+     * The minimal number of rows of a partition.
+     */
+    private static final int PARTITION_SIZE = 1024;
+    /**
+     * The number of clusters.
+     */
+    private final int nClusters;
+    /**
+     * The seed of the random number generator.
+     */
+    private final long seed;
+    /**
+     * The centroids in a row-major matrix.
+     */
+    private final double[] centroids;
+    /**
+     * The number of centroids set by a warm start.
+     */
+    private int nInitialCentroids = 0;
+    /**
+     * The upper bound of the distance of every row to its centroid.
+     */
+    private double[] upperBounds;
+    /**
+     * The lower bound of the distance of every row to the other centroids.
+     */
+    private double[] lowerBounds;
+
+    /**
+     * Constructor.
+     *
+     * @param profiles the profiles in a row-major matrix
+     * @param nDimensions the number of dimensions of the profiles
+     * @param keys the keys of the matches of the rows
+     * @param nClusters the number of clusters, capped to the number of rows
+     */
+    public ProfileKMeansClustering(float[] profiles, int nDimensions, long[] keys, int nClusters) {
+        this(profiles, nDimensions, keys, nClusters, DEFAULT_SEED);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param profiles the profiles in a row-major matrix
+     * @param nDimensions the number of dimensions of the profiles
+     * @param keys the keys of the matches of the rows
+     * @param nClusters the number of clusters, capped to the number of rows
+     * @param seed the seed of the random number generator
+     */
+    public ProfileKMeansClustering(float[] profiles, int nDimensions, long[] keys, int nClusters, long seed) {
+
+        super(profiles, nDimensions, keys);
+
+        if (nClusters < 1) {
+            throw new IllegalArgumentException("At least one cluster is needed, " + nClusters + " requested.");
+        }
+
+        this.seed = seed;
+        this.nClusters = Math.max(1, Math.min(nClusters, nRows));
+        centroids = new double[this.nClusters * nDimensions];
+    }
+
+    /**
+     * Uses the centroids of a previous clustering of profiles with the same
+     * number of dimensions as starting point. If the previous clustering had
+     * more clusters, the closest centroids are merged pairwise weighted by
+     * the size of their clusters. If it had fewer, the missing centroids are
+     * seeded using k-means++. Clusterings of other dimensions or not
+     * completed are ignored.
+     *
+     * @param previousClustering the previous clustering
+     */
+    public void warmStart(ProfileKMeansClustering previousClustering) {
+
+        if (previousClustering.nDimensions != nDimensions || !previousClustering.isIndexed()) {
+            return;
+        }
+
+        int nPrevious = previousClustering.nClusters;
+        double[][] previousCentroids = new double[nPrevious][];
+        double[] weights = new double[nPrevious];
+
+        for (int cluster = 0; cluster < nPrevious; cluster++) {
+            previousCentroids[cluster] = previousClustering.getCentroid(cluster);
+            weights[cluster] = previousClustering.getClusterSize(cluster);
+        }
+
+        // merge the closest centroids
+        for (; nPrevious > nClusters; nPrevious--) {
+
+            int cluster1 = 0;
+            int cluster2 = 1;
+            double minDistance = Double.POSITIVE_INFINITY;
+
+            for (int i = 0; i < nPrevious; i++) {
+
+                for (int j = i + 1; j < nPrevious; j++) {
+
+                    double distance = 0.0;
+
+                    for (int dimension = 0; dimension < nDimensions; dimension++) {
+                        double difference = previousCentroids[i][dimension] - previousCentroids[j][dimension];
+                        distance += difference * difference;
+                    }
+
+                    if (distance < minDistance) {
+                        minDistance = distance;
+                        cluster1 = i;
+                        cluster2 = j;
+                    }
+                }
+            }
+
+            double weight = weights[cluster1] + weights[cluster2];
+            double weight1 = weight > 0 ? weights[cluster1] / weight : 0.5;
+
+            for (int dimension = 0; dimension < nDimensions; dimension++) {
+                previousCentroids[cluster1][dimension] = weight1 * previousCentroids[cluster1][dimension] + (1 - weight1) * previousCentroids[cluster2][dimension];
+            }
+
+            weights[cluster1] = weight;
+            previousCentroids[cluster2] = previousCentroids[nPrevious - 1];
+            weights[cluster2] = weights[nPrevious - 1];
+        }
+
+        for (int cluster = 0; cluster < nPrevious; cluster++) {
+            System.arraycopy(previousCentroids[cluster], 0, centroids, cluster * nDimensions, nDimensions);
+        }
+
+        nInitialCentroids = nPrevious;
+    }
+
+    /**
+     * Clusters the profiles.
+     *
+     * @param waitingHandler the waiting handler, can be null
+     */
+    public void cluster(WaitingHandler waitingHandler) {
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(MAX_ITERATIONS + 1);
+        }
+
+        if (nRows > 0) {
+
+            Random random = new Random(seed);
+            seedCentroids(random);
+
+            if (nRows > MINI_BATCH_THRESHOLD) {
+                miniBatch(random, waitingHandler);
+            } else {
+                lloyd(waitingHandler);
+            }
+        }
+
+        upperBounds = null;
+        lowerBounds = null;
+        indexClusters();
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+        }
+    }
+
+    /**
+     * Seeds the centroids not set by a warm start using k-means++.
+     *
+     * @param random the random number generator
+     */
+    private void seedCentroids(Random random) {
+
+        double[] minDistances = new double[nRows];
+        int row = 0;
+
+        if (nInitialCentroids == 0) {
+
+            row = random.nextInt(nRows);
+            setCentroid(0, row);
+
+        }
+
+        int nSeeded = Math.max(nInitialCentroids, 1);
+
+        IntStream.range(0, nRows)
+                .parallel()
+                .forEach(i -> {
+
+                    double minDistance = Double.POSITIVE_INFINITY;
+
+                    for (int cluster = 0; cluster < nSeeded; cluster++) {
+                        minDistance = Math.min(minDistance, squaredDistance(i, cluster));
+                    }
+
+                    minDistances[i] = minDistance;
+
+                });
+
+        for (int cluster = nSeeded; cluster < nClusters; cluster++) {
+
+            double total = 0.0;
+
+            for (double distance : minDistances) {
+                total += distance;
+            }
+
+            if (total > 0.0) {
+
+                double target = random.nextDouble() * total;
+                double cumulative = 0.0;
+
+                for (int i = 0; i < nRows; i++) {
+
+                    if (minDistances[i] > 0.0) {
+
+                        row = i;
+                        cumulative += minDistances[i];
+
+                        if (cumulative > target) {
+                            break;
+                        }
+                    }
+                }
+
+            } else {
+
+                // fewer distinct profiles than clusters
+                row = random.nextInt(nRows);
+
+            }
+
+            setCentroid(cluster, row);
+            int newCluster = cluster;
+
+            IntStream.range(0, nRows)
+                    .parallel()
+                    .forEach(i -> minDistances[i] = Math.min(minDistances[i], squaredDistance(i, newCluster)));
+        }
+    }
+
+    /**
+     * Refines the centroids using Lloyd iterations with the bounds of Hamerly.
+     *
+     * @param waitingHandler the waiting handler, can be null
+     */
+    private void lloyd(WaitingHandler waitingHandler) {
+
+        upperBounds = new double[nRows];
+        lowerBounds = new double[nRows];
+        assignAll();
+
+        boolean converged = false;
+
+        for (int iteration = 0; iteration < MAX_ITERATIONS && !converged; iteration++) {
+
+            if (waitingHandler != null) {
+
+                if (waitingHandler.isRunCanceled()) {
+                    return;
+                }
+
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+
+            double[] moves = updateCentroids();
+            updateBounds(moves);
+            double[] halfDistances = getHalfDistances();
+
+            int nChanged = IntStream.range(0, nRows)
+                    .parallel()
+                    .map(i -> assign(i, halfDistances) ? 1 : 0)
+                    .sum();
+
+            converged = nChanged == 0;
+        }
+
+        if (!converged) {
+            updateCentroids();
+        }
+    }
+
+    /**
+     * Refines the centroids using mini-batches of randomly sampled rows and
+     * assigns all rows to the closest centroid.
+     *
+     * @param random the random number generator
+     * @param waitingHandler the waiting handler, can be null
+     */
+    private void miniBatch(Random random, WaitingHandler waitingHandler) {
+
+        int[] counts = new int[nClusters];
+        int[] batch = new int[MINI_BATCH_SIZE];
+        int[] batchAssignments = new int[MINI_BATCH_SIZE];
+
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+
+            if (waitingHandler != null) {
+
+                if (waitingHandler.isRunCanceled()) {
+                    return;
+                }
+
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+
+            for (int i = 0; i < MINI_BATCH_SIZE; i++) {
+                batch[i] = random.nextInt(nRows);
+            }
+
+            IntStream.range(0, MINI_BATCH_SIZE)
+                    .parallel()
+                    .forEach(i -> batchAssignments[i] = getClosestCentroid(batch[i]));
+
+            // gradient step with a per-centroid learning rate
+            for (int i = 0; i < MINI_BATCH_SIZE; i++) {
+
+                int cluster = batchAssignments[i];
+                double learningRate = 1.0 / ++counts[cluster];
+                int rowStart = batch[i] * nDimensions;
+                int centroidStart = cluster * nDimensions;
+
+                for (int dimension = 0; dimension < nDimensions; dimension++) {
+                    centroids[centroidStart + dimension] += learningRate * (profiles[rowStart + dimension] - centroids[centroidStart + dimension]);
+                }
+            }
+        }
+
+        IntStream.range(0, nRows)
+                .parallel()
+                .forEach(i -> assignments[i] = getClosestCentroid(i));
+    }
+
+    /**
+     * Assigns all rows to the closest centroid and initializes the bounds.
+     */
+    private void assignAll() {
+
+        IntStream.range(0, nRows)
+                .parallel()
+                .forEach(i -> scan(i));
+    }
+
+    /**
+     * Assigns a row to the closest centroid if the bounds do not exclude a
+     * change of cluster.
+     *
+     * @param row the index of the row
+     * @param halfDistances half the distance of every centroid to its closest
+     * centroid
+     *
+     * @return a boolean indicating whether the cluster of the row changed
+     */
+    private boolean assign(int row, double[] halfDistances) {
+
+        int cluster = assignments[row];
+        double bound = Math.max(halfDistances[cluster], lowerBounds[row]);
+
+        if (upperBounds[row] <= bound) {
+            return false;
+        }
+
+        upperBounds[row] = Math.sqrt(squaredDistance(row, cluster));
+
+        if (upperBounds[row] <= bound) {
+            return false;
+        }
+
+        scan(row);
+
+        return assignments[row] != cluster;
+    }
+
+    /**
+     * Computes the distance of a row to all centroids and sets its cluster
+     * and bounds.
+     *
+     * @param row the index of the row
+     */
+    private void scan(int row) {
+
+        int closest = 0;
+        double closestDistance = Double.POSITIVE_INFINITY;
+        double secondDistance = Double.POSITIVE_INFINITY;
+
+        for (int cluster = 0; cluster < nClusters; cluster++) {
+
+            double distance = squaredDistance(row, cluster);
+
+            if (distance < closestDistance) {
+                secondDistance = closestDistance;
+                closestDistance = distance;
+                closest = cluster;
+            } else if (distance < secondDistance) {
+                secondDistance = distance;
+            }
+        }
+
+        assignments[row] = closest;
+        upperBounds[row] = Math.sqrt(closestDistance);
+        lowerBounds[row] = Math.sqrt(secondDistance);
+    }
+
+    /**
+     * Returns the index of the centroid closest to a row.
+     *
+     * @param row the index of the row
+     *
+     * @return the index of the closest centroid
+     */
+    private int getClosestCentroid(int row) {
+
+        int closest = 0;
+        double closestDistance = Double.POSITIVE_INFINITY;
+
+        for (int cluster = 0; cluster < nClusters; cluster++) {
+
+            double distance = squaredDistance(row, cluster);
+
+            if (distance < closestDistance) {
+                closestDistance = distance;
+                closest = cluster;
+            }
+        }
+
+        return closest;
+    }
+
+    /**
+     * Sets the centroids to the mean of their rows. The rows are summed per
+     * partition in parallel and the partitions are merged in order. Centroids
+     * without rows are not moved.
+     *
+     * @return the distance moved by every centroid
+     */
+    private double[] updateCentroids() {
+
+        int nPartitions = Math.max(1, Math.min(MAX_PARTITIONS, nRows / PARTITION_SIZE));
+        double[][] partitionSums = new double[nPartitions][];
+        int[][] partitionCounts = new int[nPartitions][];
+
+        IntStream.range(0, nPartitions)
+                .parallel()
+                .forEach(partition -> {
+
+                    double[] sums = new double[centroids.length];
+                    int[] counts = new int[nClusters];
+                    int end = (int) ((long) nRows * (partition + 1) / nPartitions);
+
+                    for (int row = (int) ((long) nRows * partition / nPartitions); row < end; row++) {
+
+                        int cluster = assignments[row];
+                        counts[cluster]++;
+                        int rowStart = row * nDimensions;
+                        int centroidStart = cluster * nDimensions;
+
+                        for (int dimension = 0; dimension < nDimensions; dimension++) {
+                            sums[centroidStart + dimension] += profiles[rowStart + dimension];
+                        }
+                    }
+
+                    partitionSums[partition] = sums;
+                    partitionCounts[partition] = counts;
+
+                });
+
+        double[] sums = partitionSums[0];
+        int[] counts = partitionCounts[0];
+
+        for (int partition = 1; partition < nPartitions; partition++) {
+
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += partitionSums[partition][i];
+            }
+
+            for (int cluster = 0; cluster < nClusters; cluster++) {
+                counts[cluster] += partitionCounts[partition][cluster];
+            }
+        }
+
+        double[] moves = new double[nClusters];
+
+        for (int cluster = 0; cluster < nClusters; cluster++) {
+
+            if (counts[cluster] > 0) {
+
+                int centroidStart = cluster * nDimensions;
+                double move = 0.0;
+
+                for (int dimension = 0; dimension < nDimensions; dimension++) {
+
+                    double mean = sums[centroidStart + dimension] / counts[cluster];
+                    double difference = mean - centroids[centroidStart + dimension];
+                    move += difference * difference;
+                    centroids[centroidStart + dimension] = mean;
+
+                }
+
+                moves[cluster] = Math.sqrt(move);
+            }
+        }
+
+        return moves;
+    }
+
+    /**
+     * Updates the bounds of the rows after the centroids moved.
+     *
+     * @param moves the distance moved by every centroid
+     */
+    private void updateBounds(double[] moves) {
+
+        int largest = 0;
+        double secondMove = 0.0;
+
+        for (int cluster = 1; cluster < nClusters; cluster++) {
+
+            if (moves[cluster] > moves[largest]) {
+                secondMove = moves[largest];
+                largest = cluster;
+            } else if (moves[cluster] > secondMove) {
+                secondMove = moves[cluster];
+            }
+        }
+
+        int largestCluster = largest;
+        double largestMove = moves[largest];
+        double otherMove = secondMove;
+
+        IntStream.range(0, nRows)
+                .parallel()
+                .forEach(i -> {
+
+                    int cluster = assignments[i];
+                    upperBounds[i] += moves[cluster];
+                    lowerBounds[i] -= cluster == largestCluster ? otherMove : largestMove;
+
+                });
+    }
+
+    /**
+     * Returns half the distance of every centroid to its closest other
+     * centroid.
+     *
+     * @return half the distance of every centroid to its closest centroid
+     */
+    private double[] getHalfDistances() {
+
+        double[] halfDistances = new double[nClusters];
+        Arrays.fill(halfDistances, Double.POSITIVE_INFINITY);
+
+        for (int cluster1 = 0; cluster1 < nClusters; cluster1++) {
+
+            for (int cluster2 = cluster1 + 1; cluster2 < nClusters; cluster2++) {
+
+                double distance = 0.0;
+
+                for (int dimension = 0; dimension < nDimensions; dimension++) {
+                    double difference = centroids[cluster1 * nDimensions + dimension] - centroids[cluster2 * nDimensions + dimension];
+                    distance += difference * difference;
+                }
+
+                distance = Math.sqrt(distance) / 2;
+                halfDistances[cluster1] = Math.min(halfDistances[cluster1], distance);
+                halfDistances[cluster2] = Math.min(halfDistances[cluster2], distance);
+            }
+        }
+
+        return halfDistances;
+    }
+
+    /**
+     * Returns the squared Euclidean distance between a row and a centroid.
+     *
+     * @param row the index of the row
+     * @param cluster the index of the centroid
+     *
+     * @return the squared distance between the row and the centroid
+     */
+    private double squaredDistance(int row, int cluster) {
+
+        int rowStart = row * nDimensions;
+        int centroidStart = cluster * nDimensions;
+        double distance = 0.0;
+
+        for (int dimension = 0; dimension < nDimensions; dimension++) {
+            double difference = profiles[rowStart + dimension] - centroids[centroidStart + dimension];
+            distance += difference * difference;
+        }
+
+        return distance;
+    }
+
+    /**
+     * Copies a row to a centroid.
+     *
+     * @param cluster the index of the centroid
+     * @param row the index of the row
+     */
+    private void setCentroid(int cluster, int row) {
+
+        for (int dimension = 0; dimension < nDimensions; dimension++) {
+            centroids[cluster * nDimensions + dimension] = profiles[row * nDimensions + dimension];
+        }
+    }
+
+    /**
+     * Returns the number of clusters.
+     *
+     * @return the number of clusters
+     */
+    @Override
+    public int getNumberOfClusters() {
+        return nClusters;
+    }
+
+    /**
+     * Returns a copy of the centroid of a cluster.
+     *
+     * @param cluster the index of the cluster
+     *
+     * @return the centroid of the cluster
+     */
+    public double[] getCentroid(int cluster) {
+        return Arrays.copyOfRange(centroids, cluster * nDimensions, (cluster + 1) * nDimensions);
+    }
+}
@@ -6,51 +6,90 @@ import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.matches.PeptideMatch;
 import com.compomics.util.experiment.identification.matches.ProteinMatch;
 import com.compomics.util.experiment.identification.matches.SpectrumMatch;
-import com.compomics.util.experiment.identification.matches_iterators.PeptideMatchesIterator;
-import com.compomics.util.experiment.identification.matches_iterators.ProteinMatchesIterator;
-import com.compomics.util.experiment.identification.matches_iterators.SpectrumMatchesIterator;
 import com.compomics.util.experiment.identification.peptide_shaker.Metrics;
-import com.compomics.util.experiment.identification.peptide_shaker.PSParameter;
 import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
-import com.compomics.util.experiment.io.biology.protein.FastaParameters;
 import com.compomics.util.experiment.mass_spectrometry.SpectrumProvider;
 import com.compomics.util.experiment.normalization.NormalizationFactors;
-import com.compomics.util.experiment.personalization.UrParameter;
 import com.compomics.util.experiment.quantification.reporterion.ReporterIonQuantification;
-import com.compomics.util.math.BasicMathFunctions;
-import com.compomics.util.parameters.identification.advanced.PeptideVariantsParameters;
 import com.compomics.util.parameters.identification.advanced.SequenceMatchingParameters;
-import com.compomics.util.parameters.identification.search.SearchParameters;
 import com.compomics.util.parameters.tools.ProcessingParameters;
 import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.reporter.calculation.QuantificationFeaturesGenerator;
 import eu.isas.reporter.calculation.QuantificationFilter;
+import eu.isas.reporter.calculation.QuantificationFilterIndex;
+import eu.isas.reporter.calculation.QuantificationPipeline;
 import eu.isas.reporter.settings.NormalizationSettings;
 import eu.isas.reporter.settings.RatioEstimationSettings;
 import eu.isas.reporter.quantificationdetails.PeptideQuantificationDetails;
 import eu.isas.reporter.quantificationdetails.ProteinQuantificationDetails;
 import eu.isas.reporter.quantificationdetails.PsmQuantificationDetails;
+import eu.isas.reporter.quantificationdetails.SpectrumQuantificationDetails;
+import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Set;
+import java.util.Objects;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Normalizes the ratios according to the NormalizationSettings.
  *
+ * The matches are processed in chunks of consecutive keys on an executor, and
+ * the values gathered per chunk are merged in the order of the chunks, so
+ * that the normalization factors do not depend on the number of threads or on
+ * the executor used. The waiting handler and the exception handler are
+ * optional, the normalizer can hence be used without user interface.
+ *
  * @author Marc Vaudel
  * @author Harald Barsnes
  */
 public class Normalizer {
 
     /**
-     * Sets the PSM normalization factors in the ReporterIonQuantification
-     * object.
+     * The number of matches processed per task.
+     */
+    private static final int CHUNK_SIZE = 256;
+    /**
+     * The runner of the tasks.
+     */
+    private final OrderedChunkRunner runner;
+    /**
+     * The inputs shared by the levels of the last normalization, null if
+     * none.
+     */
+    private NormalizationInputs normalizationInputs = null;
+
+    /**
+     * Constructor. A fixed thread pool of the number of threads set in the
+     * processing parameters is used for every normalization.
+     */
+    public Normalizer() {
+        this(null);
+    }
+
+    /**
+     * Constructor. The tasks are run on the given executor, for example a
+     * fork/join pool shared with other components. The executor is not shut
+     * down by the normalizer.
+     *
+     * @param executorService the executor to run the tasks on, null to create
+     * a fixed thread pool for every normalization
+     */
+    public Normalizer(ExecutorService executorService) {
+        this.runner = new OrderedChunkRunner(CHUNK_SIZE, executorService);
+    }
+
+    /**
+     * Sets the PSM, peptide and protein normalization factors which are not
+     * set yet in the ReporterIonQuantification object. The raw ratios of the
+     * peptides are estimated from the normalized ratios of the PSMs, and the
+     * raw ratios of the proteins from the normalized ratios of the peptides.
+     * The levels are hence processed one after the other: the PSM factors are
+     * set before the peptide values are gathered, and the peptide factors
+     * before the protein values are gathered.
      *
      * @param reporterIonQuantification the reporter ion quantification
      * @param ratioEstimationSettings the ratio estimation settings
@@ -59,14 +98,14 @@ public class Normalizer {
      * matching preferences
      * @param identification the identification
      * @param spectrumProvider the spectrum provider
+     * @param metrics the identification metrics
      * @param quantificationFeaturesGenerator the quantification features
      * generator
      * @param processingParameters the processing preferences
-     * @param searchParameters the search parameters
-     * @param peptideVariantsPreferences the peptide variants parameters
-     * @param fastaParameters the FASTA parameters
-     * @param exceptionHandler handler in case exception occur
-     * @param waitingHandler waiting handler displaying progress to the user
+     * @param exceptionHandler handler in case exception occur, can be null,
+     * in which case the exceptions are thrown
+     * @param waitingHandler waiting handler displaying progress to the user,
+     * can be null
      *
      * @throws java.sql.SQLException exception thrown whenever an error occurred
      * while interacting with the database
@@ -77,174 +116,187 @@ public class Normalizer {
      * @throws java.lang.InterruptedException exception thrown whenever a
      * threading error occurred
      */
-    public void setPsmNormalizationFactors(
+    public void setNormalizationFactors(
             ReporterIonQuantification reporterIonQuantification,
             RatioEstimationSettings ratioEstimationSettings,
             NormalizationSettings normalizationSettings,
             SequenceMatchingParameters sequenceMatchingParameters,
             Identification identification,
             SpectrumProvider spectrumProvider,
+            Metrics metrics,
             QuantificationFeaturesGenerator quantificationFeaturesGenerator,
             ProcessingParameters processingParameters,
-            SearchParameters searchParameters,
-            FastaParameters fastaParameters,
-            PeptideVariantsParameters peptideVariantsPreferences,
             ExceptionHandler exceptionHandler,
             WaitingHandler waitingHandler
     ) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
-        HashMap<String, ArrayList<Double>> allRawRatios = new HashMap<>();
-        HashMap<String, ArrayList<Double>> seedRawRatios = new HashMap<>();
-
-        for (String sampleIndex : reporterIonQuantification.getSampleIndexes()) {
-            allRawRatios.put(sampleIndex, new ArrayList<>());
-            seedRawRatios.put(sampleIndex, new ArrayList<>());
-        }
-
-        PSParameter psParameter = new PSParameter();
-        ArrayList<UrParameter> parameters = new ArrayList<>(1);
-        parameters.add(psParameter);
-
-        if (normalizationSettings.getPsmNormalization() != NormalizationType.none) {
-
-            if (waitingHandler != null) {
-                waitingHandler.setWaitingText("PSM Ratio Normalization. Please Wait...");
-                waitingHandler.resetSecondaryProgressCounter();
-                waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-                waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize() + 1);
-                waitingHandler.increaseSecondaryProgressCounter();
-            }
-
-            Collection<String> seeds = normalizationSettings.getStableProteins(
-                    searchParameters,
-                    fastaParameters,
-                    peptideVariantsPreferences,
+        for (QuantificationPipeline.Level level : QuantificationPipeline.Level.values()) {
+
+            setNormalizationFactors(
+                    level,
+                    reporterIonQuantification,
+                    ratioEstimationSettings,
+                    normalizationSettings,
+                    sequenceMatchingParameters,
+                    identification,
+                    spectrumProvider,
+                    metrics,
+                    quantificationFeaturesGenerator,
+                    processingParameters,
+                    exceptionHandler,
                     waitingHandler
             );
 
-            Collection<String> exclusion = normalizationSettings.getContaminants(
-                    searchParameters,
-                    fastaParameters,
-                    peptideVariantsPreferences,
-                    waitingHandler
-            );
-
-            int nThreads = processingParameters.getnThreads();
-
-            SpectrumMatchesIterator spectrumMatchesIterator = identification.getSpectrumMatchesIterator(waitingHandler);
-            ExecutorService pool = Executors.newFixedThreadPool(nThreads);
-            ArrayList<PsmNormalizerRunnable> runnables = new ArrayList<>(nThreads);
-
-            for (int i = 1; i <= nThreads && waitingHandler != null && !waitingHandler.isRunCanceled(); i++) {
-
-                PsmNormalizerRunnable runnable = new PsmNormalizerRunnable(
-                        reporterIonQuantification,
-                        quantificationFeaturesGenerator,
-                        identification,
-                        spectrumProvider,
-                        spectrumMatchesIterator,
-                        seeds,
-                        exclusion,
-                        ratioEstimationSettings,
-                        sequenceMatchingParameters,
-                        waitingHandler,
-                        exceptionHandler
-                );
-
-                pool.submit(runnable);
-                runnables.add(runnable);
-            }
-
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                pool.shutdownNow();
+            if (OrderedChunkRunner.isCanceled(waitingHandler)) {
                 return;
             }
+        }
+    }
 
-            pool.shutdown();
-
-            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
-                throw new InterruptedException("PSM validation timed out. Please contact the developers.");
-            }
-
-            for (PsmNormalizerRunnable runnable : runnables) {
-
-                for (String reagent : runnable.getAllRawRatios().keySet()) {
+    /**
+     * Sets the normalization factors of the given level if not set yet in the
+     * ReporterIonQuantification object. The normalized ratios of the level
+     * below must be available, i.e. the normalization factors of the levels
+     * below must be set.
+     *
+     * @param level the level of the matches
+     * @param reporterIonQuantification the reporter ion quantification
+     * @param ratioEstimationSettings the ratio estimation settings
+     * @param normalizationSettings the normalization settings
+     * @param sequenceMatchingParameters the peptide to protein sequence
+     * matching preferences
+     * @param identification the identification
+     * @param spectrumProvider the spectrum provider
+     * @param metrics the identification metrics
+     * @param quantificationFeaturesGenerator the quantification features
+     * generator
+     * @param processingParameters the processing preferences
+     * @param exceptionHandler handler in case exception occur, can be null,
+     * in which case the exceptions are thrown
+     * @param waitingHandler waiting handler displaying progress to the user,
+     * can be null
+     *
+     * @throws java.sql.SQLException exception thrown whenever an error occurred
+     * while interacting with the database
+     * @throws java.io.IOException exception thrown whenever an error occurred
+     * while interacting with a file
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserializing an object
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading error occurred
+     */
+    public void setNormalizationFactors(
+            QuantificationPipeline.Level level,
+            ReporterIonQuantification reporterIonQuantification,
+            RatioEstimationSettings ratioEstimationSettings,
+            NormalizationSettings normalizationSettings,
+            SequenceMatchingParameters sequenceMatchingParameters,
+            Identification identification,
+            SpectrumProvider spectrumProvider,
+            Metrics metrics,
+            QuantificationFeaturesGenerator quantificationFeaturesGenerator,
+            ProcessingParameters processingParameters,
+            ExceptionHandler exceptionHandler,
+            WaitingHandler waitingHandler
+    ) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
-                    ArrayList<Double> ratios = allRawRatios.get(reagent);
+        NormalizationFactors normalizationFactors = reporterIonQuantification.getNormalizationFactors();
 
-                    if (ratios == null) {
-                        ratios = new ArrayList<>();
-                        allRawRatios.put(reagent, ratios);
-                    }
+        switch (level) {
 
-                    ratios.addAll(runnable.getAllRawRatios().get(reagent));
+            case psm:
+                if (!normalizationFactors.hasPsmNormalisationFactors()) {
+                    setPsmNormalizationFactors(reporterIonQuantification, ratioEstimationSettings, normalizationSettings, sequenceMatchingParameters,
+                            identification, spectrumProvider, quantificationFeaturesGenerator, processingParameters, exceptionHandler, waitingHandler);
                 }
+                break;
 
-                for (String reagent : runnable.getSeedRawRatios().keySet()) {
-
-                    ArrayList<Double> ratios = seedRawRatios.get(reagent);
-
-                    if (ratios == null) {
-                        ratios = new ArrayList<Double>();
-                        seedRawRatios.put(reagent, ratios);
-                    }
+            case peptide:
+                if (!normalizationFactors.hasPeptideNormalisationFactors()) {
+                    setPeptideNormalizationFactors(reporterIonQuantification, ratioEstimationSettings, normalizationSettings, sequenceMatchingParameters,
+                            identification, spectrumProvider, quantificationFeaturesGenerator, processingParameters, exceptionHandler, waitingHandler);
+                }
+                break;
 
-                    ratios.addAll(runnable.getSeedRawRatios().get(reagent));
+            case protein:
+                if (!normalizationFactors.hasProteinNormalisationFactors()) {
+                    setProteinNormalizationFactors(reporterIonQuantification, ratioEstimationSettings, normalizationSettings,
+                            identification, spectrumProvider, metrics, quantificationFeaturesGenerator, processingParameters, exceptionHandler, waitingHandler);
                 }
+                break;
 
-            }
+            default:
+                throw new UnsupportedOperationException("Level " + level + " not implemented.");
+        }
+    }
+
+    /**
+     * Sets the PSM normalization factors in the ReporterIonQuantification
+     * object.
+     *
+     * @param reporterIonQuantification the reporter ion quantification
+     * @param ratioEstimationSettings the ratio estimation settings
+     * @param normalizationSettings the normalization settings
+     * @param sequenceMatchingParameters the peptide to protein sequence
+     * matching preferences
+     * @param identification the identification
+     * @param spectrumProvider the spectrum provider
+     * @param quantificationFeaturesGenerator the quantification features
+     * generator
+     * @param processingParameters the processing preferences
+     * @param exceptionHandler handler in case exception occur, can be null,
+     * in which case the exceptions are thrown
+     * @param waitingHandler waiting handler displaying progress to the user,
+     * can be null
+     *
+     * @throws java.sql.SQLException exception thrown whenever an error occurred
+     * while interacting with the database
+     * @throws java.io.IOException exception thrown whenever an error occurred
+     * while interacting with a file
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserializing an object
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading error occurred
+     */
+    public void setPsmNormalizationFactors(
+            ReporterIonQuantification reporterIonQuantification,
+            RatioEstimationSettings ratioEstimationSettings,
+            NormalizationSettings normalizationSettings,
+            SequenceMatchingParameters sequenceMatchingParameters,
+            Identification identification,
+            SpectrumProvider spectrumProvider,
+            QuantificationFeaturesGenerator quantificationFeaturesGenerator,
+            ProcessingParameters processingParameters,
+            ExceptionHandler exceptionHandler,
+            WaitingHandler waitingHandler
+    ) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
+        NormalizationValues[] values = gatherValues(
+                reporterIonQuantification,
+                ratioEstimationSettings,
+                normalizationSettings,
+                identification,
+                spectrumProvider,
+                quantificationFeaturesGenerator,
+                processingParameters,
+                true,
+                false,
+                false,
+                "PSM Ratio Normalization. Please Wait...",
+                exceptionHandler,
+                waitingHandler
+        );
+
+        if (values == null) {
+            return;
         }
 
         NormalizationFactors normalizationFactors = reporterIonQuantification.getNormalizationFactors();
 
         for (String sampleIndex : reporterIonQuantification.getSampleIndexes()) {
-
-            double normalisationFactor;
-            ArrayList<Double> rawRatios = allRawRatios.get(sampleIndex);
-            ArrayList<Double> seedRatios = seedRawRatios.get(sampleIndex);
-
-            if (allRawRatios.get(sampleIndex) != null && !rawRatios.isEmpty()) {
-
-                NormalizationType normalizationType = normalizationSettings.getPsmNormalization();
-
-                if (null == normalizationType) {
-                    throw new UnsupportedOperationException("Normalization method not implemented.");
-                } else {
-                    switch (normalizationType) {
-                        case none:
-                            normalisationFactor = 1;
-                            break;
-                        case mean:
-                            if (seedRatios != null && !seedRatios.isEmpty()) {
-                                normalisationFactor = BasicMathFunctions.mean(seedRatios);
-                            } else {
-                                normalisationFactor = BasicMathFunctions.mean(rawRatios);
-                            }
-                            break;
-                        case median:
-                            if (seedRatios != null && !seedRatios.isEmpty()) {
-                                normalisationFactor = BasicMathFunctions.median(seedRatios);
-                            } else {
-                                normalisationFactor = BasicMathFunctions.median(rawRatios);
-                            }
-                            break;
-                        case mode:
-                            throw new UnsupportedOperationException("Normalization method not implemented.");
-                        case sum:
-                            throw new UnsupportedOperationException("Normalization method not implemented.");
-                        default:
-                            throw new UnsupportedOperationException("Normalization method not implemented.");
-                    }
-                }
-
-            } else {
-                normalisationFactor = 1;
-            }
-
-            normalizationFactors.addPsmNormalisationFactor(sampleIndex, normalisationFactor);
+            normalizationFactors.addPsmNormalisationFactor(sampleIndex,
+                    getNormalizationFactor(sampleIndex, normalizationSettings.getPsmNormalization(), values[0], reporterIonQuantification));
         }
-
     }
 
     /**
@@ -261,11 +313,10 @@ public class Normalizer {
      * @param quantificationFeaturesGenerator the quantification features
      * generator
      * @param processingParameters the processing preferences
-     * @param searchParameters the search parameters
-     * @param fastaParameters the FASTA parameters
-     * @param exceptionHandler handler in case exception occur
-     * @param peptideVariantsPreferences the peptide variants parameters
-     * @param waitingHandler waiting handler displaying progress to the user
+     * @param exceptionHandler handler in case exception occur, can be null,
+     * in which case the exceptions are thrown
+     * @param waitingHandler waiting handler displaying progress to the user,
+     * can be null
      *
      * @throws java.sql.SQLException exception thrown whenever an error occurred
      * while interacting with the database
@@ -285,159 +336,35 @@ public class Normalizer {
             SpectrumProvider spectrumProvider,
             QuantificationFeaturesGenerator quantificationFeaturesGenerator,
             ProcessingParameters processingParameters,
-            SearchParameters searchParameters,
-            FastaParameters fastaParameters,
-            PeptideVariantsParameters peptideVariantsPreferences,
             ExceptionHandler exceptionHandler,
             WaitingHandler waitingHandler
     ) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
-        HashMap<String, ArrayList<Double>> allRawRatios = new HashMap<>();
-        HashMap<String, ArrayList<Double>> seedRawRatios = new HashMap<>();
-
-        for (String sampleIndex : reporterIonQuantification.getSampleIndexes()) {
-            allRawRatios.put(sampleIndex, new ArrayList<Double>());
-            seedRawRatios.put(sampleIndex, new ArrayList<Double>());
-        }
-
-        PSParameter psParameter = new PSParameter();
-        ArrayList<UrParameter> parameters = new ArrayList<>(1);
-        parameters.add(psParameter);
-
-        if (normalizationSettings.getPeptideNormalization() != NormalizationType.none) {
-
-            if (waitingHandler != null) {
-                waitingHandler.setWaitingText("Getting Stable Proteins and Contaminats. Please Wait...");
-                waitingHandler.resetSecondaryProgressCounter();
-                waitingHandler.setSecondaryProgressCounterIndeterminate(true);
-            }
-
-            Collection<String> seeds = normalizationSettings.getStableProteins(searchParameters, fastaParameters, peptideVariantsPreferences, waitingHandler);
-            Collection<String> exclusion = normalizationSettings.getContaminants(searchParameters, fastaParameters, peptideVariantsPreferences, waitingHandler);
-
-            if (waitingHandler != null) {
-                waitingHandler.setWaitingText("Peptide Ratio Normalization. Please Wait...");
-                waitingHandler.resetSecondaryProgressCounter();
-                waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-                waitingHandler.setMaxSecondaryProgressCounter(identification.getPeptideIdentification().size() + 1);
-                waitingHandler.increaseSecondaryProgressCounter();
-            }
-
-            PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(waitingHandler);
-
-            int nThreads = processingParameters.getnThreads();
-            ExecutorService pool = Executors.newFixedThreadPool(nThreads);
-            ArrayList<PeptideNormalizerRunnable> runnables = new ArrayList<>(nThreads);
-
-            for (int i = 1; i <= nThreads && waitingHandler != null && !waitingHandler.isRunCanceled(); i++) {
-
-                PeptideNormalizerRunnable runnable = new PeptideNormalizerRunnable(
-                        reporterIonQuantification,
-                        quantificationFeaturesGenerator,
-                        identification,
-                        spectrumProvider,
-                        peptideMatchesIterator,
-                        seeds,
-                        exclusion,
-                        ratioEstimationSettings,
-                        sequenceMatchingParameters,
-                        waitingHandler,
-                        exceptionHandler
-                );
-
-                pool.submit(runnable);
-                runnables.add(runnable);
-
-            }
-
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                pool.shutdownNow();
-                return;
-            }
-
-            pool.shutdown();
-
-            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
-                throw new InterruptedException("Peptide validation timed out. Please contact the developers.");
-            }
-
-            for (PeptideNormalizerRunnable runnable : runnables) {
-
-                for (String reagent : runnable.getAllRawRatios().keySet()) {
-
-                    ArrayList<Double> ratios = allRawRatios.get(reagent);
-
-                    if (ratios == null) {
-                        ratios = new ArrayList<Double>();
-                        allRawRatios.put(reagent, ratios);
-                    }
-
-                    ratios.addAll(runnable.getAllRawRatios().get(reagent));
-                }
-
-                for (String reagent : runnable.getSeedRawRatios().keySet()) {
-
-                    ArrayList<Double> ratios = seedRawRatios.get(reagent);
-
-                    if (ratios == null) {
-                        ratios = new ArrayList<Double>();
-                        seedRawRatios.put(reagent, ratios);
-                    }
-
-                    ratios.addAll(runnable.getSeedRawRatios().get(reagent));
-                }
-
-            }
-
+        NormalizationValues[] values = gatherValues(
+                reporterIonQuantification,
+                ratioEstimationSettings,
+                normalizationSettings,
+                identification,
+                spectrumProvider,
+                quantificationFeaturesGenerator,
+                processingParameters,
+                false,
+                true,
+                false,
+                "Peptide Ratio Normalization. Please Wait...",
+                exceptionHandler,
+                waitingHandler
+        );
+
+        if (values == null) {
+            return;
         }
 
         NormalizationFactors normalizationFactors = reporterIonQuantification.getNormalizationFactors();
 
         for (String sampleIndex : reporterIonQuantification.getSampleIndexes()) {
-
-            double normalisationFactor;
-            ArrayList<Double> rawRatios = allRawRatios.get(sampleIndex);
-            ArrayList<Double> seedRatios = seedRawRatios.get(sampleIndex);
-
-            if (allRawRatios.get(sampleIndex) != null && !rawRatios.isEmpty()) {
-
-                NormalizationType normalizationType = normalizationSettings.getPeptideNormalization();
-
-                if (null == normalizationType) {
-                    throw new UnsupportedOperationException("Normalization method not implemented.");
-                } else {
-                    switch (normalizationType) {
-                        case none:
-                            normalisationFactor = 1;
-                            break;
-                        case mean:
-                            if (seedRatios != null && !seedRatios.isEmpty()) {
-                                normalisationFactor = BasicMathFunctions.mean(seedRatios);
-                            } else {
-                                normalisationFactor = BasicMathFunctions.mean(rawRatios);
-                            }
-                            break;
-                        case median:
-                            if (seedRatios != null && !seedRatios.isEmpty()) {
-                                normalisationFactor = BasicMathFunctions.median(seedRatios);
-                            } else {
-                                normalisationFactor = BasicMathFunctions.median(rawRatios);
-                            }
-                            break;
-                        case mode:
-                            throw new UnsupportedOperationException("Normalization method not implemented.");
-                        case sum:
-                            throw new UnsupportedOperationException("Normalization method not implemented.");
-                        default:
-                            throw new UnsupportedOperationException("Normalization method not implemented.");
-                    }
-                }
-            } else {
-                normalisationFactor = 1;
-            }
-
-            normalizationFactors.addPeptideNormalisationFactor(sampleIndex, normalisationFactor);
-
+            normalizationFactors.addPeptideNormalisationFactor(sampleIndex,
+                    getNormalizationFactor(sampleIndex, normalizationSettings.getPeptideNormalization(), values[1], reporterIonQuantification));
         }
     }
 
@@ -454,12 +381,10 @@ public class Normalizer {
      * @param quantificationFeaturesGenerator the quantification features
      * generator
      * @param processingParameters the processing parameters
-     * @param searchParameters the search parameters
-     * @param fastaParameters the FASTA parameters
-     * @param peptideVariantsPreferences the peptide variants parameters
-     *
-     * @param exceptionHandler handler in case exception occur
-     * @param waitingHandler waiting handler displaying progress to the user
+     * @param exceptionHandler handler in case exception occur, can be null,
+     * in which case the exceptions are thrown
+     * @param waitingHandler waiting handler displaying progress to the user,
+     * can be null
      *
      * @throws java.sql.SQLException exception thrown whenever an error occurred
      * while interacting with the database
@@ -479,783 +404,685 @@ public class Normalizer {
             Metrics metrics,
             QuantificationFeaturesGenerator quantificationFeaturesGenerator,
             ProcessingParameters processingParameters,
-            SearchParameters searchParameters,
-            FastaParameters fastaParameters,
-            PeptideVariantsParameters peptideVariantsPreferences,
             ExceptionHandler exceptionHandler,
             WaitingHandler waitingHandler
     ) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
-        Set<String> sampleIndexes = reporterIonQuantification.getSampleIndexes();
-        HashMap<String, ArrayList<Double>> allRawRatios = new HashMap<>(sampleIndexes.size());
-        HashMap<String, ArrayList<Double>> seedRawRatios = new HashMap<>(sampleIndexes.size());
-
-        for (String sampleIndex : sampleIndexes) {
-            allRawRatios.put(sampleIndex, new ArrayList<Double>(metrics.getnValidatedProteins()));
-            seedRawRatios.put(sampleIndex, new ArrayList<Double>(metrics.getnValidatedProteins()));
+        NormalizationValues[] values = gatherValues(
+                reporterIonQuantification,
+                ratioEstimationSettings,
+                normalizationSettings,
+                identification,
+                spectrumProvider,
+                quantificationFeaturesGenerator,
+                processingParameters,
+                false,
+                false,
+                true,
+                "Protein Ratio Normalization. Please Wait...",
+                exceptionHandler,
+                waitingHandler
+        );
+
+        if (values == null) {
+            return;
         }
 
-        PSParameter psParameter = new PSParameter();
-        ArrayList<UrParameter> parameters = new ArrayList<>(1);
-        parameters.add(psParameter);
-
-        if (normalizationSettings.getProteinNormalization() != NormalizationType.none) {
-
-            if (waitingHandler != null) {
-                waitingHandler.setWaitingText("Getting Stable Proteins and Contaminats. Please Wait...");
-                waitingHandler.resetSecondaryProgressCounter();
-                waitingHandler.setSecondaryProgressCounterIndeterminate(true);
-            }
-
-            Collection<String> seeds = normalizationSettings.getStableProteins(
-                    searchParameters,
-                    fastaParameters,
-                    peptideVariantsPreferences,
-                    waitingHandler
-            );
-
-            Collection<String> exclusion = normalizationSettings.getContaminants(
-                    searchParameters,
-                    fastaParameters,
-                    peptideVariantsPreferences,
-                    waitingHandler
-            );
+        NormalizationFactors normalizationFactors = reporterIonQuantification.getNormalizationFactors();
 
-            if (waitingHandler != null) {
-                waitingHandler.setWaitingText("Protein Ratio Normalization. Please Wait...");
-                waitingHandler.resetSecondaryProgressCounter();
-                waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-                waitingHandler.setMaxSecondaryProgressCounter(identification.getProteinIdentification().size() + 1);
-                waitingHandler.increaseSecondaryProgressCounter();
-            }
+        for (String sampleIndex : reporterIonQuantification.getSampleIndexes()) {
+            normalizationFactors.addProteinNormalisationFactor(sampleIndex,
+                    getNormalizationFactor(sampleIndex, normalizationSettings.getProteinNormalization(), values[2], reporterIonQuantification));
+        }
+    }
 
-            ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(waitingHandler);
+    /**
+     * Gathers the values needed to estimate the normalization factors of the
+     * given levels. Levels which are not normalized are not processed. The
+     * raw ratios of a level depend on the normalization factors of the level
+     * below, the values of a level can hence only be gathered once the
+     * normalization factors of the level below are set.
+     *
+     * @param reporterIonQuantification the reporter ion quantification
+     * @param ratioEstimationSettings the ratio estimation settings
+     * @param normalizationSettings the normalization settings
+     * @param identification the identification
+     * @param spectrumProvider the spectrum provider
+     * @param quantificationFeaturesGenerator the quantification features
+     * generator
+     * @param processingParameters the processing preferences
+     * @param psms if true the values of the PSMs are gathered
+     * @param peptides if true the values of the peptides are gathered
+     * @param proteins if true the values of the proteins are gathered
+     * @param waitingText the text to display while gathering the values
+     * @param exceptionHandler handler in case exception occur, can be null
+     * @param waitingHandler waiting handler displaying progress to the user,
+     * can be null
+     *
+     * @return the values of the PSMs, peptides, and proteins, null for the
+     * levels not processed, or null if the process was canceled
+     *
+     * @throws java.sql.SQLException exception thrown whenever an error occurred
+     * while interacting with the database
+     * @throws java.io.IOException exception thrown whenever an error occurred
+     * while interacting with a file
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserializing an object
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading error occurred
+     */
+    private NormalizationValues[] gatherValues(
+            ReporterIonQuantification reporterIonQuantification,
+            RatioEstimationSettings ratioEstimationSettings,
+            NormalizationSettings normalizationSettings,
+            Identification identification,
+            SpectrumProvider spectrumProvider,
+            QuantificationFeaturesGenerator quantificationFeaturesGenerator,
+            ProcessingParameters processingParameters,
+            boolean psms,
+            boolean peptides,
+            boolean proteins,
+            String waitingText,
+            ExceptionHandler exceptionHandler,
+            WaitingHandler waitingHandler
+    ) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
-            int nThreads = processingParameters.getnThreads();
-            ExecutorService pool = Executors.newFixedThreadPool(nThreads);
-            ArrayList<ProteinNormalizerRunnable> runnables = new ArrayList<>(nThreads);
+        boolean approximateQuantiles = normalizationSettings.isApproximateQuantiles();
+
+        NormalizationValues psmValues = psms && normalizationSettings.getPsmNormalization() != NormalizationType.none
+                ? new NormalizationValues(approximateQuantiles, normalizationSettings.getPsmNormalization() == NormalizationType.sum)
+                : null;
+        NormalizationValues peptideValues = peptides && normalizationSettings.getPeptideNormalization() != NormalizationType.none
+                ? new NormalizationValues(approximateQuantiles, normalizationSettings.getPeptideNormalization() == NormalizationType.sum)
+                : null;
+        NormalizationValues proteinValues = proteins && normalizationSettings.getProteinNormalization() != NormalizationType.none
+                ? new NormalizationValues(approximateQuantiles, normalizationSettings.getProteinNormalization() == NormalizationType.sum)
+                : null;
+        NormalizationValues[] values = new NormalizationValues[]{psmValues, peptideValues, proteinValues};
+
+        if (psmValues == null && peptideValues == null && proteinValues == null) {
+            return values;
+        }
 
-            for (int i = 1; i <= nThreads && waitingHandler != null && !waitingHandler.isRunCanceled(); i++) {
+        NormalizationInputs inputs = getNormalizationInputs(identification, normalizationSettings, exceptionHandler, waitingHandler);
+        Collection<String> seeds = inputs.seeds;
+        Collection<String> exclusion = inputs.exclusion;
+        QuantificationFilterIndex quantificationFilterIndex = quantificationFeaturesGenerator.getQuantificationFilterIndex();
+
+        long[] psmKeys = psmValues == null ? new long[0] : inputs.getSortedKeys(QuantificationPipeline.Level.psm);
+        long[] peptideKeys = peptideValues == null ? new long[0] : inputs.getSortedKeys(QuantificationPipeline.Level.peptide);
+        long[] proteinKeys = proteinValues == null ? new long[0] : inputs.getSortedKeys(QuantificationPipeline.Level.protein);
+        int nMatches = psmKeys.length + peptideKeys.length + proteinKeys.length;
+
+        if (waitingHandler != null) {
+            waitingHandler.setWaitingText(waitingText);
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.setMaxSecondaryProgressCounter(nMatches + 1);
+            waitingHandler.increaseSecondaryProgressCounter();
+        }
 
-                ProteinNormalizerRunnable runnable = new ProteinNormalizerRunnable(
+        boolean completed = runner.run(
+                nMatches,
+                processingParameters.getnThreads(),
+                (from, to) -> new NormalizerTask(
                         reporterIonQuantification,
                         quantificationFeaturesGenerator,
                         identification,
                         spectrumProvider,
-                        proteinMatchesIterator,
+                        psmKeys,
+                        peptideKeys,
+                        proteinKeys,
+                        from,
+                        to,
                         seeds,
                         exclusion,
                         ratioEstimationSettings,
-                        waitingHandler,
-                        exceptionHandler
-                );
-
-                pool.submit(runnable);
-                runnables.add(runnable);
-            }
-
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                pool.shutdownNow();
-                return;
-            }
-
-            pool.shutdown();
-
-            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
-                throw new InterruptedException("Protein validation timed out. Please contact the developers.");
-            }
-
-            for (ProteinNormalizerRunnable runnable : runnables) {
-
-                for (String reagent : runnable.getAllRawRatios().keySet()) {
-
-                    ArrayList<Double> ratios = allRawRatios.get(reagent);
-
-                    if (ratios == null) {
-                        ratios = new ArrayList<Double>();
-                        allRawRatios.put(reagent, ratios);
+                        quantificationFilterIndex,
+                        psmValues == null ? null : psmValues.copyEmpty(),
+                        peptideValues == null ? null : peptideValues.copyEmpty(),
+                        proteinValues == null ? null : proteinValues.copyEmpty(),
+                        waitingHandler
+                ),
+                (NormalizerTask task) -> {
+
+                    if (psmValues != null) {
+                        psmValues.merge(task.getPsmValues());
                     }
 
-                    ratios.addAll(runnable.getAllRawRatios().get(reagent));
-                }
-
-                for (String reagent : runnable.getSeedRawRatios().keySet()) {
-
-                    ArrayList<Double> ratios = seedRawRatios.get(reagent);
-
-                    if (ratios == null) {
-                        ratios = new ArrayList<Double>();
-                        seedRawRatios.put(reagent, ratios);
+                    if (peptideValues != null) {
+                        peptideValues.merge(task.getPeptideValues());
                     }
 
-                    ratios.addAll(runnable.getSeedRawRatios().get(reagent));
-                }
+                    if (proteinValues != null) {
+                        proteinValues.merge(task.getProteinValues());
+                    }
+                },
+                waitingHandler,
+                exceptionHandler
+        );
 
-            }
+        return completed ? values : null;
+    }
 
+    /**
+     * Returns the normalization factor of a sample according to the given
+     * normalization type. The values of the seed proteins are used when
+     * available. Returns 1 if no value was gathered for the sample.
+     *
+     * @param sampleIndex the index of the sample
+     * @param normalizationType the normalization type
+     * @param values the values gathered for the level, null if the level was
+     * not processed
+     * @param reporterIonQuantification the reporter ion quantification
+     *
+     * @return the normalization factor of the sample
+     */
+    private static double getNormalizationFactor(
+            String sampleIndex,
+            NormalizationType normalizationType,
+            NormalizationValues values,
+            ReporterIonQuantification reporterIonQuantification
+    ) {
+
+        if (values == null) {
+            return 1;
         }
 
-        NormalizationFactors normalizationFactors = reporterIonQuantification.getNormalizationFactors();
-
-        for (String sampleIndex : reporterIonQuantification.getSampleIndexes()) {
-
-            double normalisationFactor;
-            ArrayList<Double> rawRatios = allRawRatios.get(sampleIndex);
-            ArrayList<Double> seedRatios = seedRawRatios.get(sampleIndex);
-
-            if (rawRatios != null && !rawRatios.isEmpty()) {
-
-                NormalizationType normalizationType = normalizationSettings.getProteinNormalization();
+        RatioAccumulator rawRatios = values.getAllRawRatios().get(sampleIndex);
 
-                if (null == normalizationType) {
-                    throw new UnsupportedOperationException("Normalization method not implemented.");
-                } else {
-                    switch (normalizationType) {
-                        case none:
-                            normalisationFactor = 1;
-                            break;
-                        case mean:
-                            if (seedRatios != null && !seedRatios.isEmpty()) {
-                                normalisationFactor = BasicMathFunctions.mean(seedRatios);
-                            } else {
-                                normalisationFactor = BasicMathFunctions.mean(rawRatios);
-                            }
-                            break;
-                        case median:
-                            if (seedRatios != null && !seedRatios.isEmpty()) {
-                                normalisationFactor = BasicMathFunctions.median(seedRatios);
-                            } else {
-                                normalisationFactor = BasicMathFunctions.median(rawRatios);
-                            }
-                            break;
-                        case mode:
-                            throw new UnsupportedOperationException("Normalization method not implemented.");
-                        case sum:
-                            throw new UnsupportedOperationException("Normalization method not implemented.");
-                        default:
-                            throw new UnsupportedOperationException("Normalization method not implemented.");
-                    }
-                }
+        if (rawRatios == null || rawRatios.isEmpty()) {
+            return 1;
+        }
 
-            } else {
-                normalisationFactor = 1;
-            }
+        RatioAccumulator seedRatios = values.getSeedRawRatios().get(sampleIndex);
+        boolean useSeeds = seedRatios != null && !seedRatios.isEmpty();
+        RatioAccumulator ratios = useSeeds ? seedRatios : rawRatios;
 
-            normalizationFactors.addProteinNormalisationFactor(sampleIndex, normalisationFactor);
+        if (null == normalizationType) {
+            throw new UnsupportedOperationException("Normalization method not implemented.");
         }
 
+        switch (normalizationType) {
+            case none:
+                return 1;
+            case mean:
+                return ratios.getMean();
+            case median:
+                return ratios.getMedian();
+            case mode:
+                return ratios.getMode();
+            case sum:
+                return getSumFactor(sampleIndex, values.getSums(useSeeds), reporterIonQuantification);
+            default:
+                throw new UnsupportedOperationException("Normalization method not implemented.");
+        }
     }
 
     /**
-     * Indicates whether all the given accessions are seed proteins.
+     * Increases the secondary progress counter of the waiting handler if not
+     * null.
      *
-     * @param seeds the list of seed proteins
-     * @param accessions the accessions to inspect
-     *
-     * @return a boolean indicating whether all the given accessions are seed
-     * proteins
+     * @param waitingHandler the waiting handler, can be null
      */
-    private static boolean isSeed(Collection<String> seeds, String[] accessions) {
-
-        for (String accession : accessions) {
-
-            if (!seeds.contains(accession)) {
-                return false;
-            }
+    private static void increaseProgress(WaitingHandler waitingHandler) {
 
+        if (waitingHandler != null) {
+            waitingHandler.increaseSecondaryProgressCounter();
         }
-
-        return true;
     }
 
     /**
-     * Indicates whether one of the given accessions is contaminant.
+     * Returns the inputs shared by the levels of the normalization. The
+     * stable proteins and contaminants are only read once for all levels,
+     * and again if the identification or the FASTA files change.
      *
-     * @param contaminants the list of contaminant proteins
-     * @param accessions the accessions to inspect
+     * @param identification the identification
+     * @param normalizationSettings the normalization settings
+     * @param exceptionHandler handler in case exception occur, can be null
+     * @param waitingHandler waiting handler displaying progress to the user,
+     * can be null
      *
-     * @return a boolean indicating whether all the given accessions are seed
-     * proteins
+     * @return the inputs shared by the levels of the normalization
+     *
+     * @throws java.io.IOException exception thrown whenever an error occurred
+     * while reading a FASTA file
      */
-    private static boolean isContaminant(Collection<String> contaminants, String[] accessions) {
-
-        for (String accession : accessions) {
+    private synchronized NormalizationInputs getNormalizationInputs(
+            Identification identification,
+            NormalizationSettings normalizationSettings,
+            ExceptionHandler exceptionHandler,
+            WaitingHandler waitingHandler
+    ) throws IOException {
 
-            if (contaminants.contains(accession)) {
-                return true;
-            }
+        if (normalizationInputs != null && normalizationInputs.isUpToDate(identification, normalizationSettings)) {
+            return normalizationInputs;
+        }
 
+        if (waitingHandler != null) {
+            waitingHandler.setWaitingText("Getting Stable Proteins and Contaminants. Please Wait...");
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
         }
 
-        return false;
+        normalizationInputs = new NormalizationInputs(
+                identification,
+                normalizationSettings.getStableProteinsFastaFile(),
+                normalizationSettings.getContaminantsFastaFile(),
+                normalizationSettings.getStableProteins(exceptionHandler),
+                normalizationSettings.getContaminants(exceptionHandler)
+        );
+
+        return normalizationInputs;
     }
 
     /**
-     * Runnable gathering values for the normalization of proteins.
+     * Returns the sum normalization factor of a sample: the sum of the
+     * deisotoped intensities of the sample divided by the median of the sums
+     * of the control samples, or of all samples if no control is set, in the
+     * same way as the ratios are computed. At every level, the intensities
+     * summed are the ones of the PSMs retained for the matches of this level.
+     * Returns 1 if the sum of the sample or the reference is not positive.
      *
-     * @author Marc Vaudel
+     * @param sampleIndex the index of the sample
+     * @param sums the sums of the deisotoped intensities per sample index
+     * @param reporterIonQuantification the reporter ion quantification
+     *
+     * @return the sum normalization factor of the sample
      */
-    private class ProteinNormalizerRunnable implements Runnable {
+    private static double getSumFactor(
+            String sampleIndex,
+            HashMap<String, Double> sums,
+            ReporterIonQuantification reporterIonQuantification
+    ) {
 
-        /**
-         * The reporter ion quantification.
-         */
-        private ReporterIonQuantification reporterIonQuantification;
-        /**
-         * An iterator for the matches.
-         */
-        private ProteinMatchesIterator proteinMatchesIterator;
-        /**
-         * The identification.
-         */
-        private Identification identification;
-        /**
-         * The spectrum provider.
-         */
-        private SpectrumProvider spectrumProvider;
-        /**
-         * The quantification features generator.
-         */
-        private QuantificationFeaturesGenerator quantificationFeaturesGenerator;
-        /**
-         * The seed proteins.
-         */
-        private Collection<String> seeds;
-        /**
-         * The excluded proteins.
-         */
-        private Collection<String> exclusion;
-        /**
-         * The ratio estimation settings.
-         */
-        private RatioEstimationSettings ratioEstimationSettings;
-        /**
-         * The raw ratios gathered in a map.
-         */
-        private HashMap<String, ArrayList<Double>> allRawRatios = new HashMap<String, ArrayList<Double>>();
-        /**
-         * The raw seed ratios gathered in a map.
-         */
-        private HashMap<String, ArrayList<Double>> seedRawRatios = new HashMap<String, ArrayList<Double>>();
-        /**
-         * The raw unique ratios gathered in a map.
-         */
-        private HashMap<String, ArrayList<Double>> allUniqueRawRatios = new HashMap<String, ArrayList<Double>>();
-        /**
-         * The raw seed unique ratios gathered in a map.
-         */
-        private HashMap<String, ArrayList<Double>> seedUniqueRawRatios = new HashMap<String, ArrayList<Double>>();
-        /**
-         * The raw shared ratios gathered in a map.
-         */
-        private HashMap<String, ArrayList<Double>> allSharedRawRatios = new HashMap<String, ArrayList<Double>>();
-        /**
-         * The raw seed shared ratios gathered in a map.
-         */
-        private HashMap<String, ArrayList<Double>> seedSharedRawRatios = new HashMap<String, ArrayList<Double>>();
-        /**
-         * The waiting handler.
-         */
-        private WaitingHandler waitingHandler;
-        /**
-         * Handler for the exceptions.
-         */
-        private ExceptionHandler exceptionHandler;
-
-        /**
-         * Constructor.
-         *
-         * @param reporterIonQuantification the reporter ion quantification
-         * object
-         * @param quantificationFeaturesGenerator the quantification features
-         * generator
-         * @param identification the identification object
-         * @param spectrumProvider the spectrum provider
-         * @param proteinMatchesIterator the iterator of the matches
-         * @param seeds the seed proteins
-         * @param exclusion the exclusion proteins
-         * @param ratioEstimationSettings the ratio estimation settings
-         * @param waitingHandler a waiting handler
-         * @param exceptionHandler an exception handler
-         */
-        public ProteinNormalizerRunnable(
-                ReporterIonQuantification reporterIonQuantification,
-                QuantificationFeaturesGenerator quantificationFeaturesGenerator,
-                Identification identification,
-                SpectrumProvider spectrumProvider,
-                ProteinMatchesIterator proteinMatchesIterator,
-                Collection<String> seeds,
-                Collection<String> exclusion,
-                RatioEstimationSettings ratioEstimationSettings,
-                WaitingHandler waitingHandler,
-                ExceptionHandler exceptionHandler
-        ) {
+        Double sampleSum = sums.get(sampleIndex);
 
-            this.reporterIonQuantification = reporterIonQuantification;
-            this.quantificationFeaturesGenerator = quantificationFeaturesGenerator;
-            this.proteinMatchesIterator = proteinMatchesIterator;
-            this.identification = identification;
-            this.spectrumProvider = spectrumProvider;
-            this.seeds = seeds;
-            this.exclusion = exclusion;
-            this.ratioEstimationSettings = ratioEstimationSettings;
-            this.waitingHandler = waitingHandler;
-            this.exceptionHandler = exceptionHandler;
+        if (sampleSum == null || sampleSum <= 0) {
+            return 1;
         }
 
-        @Override
-        public void run() {
-
-            try {
-
-                PSParameter psParameter = new PSParameter();
-                ProteinMatch proteinMatch;
-
-                while ((proteinMatch = proteinMatchesIterator.next()) != null) {
-
-                    if (proteinMatch != null) {
-
-                        if (exclusion == null || !isContaminant(exclusion, proteinMatch.getAccessions())) {
-
-                            long proteinMatchKey = proteinMatch.getKey();
-                            psParameter = (PSParameter) identification.getProteinMatch(proteinMatchKey).getUrParam(psParameter);
-
-                            if (psParameter.getMatchValidationLevel().getIndex() >= ratioEstimationSettings.getProteinValidationLevel().getIndex()) {
-
-                                ProteinQuantificationDetails matchQuantificationDetails
-                                        = quantificationFeaturesGenerator.getProteinMatchQuantificationDetails(
-                                                spectrumProvider,
-                                                proteinMatchKey,
-                                                waitingHandler
-                                        );
-
-                                for (String sampleIndex : reporterIonQuantification.getSampleIndexes()) {
-
-                                    Double ratio = matchQuantificationDetails.getRawRatio(sampleIndex);
-
-                                    if (QuantificationFilter.isRatioValid(ratioEstimationSettings, ratio) && ratio > 0) {
-
-                                        ArrayList<Double> ratios = allRawRatios.get(sampleIndex);
+        ArrayList<String> controlIndexes = reporterIonQuantification.getControlSamples();
 
-                                        if (ratios == null) {
-                                            ratios = new ArrayList<Double>();
-                                            allRawRatios.put(sampleIndex, ratios);
-                                        }
-
-                                        ratios.add(ratio);
-
-                                        if (seeds != null && isSeed(seeds, proteinMatch.getAccessions())) {
-
-                                            ratios = seedRawRatios.get(sampleIndex);
-
-                                            if (ratios == null) {
-                                                ratios = new ArrayList<Double>();
-                                                seedRawRatios.put(sampleIndex, ratios);
-                                            }
-
-                                            ratios.add(ratio);
-                                        }
-
-                                    }
-
-                                    ratio = matchQuantificationDetails.getUniqueRawRatio(sampleIndex);
-
-                                    if (QuantificationFilter.isRatioValid(ratioEstimationSettings, ratio) && ratio > 0) {
-
-                                        ArrayList<Double> ratios = allUniqueRawRatios.get(sampleIndex);
-
-                                        if (ratios == null) {
-                                            ratios = new ArrayList<Double>();
-                                            allUniqueRawRatios.put(sampleIndex, ratios);
-                                        }
-
-                                        ratios.add(ratio);
-
-                                        if (seeds != null && isSeed(seeds, proteinMatch.getAccessions())) {
-
-                                            ratios = seedUniqueRawRatios.get(sampleIndex);
-
-                                            if (ratios == null) {
-                                                ratios = new ArrayList<Double>();
-                                                seedUniqueRawRatios.put(sampleIndex, ratios);
-                                            }
-
-                                            ratios.add(ratio);
-                                        }
-
-                                    }
-
-                                    ratio = matchQuantificationDetails.getSharedRawRatio(sampleIndex);
-
-                                    if (QuantificationFilter.isRatioValid(ratioEstimationSettings, ratio) && ratio > 0) {
-
-                                        ArrayList<Double> ratios = allSharedRawRatios.get(sampleIndex);
-
-                                        if (ratios == null) {
-                                            ratios = new ArrayList<Double>();
-                                            allSharedRawRatios.put(sampleIndex, ratios);
-                                        }
+        if (controlIndexes == null || controlIndexes.isEmpty()) {
+            controlIndexes = new ArrayList<>(reporterIonQuantification.getSampleIndexes());
+        }
 
-                                        ratios.add(ratio);
+        double[] controlSums = controlIndexes.stream()
+                .map(sums::get)
+                .filter(sum -> sum != null && sum > 0)
+                .mapToDouble(Double::doubleValue)
+                .sorted()
+                .toArray();
 
-                                        if (seeds != null && isSeed(seeds, proteinMatch.getAccessions())) {
+        if (controlSums.length == 0) {
+            return 1;
+        }
 
-                                            ratios = seedSharedRawRatios.get(sampleIndex);
+        int middle = controlSums.length / 2;
+        double reference = controlSums.length % 2 == 1 ? controlSums[middle] : (controlSums[middle - 1] + controlSums[middle]) / 2;
 
-                                            if (ratios == null) {
-                                                ratios = new ArrayList<Double>();
-                                                seedSharedRawRatios.put(sampleIndex, ratios);
-                                            }
+        return sampleSum / reference;
+    }
 
-                                            ratios.add(ratio);
-                                        }
+    /**
+     * Indicates whether all the given accessions are seed proteins.
+     *
+     * @param seeds the list of seed proteins
+     * @param accessions the accessions to inspect
+     *
+     * @return a boolean indicating whether all the given accessions are seed
+     * proteins
+     */
+    private static boolean isSeed(Collection<String> seeds, String[] accessions) {
 
-                                    }
+        for (String accession : accessions) {
 
-                                }
+            if (!seeds.contains(accession)) {
+                return false;
+            }
 
-                            }
+        }
 
-                        }
+        return true;
+    }
 
-                    }
+    /**
+     * Indicates whether one of the given accessions is contaminant.
+     *
+     * @param contaminants the list of contaminant proteins
+     * @param accessions the accessions to inspect
+     *
+     * @return a boolean indicating whether all the given accessions are seed
+     * proteins
+     */
+    private static boolean isContaminant(Collection<String> contaminants, String[] accessions) {
 
-                    if (waitingHandler != null) {
+        for (String accession : accessions) {
 
-                        if (waitingHandler.isRunCanceled()) {
-                            return;
-                        }
+            if (contaminants.contains(accession)) {
+                return true;
+            }
 
-                        waitingHandler.increaseSecondaryProgressCounter();
-                    }
+        }
 
-                }
+        return false;
+    }
 
-            } catch (Exception e) {
-                waitingHandler.setRunCanceled();
-                exceptionHandler.catchException(e);
-            }
-        }
+    /**
+     * The inputs of the normalization shared by all levels: the stable
+     * proteins, the contaminants, and the sorted keys of the matches.
+     *
+     * @author Marc Vaudel
+     */
+    private static class NormalizationInputs {
 
         /**
-         * Returns the raw ratios found while iterating.
-         *
-         * @return the raw ratios found while iterating
+         * The identification.
          */
-        public HashMap<String, ArrayList<Double>> getAllRawRatios() {
-            return allRawRatios;
-        }
-
+        private final Identification identification;
         /**
-         * Returns the seed raw ratios found while iterating.
-         *
-         * @return the seed raw ratios found while iterating
+         * The FASTA file of the stable proteins, null if none.
          */
-        public HashMap<String, ArrayList<Double>> getSeedRawRatios() {
-            return seedRawRatios;
-        }
-
+        private final File stableProteinsFastaFile;
         /**
-         * Returns the raw unique ratios found while iterating.
-         *
-         * @return the raw unique ratios found while iterating
+         * The FASTA file of the contaminants, null if none.
          */
-        public HashMap<String, ArrayList<Double>> getAllUniqueRawRatios() {
-            return allUniqueRawRatios;
-        }
+        private final File contaminantsFastaFile;
+        /**
+         * The accessions of the stable proteins.
+         */
+        private final Collection<String> seeds;
+        /**
+         * The accessions of the contaminants.
+         */
+        private final Collection<String> exclusion;
+        /**
+         * The sorted keys of the matches of every level, null until needed.
+         */
+        private final long[][] sortedKeys = new long[QuantificationPipeline.Level.values().length][];
 
         /**
-         * Returns the seed raw unique ratios found while iterating.
+         * Constructor.
          *
-         * @return the seed raw unique ratios found while iterating
+         * @param identification the identification
+         * @param stableProteinsFastaFile the FASTA file of the stable
+         * proteins, null if none
+         * @param contaminantsFastaFile the FASTA file of the contaminants,
+         * null if none
+         * @param seeds the accessions of the stable proteins
+         * @param exclusion the accessions of the contaminants
          */
-        public HashMap<String, ArrayList<Double>> getSeedUniqueRawRatios() {
-            return seedUniqueRawRatios;
+        private NormalizationInputs(
+                Identification identification,
+                File stableProteinsFastaFile,
+                File contaminantsFastaFile,
+                Collection<String> seeds,
+                Collection<String> exclusion
+        ) {
+            this.identification = identification;
+            this.stableProteinsFastaFile = stableProteinsFastaFile;
+            this.contaminantsFastaFile = contaminantsFastaFile;
+            this.seeds = seeds;
+            this.exclusion = exclusion;
         }
 
         /**
-         * Returns the raw shared ratios found while iterating.
+         * Indicates whether the inputs were obtained for the given
+         * identification and FASTA files.
+         *
+         * @param identification the identification
+         * @param normalizationSettings the normalization settings
          *
-         * @return the raw shared ratios found while iterating
+         * @return a boolean indicating whether the inputs can be reused
          */
-        public HashMap<String, ArrayList<Double>> getAllSharedRawRatios() {
-            return allSharedRawRatios;
+        private boolean isUpToDate(Identification identification, NormalizationSettings normalizationSettings) {
+
+            return this.identification == identification
+                    && Objects.equals(stableProteinsFastaFile, normalizationSettings.getStableProteinsFastaFile())
+                    && Objects.equals(contaminantsFastaFile, normalizationSettings.getContaminantsFastaFile());
         }
 
         /**
-         * Returns the seed raw shared ratios found while iterating.
+         * Returns the keys of the matches of a level in ascending order.
+         *
+         * @param level the level
          *
-         * @return the seed raw shared ratios found while iterating
+         * @return the sorted keys
          */
-        public HashMap<String, ArrayList<Double>> getSeedSharedRawRatios() {
-            return seedSharedRawRatios;
+        private long[] getSortedKeys(QuantificationPipeline.Level level) {
+
+            int index = level.ordinal();
+
+            if (sortedKeys[index] == null) {
+                sortedKeys[index] = QuantificationPipeline.getSortedKeys(identification, level);
+            }
+
+            return sortedKeys[index];
         }
     }
 
     /**
-     * Runnable gathering values for the normalization of peptides.
+     * The values gathered for the normalization of a level.
      *
      * @author Marc Vaudel
      */
-    private class PeptideNormalizerRunnable implements Runnable {
+    private static class NormalizationValues {
 
         /**
-         * The reporter ion quantification.
-         */
-        private ReporterIonQuantification reporterIonQuantification;
-        /**
-         * An iterator for the peptide matches.
-         */
-        private PeptideMatchesIterator peptideMatchesIterator;
-        /**
-         * The identification.
-         */
-        private Identification identification;
-        /**
-         * The spectrum provider.
-         */
-        private SpectrumProvider spectrumProvider;
-        /**
-         * The quantification features generator.
+         * Indicates whether the quantiles are estimated using sketches.
          */
-        private QuantificationFeaturesGenerator quantificationFeaturesGenerator;
+        private final boolean approximateQuantiles;
         /**
-         * The seed proteins.
-         */
-        private Collection<String> seeds;
-        /**
-         * The excluded proteins.
+         * Indicates whether the deisotoped intensities are summed.
          */
-        private Collection<String> exclusion;
+        private final boolean sumIntensities;
         /**
-         * The peptide to protein sequence matching parameters.
+         * The raw ratios per sample index.
          */
-        private SequenceMatchingParameters sequenceMatchingParameters;
+        private final HashMap<String, RatioAccumulator> allRawRatios = new HashMap<>();
         /**
-         * The ratio estimation settings.
+         * The raw ratios of the seed proteins per sample index.
          */
-        private RatioEstimationSettings ratioEstimationSettings;
+        private final HashMap<String, RatioAccumulator> seedRawRatios = new HashMap<>();
         /**
-         * The raw peptide ratios gathered in a map.
+         * The sum of the deisotoped intensities per sample index.
          */
-        private HashMap<String, ArrayList<Double>> allRawRatios = new HashMap<String, ArrayList<Double>>();
+        private final HashMap<String, Double> allIntensities = new HashMap<>();
         /**
-         * The raw seed peptide ratios gathered in a map.
+         * The sum of the deisotoped intensities of the seed proteins per
+         * sample index.
          */
-        private HashMap<String, ArrayList<Double>> seedRawRatios = new HashMap<String, ArrayList<Double>>();
+        private final HashMap<String, Double> seedIntensities = new HashMap<>();
+
         /**
-         * The waiting handler.
+         * Constructor.
+         *
+         * @param approximateQuantiles if true the quantiles are estimated
+         * using sketches
+         * @param sumIntensities if true the deisotoped intensities are summed
          */
-        private WaitingHandler waitingHandler;
+        private NormalizationValues(boolean approximateQuantiles, boolean sumIntensities) {
+            this.approximateQuantiles = approximateQuantiles;
+            this.sumIntensities = sumIntensities;
+        }
+
         /**
-         * Handler for the exceptions.
+         * Returns empty values with the same settings.
+         *
+         * @return empty values with the same settings
          */
-        private ExceptionHandler exceptionHandler;
+        private NormalizationValues copyEmpty() {
+            return new NormalizationValues(approximateQuantiles, sumIntensities);
+        }
 
         /**
-         * Constructor.
+         * Indicates whether the deisotoped intensities are summed.
          *
-         * @param reporterIonQuantification the reporter ion quantification
-         * object
-         * @param quantificationFeaturesGenerator the quantification features
-         * generator
-         * @param identification the identification object
-         * @param spectrumProvider the spectrum provider
-         * @param peptideMatchesIterator the iterator of the peptide matches
-         * @param seeds the seed proteins
-         * @param exclusion the exclusion proteins
-         * @param ratioEstimationSettings the ratio estimation settings
-         * @param sequenceMatchingParameters the sequence matching parameters
-         * @param waitingHandler a waiting handler
-         * @param exceptionHandler an exception handler
+         * @return a boolean indicating whether the deisotoped intensities are
+         * summed
          */
-        public PeptideNormalizerRunnable(
-                ReporterIonQuantification reporterIonQuantification,
-                QuantificationFeaturesGenerator quantificationFeaturesGenerator,
-                Identification identification,
-                SpectrumProvider spectrumProvider,
-                PeptideMatchesIterator peptideMatchesIterator,
-                Collection<String> seeds,
-                Collection<String> exclusion,
-                RatioEstimationSettings ratioEstimationSettings,
-                SequenceMatchingParameters sequenceMatchingParameters,
-                WaitingHandler waitingHandler,
-                ExceptionHandler exceptionHandler
-        ) {
-
-            this.reporterIonQuantification = reporterIonQuantification;
-            this.quantificationFeaturesGenerator = quantificationFeaturesGenerator;
-            this.peptideMatchesIterator = peptideMatchesIterator;
-            this.identification = identification;
-            this.spectrumProvider = spectrumProvider;
-            this.seeds = seeds;
-            this.exclusion = exclusion;
-            this.sequenceMatchingParameters = sequenceMatchingParameters;
-            this.ratioEstimationSettings = ratioEstimationSettings;
-            this.waitingHandler = waitingHandler;
-            this.exceptionHandler = exceptionHandler;
+        private boolean isSumIntensities() {
+            return sumIntensities;
         }
 
-        @Override
-        public void run() {
-
-            try {
-                PSParameter psParameter = new PSParameter();
-                PeptideMatch peptideMatch;
-
-                while ((peptideMatch = peptideMatchesIterator.next()) != null) {
-
-                    if (peptideMatch != null) {
-
-                        Peptide peptide = peptideMatch.getPeptide();
-                        String[] parentProteins = peptide.getProteinMapping().keySet().stream().toArray(String[]::new);
-
-                        if (exclusion == null || !isContaminant(exclusion, parentProteins)) {
-
-                            long peptideKey = peptideMatch.getKey();
-                            psParameter = (PSParameter) identification.getPeptideMatch(peptideKey).getUrParam(psParameter);
-
-                            if (psParameter.getMatchValidationLevel().getIndex() >= ratioEstimationSettings.getPeptideValidationLevel().getIndex()) {
-
-                                PeptideQuantificationDetails matchQuantificationDetails
-                                        = quantificationFeaturesGenerator.getPeptideMatchQuantificationDetails(
-                                                spectrumProvider,
-                                                peptideMatch,
-                                                waitingHandler
-                                        );
-
-                                for (String sampleIndex : reporterIonQuantification.getSampleIndexes()) {
-
-                                    Double ratio = matchQuantificationDetails.getRawRatio(sampleIndex);
-
-                                    if (QuantificationFilter.isRatioValid(ratioEstimationSettings, ratio) && ratio > 0) {
-
-                                        ArrayList<Double> ratios = allRawRatios.get(sampleIndex);
-
-                                        if (ratios == null) {
-                                            ratios = new ArrayList<Double>();
-                                            allRawRatios.put(sampleIndex, ratios);
-                                        }
-
-                                        ratios.add(ratio);
-
-                                        if (seeds != null && isSeed(seeds, parentProteins)) {
-
-                                            ratios = seedRawRatios.get(sampleIndex);
-
-                                            if (ratios == null) {
-                                                ratios = new ArrayList<Double>();
-                                                seedRawRatios.put(sampleIndex, ratios);
-                                            }
-
-                                            ratios.add(ratio);
-                                        }
-
-                                    }
-
-                                }
-
-                            }
-
-                        }
-
-                    }
+        /**
+         * Adds a raw ratio.
+         *
+         * @param sampleIndex the index of the sample
+         * @param ratio the raw ratio
+         * @param seed indicates whether the match belongs to seed proteins
+         */
+        private void addRatio(String sampleIndex, double ratio, boolean seed) {
 
-                    if (waitingHandler != null) {
+            allRawRatios.computeIfAbsent(sampleIndex, key -> new RatioAccumulator(approximateQuantiles)).add(ratio);
 
-                        if (waitingHandler.isRunCanceled()) {
-                            return;
-                        }
+            if (seed) {
+                seedRawRatios.computeIfAbsent(sampleIndex, key -> new RatioAccumulator(approximateQuantiles)).add(ratio);
+            }
+        }
 
-                        waitingHandler.increaseSecondaryProgressCounter();
-                    }
+        /**
+         * Adds a deisotoped intensity.
+         *
+         * @param sampleIndex the index of the sample
+         * @param intensity the deisotoped intensity
+         * @param seed indicates whether the match belongs to seed proteins
+         */
+        private void addIntensity(String sampleIndex, double intensity, boolean seed) {
 
-                }
+            allIntensities.merge(sampleIndex, intensity, Double::sum);
 
-            } catch (Exception e) {
-                waitingHandler.setRunCanceled();
-                exceptionHandler.catchException(e);
+            if (seed) {
+                seedIntensities.merge(sampleIndex, intensity, Double::sum);
             }
         }
 
         /**
-         * Returns the raw ratios found while iterating.
+         * Adds the values gathered by a task.
          *
-         * @return the raw ratios found while iterating
+         * @param otherValues the values gathered by the task
          */
-        public HashMap<String, ArrayList<Double>> getAllRawRatios() {
+        private void merge(NormalizationValues otherValues) {
+
+            otherValues.allRawRatios.forEach((sampleIndex, ratios) -> allRawRatios
+                    .computeIfAbsent(sampleIndex, key -> new RatioAccumulator(approximateQuantiles))
+                    .merge(ratios));
+            otherValues.seedRawRatios.forEach((sampleIndex, ratios) -> seedRawRatios
+                    .computeIfAbsent(sampleIndex, key -> new RatioAccumulator(approximateQuantiles))
+                    .merge(ratios));
+            otherValues.allIntensities.forEach((sampleIndex, intensity) -> allIntensities.merge(sampleIndex, intensity, Double::sum));
+            otherValues.seedIntensities.forEach((sampleIndex, intensity) -> seedIntensities.merge(sampleIndex, intensity, Double::sum));
+        }
+
+        /**
+         * Returns the raw ratios per sample index.
+         *
+         * @return the raw ratios per sample index
+         */
+        private HashMap<String, RatioAccumulator> getAllRawRatios() {
             return allRawRatios;
         }
 
         /**
-         * Returns the seed raw ratios found while iterating.
+         * Returns the raw ratios of the seed proteins per sample index.
          *
-         * @return the seed raw ratios found while iterating
+         * @return the raw ratios of the seed proteins per sample index
          */
-        public HashMap<String, ArrayList<Double>> getSeedRawRatios() {
+        private HashMap<String, RatioAccumulator> getSeedRawRatios() {
             return seedRawRatios;
         }
+
+        /**
+         * Returns the sums of the deisotoped intensities per sample index.
+         *
+         * @param seed if true the sums of the seed proteins are returned
+         *
+         * @return the sums of the deisotoped intensities per sample index
+         */
+        private HashMap<String, Double> getSums(boolean seed) {
+            return seed ? seedIntensities : allIntensities;
+        }
     }
 
     /**
-     * Runnable gathering values for the normalization of PSMs.
+     * Task gathering the normalization values on a chunk of matches. The
+     * indexes of the chunk refer to the PSM keys, followed by the peptide
+     * keys, followed by the protein keys.
      *
      * @author Marc Vaudel
      */
-    private class PsmNormalizerRunnable implements Runnable {
+    private class NormalizerTask implements Callable<NormalizerTask> {
 
         /**
          * The reporter ion quantification.
          */
-        private ReporterIonQuantification reporterIonQuantification;
+        private final ReporterIonQuantification reporterIonQuantification;
         /**
-         * An iterator for the matches.
+         * The quantification features generator.
          */
-        private SpectrumMatchesIterator spectrumMatchesIterator;
+        private final QuantificationFeaturesGenerator quantificationFeaturesGenerator;
         /**
          * The identification.
          */
-        private Identification identification;
+        private final Identification identification;
         /**
          * The spectrum provider.
          */
-        private SpectrumProvider spectrumProvider;
+        private final SpectrumProvider spectrumProvider;
         /**
-         * The quantification features generator.
+         * The sorted keys of the spectrum matches.
+         */
+        private final long[] psmKeys;
+        /**
+         * The sorted keys of the peptide matches.
+         */
+        private final long[] peptideKeys;
+        /**
+         * The sorted keys of the protein matches.
+         */
+        private final long[] proteinKeys;
+        /**
+         * The index of the first match to process.
+         */
+        private final int from;
+        /**
+         * The index after the last match to process.
          */
-        private QuantificationFeaturesGenerator quantificationFeaturesGenerator;
+        private final int to;
         /**
          * The seed proteins.
          */
-        private Collection<String> seeds;
+        private final Collection<String> seeds;
         /**
          * The excluded proteins.
          */
-        private Collection<String> exclusion;
+        private final Collection<String> exclusion;
         /**
-         * The peptide to protein sequence matching parameters.
+         * The ratio estimation settings.
          */
-        private SequenceMatchingParameters sequenceMatchingParameters;
+        private final RatioEstimationSettings ratioEstimationSettings;
         /**
-         * The ratio estimation settings.
+         * The values gathered for the PSMs, null if not normalized.
          */
-        private RatioEstimationSettings ratioEstimationSettings;
+        private final NormalizationValues psmValues;
         /**
-         * The raw peptide ratios gathered in a map.
+         * The values gathered for the peptides, null if not normalized.
          */
-        private HashMap<String, ArrayList<Double>> allRawRatios = new HashMap<String, ArrayList<Double>>();
+        private final NormalizationValues peptideValues;
         /**
-         * The raw seed peptide ratios gathered in a map.
+         * The values gathered for the proteins, null if not normalized.
          */
-        private HashMap<String, ArrayList<Double>> seedRawRatios = new HashMap<String, ArrayList<Double>>();
+        private final NormalizationValues proteinValues;
         /**
-         * The waiting handler.
+         * The waiting handler, can be null.
          */
-        private WaitingHandler waitingHandler;
+        private final WaitingHandler waitingHandler;
         /**
-         * Handler for the exceptions.
+         * The status of the matches with regard to the quantification
+         * filters.
          */
-        private ExceptionHandler exceptionHandler;
+        private final QuantificationFilterIndex quantificationFilterIndex;
 
         /**
          * Constructor.
@@ -1266,141 +1093,287 @@ public class Normalizer {
          * generator
          * @param identification the identification object
          * @param spectrumProvider the spectrum provider
-         * @param spectrumMatchesIterator the iterator of the matches
+         * @param psmKeys the sorted keys of the spectrum matches
+         * @param peptideKeys the sorted keys of the peptide matches
+         * @param proteinKeys the sorted keys of the protein matches
+         * @param from the index of the first match to process
+         * @param to the index after the last match to process
          * @param seeds the seed proteins
          * @param exclusion the exclusion proteins
          * @param ratioEstimationSettings the ratio estimation settings
-         * @param sequenceMatchingParameters the sequence matching parameters
-         * @param waitingHandler a waiting handler
-         * @param exceptionHandler an exception handler
+         * @param quantificationFilterIndex the status of the matches with
+         * regard to the quantification filters
+         * @param psmValues the values where to gather the PSM values, null if
+         * not normalized
+         * @param peptideValues the values where to gather the peptide values,
+         * null if not normalized
+         * @param proteinValues the values where to gather the protein values,
+         * null if not normalized
+         * @param waitingHandler a waiting handler, can be null
          */
-        public PsmNormalizerRunnable(
+        public NormalizerTask(
                 ReporterIonQuantification reporterIonQuantification,
                 QuantificationFeaturesGenerator quantificationFeaturesGenerator,
                 Identification identification,
                 SpectrumProvider spectrumProvider,
-                SpectrumMatchesIterator spectrumMatchesIterator,
+                long[] psmKeys,
+                long[] peptideKeys,
+                long[] proteinKeys,
+                int from,
+                int to,
                 Collection<String> seeds,
                 Collection<String> exclusion,
                 RatioEstimationSettings ratioEstimationSettings,
-                SequenceMatchingParameters sequenceMatchingParameters,
-                WaitingHandler waitingHandler,
-                ExceptionHandler exceptionHandler
+                QuantificationFilterIndex quantificationFilterIndex,
+                NormalizationValues psmValues,
+                NormalizationValues peptideValues,
+                NormalizationValues proteinValues,
+                WaitingHandler waitingHandler
         ) {
 
             this.reporterIonQuantification = reporterIonQuantification;
             this.quantificationFeaturesGenerator = quantificationFeaturesGenerator;
-            this.spectrumMatchesIterator = spectrumMatchesIterator;
             this.identification = identification;
             this.spectrumProvider = spectrumProvider;
+            this.psmKeys = psmKeys;
+            this.peptideKeys = peptideKeys;
+            this.proteinKeys = proteinKeys;
+            this.from = from;
+            this.to = to;
             this.seeds = seeds;
             this.exclusion = exclusion;
-            this.sequenceMatchingParameters = sequenceMatchingParameters;
             this.ratioEstimationSettings = ratioEstimationSettings;
+            this.quantificationFilterIndex = quantificationFilterIndex;
+            this.psmValues = psmValues;
+            this.peptideValues = peptideValues;
+            this.proteinValues = proteinValues;
             this.waitingHandler = waitingHandler;
-            this.exceptionHandler = exceptionHandler;
         }
 
         @Override
-        public void run() {
+        public NormalizerTask call() throws Exception {
+
+            int peptidesStart = psmKeys.length;
+            int proteinsStart = peptidesStart + peptideKeys.length;
 
-            try {
+            for (int i = from; i < to; i++) {
 
-                PSParameter psParameter = new PSParameter();
-                SpectrumMatch spectrumMatch;
+                if (OrderedChunkRunner.isCanceled(waitingHandler)) {
+                    return this;
+                }
+
+                if (i < peptidesStart) {
+                    processPsm(psmKeys[i]);
+                } else if (i < proteinsStart) {
+                    processPeptide(peptideKeys[i - peptidesStart]);
+                } else {
+                    processProtein(proteinKeys[i - proteinsStart]);
+                }
 
-                while ((spectrumMatch = spectrumMatchesIterator.next()) != null) {
+                increaseProgress(waitingHandler);
 
-                    if (spectrumMatch != null) {
+            }
 
-                        PeptideAssumption peptideAssumption = spectrumMatch.getBestPeptideAssumption();
+            return this;
+        }
 
-                        if (peptideAssumption != null) {
+        /**
+         * Gathers the values of a spectrum match.
+         *
+         * @param spectrumMatchKey the key of the spectrum match
+         */
+        private void processPsm(long spectrumMatchKey) {
 
-                            Peptide peptide = peptideAssumption.getPeptide();
+            if (!quantificationFilterIndex.isPsmValid(spectrumMatchKey)) {
+                return;
+            }
 
-                            String[] parentProteins = peptide.getProteinMapping().keySet().stream().toArray(String[]::new);
+            SpectrumMatch spectrumMatch = identification.getSpectrumMatch(spectrumMatchKey);
+            PeptideAssumption peptideAssumption = spectrumMatch.getBestPeptideAssumption();
 
-                            if (exclusion == null || !isContaminant(exclusion, parentProteins)) {
+            if (peptideAssumption != null) {
 
-                                psParameter = (PSParameter) identification.getSpectrumMatch(spectrumMatch.getKey()).getUrParam(psParameter);
+                Peptide peptide = peptideAssumption.getPeptide();
+                String[] parentProteins = peptide.getProteinMapping().keySet().stream().toArray(String[]::new);
 
-                                if (psParameter.getMatchValidationLevel().getIndex() >= ratioEstimationSettings.getPsmValidationLevel().getIndex()) {
+                if (exclusion == null || !isContaminant(exclusion, parentProteins)) {
 
-                                    PsmQuantificationDetails matchQuantificationDetails = quantificationFeaturesGenerator.getPSMQuantificationDetails(spectrumProvider, spectrumMatch.getKey());
+                    PsmQuantificationDetails matchQuantificationDetails = quantificationFeaturesGenerator.getPSMQuantificationDetails(spectrumProvider, spectrumMatchKey);
+                    boolean seed = seeds != null && isSeed(seeds, parentProteins);
 
-                                    for (String sampleIndex : reporterIonQuantification.getSampleIndexes()) {
+                    if (psmValues.isSumIntensities()) {
+                        addIntensities(psmValues, spectrumMatch, seed);
+                    }
 
-                                        Double ratio = matchQuantificationDetails.getRawRatio(sampleIndex);
+                    for (String sampleIndex : reporterIonQuantification.getSampleIndexes()) {
 
-                                        if (QuantificationFilter.isRatioValid(ratioEstimationSettings, ratio) && ratio > 0) {
+                        Double ratio = matchQuantificationDetails.getRawRatio(sampleIndex);
 
-                                            ArrayList<Double> ratios = allRawRatios.get(sampleIndex);
+                        if (QuantificationFilter.isRatioValid(ratioEstimationSettings, ratio) && ratio > 0) {
+                            psmValues.addRatio(sampleIndex, ratio, seed);
+                        }
 
-                                            if (ratios == null) {
-                                                ratios = new ArrayList<Double>();
-                                                allRawRatios.put(sampleIndex, ratios);
-                                            }
+                    }
 
-                                            ratios.add(ratio);
+                }
 
-                                            if (seeds != null && isSeed(seeds, parentProteins)) {
+            }
+        }
 
-                                                ratios = seedRawRatios.get(sampleIndex);
+        /**
+         * Gathers the values of a peptide match.
+         *
+         * @param peptideKey the key of the peptide match
+         */
+        private void processPeptide(long peptideKey) {
 
-                                                if (ratios == null) {
-                                                    ratios = new ArrayList<Double>();
-                                                    seedRawRatios.put(sampleIndex, ratios);
-                                                }
+            if (!quantificationFilterIndex.isPeptideValidated(peptideKey)) {
+                return;
+            }
 
-                                                ratios.add(ratio);
+            PeptideMatch peptideMatch = identification.getPeptideMatch(peptideKey);
+            Peptide peptide = peptideMatch.getPeptide();
+            String[] parentProteins = peptide.getProteinMapping().keySet().stream().toArray(String[]::new);
 
-                                            }
-                                        }
+            if (exclusion == null || !isContaminant(exclusion, parentProteins)) {
 
-                                    }
+                PeptideQuantificationDetails matchQuantificationDetails
+                        = quantificationFeaturesGenerator.getPeptideMatchQuantificationDetails(
+                                spectrumProvider,
+                                peptideMatch,
+                                waitingHandler
+                        );
+                boolean seed = seeds != null && isSeed(seeds, parentProteins);
 
-                                }
+                if (peptideValues.isSumIntensities()) {
+                    addIntensities(peptideValues, peptideMatch, seed);
+                }
 
-                            }
+                for (String sampleIndex : reporterIonQuantification.getSampleIndexes()) {
 
-                        }
+                    Double ratio = matchQuantificationDetails.getRawRatio(sampleIndex);
 
+                    if (QuantificationFilter.isRatioValid(ratioEstimationSettings, ratio) && ratio > 0) {
+                        peptideValues.addRatio(sampleIndex, ratio, seed);
                     }
 
-                    if (waitingHandler != null) {
+                }
+
+            }
+        }
+
+        /**
+         * Gathers the values of a protein match.
+         *
+         * @param proteinMatchKey the key of the protein match
+         */
+        private void processProtein(long proteinMatchKey) {
+
+            if (!quantificationFilterIndex.isProteinValid(proteinMatchKey)) {
+                return;
+            }
+
+            ProteinMatch proteinMatch = identification.getProteinMatch(proteinMatchKey);
+
+            if (exclusion == null || !isContaminant(exclusion, proteinMatch.getAccessions())) {
+
+                ProteinQuantificationDetails matchQuantificationDetails
+                        = quantificationFeaturesGenerator.getProteinMatchQuantificationDetails(
+                                spectrumProvider,
+                                proteinMatchKey,
+                                waitingHandler
+                        );
+                boolean seed = seeds != null && isSeed(seeds, proteinMatch.getAccessions());
+
+                if (proteinValues.isSumIntensities()) {
+
+                    for (long peptideKey : proteinMatch.getPeptideMatchesKeys()) {
 
-                        if (waitingHandler.isRunCanceled()) {
-                            return;
+                        PeptideMatch peptideMatch = identification.getPeptideMatch(peptideKey);
+
+                        if (quantificationFilterIndex.isPeptideValid(peptideMatch)) {
+                            addIntensities(proteinValues, peptideMatch, seed);
                         }
+                    }
+                }
+
+                for (String sampleIndex : reporterIonQuantification.getSampleIndexes()) {
 
-                        waitingHandler.increaseSecondaryProgressCounter();
+                    Double ratio = matchQuantificationDetails.getRawRatio(sampleIndex);
+
+                    if (QuantificationFilter.isRatioValid(ratioEstimationSettings, ratio) && ratio > 0) {
+                        proteinValues.addRatio(sampleIndex, ratio, seed);
                     }
 
                 }
 
-            } catch (Exception e) {
-                waitingHandler.setRunCanceled();
-                exceptionHandler.catchException(e);
             }
         }
 
         /**
-         * Returns the raw ratios found while iterating.
+         * Adds the deisotoped intensities of the PSMs of a peptide match which
+         * can be used for quantification.
          *
-         * @return the raw ratios found while iterating
+         * @param values the values where to add the intensities
+         * @param peptideMatch the peptide match
+         * @param seed indicates whether the match belongs to seed proteins
          */
-        public HashMap<String, ArrayList<Double>> getAllRawRatios() {
-            return allRawRatios;
+        private void addIntensities(NormalizationValues values, PeptideMatch peptideMatch, boolean seed) {
+
+            for (long spectrumMatchKey : peptideMatch.getSpectrumMatchesKeys()) {
+
+                if (quantificationFilterIndex.isPsmValid(spectrumMatchKey)) {
+                    addIntensities(values, identification.getSpectrumMatch(spectrumMatchKey), seed);
+                }
+            }
         }
 
         /**
-         * Returns the seed raw ratios found while iterating.
+         * Adds the deisotoped intensities of a spectrum match.
          *
-         * @return the seed raw ratios found while iterating
+         * @param values the values where to add the intensities
+         * @param spectrumMatch the spectrum match
+         * @param seed indicates whether the match belongs to seed proteins
          */
-        public HashMap<String, ArrayList<Double>> getSeedRawRatios() {
-            return seedRawRatios;
+        private void addIntensities(NormalizationValues values, SpectrumMatch spectrumMatch, boolean seed) {
+
+            SpectrumQuantificationDetails spectrumQuantificationDetails = quantificationFeaturesGenerator.getSpectrumQuantificationDetails(spectrumProvider, spectrumMatch.getSpectrumFile(), spectrumMatch.getKey());
+
+            for (String sampleIndex : reporterIonQuantification.getSampleIndexes()) {
+
+                double intensity = spectrumQuantificationDetails.getDeisotopedIntensity(sampleIndex);
+
+                if (intensity > 0) {
+                    values.addIntensity(sampleIndex, intensity, seed);
+                }
+            }
+        }
+
+        /**
+         * Returns the values gathered for the PSMs.
+         *
+         * @return the values gathered for the PSMs, null if not normalized
+         */
+        public NormalizationValues getPsmValues() {
+            return psmValues;
+        }
+
+        /**
+         * Returns the values gathered for the peptides.
+         *
+         * @return the values gathered for the peptides, null if not normalized
+         */
+        public NormalizationValues getPeptideValues() {
+            return peptideValues;
+        }
+
+        /**
+         * Returns the values gathered for the proteins.
+         *
+         * @return the values gathered for the proteins, null if not normalized
+         */
+        public NormalizationValues getProteinValues() {
+            return proteinValues;
         }
     }
 }
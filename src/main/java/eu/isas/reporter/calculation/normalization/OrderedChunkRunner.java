@@ -0,0 +1,210 @@
+package eu.isas.reporter.calculation.normalization;
+
+import com.compomics.util.exceptions.ExceptionHandler;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Runs tasks on chunks of consecutive indexes and merges their results in the
+ * order of the chunks. The chunks do not depend on the number of threads, the
+ * merged results are hence the same for any number of threads or executor.
+ *
+ * @author Marc Vaudel
+ */
+public class OrderedChunkRunner {
+
+    /**
+     * The number of indexes processed per task.
+     */
+    private final int chunkSize;
+    /**
+     * The executor to run the tasks on, null if a fixed thread pool should be
+     * created for every run.
+     */
+    private final ExecutorService executorService;
+
+    /**
+     * Constructor.
+     *
+     * @param chunkSize the number of indexes processed per task
+     * @param executorService the executor to run the tasks on, null to create
+     * a fixed thread pool for every run
+     */
+    public OrderedChunkRunner(int chunkSize, ExecutorService executorService) {
+        this.chunkSize = chunkSize;
+        this.executorService = executorService;
+    }
+
+    /**
+     * Splits the given number of indexes in chunks and runs a task per chunk
+     * on the executor. The results of the tasks are merged in the order of the
+     * chunks, and the number of tasks submitted ahead of the merging is
+     * bounded to twice the number of threads. When the process is canceled,
+     * no task is submitted anymore. When a task fails, the other tasks are
+     * canceled and the exception is passed to the exception handler or thrown
+     * if no exception handler is set.
+     *
+     * @param <T> the type of task
+     * @param nIndexes the number of indexes
+     * @param nThreads the number of threads
+     * @param taskFactory the factory creating the task of the indexes between
+     * the given indexes, start inclusive and end exclusive
+     * @param merger the consumer merging the results of a task
+     * @param waitingHandler the waiting handler, can be null
+     * @param exceptionHandler the exception handler, can be null
+     *
+     * @return a boolean indicating whether all indexes were processed
+     *
+     * @throws java.sql.SQLException exception thrown whenever an error occurred
+     * while interacting with the database
+     * @throws java.io.IOException exception thrown whenever an error occurred
+     * while interacting with a file
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserializing an object
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading error occurred
+     */
+    public <T> boolean run(
+            int nIndexes,
+            int nThreads,
+            TaskFactory<T> taskFactory,
+            Consumer<T> merger,
+            WaitingHandler waitingHandler,
+            ExceptionHandler exceptionHandler
+    ) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+
+        int nChunks = (nIndexes + chunkSize - 1) / chunkSize;
+        int maxPending = 2 * Math.max(nThreads, 1);
+        ExecutorService executor = executorService != null ? executorService : Executors.newFixedThreadPool(Math.max(nThreads, 1));
+        ArrayDeque<Future<T>> pending = new ArrayDeque<>(maxPending);
+
+        try {
+
+            int chunk = 0;
+
+            while (!isCanceled(waitingHandler)) {
+
+                while (chunk < nChunks && pending.size() < maxPending) {
+
+                    int from = chunk * chunkSize;
+                    int to = Math.min(from + chunkSize, nIndexes);
+                    pending.add(executor.submit(taskFactory.getTask(from, to)));
+                    chunk++;
+
+                }
+
+                if (pending.isEmpty()) {
+                    break;
+                }
+
+                try {
+
+                    merger.accept(pending.poll().get());
+
+                } catch (ExecutionException e) {
+
+                    Throwable cause = e.getCause();
+
+                    if (exceptionHandler != null && cause instanceof Exception) {
+
+                        if (waitingHandler != null) {
+                            waitingHandler.setRunCanceled();
+                        }
+
+                        exceptionHandler.catchException((Exception) cause);
+
+                        return false;
+
+                    }
+
+                    throwCause(cause);
+
+                }
+            }
+
+            return !isCanceled(waitingHandler);
+
+        } finally {
+
+            for (Future<T> future : pending) {
+                future.cancel(true);
+            }
+
+            if (executorService == null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Throws the cause of an exception thrown by a task.
+     *
+     * @param cause the cause
+     *
+     * @throws java.sql.SQLException exception thrown whenever an error occurred
+     * while interacting with the database
+     * @throws java.io.IOException exception thrown whenever an error occurred
+     * while interacting with a file
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserializing an object
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading error occurred
+     */
+    private static void throwCause(Throwable cause) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+
+        if (cause instanceof SQLException) {
+            throw (SQLException) cause;
+        } else if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof ClassNotFoundException) {
+            throw (ClassNotFoundException) cause;
+        } else if (cause instanceof InterruptedException) {
+            throw (InterruptedException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+
+        throw new RuntimeException(cause);
+    }
+
+    /**
+     * Indicates whether the process was canceled by the user or the current
+     * thread interrupted.
+     *
+     * @param waitingHandler the waiting handler, can be null
+     *
+     * @return a boolean indicating whether the process was canceled
+     */
+    public static boolean isCanceled(WaitingHandler waitingHandler) {
+        return Thread.currentThread().isInterrupted()
+                || waitingHandler != null && waitingHandler.isRunCanceled();
+    }
+
+    /**
+     * Factory creating the task processing the indexes between two indexes.
+     *
+     * @param <T> the type of task
+     */
+    public interface TaskFactory<T> {
+
+        /**
+         * Returns the task processing the indexes between the given indexes.
+         *
+         * @param from the first index, inclusive
+         * @param to the last index, exclusive
+         *
+         * @return the task processing the indexes between the given indexes
+         */
+        Callable<T> getTask(int from, int to);
+    }
+}
@@ -0,0 +1,312 @@
+package eu.isas.reporter.calculation.normalization;
+
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch following Karnin, Lang and Liberty (KLL). Values
+ * are stored in a hierarchy of compactors, every level holding values of
+ * weight twice the weight of the level below. When a level is full, it is
+ * sorted and every other value is promoted to the next level. The memory used
+ * grows with the logarithm of the number of values.
+ *
+ * The error on the rank of the returned quantiles is below 1.7% of the number
+ * of values with 99% confidence for k = 200, and decreases proportionally to
+ * 1/k.
+ *
+ * @author Marc Vaudel
+ */
+public class QuantileSketch {
+
+    /**
+     * The default size of the top compactor.
+     */
+    public static final int DEFAULT_K = 200;
+    /**
+     * The ratio between the capacities of consecutive levels.
+     */
+    private static final double C = 2.0 / 3.0;
+    /**
+     * The size of the top compactor.
+     */
+    private final int k;
+    /**
+     * The values of every level.
+     */
+    private double[][] levels = new double[4][];
+    /**
+     * The number of values in every level.
+     */
+    private int[] levelSizes = new int[4];
+    /**
+     * The number of levels.
+     */
+    private int nLevels = 0;
+    /**
+     * The number of values stored.
+     */
+    private int size = 0;
+    /**
+     * The maximal number of values to store before compressing.
+     */
+    private int maxSize = 0;
+    /**
+     * The number of values added to the sketch.
+     */
+    private long count = 0;
+    /**
+     * The state of the generator used to select the values promoted.
+     */
+    private long randomState = 0x9e3779b97f4a7c15L;
+
+    /**
+     * Constructor using the default k.
+     */
+    public QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param k the size of the top compactor
+     */
+    public QuantileSketch(int k) {
+        this.k = k;
+        grow();
+    }
+
+    /**
+     * Adds a value to the sketch.
+     *
+     * @param value the value
+     */
+    public void add(double value) {
+
+        append(0, value);
+        size++;
+        count++;
+
+        if (size >= maxSize) {
+            compress();
+        }
+    }
+
+    /**
+     * Adds the values of another sketch to this sketch.
+     *
+     * @param otherSketch the other sketch
+     */
+    public void merge(QuantileSketch otherSketch) {
+
+        while (nLevels < otherSketch.nLevels) {
+            grow();
+        }
+
+        for (int level = 0; level < otherSketch.nLevels; level++) {
+
+            double[] otherValues = otherSketch.levels[level];
+
+            for (int i = 0; i < otherSketch.levelSizes[level]; i++) {
+                append(level, otherValues[i]);
+            }
+        }
+
+        size += otherSketch.size;
+        count += otherSketch.count;
+
+        while (size >= maxSize) {
+            compress();
+        }
+    }
+
+    /**
+     * Returns the number of values added to the sketch.
+     *
+     * @return the number of values added to the sketch
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns an estimate of the given quantile, NaN if the sketch is empty.
+     *
+     * @param quantile the quantile between 0 and 1
+     *
+     * @return an estimate of the given quantile
+     */
+    public double getQuantile(double quantile) {
+
+        if (size == 0) {
+            return Double.NaN;
+        }
+
+        // sort the values and their weights by value
+        double[] values = new double[size];
+        long[] weights = new long[size];
+        int index = 0;
+
+        for (int level = 0; level < nLevels; level++) {
+
+            double[] levelValues = levels[level];
+            Arrays.sort(levelValues, 0, levelSizes[level]);
+
+            for (int i = 0; i < levelSizes[level]; i++) {
+                values[index] = levelValues[i];
+                weights[index] = 1L << level;
+                index++;
+            }
+        }
+
+        Integer[] order = new Integer[size];
+
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+
+        Arrays.sort(order, (i, j) -> Double.compare(values[i], values[j]));
+
+        long totalWeight = 0;
+
+        for (long weight : weights) {
+            totalWeight += weight;
+        }
+
+        double target = quantile * totalWeight;
+        long cumulativeWeight = 0;
+
+        for (int i : order) {
+
+            cumulativeWeight += weights[i];
+
+            if (cumulativeWeight >= target) {
+                return values[i];
+            }
+        }
+
+        return values[order[size - 1]];
+    }
+
+    /**
+     * Returns an estimate of the median, NaN if the sketch is empty.
+     *
+     * @return an estimate of the median
+     */
+    public double getMedian() {
+        return getQuantile(0.5);
+    }
+
+    /**
+     * Returns the capacity of a level.
+     *
+     * @param level the level
+     *
+     * @return the capacity of the level
+     */
+    private int getCapacity(int level) {
+        return (int) Math.ceil(k * Math.pow(C, nLevels - level - 1)) + 1;
+    }
+
+    /**
+     * Adds a level on top of the hierarchy.
+     */
+    private void grow() {
+
+        if (nLevels == levels.length) {
+            levels = Arrays.copyOf(levels, 2 * nLevels);
+            levelSizes = Arrays.copyOf(levelSizes, 2 * nLevels);
+        }
+
+        levels[nLevels] = new double[8];
+        levelSizes[nLevels] = 0;
+        nLevels++;
+
+        maxSize = 0;
+
+        for (int level = 0; level < nLevels; level++) {
+            maxSize += getCapacity(level);
+        }
+    }
+
+    /**
+     * Appends a value to a level.
+     *
+     * @param level the level
+     * @param value the value
+     */
+    private void append(int level, double value) {
+
+        double[] values = levels[level];
+        int levelSize = levelSizes[level];
+
+        if (levelSize == values.length) {
+            values = Arrays.copyOf(values, 2 * levelSize);
+            levels[level] = values;
+        }
+
+        values[levelSize] = value;
+        levelSizes[level] = levelSize + 1;
+    }
+
+    /**
+     * Compacts the full levels starting from the bottom until the number of
+     * values stored is below the maximal size.
+     */
+    private void compress() {
+
+        for (int level = 0; level < nLevels; level++) {
+
+            if (levelSizes[level] >= getCapacity(level)) {
+
+                if (level + 1 >= nLevels) {
+                    grow();
+                }
+
+                compact(level);
+
+                if (size < maxSize) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sorts the values of a level and promotes one value of every pair to the
+     * next level. The smallest value is kept if the number of values is odd.
+     *
+     * @param level the level
+     */
+    private void compact(int level) {
+
+        double[] values = levels[level];
+        int levelSize = levelSizes[level];
+        Arrays.sort(values, 0, levelSize);
+
+        int start = levelSize % 2;
+        int offset = nextBit();
+        int promoted = 0;
+
+        for (int i = start; i + 1 < levelSize; i += 2) {
+            append(level + 1, values[i + offset]);
+            promoted++;
+        }
+
+        levelSizes[level] = start;
+        size -= levelSize - start - promoted;
+    }
+
+    /**
+     * Returns a pseudo-random bit using a xorshift generator.
+     *
+     * @return a pseudo-random bit
+     */
+    private int nextBit() {
+
+        randomState ^= randomState << 13;
+        randomState ^= randomState >>> 7;
+        randomState ^= randomState << 17;
+
+        return (int) (randomState >>> 63);
+    }
+}
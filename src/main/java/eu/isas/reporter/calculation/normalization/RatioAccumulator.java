@@ -0,0 +1,338 @@
+package eu.isas.reporter.calculation.normalization;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates the ratios of a channel for the estimation of a normalization
+ * factor. In exact mode all ratios are stored as primitives, in sketch mode
+ * the ratios are summarized in a QuantileSketch of bounded size. In both
+ * modes, the positive ratios are binned in a histogram of log ratios used to
+ * estimate the mode. Accumulators filled in parallel can be merged.
+ *
+ * @author Marc Vaudel
+ */
+public class RatioAccumulator {
+
+    /**
+     * The lower bound of the histogram in log2.
+     */
+    private static final double MIN_LOG = -16.0;
+    /**
+     * The width of the bins of the histogram in log2.
+     */
+    private static final double BIN_WIDTH = 1.0 / 64;
+    /**
+     * The number of bins of the histogram.
+     */
+    private static final int N_BINS = 2048;
+    /**
+     * The maximal half width of the kernel in bins.
+     */
+    private static final int MAX_KERNEL_HALF_WIDTH = 256;
+    /**
+     * The natural logarithm of 2.
+     */
+    private static final double LOG_2 = Math.log(2);
+
+    /**
+     * The ratios in exact mode, null in sketch mode.
+     */
+    private double[] ratios;
+    /**
+     * The number of ratios stored in exact mode.
+     */
+    private int nRatios = 0;
+    /**
+     * The sketch in sketch mode, null in exact mode.
+     */
+    private final QuantileSketch sketch;
+    /**
+     * The number of ratios added.
+     */
+    private long count = 0;
+    /**
+     * The sum of the ratios added.
+     */
+    private double sum = 0.0;
+    /**
+     * The histogram of the log2 of the positive ratios, null until a positive
+     * ratio is added.
+     */
+    private int[] histogram = null;
+    /**
+     * The number of ratios in the histogram.
+     */
+    private long histogramCount = 0;
+    /**
+     * The sum of the log2 of the ratios in the histogram.
+     */
+    private double logSum = 0.0;
+    /**
+     * The sum of the squared log2 of the ratios in the histogram.
+     */
+    private double logSquareSum = 0.0;
+
+    /**
+     * Constructor.
+     *
+     * @param useSketch if true the quantiles are estimated using a sketch,
+     * otherwise they are computed from all ratios
+     */
+    public RatioAccumulator(boolean useSketch) {
+
+        if (useSketch) {
+            sketch = new QuantileSketch();
+            ratios = null;
+        } else {
+            sketch = null;
+            ratios = new double[16];
+        }
+    }
+
+    /**
+     * Adds a ratio.
+     *
+     * @param ratio the ratio
+     */
+    public void add(double ratio) {
+
+        if (sketch != null) {
+
+            sketch.add(ratio);
+
+        } else {
+
+            if (nRatios == ratios.length) {
+                ratios = Arrays.copyOf(ratios, 2 * nRatios);
+            }
+
+            ratios[nRatios++] = ratio;
+
+        }
+
+        count++;
+        sum += ratio;
+
+        if (ratio > 0) {
+
+            if (histogram == null) {
+                histogram = new int[N_BINS];
+            }
+
+            double logRatio = Math.log(ratio) / LOG_2;
+            histogram[getBin(logRatio)]++;
+            histogramCount++;
+            logSum += logRatio;
+            logSquareSum += logRatio * logRatio;
+
+        }
+    }
+
+    /**
+     * Adds the ratios of another accumulator in the same mode.
+     *
+     * @param otherAccumulator the other accumulator
+     */
+    public void merge(RatioAccumulator otherAccumulator) {
+
+        if (sketch != null) {
+
+            sketch.merge(otherAccumulator.sketch);
+
+        } else {
+
+            if (nRatios + otherAccumulator.nRatios > ratios.length) {
+                ratios = Arrays.copyOf(ratios, nRatios + otherAccumulator.nRatios);
+            }
+
+            System.arraycopy(otherAccumulator.ratios, 0, ratios, nRatios, otherAccumulator.nRatios);
+            nRatios += otherAccumulator.nRatios;
+
+        }
+
+        count += otherAccumulator.count;
+        sum += otherAccumulator.sum;
+
+        if (otherAccumulator.histogram != null) {
+
+            if (histogram == null) {
+                histogram = new int[N_BINS];
+            }
+
+            for (int bin = 0; bin < N_BINS; bin++) {
+                histogram[bin] += otherAccumulator.histogram[bin];
+            }
+
+            histogramCount += otherAccumulator.histogramCount;
+            logSum += otherAccumulator.logSum;
+            logSquareSum += otherAccumulator.logSquareSum;
+
+        }
+    }
+
+    /**
+     * Indicates whether no ratio was added.
+     *
+     * @return a boolean indicating whether no ratio was added
+     */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Returns the number of ratios added.
+     *
+     * @return the number of ratios added
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the sum of the ratios.
+     *
+     * @return the sum of the ratios
+     */
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * Returns the mean of the ratios.
+     *
+     * @return the mean of the ratios
+     */
+    public double getMean() {
+        return sum / count;
+    }
+
+    /**
+     * Returns the median of the ratios. In sketch mode, the median is
+     * estimated with the error bound of the QuantileSketch.
+     *
+     * @return the median of the ratios
+     */
+    public double getMedian() {
+
+        if (sketch != null) {
+            return sketch.getMedian();
+        }
+
+        if (nRatios == 0) {
+            return Double.NaN;
+        }
+
+        double[] sortedRatios = Arrays.copyOf(ratios, nRatios);
+        Arrays.sort(sortedRatios);
+
+        if (nRatios % 2 == 1) {
+            return sortedRatios[nRatios / 2];
+        }
+
+        return (sortedRatios[nRatios / 2 - 1] + sortedRatios[nRatios / 2]) / 2;
+    }
+
+    /**
+     * Returns an estimate of the mode of the positive ratios. The histogram of
+     * the log2 ratios is smoothed using a Gaussian kernel of bandwidth given by
+     * Silverman's rule of thumb, and the maximum of the density is refined by
+     * parabolic interpolation. The median is returned if no positive ratio
+     * was added.
+     *
+     * @return an estimate of the mode of the ratios
+     */
+    public double getMode() {
+
+        if (histogramCount == 0) {
+            return getMedian();
+        }
+
+        // bandwidth
+        double mean = logSum / histogramCount;
+        double variance = Math.max(logSquareSum / histogramCount - mean * mean, 0.0);
+        double bandwidth = Math.max(1.06 * Math.sqrt(variance) * Math.pow(histogramCount, -0.2), BIN_WIDTH);
+        double bandwidthInBins = bandwidth / BIN_WIDTH;
+        int halfWidth = Math.min((int) Math.ceil(3 * bandwidthInBins), MAX_KERNEL_HALF_WIDTH);
+
+        double[] kernel = new double[halfWidth + 1];
+
+        for (int i = 0; i <= halfWidth; i++) {
+            double x = i / bandwidthInBins;
+            kernel[i] = Math.exp(-0.5 * x * x);
+        }
+
+        // smoothed density on the occupied range of the histogram
+        int firstBin = 0;
+
+        while (histogram[firstBin] == 0) {
+            firstBin++;
+        }
+
+        int lastBin = N_BINS - 1;
+
+        while (histogram[lastBin] == 0) {
+            lastBin--;
+        }
+
+        int start = Math.max(firstBin - halfWidth, 0);
+        int end = Math.min(lastBin + halfWidth, N_BINS - 1);
+        double[] density = new double[end - start + 1];
+
+        for (int bin = firstBin; bin <= lastBin; bin++) {
+
+            int binCount = histogram[bin];
+
+            if (binCount > 0) {
+
+                int from = Math.max(bin - halfWidth, start);
+                int to = Math.min(bin + halfWidth, end);
+
+                for (int target = from; target <= to; target++) {
+                    density[target - start] += binCount * kernel[Math.abs(target - bin)];
+                }
+            }
+        }
+
+        int maxIndex = 0;
+
+        for (int i = 1; i < density.length; i++) {
+
+            if (density[i] > density[maxIndex]) {
+                maxIndex = i;
+            }
+        }
+
+        double offset = 0.0;
+
+        if (maxIndex > 0 && maxIndex < density.length - 1) {
+
+            double left = density[maxIndex - 1];
+            double center = density[maxIndex];
+            double right = density[maxIndex + 1];
+            double curvature = left - 2 * center + right;
+
+            if (curvature < 0) {
+                offset = 0.5 * (left - right) / curvature;
+            }
+        }
+
+        double logMode = MIN_LOG + (start + maxIndex + offset + 0.5) * BIN_WIDTH;
+
+        return Math.pow(2, logMode);
+    }
+
+    /**
+     * Returns the bin of a log2 ratio in the histogram. Values outside the
+     * histogram are counted in the first or last bin.
+     *
+     * @param logRatio the log2 ratio
+     *
+     * @return the bin of the log2 ratio
+     */
+    private static int getBin(double logRatio) {
+
+        int bin = (int) Math.floor((logRatio - MIN_LOG) / BIN_WIDTH);
+
+        return Math.max(0, Math.min(bin, N_BINS - 1));
+    }
+}
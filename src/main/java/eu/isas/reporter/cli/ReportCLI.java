@@ -205,6 +205,9 @@ public class ReportCLI extends PsdbParent {
                 identificationParameters.getSequenceMatchingParameters()
         );
 
+        // reuse the saved quantification results
+        quantificationFeaturesGenerator.setSavedResults(projectImporter.getQuantificationResults());
+
         // export report(s)
         if (reportCLIInputBean.exportNeeded()) {
 
@@ -260,6 +263,8 @@ public class ReportCLI extends PsdbParent {
             }
         }
 
+        quantificationFeaturesGenerator.getQuantificationFeaturesCache().close();
+
         try {
 
             PeptideShakerCLI.closePeptideShaker(identification);
@@ -12,7 +12,6 @@ import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.validation.MatchValidationLevel;
 import com.compomics.util.experiment.io.temp.TempFilesManager;
 import com.compomics.util.experiment.mass_spectrometry.SpectrumProvider;
-import com.compomics.util.experiment.normalization.NormalizationFactors;
 import com.compomics.util.experiment.quantification.reporterion.ReporterIonQuantification;
 import com.compomics.util.experiment.quantification.reporterion.ReporterMethod;
 import com.compomics.util.experiment.quantification.reporterion.ReporterMethodFactory;
@@ -27,6 +26,8 @@ import eu.isas.peptideshaker.utils.PsdbParent;
 import eu.isas.reporter.Reporter;
 import eu.isas.reporter.calculation.QuantificationFeaturesCache;
 import eu.isas.reporter.calculation.QuantificationFeaturesGenerator;
+import eu.isas.reporter.calculation.QuantificationPipeline;
+import eu.isas.reporter.calculation.ReporterIntensityExtractor;
 import eu.isas.reporter.calculation.normalization.NormalizationType;
 import eu.isas.reporter.calculation.normalization.Normalizer;
 import eu.isas.reporter.io.ProjectImporter;
@@ -334,6 +335,14 @@ public class ReporterCLI extends PsdbParent implements Callable {
             }
         }
 
+        // Normalization sketch
+        if (aLine.hasOption(ReporterCLIParameters.NORMALIZATION_SKETCH.id)) {
+            String arg = aLine.getOptionValue(ReporterCLIParameters.NORMALIZATION_SKETCH.id);
+            if (!CommandParameter.isBooleanInput(ReporterCLIParameters.NORMALIZATION_SKETCH.id, arg)) {
+                return false;
+            }
+        }
+
         return true;
     }
 
@@ -536,81 +545,78 @@ public class ReporterCLI extends PsdbParent implements Callable {
                 identificationParameters.getSequenceMatchingParameters()
         );
 
-        // Set Normalization factors
-        NormalizationFactors normalizationFactors = reporterIonQuantification.getNormalizationFactors();
+        // Reuse the saved quantification results if the settings did not change
+        boolean resultsSaved = quantificationFeaturesGenerator.setSavedResults(projectImporter.getQuantificationResults());
 
-        if (!normalizationFactors.hasNormalizationFactors()) {
+        // Extract the reporter intensities, not needed if the PSM results are saved
+        try {
 
-            try {
-                Normalizer normalizer = new Normalizer();
+            if (!resultsSaved || !QuantificationPipeline.isSaved(getIdentification(), quantificationFeaturesGenerator, QuantificationPipeline.Level.psm)) {
+
+                ReporterIntensityExtractor.extract(
+                        getIdentification(),
+                        spectrumProvider,
+                        quantificationFeaturesGenerator,
+                        reporterIonQuantification,
+                        reporterSettings.getReporterIonSelectionSettings(),
+                        processingParameters.getnThreads(),
+                        waitingHandler,
+                        exceptionHandler
+                );
 
-                if (!normalizationFactors.hasPsmNormalisationFactors()) {
-                    normalizer.setPsmNormalizationFactors(
-                            reporterIonQuantification,
-                            reporterSettings.getRatioEstimationSettings(),
-                            reporterSettings.getNormalizationSettings(),
-                            getIdentificationParameters().getSequenceMatchingParameters(),
-                            getIdentification(),
-                            spectrumProvider,
-                            quantificationFeaturesGenerator,
-                            processingParameters,
-                            getIdentificationParameters().getSearchParameters(),
-                            getIdentificationParameters().getFastaParameters(),
-                            getIdentificationParameters().getPeptideVariantsParameters(),
-                            exceptionHandler,
-                            waitingHandler
-                    );
-                }
+            }
 
-                if (!normalizationFactors.hasPeptideNormalisationFactors()) {
-                    normalizer.setPeptideNormalizationFactors(
-                            reporterIonQuantification,
-                            reporterSettings.getRatioEstimationSettings(),
-                            reporterSettings.getNormalizationSettings(),
-                            getIdentificationParameters().getSequenceMatchingParameters(),
-                            getIdentification(),
-                            spectrumProvider,
-                            quantificationFeaturesGenerator,
-                            processingParameters,
-                            getIdentificationParameters().getSearchParameters(),
-                            getIdentificationParameters().getFastaParameters(),
-                            getIdentificationParameters().getPeptideVariantsParameters(),
-                            exceptionHandler,
-                            waitingHandler
-                    );
-                }
+        } catch (Exception e) {
 
-                if (!normalizationFactors.hasProteinNormalisationFactors()) {
-                    normalizer.setProteinNormalizationFactors(
+            System.out.println(
+                    System.getProperty("line.separator")
+                    + "An error occurred while extracting the reporter ions."
+                    + System.getProperty("line.separator")
+            );
+
+            e.printStackTrace();
+
+            return 1;
+        }
+
+        // Quantify all matches bottom-up, setting the normalization factors of each level before quantifying the next, the saved levels are skipped
+        try {
+
+            Normalizer normalizer = new Normalizer();
+
+            QuantificationPipeline.run(
+                    getIdentification(),
+                    spectrumProvider,
+                    quantificationFeaturesGenerator,
+                    processingParameters.getnThreads(),
+                    waitingHandler,
+                    level -> normalizer.setNormalizationFactors(
+                            level,
                             reporterIonQuantification,
                             reporterSettings.getRatioEstimationSettings(),
                             reporterSettings.getNormalizationSettings(),
+                            getIdentificationParameters().getSequenceMatchingParameters(),
                             getIdentification(),
                             spectrumProvider,
                             getMetrics(),
                             quantificationFeaturesGenerator,
                             processingParameters,
-                            getIdentificationParameters().getSearchParameters(),
-                            getIdentificationParameters().getFastaParameters(),
-                            getIdentificationParameters().getPeptideVariantsParameters(),
                             exceptionHandler,
                             waitingHandler
-                    );
-                }
-
-            } catch (Exception e) {
+                    )
+            );
 
-                System.out.println(
-                        System.getProperty("line.separator")
-                        + "An error occurred while estimating the ratios."
-                        + System.getProperty("line.separator")
-                );
+        } catch (Exception e) {
 
-                e.printStackTrace();
+            System.out.println(
+                    System.getProperty("line.separator")
+                    + "An error occurred while quantifying the matches."
+                    + System.getProperty("line.separator")
+            );
 
-                return 1;
-            }
+            e.printStackTrace();
 
+            return 1;
         }
 
         // Save the project in the psdb file
@@ -623,7 +629,7 @@ public class ReporterCLI extends PsdbParent implements Callable {
 
         try {
 
-            ProjectSaver.saveProject(reporterSettings, reporterIonQuantification, displayPreferences, this, waitingHandler);
+            ProjectSaver.saveProject(reporterSettings, reporterIonQuantification, displayPreferences, quantificationFeaturesGenerator, this, waitingHandler);
             waitingHandler.appendReport("Project saved as " + destinationFile.getAbsolutePath() + ".", true, true);
 
         } catch (Exception e) {
@@ -737,6 +743,8 @@ public class ReporterCLI extends PsdbParent implements Callable {
             }
         }
 
+        quantificationFeaturesGenerator.getQuantificationFeaturesCache().close();
+
         waitingHandler.appendReportEndLine();
 
         if (waitingHandler.isRunCanceled()) {
@@ -835,6 +843,9 @@ public class ReporterCLI extends PsdbParent implements Callable {
         if (reporterCLIInputBean.getContaminants() != null) {
             normalizationSettings.setContaminantsFastaFile(reporterCLIInputBean.getContaminants());
         }
+        if (reporterCLIInputBean.isNormalizationSketch() != null) {
+            normalizationSettings.setApproximateQuantiles(reporterCLIInputBean.isNormalizationSketch());
+        }
     }
 
 //    /**
@@ -141,6 +141,11 @@ public class ReporterCLIInputBean {
      * FASTA file containing contaminants.
      */
     private File contaminants = null;
+    /**
+     * Indicates whether the normalization quantiles should be estimated using
+     * sketches.
+     */
+    private Boolean normalizationSketch = null;
     /**
      * File where to export the zipped folder.
      */
@@ -326,6 +331,13 @@ public class ReporterCLIInputBean {
             contaminants = new File(arg);
         }
 
+        // get the normalization sketch option
+        if (aLine.hasOption(ReporterCLIParameters.NORMALIZATION_SKETCH.id)) {
+            arg = aLine.getOptionValue(ReporterCLIParameters.NORMALIZATION_SKETCH.id);
+            Integer input = new Integer(arg);
+            normalizationSketch = input.equals(1);
+        }
+
         // zipped export
         if (aLine.hasOption(ReporterCLIParameters.ZIP.id)) {
             zipExport = new File(aLine.getOptionValue(ReporterCLIParameters.ZIP.id));
@@ -600,6 +612,17 @@ public class ReporterCLIInputBean {
         return contaminants;
     }
 
+    /**
+     * Indicates whether the normalization quantiles should be estimated using
+     * sketches. Null if not set.
+     *
+     * @return a boolean indicating whether the normalization quantiles should
+     * be estimated using sketches
+     */
+    public Boolean isNormalizationSketch() {
+        return normalizationSketch;
+    }
+
     /**
      * Returns the file where to export the project as zip file. Null if not
      * set.
@@ -45,6 +45,7 @@ public enum ReporterCLIParameters {
     NORMALIZATION_PROTEIN("normalization_protein", "Normalization at the protein level (" + NormalizationType.getCommandLineDescription() + "). Default is 1.", false),
     STABLE_PROTEINS("stable_proteins", "Path to a FASTA file containing proteins to consider most stable between samples.", false),
     CONTAMINANTS("contaminants", "Path to a FASTA file containing proteins to consider as contaminants. Default is resources/crap.fasta.", false),
+    NORMALIZATION_SKETCH("normalization_sketch", "Estimate the normalization medians using quantile sketches of bounded size instead of storing all ratios, the rank error is below 1.7% with 99% confidence (1: yes, 0: no). Default is 0.", false),
     
     ZIP("zip", "Exports the entire project as a zip file in the file specified.", false),
     
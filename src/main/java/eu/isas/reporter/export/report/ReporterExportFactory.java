@@ -47,6 +47,7 @@ import eu.isas.peptideshaker.utils.ExportFactoryMarshaller;
 import eu.isas.reporter.export.report.sections.ReporterPeptideSection;
 import eu.isas.reporter.export.report.sections.ReporterProteinSection;
 import eu.isas.reporter.export.report.sections.ReporterPsmSection;
+import eu.isas.reporter.export.report.sections.ReporterPtmSection;
 import eu.isas.reporter.settings.ReporterSettings;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -202,6 +203,7 @@ public class ReporterExportFactory implements ExportFactory {
         result.add(ReporterProteinFeatures.type);
         result.add(ReporterPeptideFeature.type);
         result.add(ReporterPsmFeatures.type);
+        result.add(ReporterPtmFeatures.type);
         result.add(PsFragmentFeature.type);
         result.add(PsProjectFeature.type);
         result.add(PsPtmScoringFeature.type);
@@ -235,6 +237,9 @@ public class ReporterExportFactory implements ExportFactory {
             case ReporterPsmFeatures.type:
                 return ReporterPsmFeatures.values()[0].getExportFeatures(includeSubFeatures);
 
+            case ReporterPtmFeatures.type:
+                return ReporterPtmFeatures.values()[0].getExportFeatures(includeSubFeatures);
+
             case PsPtmScoringFeature.type:
                 return PsPtmScoringFeature.values()[0].getExportFeatures(includeSubFeatures);
 
@@ -499,6 +504,27 @@ public class ReporterExportFactory implements ExportFactory {
 
                     break;
 
+                case ReporterPtmFeatures.type:
+
+                    ReporterPtmSection reporterPtmSection = new ReporterPtmSection(
+                            exportScheme.getExportFeatures(sectionName),
+                            exportScheme.isIndexes(),
+                            exportScheme.isHeader(),
+                            exportWriter
+                    );
+
+                    reporterPtmSection.writeSection(
+                            identification,
+                            spectrumProvider,
+                            quantificationFeaturesGenerator,
+                            reporterIonQuantification,
+                            exportScheme.isValidatedOnly(),
+                            exportScheme.isIncludeDecoy(),
+                            waitingHandler
+                    );
+
+                    break;
+
                 case PsPtmScoringFeature.type:
 
                     PsPtmScoringSection psPtmScoringSection = new PsPtmScoringSection(
@@ -0,0 +1,86 @@
+package eu.isas.reporter.export.report;
+
+import com.compomics.util.io.export.ExportFeature;
+import com.compomics.util.io.export.features.ReporterExportFeature;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * This enum lists the PTM site quantification features that can be exported.
+ *
+ * @author Marc Vaudel
+ */
+public enum ReporterPtmFeatures implements ReporterExportFeature {
+
+    accession("Protein", "The leading accession of the protein match.", false, false),
+    ptm("PTM", "The name of the PTM.", false, false),
+    site("Site", "The position of the site on the protein sequence.", false, false),
+    n_peptides("#Peptides", "The number of peptides where the PTM is confidently localized at this site.", false, false),
+    ratio("Ratios", "The ratios of the site estimated from the peptides where the PTM is confidently localized at this site.", true, false);
+
+    /**
+     * The title of the feature which will be used for column heading.
+     */
+    public final String title;
+    /**
+     * The description of the feature.
+     */
+    public final String description;
+    /**
+     * The type of export feature.
+     */
+    public static final String type = "PTM Site Reporter Quantification Summary";
+    /**
+     * Indicates whether the feature is channel dependent.
+     */
+    private final boolean hasChannels;
+    /**
+     * Indicates whether a feature is for advanced user only.
+     */
+    private final boolean advanced;
+
+    /**
+     * Constructor.
+     *
+     * @param title title of the feature
+     * @param description description of the feature
+     * @param hasChannels indicates whether the feature is channel dependent
+     * @param advanced indicates whether a feature is for advanced user only
+     */
+    private ReporterPtmFeatures(String title, String description, boolean hasChannels, boolean advanced) {
+        this.title = title;
+        this.description = description;
+        this.hasChannels = hasChannels;
+        this.advanced = advanced;
+    }
+
+    @Override
+    public ArrayList<ExportFeature> getExportFeatures(boolean includeSubFeatures) {
+        return new ArrayList<>(Arrays.asList(values()));
+    }
+
+    @Override
+    public String getTitle() {
+        return title;
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public String getFeatureFamily() {
+        return type;
+    }
+
+    @Override
+    public boolean hasChannels() {
+        return hasChannels;
+    }
+
+    @Override
+    public boolean isAdvanced() {
+        return advanced;
+    }
+}
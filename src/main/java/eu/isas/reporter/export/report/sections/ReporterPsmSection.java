@@ -497,6 +497,7 @@ public class ReporterPsmSection {
                                 spectrumProvider,
                                 reporterIonQuantification,
                                 reporterSettings.getReporterIonSelectionSettings(),
+                                spectrumMatch.getSpectrumFile(),
                                 spectrumKey
                         );
                 IonMatch ionMatch = spectrumDetails.getRepoterMatch(sampleIndex);
@@ -511,6 +512,7 @@ public class ReporterPsmSection {
                                 spectrumProvider,
                                 reporterIonQuantification,
                                 reporterSettings.getReporterIonSelectionSettings(),
+                                spectrumMatch.getSpectrumFile(),
                                 spectrumKey
                         );
                 ionMatch = spectrumDetails.getRepoterMatch(sampleIndex);
@@ -525,6 +527,7 @@ public class ReporterPsmSection {
                                 spectrumProvider,
                                 reporterIonQuantification,
                                 reporterSettings.getReporterIonSelectionSettings(),
+                                spectrumMatch.getSpectrumFile(),
                                 spectrumKey
                         );
                 return spectrumDetails.getDeisotopedIntensity(sampleIndex).toString();
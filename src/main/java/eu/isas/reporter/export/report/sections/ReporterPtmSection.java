@@ -0,0 +1,335 @@
+package eu.isas.reporter.export.report.sections;
+
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.matches.ProteinMatch;
+import com.compomics.util.experiment.identification.peptide_shaker.PSParameter;
+import com.compomics.util.experiment.mass_spectrometry.SpectrumProvider;
+import com.compomics.util.experiment.quantification.reporterion.ReporterIonQuantification;
+import com.compomics.util.io.export.ExportFeature;
+import com.compomics.util.io.export.ExportWriter;
+import com.compomics.util.io.export.writers.ExcelWriter;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.reporter.calculation.MatchIncidence;
+import eu.isas.reporter.calculation.PtmSiteIndex;
+import eu.isas.reporter.calculation.QuantificationFeaturesGenerator;
+import eu.isas.reporter.export.report.ReporterPtmFeatures;
+import eu.isas.reporter.export.report.ReporterReportStyle;
+import eu.isas.reporter.quantificationdetails.ProteinPtmQuantificationDetails;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * This class outputs the PTM site related export features.
+ *
+ * @author Marc Vaudel
+ */
+public class ReporterPtmSection {
+
+    /**
+     * The features to export.
+     */
+    private ArrayList<ReporterPtmFeatures> ptmFeatures = new ArrayList<>();
+    /**
+     * Boolean indicating whether the line shall be indexed.
+     */
+    private boolean indexes;
+    /**
+     * Boolean indicating whether column headers shall be included.
+     */
+    private boolean header;
+    /**
+     * The writer used to send the output to file.
+     */
+    private ExportWriter writer;
+    /**
+     * Style for the reporter output.
+     */
+    private ReporterReportStyle reporterStyle;
+
+    /**
+     * Constructor.
+     *
+     * @param exportFeatures the features to export in this section
+     * @param indexes indicates whether the line index should be written
+     * @param header indicates whether the table header should be written
+     * @param writer the writer which will write to the file
+     */
+    public ReporterPtmSection(ArrayList<ExportFeature> exportFeatures, boolean indexes, boolean header, ExportWriter writer) {
+
+        for (ExportFeature exportFeature : exportFeatures) {
+
+            if (exportFeature instanceof ReporterPtmFeatures) {
+                ptmFeatures.add((ReporterPtmFeatures) exportFeature);
+            } else {
+                throw new IllegalArgumentException(
+                        "Export feature of type "
+                        + exportFeature.getClass()
+                        + " not recognized."
+                );
+            }
+        }
+
+        this.indexes = indexes;
+        this.header = header;
+        this.writer = writer;
+
+        if (writer instanceof ExcelWriter) {
+            reporterStyle = ReporterReportStyle.getReportStyle((ExcelWriter) writer);
+        }
+    }
+
+    /**
+     * Writes the desired section. The sites are exported sorted by protein,
+     * PTM and site.
+     *
+     * @param identification the identification of the project
+     * @param spectrumProvider the spectrum provider
+     * @param quantificationFeaturesGenerator the quantification features
+     * generator containing the quantification information
+     * @param reporterIonQuantification the reporter ion quantification object
+     * containing the quantification configuration
+     * @param validatedOnly whether only the sites of validated proteins should
+     * be exported
+     * @param decoys whether the sites of decoy proteins should be exported as
+     * well
+     * @param waitingHandler the waiting handler
+     *
+     * @throws java.io.IOException exception thrown whenever an error occurred
+     * while interacting with a file
+     */
+    public void writeSection(
+            Identification identification,
+            SpectrumProvider spectrumProvider,
+            QuantificationFeaturesGenerator quantificationFeaturesGenerator,
+            ReporterIonQuantification reporterIonQuantification,
+            boolean validatedOnly,
+            boolean decoys,
+            WaitingHandler waitingHandler
+    ) throws IOException {
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+        }
+
+        if (header) {
+            writeHeader(reporterIonQuantification);
+        }
+
+        MatchIncidence matchIncidence = quantificationFeaturesGenerator.getMatchIncidence();
+        PtmSiteIndex ptmSiteIndex = quantificationFeaturesGenerator.getPtmSiteIndex();
+        int nSites = ptmSiteIndex.getNSites();
+
+        if (waitingHandler != null) {
+            waitingHandler.setWaitingText("Exporting. Please Wait...");
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(nSites);
+        }
+
+        ArrayList<String> sampleIndexes = new ArrayList<>(reporterIonQuantification.getSampleIndexes());
+        Collections.sort(sampleIndexes);
+
+        int line = 1;
+        PSParameter psParameter = new PSParameter();
+        int proteinIndex = -1;
+        boolean exportProtein = false;
+
+        for (int siteIndex = 0; siteIndex < nSites; siteIndex++) {
+
+            if (waitingHandler != null) {
+                if (waitingHandler.isRunCanceled()) {
+                    return;
+                }
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+
+            // the sites are sorted by protein
+            if (ptmSiteIndex.getProteinIndex(siteIndex) != proteinIndex) {
+
+                proteinIndex = ptmSiteIndex.getProteinIndex(siteIndex);
+                ProteinMatch proteinMatch = identification.getProteinMatch(matchIncidence.getProteinKey(proteinIndex));
+                psParameter = (PSParameter) proteinMatch.getUrParam(psParameter);
+                exportProtein = (decoys || !proteinMatch.isDecoy())
+                        && (!validatedOnly || psParameter.getMatchValidationLevel().isValidated());
+
+            }
+
+            if (exportProtein) {
+
+                boolean first = true;
+
+                if (indexes) {
+                    writer.write(line + "");
+                    first = false;
+                }
+
+                for (ReporterPtmFeatures ptmFeature : ptmFeatures) {
+
+                    if (ptmFeature.hasChannels()) {
+
+                        for (String sampleIndex : sampleIndexes) {
+
+                            if (!first) {
+                                writer.addSeparator();
+                            } else {
+                                first = false;
+                            }
+
+                            writer.write(
+                                    getFeature(
+                                            spectrumProvider,
+                                            quantificationFeaturesGenerator,
+                                            ptmSiteIndex,
+                                            siteIndex,
+                                            ptmFeature,
+                                            sampleIndex,
+                                            waitingHandler
+                                    ),
+                                    reporterStyle);
+                        }
+
+                    } else {
+
+                        if (!first) {
+                            writer.addSeparator();
+                        } else {
+                            first = false;
+                        }
+
+                        writer.write(
+                                getFeature(
+                                        spectrumProvider,
+                                        quantificationFeaturesGenerator,
+                                        ptmSiteIndex,
+                                        siteIndex,
+                                        ptmFeature,
+                                        "",
+                                        waitingHandler
+                                ),
+                                reporterStyle);
+                    }
+                }
+
+                writer.newLine();
+                line++;
+            }
+        }
+    }
+
+    /**
+     * Returns the report component corresponding to a feature at a given
+     * channel.
+     *
+     * @param spectrumProvider the spectrum provider
+     * @param quantificationFeaturesGenerator the quantification features
+     * generator
+     * @param ptmSiteIndex the index of the PTM sites
+     * @param siteIndex the index of the site
+     * @param ptmFeature the PTM feature to export
+     * @param sampleIndex the index of the sample in case the feature is channel
+     * dependent, ignored otherwise
+     * @param waitingHandler the waiting handler
+     *
+     * @return the report component corresponding to a feature at a given
+     * channel
+     */
+    public static String getFeature(
+            SpectrumProvider spectrumProvider,
+            QuantificationFeaturesGenerator quantificationFeaturesGenerator,
+            PtmSiteIndex ptmSiteIndex,
+            int siteIndex,
+            ReporterPtmFeatures ptmFeature,
+            String sampleIndex,
+            WaitingHandler waitingHandler
+    ) {
+
+        switch (ptmFeature) {
+
+            case accession:
+                return ptmSiteIndex.getLeadingAccession(siteIndex);
+
+            case ptm:
+                return ptmSiteIndex.getPtmName(siteIndex);
+
+            case site:
+                return Integer.toString(ptmSiteIndex.getPosition(siteIndex));
+
+            case n_peptides:
+                return Integer.toString(ptmSiteIndex.getNPeptides(siteIndex));
+
+            case ratio:
+                ProteinPtmQuantificationDetails quantificationDetails = quantificationFeaturesGenerator.getPtmSiteQuantificationDetails(spectrumProvider, siteIndex, waitingHandler);
+                Double ratio = quantificationDetails.getRatio(sampleIndex);
+                return ratio == null || ratio.isNaN() ? "" : ratio.toString();
+
+            default:
+                return "Not implemented";
+        }
+    }
+
+    /**
+     * Writes the header of the PTM section.
+     *
+     * @param reporterIonQuantification the reporter ion quantification object
+     * containing the quantification configuration
+     *
+     * @throws java.io.IOException exception thrown whenever an error occurred
+     * while interacting with a file
+     */
+    public void writeHeader(ReporterIonQuantification reporterIonQuantification) throws IOException {
+
+        boolean needSecondLine = false;
+        ArrayList<String> sampleIndexes = new ArrayList<>(reporterIonQuantification.getSampleIndexes());
+        Collections.sort(sampleIndexes);
+
+        boolean firstColumn = true;
+        if (indexes) {
+            writer.writeHeaderText("");
+            writer.addSeparator();
+        }
+        for (ReporterPtmFeatures ptmFeature : ptmFeatures) {
+            if (firstColumn) {
+                firstColumn = false;
+            } else {
+                writer.addSeparator();
+            }
+            writer.writeHeaderText(ptmFeature.getTitle(), reporterStyle);
+            if (ptmFeature.hasChannels()) {
+                for (int i = 1; i < sampleIndexes.size(); i++) {
+                    writer.addSeparator();
+                    writer.writeHeaderText(" ", reporterStyle); // Space used for the excel style
+                }
+                needSecondLine = true;
+            }
+        }
+        if (needSecondLine) {
+            writer.newLine();
+            firstColumn = true;
+            if (indexes) {
+                writer.writeHeaderText("");
+                writer.addSeparator();
+            }
+            for (ReporterPtmFeatures ptmFeature : ptmFeatures) {
+                if (ptmFeature.hasChannels()) {
+                    for (String sampleIndex : sampleIndexes) {
+                        if (firstColumn) {
+                            firstColumn = false;
+                        } else {
+                            writer.writeHeaderText("", reporterStyle);
+                            writer.addSeparator();
+                        }
+                        writer.writeHeaderText(reporterIonQuantification.getSample(sampleIndex), reporterStyle);
+                    }
+                } else {
+                    if (firstColumn) {
+                        firstColumn = false;
+                    } else {
+                        writer.writeHeaderText("", reporterStyle);
+                        writer.addSeparator();
+                    }
+                }
+            }
+        }
+        writer.newLine();
+    }
+}
@@ -25,6 +25,7 @@ import eu.isas.peptideshaker.preferences.ProjectDetails;
 import eu.isas.peptideshaker.utils.PsdbParent;
 import eu.isas.reporter.Reporter;
 import eu.isas.reporter.gui.settings.ReporterSettingsDialog;
+import eu.isas.reporter.calculation.QuantificationResults;
 import eu.isas.reporter.io.ProjectImporter;
 import eu.isas.reporter.preferences.DisplayPreferences;
 import eu.isas.reporter.settings.ReporterPreferences;
@@ -89,6 +90,10 @@ public class NewDialog extends javax.swing.JDialog {
      * The display preferences for this project.
      */
     private DisplayPreferences displayPreferences;
+    /**
+     * The quantification results saved in the project, null if none.
+     */
+    private QuantificationResults quantificationResults;
     /**
      * The processing parameters.
      */
@@ -1110,7 +1115,7 @@ public class NewDialog extends javax.swing.JDialog {
             // set the user defined reagents order
             displayPreferences.setReagents(reagents);
 
-            reporterGUI.createNewProject(psdbParent, reporterSettings, reporterIonQuantification, processingParameters, displayPreferences);
+            reporterGUI.createNewProject(psdbParent, reporterSettings, reporterIonQuantification, processingParameters, displayPreferences, quantificationResults);
             dispose();
         }
     }//GEN-LAST:event_loadButtonActionPerformed
@@ -1480,6 +1485,9 @@ public class NewDialog extends javax.swing.JDialog {
                 // get the display preferences
                 displayPreferences = projectImporter.getDisplayPreferences();
 
+                // get the saved quantification results
+                quantificationResults = projectImporter.getQuantificationResults();
+
                 sampleNames.clear();
                 refresh();
 
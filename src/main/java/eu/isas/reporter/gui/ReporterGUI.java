@@ -16,7 +16,6 @@ import com.compomics.util.experiment.io.biology.protein.ProteinDetailsProvider;
 import com.compomics.util.experiment.io.biology.protein.SequenceProvider;
 import com.compomics.util.experiment.io.temp.TempFilesManager;
 import com.compomics.util.experiment.mass_spectrometry.SpectrumProvider;
-import com.compomics.util.experiment.normalization.NormalizationFactors;
 import com.compomics.util.gui.PrivacyParametersDialog;
 import com.compomics.util.gui.UtilitiesGUIDefaults;
 import com.compomics.util.gui.error_handlers.BugReport;
@@ -27,7 +26,6 @@ import com.compomics.util.gui.parameters.tools.ProcessingParametersDialog;
 import com.compomics.util.gui.waiting.waitinghandlers.ProgressDialogX;
 import com.compomics.util.io.IoUtil;
 import com.compomics.util.io.file.LastSelectedFolder;
-import com.compomics.util.math.clustering.KMeansClustering;
 import com.compomics.util.math.clustering.settings.KMeansClusteringSettings;
 import com.compomics.util.parameters.UtilitiesUserParameters;
 import com.compomics.util.parameters.identification.IdentificationParameters;
@@ -42,7 +40,12 @@ import eu.isas.reporter.Reporter;
 import eu.isas.reporter.ReporterWrapper;
 import eu.isas.reporter.calculation.QuantificationFeaturesCache;
 import eu.isas.reporter.calculation.QuantificationFeaturesGenerator;
+import eu.isas.reporter.calculation.QuantificationPipeline;
+import eu.isas.reporter.calculation.QuantificationResults;
+import eu.isas.reporter.calculation.ReporterIntensityExtractor;
 import eu.isas.reporter.calculation.clustering.ClusterBuilder;
+import eu.isas.reporter.calculation.clustering.ClusterCountSelection;
+import eu.isas.reporter.calculation.clustering.ProfileClustering;
 import eu.isas.reporter.calculation.normalization.Normalizer;
 import eu.isas.reporter.gui.export.ReportDialog;
 import eu.isas.reporter.gui.resultpanels.OverviewPanel;
@@ -154,9 +157,9 @@ public class ReporterGUI extends javax.swing.JFrame implements JavaHomeOrMemoryD
      */
     private DecimalFormat scoreAndConfidenceDecimalFormat = new DecimalFormat("0");
     /**
-     * The k-means clustering results.
+     * The clustering results.
      */
-    private KMeansClustering kMeansClutering;
+    private ProfileClustering kMeansClutering;
     /**
      * List of the currently selected proteins.
      */
@@ -288,13 +291,16 @@ public class ReporterGUI extends javax.swing.JFrame implements JavaHomeOrMemoryD
      * @param reporterIonQuantification the reporter quantification settings
      * @param processingParameters the processing preferences
      * @param displayPreferences the display preferences
+     * @param quantificationResults the quantification results saved in the
+     * project, reused if the settings did not change, can be null
      */
     public void createNewProject(
             PsdbParent psdbParent, 
             ReporterSettings reporterSettings, 
             ReporterIonQuantification reporterIonQuantification, 
             ProcessingParameters processingParameters, 
-            DisplayPreferences displayPreferences
+            DisplayPreferences displayPreferences,
+            QuantificationResults quantificationResults
     ) {
 
         if (psdbParent != null) {
@@ -332,6 +338,11 @@ public class ReporterGUI extends javax.swing.JFrame implements JavaHomeOrMemoryD
         selectedPsms = new ArrayList<>();
 
         projectSaved = false;
+
+        if (quantificationFeaturesGenerator != null) {
+            quantificationFeaturesGenerator.getQuantificationFeaturesCache().close();
+        }
+
         quantificationFeaturesGenerator = new QuantificationFeaturesGenerator(
                 new QuantificationFeaturesCache(), 
                 getIdentification(), 
@@ -341,6 +352,7 @@ public class ReporterGUI extends javax.swing.JFrame implements JavaHomeOrMemoryD
                 psdbParent.getIdentificationParameters().getSearchParameters(), 
                 psdbParent.getIdentificationParameters().getSequenceMatchingParameters()
         );
+        final boolean resultsSaved = quantificationFeaturesGenerator.setSavedResults(quantificationResults);
 
         progressDialog = new ProgressDialogX(this,
                 Toolkit.getDefaultToolkit().getImage(getClass().getResource("/icons/reporter.gif")),
@@ -362,7 +374,7 @@ public class ReporterGUI extends javax.swing.JFrame implements JavaHomeOrMemoryD
             @Override
             public void run() {
                 try {
-                    displayResults(progressDialog);
+                    displayResults(progressDialog, resultsSaved);
                 } catch (Exception e) {
                     catchException(e);
                     progressDialog.setRunCanceled();
@@ -422,39 +434,38 @@ public class ReporterGUI extends javax.swing.JFrame implements JavaHomeOrMemoryD
      * Displays the results on the GUI.
      *
      * @param waitingHandler the waiting handler
+     * @param resultsSaved boolean indicating whether quantification results
+     * obtained with the current settings are saved in the project
      */
-    private void displayResults(WaitingHandler waitingHandler) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+    private void displayResults(WaitingHandler waitingHandler, boolean resultsSaved) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
-        // Set Normalization factors
-        NormalizationFactors normalizationFactors = reporterIonQuantification.getNormalizationFactors();
-        if (!normalizationFactors.hasNormalizationFactors()) {
-            Normalizer normalizer = new Normalizer();
-            if (!normalizationFactors.hasPsmNormalisationFactors()) {
-                normalizer.setPsmNormalizationFactors(reporterIonQuantification, reporterSettings.getRatioEstimationSettings(),
-                        reporterSettings.getNormalizationSettings(), getIdentificationParameters().getSequenceMatchingParameters(),
-                        getIdentification(), getSpectrumProvider(), quantificationFeaturesGenerator, processingParameters,
-                        psdbParent.getIdentificationParameters().getSearchParameters(), psdbParent.getIdentificationParameters().getFastaParameters(),
-                        psdbParent.getIdentificationParameters().getPeptideVariantsParameters(), exceptionHandler, progressDialog);
+        // Extract the reporter intensities, not needed if the PSM results are saved
+        if (!resultsSaved || !QuantificationPipeline.isSaved(getIdentification(), quantificationFeaturesGenerator, QuantificationPipeline.Level.psm)) {
+
+            ReporterIntensityExtractor.extract(getIdentification(), getSpectrumProvider(), quantificationFeaturesGenerator, reporterIonQuantification,
+                    reporterSettings.getReporterIonSelectionSettings(), processingParameters.getnThreads(), waitingHandler, exceptionHandler);
+
+            if (waitingHandler.isRunCanceled()) {
+                return;
             }
-            if (!normalizationFactors.hasPeptideNormalisationFactors()) {
-                normalizer.setPeptideNormalizationFactors(reporterIonQuantification, reporterSettings.getRatioEstimationSettings(),
+        }
+
+        // Quantify all matches bottom-up, setting the normalization factors of each level before quantifying the next, the saved levels are skipped
+        Normalizer normalizer = new Normalizer();
+        QuantificationPipeline.run(getIdentification(), getSpectrumProvider(), quantificationFeaturesGenerator, processingParameters.getnThreads(), waitingHandler,
+                level -> normalizer.setNormalizationFactors(level, reporterIonQuantification, reporterSettings.getRatioEstimationSettings(),
                         reporterSettings.getNormalizationSettings(), getIdentificationParameters().getSequenceMatchingParameters(),
-                        getIdentification(), getSpectrumProvider(), quantificationFeaturesGenerator, processingParameters,
-                        psdbParent.getIdentificationParameters().getSearchParameters(), psdbParent.getIdentificationParameters().getFastaParameters(),
-                        psdbParent.getIdentificationParameters().getPeptideVariantsParameters(), exceptionHandler, progressDialog);
-            }
-            if (!normalizationFactors.hasProteinNormalisationFactors()) {
-                normalizer.setProteinNormalizationFactors(reporterIonQuantification, reporterSettings.getRatioEstimationSettings(),
-                        reporterSettings.getNormalizationSettings(), getIdentification(), getSpectrumProvider(), getMetrics(), quantificationFeaturesGenerator,
-                        processingParameters, psdbParent.getIdentificationParameters().getSearchParameters(), psdbParent.getIdentificationParameters().getFastaParameters(),
-                        psdbParent.getIdentificationParameters().getPeptideVariantsParameters(), exceptionHandler, progressDialog);
-            }
+                        getIdentification(), getSpectrumProvider(), getMetrics(), quantificationFeaturesGenerator, processingParameters,
+                        exceptionHandler, waitingHandler));
+
+        if (waitingHandler.isRunCanceled()) {
+            return;
         }
 
         // cluster the profiles of the selected entities
         clusterBuilder = new ClusterBuilder();
         kMeansClutering = clusterBuilder.clusterProfiles(getIdentification(), getIdentificationParameters(), getSequenceProvider(),
-                getSpectrumProvider(), getMetrics(), reporterIonQuantification, quantificationFeaturesGenerator, displayPreferences, true, progressDialog);
+                getSpectrumProvider(), getMetrics(), reporterIonQuantification, quantificationFeaturesGenerator, displayPreferences, true, waitingHandler);
 
         if (waitingHandler.isRunCanceled()) {
             return;
@@ -1044,7 +1055,8 @@ public class ReporterGUI extends javax.swing.JFrame implements JavaHomeOrMemoryD
      * @param evt
      */
     private void categoriesMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_categoriesMenuItemActionPerformed
-        ClusteringSettingsDialog clusteringSettingsDialog = new ClusteringSettingsDialog(this, displayPreferences.getClusteringSettings(), true);
+        ClusterCountSelection clusterCountSelection = clusterBuilder == null ? null : clusterBuilder.getClusterCountSelection();
+        ClusteringSettingsDialog clusteringSettingsDialog = new ClusteringSettingsDialog(this, displayPreferences.getClusteringSettings(), clusterCountSelection, true);
         if (!clusteringSettingsDialog.isCanceled()) { //@TODO: check whether the settings changed
             KMeansClusteringSettings kMeansClusteringSettings = displayPreferences.getClusteringSettings().getKMeansClusteringSettings();
             ClusteringSettings newSettings = clusteringSettingsDialog.getClusteringSettings();
@@ -1103,7 +1115,7 @@ public class ReporterGUI extends javax.swing.JFrame implements JavaHomeOrMemoryD
             public void run() {
                 try {
                     progressDialog.setWaitingText("Saving Results. Please Wait...");
-                    ProjectSaver.saveProject(reporterSettings, reporterIonQuantification, displayPreferences, psdbParent, progressDialog);
+                    ProjectSaver.saveProject(reporterSettings, reporterIonQuantification, displayPreferences, quantificationFeaturesGenerator, psdbParent, progressDialog);
                     if (!progressDialog.isRunCanceled()) {
                         if (closeWhenDone) {
                             closeReporter();
@@ -1224,6 +1236,11 @@ public class ReporterGUI extends javax.swing.JFrame implements JavaHomeOrMemoryD
             psdbParent.setProjectDetails(null);
         }
 
+        if (quantificationFeaturesGenerator != null) {
+            quantificationFeaturesGenerator.invalidatePrecursorIndexes();
+            quantificationFeaturesGenerator.getQuantificationFeaturesCache().close();
+        }
+
         if (clearDatabaseFolder) {
             clearDatabaseFolder();
         }
@@ -1576,11 +1593,11 @@ public class ReporterGUI extends javax.swing.JFrame implements JavaHomeOrMemoryD
     }
 
     /**
-     * Returns the k-means clustering results.
+     * Returns the clustering results, k-means or hierarchical.
      *
-     * @return the k-means clustering results
+     * @return the clustering results
      */
-    public KMeansClustering getkMeansClutering() {
+    public ProfileClustering getkMeansClutering() {
         return kMeansClutering;
     }
 
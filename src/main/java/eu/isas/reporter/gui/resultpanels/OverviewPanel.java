@@ -12,9 +12,9 @@ import com.compomics.util.gui.TableProperties;
 import com.compomics.util.gui.error_handlers.HelpDialog;
 import com.compomics.util.gui.tablemodels.SelfUpdatingTableModel;
 import com.compomics.util.gui.waiting.waitinghandlers.ProgressDialogX;
-import com.compomics.util.math.clustering.KMeansClustering;
 import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.reporter.calculation.clustering.ClusterBuilder;
+import eu.isas.reporter.calculation.clustering.ProfileClustering;
 import eu.isas.reporter.gui.ReporterGUI;
 import eu.isas.reporter.gui.tablemodels.PeptideTableModel;
 import eu.isas.reporter.gui.tablemodels.ProteinTableModel;
@@ -356,7 +356,7 @@ public class OverviewPanel extends javax.swing.JPanel {
         ArrayList<String> sampleIndexes = new ArrayList<>(reporterGUI.getReporterIonQuantification().getSampleIndexes());
         Collections.sort(sampleIndexes);
         ArrayList<String> reagentsOrder = reporterGUI.getDisplayParameters().getReagents();
-        KMeansClustering kMeansClustering = reporterGUI.getkMeansClutering();
+        ProfileClustering kMeansClustering = reporterGUI.getkMeansClutering();
 
         if (kMeansClustering != null) {
 
@@ -1935,6 +1935,7 @@ public class OverviewPanel extends javax.swing.JPanel {
         if (value != null) {
             try {
                 int numberOfClusters = Integer.valueOf(value);
+                reporterGUI.getDisplayParameters().getClusteringSettings().setAutoNClusters(false);
                 reporterGUI.recluster(numberOfClusters, false);
             } catch (NumberFormatException e) {
                 JOptionPane.showMessageDialog(this, "The number of cluster has to be an integer value.", "Input Error", JOptionPane.WARNING_MESSAGE);
@@ -1,6 +1,9 @@
 package eu.isas.reporter.gui.settings.display;
 
+import com.compomics.util.gui.renderers.AlignedListCellRenderer;
 import eu.isas.reporter.calculation.clustering.ClusterClassKey;
+import eu.isas.reporter.calculation.clustering.ClusterCountSelection;
+import eu.isas.reporter.calculation.clustering.HierarchicalLinkage;
 import eu.isas.reporter.calculation.clustering.keys.PeptideClusterClassKey;
 import eu.isas.reporter.calculation.clustering.keys.ProteinClusterClassKey;
 import eu.isas.reporter.calculation.clustering.keys.PsmClusterClassKey;
@@ -9,6 +12,7 @@ import java.awt.Color;
 import java.util.ArrayList;
 import java.util.HashMap;
 import javax.swing.JFrame;
+import javax.swing.SwingConstants;
 import javax.swing.table.DefaultTableModel;
 import javax.swing.table.TableColumn;
 import no.uib.jsparklines.extra.NimbusCheckBoxRenderer;
@@ -76,13 +80,15 @@ public class ClusteringSettingsDialog extends javax.swing.JDialog {
      *
      * @param parentFrame the parent frame
      * @param clusteringSettings the clustering settings
+     * @param clusterCountSelection the last selection of the number of
+     * clusters, can be null
      * @param editable if the content is editable or not
      */
-    public ClusteringSettingsDialog(JFrame parentFrame, ClusteringSettings clusteringSettings, boolean editable) {
+    public ClusteringSettingsDialog(JFrame parentFrame, ClusteringSettings clusteringSettings, ClusterCountSelection clusterCountSelection, boolean editable) {
         super(parentFrame, true);
         initComponents();
         this.editable = editable;
-        populateGUI(clusteringSettings);
+        populateGUI(clusteringSettings, clusterCountSelection);
         setUpGui();
         setLocationRelativeTo(parentFrame);
         setVisible(true);
@@ -95,6 +101,9 @@ public class ClusteringSettingsDialog extends javax.swing.JDialog {
      */
     private void setUpGui() {
 
+        methodCmb.setRenderer(new AlignedListCellRenderer(SwingConstants.CENTER));
+        autoNClustersCmb.setRenderer(new AlignedListCellRenderer(SwingConstants.CENTER));
+
         // set the column width and cell renderes
         TableColumn colorColumn = proteinClassesTable.getColumnModel().getColumn(0);
         colorColumn.setCellRenderer(new JSparklinesColorTableCellRenderer());
@@ -141,8 +150,10 @@ public class ClusteringSettingsDialog extends javax.swing.JDialog {
      * Fills the GUI with the given settings.
      *
      * @param clusteringSettings the clustering settings to display
+     * @param clusterCountSelection the last selection of the number of
+     * clusters, can be null
      */
-    private void populateGUI(ClusteringSettings clusteringSettings) {
+    private void populateGUI(ClusteringSettings clusteringSettings, ClusterCountSelection clusterCountSelection) {
 
         proteinClasses = new ArrayList<String>(clusteringSettings.getPossibleProteinClasses());
         peptideClasses = new ArrayList<String>(clusteringSettings.getPossiblePeptideClasses());
@@ -165,6 +176,42 @@ public class ClusteringSettingsDialog extends javax.swing.JDialog {
         HashMap<String, ClusterClassKey> psmKeysMap = new HashMap<String, ClusterClassKey>(psmClassesMap);
         psmClassesTable.setModel(new ClassListTableModel(psmClasses, selectedPsmClasses, psmKeysMap));
 
+        // the first method is k-means, followed by the hierarchical linkages
+        if (clusteringSettings.isHierarchicalClustering()) {
+            methodCmb.setSelectedIndex(clusteringSettings.getHierarchicalLinkage().index + 1);
+        } else {
+            methodCmb.setSelectedIndex(0);
+        }
+
+        if (clusteringSettings.isAutoNClusters()) {
+            autoNClustersCmb.setSelectedIndex(0);
+        } else {
+            autoNClustersCmb.setSelectedIndex(1);
+        }
+
+        minNClustersSpinner.setValue(clusteringSettings.getMinNClusters());
+        maxNClustersSpinner.setValue(clusteringSettings.getMaxNClusters());
+
+        // show the scores of the last selection of the number of clusters
+        if (clusterCountSelection != null) {
+
+            StringBuilder toolTip = new StringBuilder("<html><b>Mean Silhouette</b><br>");
+
+            for (int nClusters = clusterCountSelection.getMinNClusters(); nClusters <= clusterCountSelection.getMaxNClusters(); nClusters++) {
+
+                String line = nClusters + " clusters: " + String.format("%.3f", clusterCountSelection.getScore(nClusters));
+
+                if (nClusters == clusterCountSelection.getBestNClusters()) {
+                    line = "<b>" + line + "</b>";
+                }
+
+                toolTip.append(line).append("<br>");
+            }
+
+            toolTip.append("</html>");
+            autoNClustersCmb.setToolTipText(toolTip.toString());
+        }
+
         updateGUI();
     }
 
@@ -234,6 +281,15 @@ public class ClusteringSettingsDialog extends javax.swing.JDialog {
             }
         }
         clusteringSettings.setClassesColors(classesColors);
+        clusteringSettings.setHierarchicalClustering(methodCmb.getSelectedIndex() > 0);
+        if (methodCmb.getSelectedIndex() > 0) {
+            clusteringSettings.setHierarchicalLinkage(HierarchicalLinkage.getLinkage(methodCmb.getSelectedIndex() - 1));
+        }
+        clusteringSettings.setAutoNClusters(autoNClustersCmb.getSelectedIndex() == 0);
+        int minNClusters = (Integer) minNClustersSpinner.getValue();
+        int maxNClusters = (Integer) maxNClustersSpinner.getValue();
+        clusteringSettings.setMinNClusters(minNClusters);
+        clusteringSettings.setMaxNClusters(Math.max(minNClusters, maxNClusters));
         return clusteringSettings;
     }
 
@@ -259,6 +315,15 @@ public class ClusteringSettingsDialog extends javax.swing.JDialog {
         peptideClassesTable = new javax.swing.JTable();
         psmClassesScrollPane = new javax.swing.JScrollPane();
         psmClassesTable = new javax.swing.JTable();
+        clusteringPanel = new javax.swing.JPanel();
+        methodLbl = new javax.swing.JLabel();
+        methodCmb = new javax.swing.JComboBox();
+        autoNClustersLbl = new javax.swing.JLabel();
+        autoNClustersCmb = new javax.swing.JComboBox();
+        minNClustersLbl = new javax.swing.JLabel();
+        minNClustersSpinner = new javax.swing.JSpinner();
+        maxNClustersLbl = new javax.swing.JLabel();
+        maxNClustersSpinner = new javax.swing.JSpinner();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.DISPOSE_ON_CLOSE);
         setTitle("Cluster Settings");
@@ -357,6 +422,66 @@ public class ClusteringSettingsDialog extends javax.swing.JDialog {
                 .addContainerGap())
         );
 
+        clusteringPanel.setBorder(javax.swing.BorderFactory.createTitledBorder("Clustering"));
+        clusteringPanel.setOpaque(false);
+
+        methodLbl.setText("Method");
+
+        methodCmb.setModel(new javax.swing.DefaultComboBoxModel(new String[] { "K-Means", "Hierarchical (Ward)", "Hierarchical (Average)" }));
+
+        autoNClustersLbl.setText("Auto Number of Clusters");
+
+        autoNClustersCmb.setModel(new javax.swing.DefaultComboBoxModel(new String[] { "Yes", "No" }));
+
+        minNClustersLbl.setText("Minimum Number of Clusters");
+
+        minNClustersSpinner.setModel(new javax.swing.SpinnerNumberModel(2, 2, null, 1));
+
+        maxNClustersLbl.setText("Maximum Number of Clusters");
+
+        maxNClustersSpinner.setModel(new javax.swing.SpinnerNumberModel(20, 2, null, 1));
+
+        javax.swing.GroupLayout clusteringPanelLayout = new javax.swing.GroupLayout(clusteringPanel);
+        clusteringPanel.setLayout(clusteringPanelLayout);
+        clusteringPanelLayout.setHorizontalGroup(
+            clusteringPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+            .addGroup(clusteringPanelLayout.createSequentialGroup()
+                .addContainerGap()
+                .addGroup(clusteringPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                    .addComponent(methodLbl)
+                    .addComponent(autoNClustersLbl)
+                    .addComponent(minNClustersLbl)
+                    .addComponent(maxNClustersLbl))
+                .addGap(30, 30, 30)
+                .addGroup(clusteringPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                    .addComponent(methodCmb, javax.swing.GroupLayout.PREFERRED_SIZE, 150, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(autoNClustersCmb, javax.swing.GroupLayout.PREFERRED_SIZE, 150, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(minNClustersSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, 150, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(maxNClustersSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, 150, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
+        );
+        clusteringPanelLayout.setVerticalGroup(
+            clusteringPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+            .addGroup(clusteringPanelLayout.createSequentialGroup()
+                .addContainerGap()
+                .addGroup(clusteringPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(methodCmb, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(methodLbl))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(clusteringPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(autoNClustersCmb, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(autoNClustersLbl))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(clusteringPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(minNClustersSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(minNClustersLbl))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(clusteringPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(maxNClustersSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(maxNClustersLbl))
+                .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
+        );
+
         javax.swing.GroupLayout backgroundPanelLayout = new javax.swing.GroupLayout(backgroundPanel);
         backgroundPanel.setLayout(backgroundPanelLayout);
         backgroundPanelLayout.setHorizontalGroup(
@@ -369,7 +494,8 @@ public class ClusteringSettingsDialog extends javax.swing.JDialog {
                         .addComponent(okButton, javax.swing.GroupLayout.PREFERRED_SIZE, 65, javax.swing.GroupLayout.PREFERRED_SIZE)
                         .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                         .addComponent(cancelButton))
-                    .addComponent(selectionPanel, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
+                    .addComponent(selectionPanel, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(clusteringPanel, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
                 .addContainerGap())
         );
         backgroundPanelLayout.setVerticalGroup(
@@ -377,6 +503,8 @@ public class ClusteringSettingsDialog extends javax.swing.JDialog {
             .addGroup(javax.swing.GroupLayout.Alignment.TRAILING, backgroundPanelLayout.createSequentialGroup()
                 .addContainerGap()
                 .addComponent(selectionPanel, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(clusteringPanel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
                 .addGroup(backgroundPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
                     .addComponent(cancelButton)
@@ -429,8 +557,17 @@ public class ClusteringSettingsDialog extends javax.swing.JDialog {
 
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JComboBox autoNClustersCmb;
+    private javax.swing.JLabel autoNClustersLbl;
     private javax.swing.JPanel backgroundPanel;
     private javax.swing.JButton cancelButton;
+    private javax.swing.JPanel clusteringPanel;
+    private javax.swing.JLabel maxNClustersLbl;
+    private javax.swing.JSpinner maxNClustersSpinner;
+    private javax.swing.JComboBox methodCmb;
+    private javax.swing.JLabel methodLbl;
+    private javax.swing.JLabel minNClustersLbl;
+    private javax.swing.JSpinner minNClustersSpinner;
     private javax.swing.JButton okButton;
     private javax.swing.JScrollPane peptideClassesScrollPane;
     private javax.swing.JTable peptideClassesTable;
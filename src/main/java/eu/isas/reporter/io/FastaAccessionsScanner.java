@@ -0,0 +1,279 @@
+package eu.isas.reporter.io;
+
+import com.compomics.util.exceptions.ExceptionHandler;
+import com.compomics.util.experiment.io.biology.protein.Header;
+import eu.isas.reporter.Reporter;
+import eu.isas.reporter.utils.Fnv1aHash;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Scans the headers of a FASTA file for the protein accessions without
+ * indexing the sequences. The accessions are cached in memory and on disk per
+ * file, and scanned again only when the size or the last modification date of
+ * the file changes.
+ *
+ * @author Marc Vaudel
+ */
+public class FastaAccessionsScanner {
+
+    /**
+     * Identifier of the format of the files of accessions.
+     */
+    private static final int MAGIC = 0x46414331;
+    /**
+     * The name of the folder where the accessions are saved.
+     */
+    private static final String ACCESSIONS_FOLDER = "fasta_accessions";
+    /**
+     * The extension of the files of accessions.
+     */
+    private static final String ACCESSIONS_EXTENSION = ".acc";
+    /**
+     * The accessions scanned so far indexed by absolute path of the FASTA
+     * file.
+     */
+    private static final ConcurrentHashMap<String, ScannedFile> SCANNED_FILES = new ConcurrentHashMap<>();
+
+    /**
+     * Empty default constructor.
+     */
+    private FastaAccessionsScanner() {
+    }
+
+    /**
+     * Returns the accessions of the proteins of the given FASTA file. The set
+     * is shared between callers and must not be modified.
+     *
+     * @param fastaFile the FASTA file
+     * @param exceptionHandler handler for the exceptions occurring while
+     * saving the accessions, can be null, in which case the exceptions are
+     * thrown
+     *
+     * @return the accessions of the proteins of the given FASTA file
+     *
+     * @throws IOException exception thrown if an error occurred while reading
+     * the file, or while saving the accessions if no exception handler is
+     * given
+     */
+    public static HashSet<String> getAccessions(File fastaFile, ExceptionHandler exceptionHandler) throws IOException {
+
+        String path = fastaFile.getAbsolutePath();
+        long size = fastaFile.length();
+        long lastModified = fastaFile.lastModified();
+
+        ScannedFile scannedFile = SCANNED_FILES.get(path);
+
+        if (scannedFile != null && scannedFile.size == size && scannedFile.lastModified == lastModified) {
+            return scannedFile.accessions;
+        }
+
+        synchronized (FastaAccessionsScanner.class) {
+
+            scannedFile = SCANNED_FILES.get(path);
+
+            if (scannedFile != null && scannedFile.size == size && scannedFile.lastModified == lastModified) {
+                return scannedFile.accessions;
+            }
+
+            File accessionsFile = getAccessionsFile(path);
+            HashSet<String> accessions = null;
+
+            try {
+
+                accessions = load(accessionsFile, path, size, lastModified);
+
+            } catch (IOException e) {
+                // the saved accessions cannot be read, scan the file again
+            }
+
+            if (accessions == null) {
+
+                accessions = scan(fastaFile);
+
+                try {
+
+                    save(accessionsFile, path, size, lastModified, accessions);
+
+                } catch (IOException e) {
+
+                    if (exceptionHandler == null) {
+                        throw e;
+                    }
+
+                    exceptionHandler.catchException(e);
+
+                }
+            }
+
+            SCANNED_FILES.put(path, new ScannedFile(size, lastModified, accessions));
+
+            return accessions;
+        }
+    }
+
+    /**
+     * Reads the accessions from the headers of the given FASTA file.
+     *
+     * @param fastaFile the FASTA file
+     *
+     * @return the accessions
+     *
+     * @throws IOException exception thrown if an error occurred while reading
+     * the file
+     */
+    private static HashSet<String> scan(File fastaFile) throws IOException {
+
+        HashSet<String> accessions = new HashSet<>();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(fastaFile))) {
+
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+
+                if (line.length() > 1 && line.charAt(0) == '>') {
+
+                    Header header = Header.parseFromFASTA(line);
+                    accessions.add(header.getAccessionOrRest());
+
+                }
+            }
+        }
+
+        return accessions;
+    }
+
+    /**
+     * Loads the accessions saved for the given FASTA file. Returns null if
+     * the file does not exist or was saved for another version of the FASTA
+     * file.
+     *
+     * @param accessionsFile the file where the accessions are saved
+     * @param path the absolute path of the FASTA file
+     * @param size the size of the FASTA file
+     * @param lastModified the last modification date of the FASTA file
+     *
+     * @return the accessions, null if not found
+     *
+     * @throws IOException exception thrown if an error occurred while reading
+     * the file
+     */
+    private static HashSet<String> load(File accessionsFile, String path, long size, long lastModified) throws IOException {
+
+        if (!accessionsFile.exists()) {
+            return null;
+        }
+
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(accessionsFile)))) {
+
+            if (inputStream.readInt() != MAGIC
+                    || !inputStream.readUTF().equals(path)
+                    || inputStream.readLong() != size
+                    || inputStream.readLong() != lastModified) {
+                return null;
+            }
+
+            int nAccessions = inputStream.readInt();
+            HashSet<String> accessions = new HashSet<>(nAccessions);
+
+            for (int i = 0; i < nAccessions; i++) {
+                accessions.add(inputStream.readUTF());
+            }
+
+            return accessions;
+        }
+    }
+
+    /**
+     * Saves the accessions of the given FASTA file.
+     *
+     * @param accessionsFile the file where to save the accessions
+     * @param path the absolute path of the FASTA file
+     * @param size the size of the FASTA file
+     * @param lastModified the last modification date of the FASTA file
+     * @param accessions the accessions
+     *
+     * @throws IOException exception thrown if an error occurred while writing
+     * the file
+     */
+    private static void save(File accessionsFile, String path, long size, long lastModified, HashSet<String> accessions) throws IOException {
+
+        File folder = accessionsFile.getParentFile();
+
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Impossible to create folder " + folder.getAbsolutePath() + ".");
+        }
+
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(accessionsFile)))) {
+
+            outputStream.writeInt(MAGIC);
+            outputStream.writeUTF(path);
+            outputStream.writeLong(size);
+            outputStream.writeLong(lastModified);
+            outputStream.writeInt(accessions.size());
+
+            for (String accession : accessions) {
+                outputStream.writeUTF(accession);
+            }
+        }
+    }
+
+    /**
+     * Returns the file where the accessions of the given FASTA file are saved.
+     *
+     * @param path the absolute path of the FASTA file
+     *
+     * @return the file where the accessions are saved
+     */
+    private static File getAccessionsFile(String path) {
+
+        long hash = Fnv1aHash.hash(path);
+        File folder = new File(Reporter.getTempFolderPath(Reporter.getJarFilePath()), ACCESSIONS_FOLDER);
+
+        return new File(folder, Long.toHexString(hash) + ACCESSIONS_EXTENSION);
+    }
+
+    /**
+     * The accessions of a scanned FASTA file.
+     */
+    private static class ScannedFile {
+
+        /**
+         * The size of the file when scanned.
+         */
+        private final long size;
+        /**
+         * The last modification date of the file when scanned.
+         */
+        private final long lastModified;
+        /**
+         * The accessions.
+         */
+        private final HashSet<String> accessions;
+
+        /**
+         * Constructor.
+         *
+         * @param size the size of the file when scanned
+         * @param lastModified the last modification date of the file when
+         * scanned
+         * @param accessions the accessions
+         */
+        private ScannedFile(long size, long lastModified, HashSet<String> accessions) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.accessions = accessions;
+        }
+    }
+}
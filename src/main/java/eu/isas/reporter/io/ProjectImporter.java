@@ -19,6 +19,8 @@ import com.compomics.util.parameters.identification.search.SearchParameters;
 import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.peptideshaker.utils.PsdbParent;
 import eu.isas.reporter.Reporter;
+import eu.isas.reporter.calculation.QuantificationFeaturesGenerator;
+import eu.isas.reporter.calculation.QuantificationResults;
 import eu.isas.reporter.calculation.clustering.keys.PeptideClusterClassKey;
 import eu.isas.reporter.calculation.clustering.keys.ProteinClusterClassKey;
 import eu.isas.reporter.calculation.clustering.keys.PsmClusterClassKey;
@@ -62,6 +64,10 @@ public class ProjectImporter {
      * The display preferences.
      */
     private DisplayPreferences displayPreferences;
+    /**
+     * The quantification results saved in the file, null if none.
+     */
+    private QuantificationResults quantificationResults;
     /**
      * The sequence provider.
      */
@@ -216,15 +222,21 @@ public class ProjectImporter {
         IdentificationParameters identificationParameters = psdbParent.getIdentificationParameters();
         ObjectsDB objectsDB = identification.getObjectsDB();
 
-        // @TODO: is an updated version of the below code still needed?
-//        if (objectsDB.hasTable(ProjectSaver.REPORTER_SETTINGS_TABLE_NAME)) {
-//            waitingHandler.setWaitingText("Loading Quantification Results. Please Wait...");
-//            reporterSettings = (ReporterSettings) objectsDB.retrieveObject(ProjectSaver.REPORTER_SETTINGS_TABLE_NAME, ReporterSettings.class.getName(), true, false);
-//            reporterIonQuantification = (ReporterIonQuantification) objectsDB.retrieveObject(ProjectSaver.REPORTER_SETTINGS_TABLE_NAME, ReporterIonQuantification.class.getName(), true, false);
-//            displayPreferences = (DisplayPreferences) objectsDB.retrieveObject(ProjectSaver.REPORTER_SETTINGS_TABLE_NAME, DisplayPreferences.class.getName(), true, false);
-//        } else {
-        waitingHandler.setWaitingText("Inferring Quantification Parameters. Please Wait...");
-//        }
+        if (objectsDB.inDB(QuantificationResults.KEY)) {
+
+            waitingHandler.setWaitingText("Loading Quantification Results. Please Wait...");
+            quantificationResults = (QuantificationResults) objectsDB.retrieveObject(QuantificationResults.KEY);
+            reporterSettings = quantificationResults.getReporterSettings();
+            reporterIonQuantification = quantificationResults.getReporterIonQuantification();
+
+            // results saved using another fingerprint implementation are not reused
+            if (quantificationResults.getFingerprint() != QuantificationFeaturesGenerator.getFingerprint(reporterSettings, reporterIonQuantification)) {
+                quantificationResults = null;
+            }
+
+        } else {
+            waitingHandler.setWaitingText("Inferring Quantification Parameters. Please Wait...");
+        }
 
         if (reporterIonQuantification == null) {
             reporterIonQuantification = getDefaultReporterIonQuantification(identificationParameters);
@@ -518,6 +530,17 @@ public class ProjectImporter {
         return displayPreferences;
     }
 
+    /**
+     * Returns the quantification results saved in the file, null if none.
+     * The results can be reused by the quantification features generator if
+     * the settings were not changed.
+     *
+     * @return the quantification results saved in the file
+     */
+    public QuantificationResults getQuantificationResults() {
+        return quantificationResults;
+    }
+
     public SpectrumProvider getSpectrumProvider() {
         return spectrumProvider;
     }
@@ -1,8 +1,11 @@
 package eu.isas.reporter.io;
 
+import com.compomics.util.db.object.ObjectsDB;
 import com.compomics.util.experiment.quantification.reporterion.ReporterIonQuantification;
 import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.peptideshaker.utils.PsdbParent;
+import eu.isas.reporter.calculation.QuantificationFeaturesGenerator;
+import eu.isas.reporter.calculation.QuantificationResults;
 import eu.isas.reporter.preferences.DisplayPreferences;
 import eu.isas.reporter.settings.ReporterSettings;
 import java.io.IOException;
@@ -18,16 +21,16 @@ import org.apache.commons.compress.archivers.ArchiveException;
 public class ProjectSaver {
 
     /**
-     * Name for the reporter settings table.
-     */
-    public static final String REPORTER_SETTINGS_TABLE_NAME = "reporter_settings";
-
-    /**
-     * Saves the Reporter project information in the given database.
+     * Saves the Reporter project information in the given database. The
+     * quantification results of all matches are saved together with the
+     * settings used so that they can be reused when reopening the project.
+     * Results missing from the cache are computed before saving.
      *
      * @param reporterSettings the reporter settings
      * @param reporterIonQuantification the reporter ion quantification
      * @param displayPreferences the display preferences
+     * @param quantificationFeaturesGenerator the quantification features
+     * generator providing the quantification results
      * @param psdbParent the psdb parent
      * @param waitingHandler waiting handler displaying feedback to the user.
      * can be null.
@@ -48,30 +51,23 @@ public class ProjectSaver {
             ReporterSettings reporterSettings, 
             ReporterIonQuantification reporterIonQuantification, 
             DisplayPreferences displayPreferences, 
+            QuantificationFeaturesGenerator quantificationFeaturesGenerator,
             PsdbParent psdbParent,
             WaitingHandler waitingHandler
     ) throws IOException, SQLException, ClassNotFoundException, InterruptedException, ArchiveException {
 
-        // @TODO: is an updated version of the below code still needed?
-//        ObjectsDB objectsDB = psdbParent.getIdentification().getObjectsDB();
-//        if (!objectsDB.hasTable(REPORTER_SETTINGS_TABLE_NAME)) {
-//            objectsDB.addTable(REPORTER_SETTINGS_TABLE_NAME);
-//        }
-//        if (objectsDB.inDB(REPORTER_SETTINGS_TABLE_NAME, ReporterSettings.class.getName(), false)) {
-//            objectsDB.updateObject(REPORTER_SETTINGS_TABLE_NAME, ReporterSettings.class.getName(), reporterSettings, false);
-//        } else {
-//            objectsDB.insertObject(REPORTER_SETTINGS_TABLE_NAME, ReporterSettings.class.getName(), reporterSettings, false);
-//        }
-//        if (objectsDB.inDB(REPORTER_SETTINGS_TABLE_NAME, ReporterIonQuantification.class.getName(), false)) {
-//            objectsDB.updateObject(REPORTER_SETTINGS_TABLE_NAME, ReporterIonQuantification.class.getName(), reporterIonQuantification, false);
-//        } else {
-//            objectsDB.insertObject(REPORTER_SETTINGS_TABLE_NAME, ReporterIonQuantification.class.getName(), reporterIonQuantification, false);
-//        }
-//        if (objectsDB.inDB(REPORTER_SETTINGS_TABLE_NAME, DisplayPreferences.class.getName(), false)) {
-//            objectsDB.updateObject(REPORTER_SETTINGS_TABLE_NAME, DisplayPreferences.class.getName(), displayPreferences, false);
-//        } else {
-//            objectsDB.insertObject(REPORTER_SETTINGS_TABLE_NAME, DisplayPreferences.class.getName(), displayPreferences, false);
-//        }
+        if (waitingHandler != null) {
+            waitingHandler.setWaitingText("Saving Quantification Results. Please Wait...");
+        }
+
+        QuantificationResults quantificationResults = quantificationFeaturesGenerator.getQuantificationResults(psdbParent.getSpectrumProvider(), waitingHandler);
+        ObjectsDB objectsDB = psdbParent.getIdentification().getObjectsDB();
+
+        if (objectsDB.inDB(QuantificationResults.KEY)) {
+            objectsDB.removeObject(QuantificationResults.KEY);
+        }
+
+        objectsDB.insertObject(QuantificationResults.KEY, quantificationResults);
 
         psdbParent.saveProject(waitingHandler, false);
     }
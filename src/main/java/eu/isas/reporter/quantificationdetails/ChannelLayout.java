@@ -0,0 +1,194 @@
+package eu.isas.reporter.quantificationdetails;
+
+import com.compomics.util.experiment.normalization.NormalizationFactors;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Immutable mapping between the reagent names and the index of their channel
+ * in the quantification details. The channels are sorted by reagent name.
+ * The values of the channels are stored in arrays filled with NaN, and the
+ * channels where a value was set are flagged in a bit set, so that the
+ * getters by reagent name return null for unset values.
+ *
+ * @author Marc Vaudel
+ */
+public class ChannelLayout {
+
+    /**
+     * The reagent name of every channel.
+     */
+    private final String[] reagentNames;
+    /**
+     * The index of every reagent name.
+     */
+    private final HashMap<String, Integer> channelIndexes;
+
+    /**
+     * Constructor.
+     *
+     * @param sampleIndexes the names of the reagents as given by
+     * ReporterIonQuantification.getSampleIndexes()
+     */
+    public ChannelLayout(Collection<String> sampleIndexes) {
+
+        TreeSet<String> sortedNames = new TreeSet<>(sampleIndexes);
+        reagentNames = sortedNames.toArray(new String[sortedNames.size()]);
+        channelIndexes = new HashMap<>(reagentNames.length);
+
+        for (int i = 0; i < reagentNames.length; i++) {
+            channelIndexes.put(reagentNames[i], i);
+        }
+    }
+
+    /**
+     * Returns the number of channels.
+     *
+     * @return the number of channels
+     */
+    public int size() {
+        return reagentNames.length;
+    }
+
+    /**
+     * Returns the index of the channel of the given reagent, -1 if not found.
+     *
+     * @param reagentName the name of the reagent
+     *
+     * @return the index of the channel of the given reagent
+     */
+    public int getIndex(String reagentName) {
+        Integer index = channelIndexes.get(reagentName);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Returns the name of the reagent of the given channel.
+     *
+     * @param channel the index of the channel
+     *
+     * @return the name of the reagent of the given channel
+     */
+    public String getReagentName(int channel) {
+        return reagentNames[channel];
+    }
+
+    /**
+     * Returns the PSM normalization factors indexed by channel, null if none
+     * are set.
+     *
+     * @param normalizationFactors the normalization factors
+     *
+     * @return the PSM normalization factors indexed by channel
+     */
+    public double[] getPsmNormalizationFactors(NormalizationFactors normalizationFactors) {
+        return normalizationFactors.hasPsmNormalisationFactors() ? getFactors(normalizationFactors::getPsmNormalisationFactor) : null;
+    }
+
+    /**
+     * Returns the peptide normalization factors indexed by channel, null if
+     * none are set.
+     *
+     * @param normalizationFactors the normalization factors
+     *
+     * @return the peptide normalization factors indexed by channel
+     */
+    public double[] getPeptideNormalizationFactors(NormalizationFactors normalizationFactors) {
+        return normalizationFactors.hasPeptideNormalisationFactors() ? getFactors(normalizationFactors::getPeptideNormalisationFactor) : null;
+    }
+
+    /**
+     * Returns the protein normalization factors indexed by channel, null if
+     * none are set.
+     *
+     * @param normalizationFactors the normalization factors
+     *
+     * @return the protein normalization factors indexed by channel
+     */
+    public double[] getProteinNormalizationFactors(NormalizationFactors normalizationFactors) {
+        return normalizationFactors.hasProteinNormalisationFactors() ? getFactors(normalizationFactors::getProteinNormalisationFactor) : null;
+    }
+
+    /**
+     * Returns the factor of every channel.
+     *
+     * @param factor the factor of a reagent
+     *
+     * @return the factors indexed by channel
+     */
+    private double[] getFactors(ToDoubleFunction<String> factor) {
+        double[] factors = new double[reagentNames.length];
+        for (int channel = 0; channel < reagentNames.length; channel++) {
+            factors[channel] = factor.applyAsDouble(reagentNames[channel]);
+        }
+        return factors;
+    }
+
+    /**
+     * Returns a new array of values for every channel filled with NaN.
+     *
+     * @return a new array of values for every channel
+     */
+    public double[] newValues() {
+        double[] values = new double[reagentNames.length];
+        Arrays.fill(values, Double.NaN);
+        return values;
+    }
+
+    /**
+     * Returns a new array of flags indicating for every channel whether a
+     * value is set, no channel being set.
+     *
+     * @return a new array of flags for every channel
+     */
+    public long[] newFlags() {
+        return new long[(reagentNames.length + 63) >>> 6];
+    }
+
+    /**
+     * Flags the given channel as set.
+     *
+     * @param flags the flags of the channels
+     * @param channel the index of the channel
+     */
+    public static void setFlag(long[] flags, int channel) {
+        flags[channel >>> 6] |= 1L << channel;
+    }
+
+    /**
+     * Indicates whether the given channel is flagged as set.
+     *
+     * @param flags the flags of the channels, can be null
+     * @param channel the index of the channel
+     *
+     * @return a boolean indicating whether the given channel is set
+     */
+    public static boolean isSet(long[] flags, int channel) {
+        return flags != null && (flags[channel >>> 6] & (1L << channel)) != 0;
+    }
+
+    /**
+     * Returns an estimate of the memory used by an array of flags in bytes.
+     *
+     * @param flags the flags, can be null
+     *
+     * @return an estimate of the memory used by the array in bytes
+     */
+    public static long getWeight(long[] flags) {
+        return flags == null ? 0 : 16 + 8 * flags.length;
+    }
+
+    /**
+     * Returns an estimate of the memory used by an array of values in bytes.
+     *
+     * @param values the values, can be null
+     *
+     * @return an estimate of the memory used by the array in bytes
+     */
+    public static long getWeight(double[] values) {
+        return values == null ? 0 : 16 + 8 * values.length;
+    }
+}
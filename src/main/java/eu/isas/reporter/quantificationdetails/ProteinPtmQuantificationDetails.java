@@ -1,7 +1,5 @@
 package eu.isas.reporter.quantificationdetails;
 
-import java.util.HashMap;
-
 /**
  * This class contains the quantitative information at the GO level.
  *
@@ -10,9 +8,26 @@ import java.util.HashMap;
 public class ProteinPtmQuantificationDetails {
 
     /**
-     * The reporter ratios.
+     * The channel layout.
+     */
+    private final ChannelLayout channelLayout;
+    /**
+     * The reporter ratios indexed by channel.
+     */
+    private double[] ratios = null;
+    /**
+     * The channels where the ratios are set.
+     */
+    private long[] ratiosSet = null;
+
+    /**
+     * Constructor.
+     *
+     * @param channelLayout the channel layout
      */
-    private HashMap<String, Double> ratios = null;
+    public ProteinPtmQuantificationDetails(ChannelLayout channelLayout) {
+        this.channelLayout = channelLayout;
+    }
 
     /**
      * Sets a ratio.
@@ -21,10 +36,26 @@ public class ProteinPtmQuantificationDetails {
      * @param value the value of the ratio
      */
     public void setRatio(String reporterIonName, double value) {
+        int channel = channelLayout.getIndex(reporterIonName);
+        if (channel == -1) {
+            throw new IllegalArgumentException("Reagent " + reporterIonName + " not found in the channel layout.");
+        }
+        setRatio(channel, value);
+    }
+
+    /**
+     * Sets a ratio.
+     *
+     * @param channel the index of the channel in the channel layout
+     * @param value the value of the ratio
+     */
+    public void setRatio(int channel, double value) {
         if (ratios == null) {
-            ratios = new HashMap<String, Double>();
+            ratios = channelLayout.newValues();
+            ratiosSet = channelLayout.newFlags();
         }
-        ratios.put(reporterIonName, value);
+        ratios[channel] = value;
+        ChannelLayout.setFlag(ratiosSet, channel);
     }
 
     /**
@@ -35,9 +66,33 @@ public class ProteinPtmQuantificationDetails {
      * @return the ratio for this sample, null if not set
      */
     public Double getRatio(String reporterIonName) {
-        if (ratios == null) {
+        int channel = channelLayout.getIndex(reporterIonName);
+        if (channel == -1 || !ChannelLayout.isSet(ratiosSet, channel)) {
             return null;
         }
-        return ratios.get(reporterIonName);
+        return ratios[channel];
+    }
+
+    /**
+     * Returns the ratio of a given channel. NaN if not set.
+     *
+     * @param channel the index of the channel in the channel layout
+     *
+     * @return the ratio for this channel
+     */
+    public double getRatio(int channel) {
+        if (ratios == null) {
+            return Double.NaN;
+        }
+        return ratios[channel];
+    }
+
+    /**
+     * Returns an estimate of the memory used by these details in bytes.
+     *
+     * @return an estimate of the memory used by these details in bytes
+     */
+    public long getWeight() {
+        return 24 + ChannelLayout.getWeight(ratios) + ChannelLayout.getWeight(ratiosSet);
     }
 }
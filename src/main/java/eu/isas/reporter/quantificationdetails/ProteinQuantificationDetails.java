@@ -1,7 +1,6 @@
 package eu.isas.reporter.quantificationdetails;
 
 import com.compomics.util.experiment.normalization.NormalizationFactors;
-import java.util.HashMap;
 
 /**
  * This class contains the quantitative information at the protein level.
@@ -9,21 +8,44 @@ import java.util.HashMap;
  * @author Marc Vaudel
  */
 public class ProteinQuantificationDetails {
-    
+
     /**
-     * The reporter raw (not normalized) ratios.
+     * The channel layout.
      */
-    private HashMap<String, Double> rawRatios = null;
-
+    private final ChannelLayout channelLayout;
+    /**
+     * The reporter raw (not normalized) ratios indexed by channel.
+     */
+    private double[] rawRatios = null;
     /**
-     * The reporter raw (not normalized) ratios obtained using peptides unique to a group.
+     * The channels where the raw ratios are set.
      */
-    private HashMap<String, Double> uniqueRawRatios = null;
+    private long[] rawRatiosSet = null;
+    /**
+     * The reporter raw (not normalized) ratios obtained using peptides unique to a group indexed by channel.
+     */
+    private double[] uniqueRawRatios = null;
+    /**
+     * The channels where the unique raw ratios are set.
+     */
+    private long[] uniqueRawRatiosSet = null;
+    /**
+     * The reporter raw (not normalized) ratios obtained using peptides shared by groups indexed by channel.
+     */
+    private double[] sharedRawRatios = null;
+    /**
+     * The channels where the shared raw ratios are set.
+     */
+    private long[] sharedRawRatiosSet = null;
 
     /**
-     * The reporter raw (not normalized) ratios obtained using peptides shared by groups.
+     * Constructor.
+     *
+     * @param channelLayout the channel layout
      */
-    private HashMap<String, Double> sharedRawRatios = null;
+    public ProteinQuantificationDetails(ChannelLayout channelLayout) {
+        this.channelLayout = channelLayout;
+    }
 
     /**
      * Returns the ratio of a given sample normalized if the given reporter ion
@@ -35,10 +57,7 @@ public class ProteinQuantificationDetails {
      * @return the ratio for this sample, null if not set
      */
     public Double getRatio(String reporterIonName, NormalizationFactors normalizationFactors) {
-        if (rawRatios == null) {
-            return null;
-        }
-        Double ratio = rawRatios.get(reporterIonName);
+        Double ratio = getRawRatio(reporterIonName);
         if (normalizationFactors.hasProteinNormalisationFactors()
                 && ratio != null
                 && ratio != Double.NaN) {
@@ -57,10 +76,7 @@ public class ProteinQuantificationDetails {
      * @return the ratio for this sample, null if not set
      */
     public Double getUniqueRatio(String reporterIonName, NormalizationFactors normalizationFactors) {
-        if (uniqueRawRatios == null) {
-            return null;
-        }
-        Double ratio = uniqueRawRatios.get(reporterIonName);
+        Double ratio = getUniqueRawRatio(reporterIonName);
         if (normalizationFactors.hasProteinNormalisationFactors()
                 && ratio != null
                 && ratio != Double.NaN) {
@@ -79,10 +95,7 @@ public class ProteinQuantificationDetails {
      * @return the ratio for this sample, null if not set
      */
     public Double getSharedRatio(String reporterIonName, NormalizationFactors normalizationFactors) {
-        if (sharedRawRatios == null) {
-            return null;
-        }
-        Double ratio = sharedRawRatios.get(reporterIonName);
+        Double ratio = getSharedRawRatio(reporterIonName);
         if (normalizationFactors.hasProteinNormalisationFactors()
                 && ratio != null
                 && ratio != Double.NaN) {
@@ -91,6 +104,51 @@ public class ProteinQuantificationDetails {
         return ratio;
     }
 
+    /**
+     * Returns the ratio of a given channel normalized by the given
+     * factors. NaN if not set.
+     *
+     * @param channel the index of the channel in the channel layout
+     * @param normalizationFactors the protein normalization factors indexed by
+     * channel as given by the channel layout, null if none
+     *
+     * @return the ratio for this channel
+     */
+    public double getRatio(int channel, double[] normalizationFactors) {
+        double ratio = getRawRatio(channel);
+        return normalizationFactors == null ? ratio : ratio / normalizationFactors[channel];
+    }
+
+    /**
+     * Returns the unique ratio of a given channel normalized by the given
+     * factors. NaN if not set.
+     *
+     * @param channel the index of the channel in the channel layout
+     * @param normalizationFactors the protein normalization factors indexed by
+     * channel as given by the channel layout, null if none
+     *
+     * @return the unique ratio for this channel
+     */
+    public double getUniqueRatio(int channel, double[] normalizationFactors) {
+        double ratio = getUniqueRawRatio(channel);
+        return normalizationFactors == null ? ratio : ratio / normalizationFactors[channel];
+    }
+
+    /**
+     * Returns the shared ratio of a given channel normalized by the given
+     * factors. NaN if not set.
+     *
+     * @param channel the index of the channel in the channel layout
+     * @param normalizationFactors the protein normalization factors indexed by
+     * channel as given by the channel layout, null if none
+     *
+     * @return the shared ratio for this channel
+     */
+    public double getSharedRatio(int channel, double[] normalizationFactors) {
+        double ratio = getSharedRawRatio(channel);
+        return normalizationFactors == null ? ratio : ratio / normalizationFactors[channel];
+    }
+
     /**
      * Sets a raw (not normalized) normalized ratio.
      *
@@ -98,10 +156,22 @@ public class ProteinQuantificationDetails {
      * @param value the value of the raw (not normalized) ratio
      */
     public void setRawRatio(String reporterIonName, double value) {
+        setRawRatio(getChannel(reporterIonName), value);
+    }
+
+    /**
+     * Sets a raw (not normalized) normalized ratio.
+     *
+     * @param channel the index of the channel in the channel layout
+     * @param value the value of the raw (not normalized) ratio
+     */
+    public void setRawRatio(int channel, double value) {
         if (rawRatios == null) {
-            rawRatios = new HashMap<String, Double>();
+            rawRatios = channelLayout.newValues();
+            rawRatiosSet = channelLayout.newFlags();
         }
-        rawRatios.put(reporterIonName, value);
+        rawRatios[channel] = value;
+        ChannelLayout.setFlag(rawRatiosSet, channel);
     }
 
     /**
@@ -113,10 +183,26 @@ public class ProteinQuantificationDetails {
      * @return the raw (not normalized) ratio for this sample, null if not set
      */
     public Double getRawRatio(String reporterIonName) {
-        if (rawRatios == null) {
+        int channel = channelLayout.getIndex(reporterIonName);
+        if (channel == -1 || !ChannelLayout.isSet(rawRatiosSet, channel)) {
             return null;
         }
-        return rawRatios.get(reporterIonName);
+        return rawRatios[channel];
+    }
+
+    /**
+     * Returns the raw (not normalized) ratio of a given channel. NaN if
+     * not set.
+     *
+     * @param channel the index of the channel in the channel layout
+     *
+     * @return the raw (not normalized) ratio for this channel
+     */
+    public double getRawRatio(int channel) {
+        if (rawRatios == null) {
+            return Double.NaN;
+        }
+        return rawRatios[channel];
     }
 
     /**
@@ -126,10 +212,22 @@ public class ProteinQuantificationDetails {
      * @param value the value of the raw (not normalized) ratio
      */
     public void setUniqueRawRatio(String reporterIonName, double value) {
+        setUniqueRawRatio(getChannel(reporterIonName), value);
+    }
+
+    /**
+     * Sets a unique raw (not normalized) normalized ratio.
+     *
+     * @param channel the index of the channel in the channel layout
+     * @param value the value of the raw (not normalized) ratio
+     */
+    public void setUniqueRawRatio(int channel, double value) {
         if (uniqueRawRatios == null) {
-            uniqueRawRatios = new HashMap<String, Double>();
+            uniqueRawRatios = channelLayout.newValues();
+            uniqueRawRatiosSet = channelLayout.newFlags();
         }
-        uniqueRawRatios.put(reporterIonName, value);
+        uniqueRawRatios[channel] = value;
+        ChannelLayout.setFlag(uniqueRawRatiosSet, channel);
     }
 
     /**
@@ -141,10 +239,26 @@ public class ProteinQuantificationDetails {
      * @return the raw (not normalized) ratio for this sample, null if not set
      */
     public Double getUniqueRawRatio(String reporterIonName) {
-        if (uniqueRawRatios == null) {
+        int channel = channelLayout.getIndex(reporterIonName);
+        if (channel == -1 || !ChannelLayout.isSet(uniqueRawRatiosSet, channel)) {
             return null;
         }
-        return uniqueRawRatios.get(reporterIonName);
+        return uniqueRawRatios[channel];
+    }
+
+    /**
+     * Returns the unique raw (not normalized) ratio of a given channel. NaN if
+     * not set.
+     *
+     * @param channel the index of the channel in the channel layout
+     *
+     * @return the raw (not normalized) ratio for this channel
+     */
+    public double getUniqueRawRatio(int channel) {
+        if (uniqueRawRatios == null) {
+            return Double.NaN;
+        }
+        return uniqueRawRatios[channel];
     }
 
     /**
@@ -154,10 +268,22 @@ public class ProteinQuantificationDetails {
      * @param value the value of the raw (not normalized) ratio
      */
     public void setSharedRawRatio(String reporterIonName, double value) {
+        setSharedRawRatio(getChannel(reporterIonName), value);
+    }
+
+    /**
+     * Sets a shared raw (not normalized) normalized ratio.
+     *
+     * @param channel the index of the channel in the channel layout
+     * @param value the value of the raw (not normalized) ratio
+     */
+    public void setSharedRawRatio(int channel, double value) {
         if (sharedRawRatios == null) {
-            sharedRawRatios = new HashMap<String, Double>();
+            sharedRawRatios = channelLayout.newValues();
+            sharedRawRatiosSet = channelLayout.newFlags();
         }
-        sharedRawRatios.put(reporterIonName, value);
+        sharedRawRatios[channel] = value;
+        ChannelLayout.setFlag(sharedRawRatiosSet, channel);
     }
 
     /**
@@ -169,9 +295,52 @@ public class ProteinQuantificationDetails {
      * @return the raw (not normalized) ratio for this sample, null if not set
      */
     public Double getSharedRawRatio(String reporterIonName) {
-        if (sharedRawRatios == null) {
+        int channel = channelLayout.getIndex(reporterIonName);
+        if (channel == -1 || !ChannelLayout.isSet(sharedRawRatiosSet, channel)) {
             return null;
         }
-        return sharedRawRatios.get(reporterIonName);
+        return sharedRawRatios[channel];
+    }
+
+    /**
+     * Returns the shared raw (not normalized) ratio of a given channel. NaN if
+     * not set.
+     *
+     * @param channel the index of the channel in the channel layout
+     *
+     * @return the raw (not normalized) ratio for this channel
+     */
+    public double getSharedRawRatio(int channel) {
+        if (sharedRawRatios == null) {
+            return Double.NaN;
+        }
+        return sharedRawRatios[channel];
+    }
+
+    /**
+     * Returns an estimate of the memory used by these details in bytes.
+     *
+     * @return an estimate of the memory used by these details in bytes
+     */
+    public long getWeight() {
+        return 40
+                + ChannelLayout.getWeight(rawRatios) + ChannelLayout.getWeight(rawRatiosSet)
+                + ChannelLayout.getWeight(uniqueRawRatios) + ChannelLayout.getWeight(uniqueRawRatiosSet)
+                + ChannelLayout.getWeight(sharedRawRatios) + ChannelLayout.getWeight(sharedRawRatiosSet);
+    }
+
+    /**
+     * Returns the index of the channel of the given reagent.
+     *
+     * @param reporterIonName the name of the reagent
+     *
+     * @return the index of the channel of the given reagent
+     */
+    private int getChannel(String reporterIonName) {
+        int channel = channelLayout.getIndex(reporterIonName);
+        if (channel == -1) {
+            throw new IllegalArgumentException("Reagent " + reporterIonName + " not found in the channel layout.");
+        }
+        return channel;
     }
 }
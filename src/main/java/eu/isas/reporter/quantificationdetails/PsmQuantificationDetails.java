@@ -1,7 +1,6 @@
 package eu.isas.reporter.quantificationdetails;
 
 import com.compomics.util.experiment.normalization.NormalizationFactors;
-import java.util.HashMap;
 
 /**
  * This class contains the quantitative information at the PSM level.
@@ -11,9 +10,26 @@ import java.util.HashMap;
 public class PsmQuantificationDetails {
 
     /**
-     * The reporter raw (not normalized) ratios.
+     * The channel layout.
      */
-    private HashMap<String, Double> rawRatios = null;
+    private final ChannelLayout channelLayout;
+    /**
+     * The reporter raw (not normalized) ratios indexed by channel.
+     */
+    private double[] rawRatios = null;
+    /**
+     * The channels where the raw ratios are set.
+     */
+    private long[] rawRatiosSet = null;
+
+    /**
+     * Constructor.
+     *
+     * @param channelLayout the channel layout
+     */
+    public PsmQuantificationDetails(ChannelLayout channelLayout) {
+        this.channelLayout = channelLayout;
+    }
 
     /**
      * Returns the ratio of a given sample normalized if the given reporter ion
@@ -25,10 +41,7 @@ public class PsmQuantificationDetails {
      * @return the ratio for this sample, null if not set
      */
     public Double getRatio(String reporterIonName, NormalizationFactors normalizationFactors) {
-        if (rawRatios == null) {
-            return null;
-        }
-        Double ratio = rawRatios.get(reporterIonName);
+        Double ratio = getRawRatio(reporterIonName);
         if (normalizationFactors.hasPsmNormalisationFactors()
                 && ratio != null
                 && ratio != Double.NaN) {
@@ -37,6 +50,21 @@ public class PsmQuantificationDetails {
         return ratio;
     }
 
+    /**
+     * Returns the ratio of a given channel normalized by the given
+     * factors. NaN if not set.
+     *
+     * @param channel the index of the channel in the channel layout
+     * @param normalizationFactors the PSM normalization factors indexed by
+     * channel as given by the channel layout, null if none
+     *
+     * @return the ratio for this channel
+     */
+    public double getRatio(int channel, double[] normalizationFactors) {
+        double ratio = getRawRatio(channel);
+        return normalizationFactors == null ? ratio : ratio / normalizationFactors[channel];
+    }
+
     /**
      * Sets a raw (not normalized) normalized ratio.
      *
@@ -44,10 +72,22 @@ public class PsmQuantificationDetails {
      * @param value the value of the raw (not normalized) ratio
      */
     public void setRawRatio(String reporterIonName, double value) {
+        setRawRatio(getChannel(reporterIonName), value);
+    }
+
+    /**
+     * Sets a raw (not normalized) normalized ratio.
+     *
+     * @param channel the index of the channel in the channel layout
+     * @param value the value of the raw (not normalized) ratio
+     */
+    public void setRawRatio(int channel, double value) {
         if (rawRatios == null) {
-            rawRatios = new HashMap<String, Double>();
+            rawRatios = channelLayout.newValues();
+            rawRatiosSet = channelLayout.newFlags();
         }
-        rawRatios.put(reporterIonName, value);
+        rawRatios[channel] = value;
+        ChannelLayout.setFlag(rawRatiosSet, channel);
     }
 
     /**
@@ -59,9 +99,49 @@ public class PsmQuantificationDetails {
      * @return the raw (not normalized) ratio for this sample, null if not set
      */
     public Double getRawRatio(String reporterIonName) {
-        if (rawRatios == null) {
+        int channel = channelLayout.getIndex(reporterIonName);
+        if (channel == -1 || !ChannelLayout.isSet(rawRatiosSet, channel)) {
             return null;
         }
-        return rawRatios.get(reporterIonName);
+        return rawRatios[channel];
+    }
+
+    /**
+     * Returns the raw (not normalized) ratio of a given channel. NaN if not
+     * set.
+     *
+     * @param channel the index of the channel in the channel layout
+     *
+     * @return the raw (not normalized) ratio for this channel
+     */
+    public double getRawRatio(int channel) {
+        if (rawRatios == null) {
+            return Double.NaN;
+        }
+        return rawRatios[channel];
+    }
+
+    /**
+     * Returns an estimate of the memory used by these details in bytes.
+     *
+     * @return an estimate of the memory used by these details in bytes
+     */
+    public long getWeight() {
+        return 24 + ChannelLayout.getWeight(rawRatios) + ChannelLayout.getWeight(rawRatiosSet);
+    }
+
+    /**
+     * Returns the index of the channel of the given reagent.
+     *
+     * @param reporterIonName the name of the reagent
+     *
+     * @return the index of the channel of the given reagent
+     */
+    private int getChannel(String reporterIonName) {
+        int channel = channelLayout.getIndex(reporterIonName);
+        if (channel == -1) {
+            throw new IllegalArgumentException("Reagent " + reporterIonName + " not found in the channel layout.");
+        }
+        return channel;
     }
 }
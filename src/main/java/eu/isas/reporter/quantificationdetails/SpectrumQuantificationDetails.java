@@ -1,7 +1,6 @@
 package eu.isas.reporter.quantificationdetails;
 
 import com.compomics.util.experiment.identification.matches.IonMatch;
-import java.util.HashMap;
 
 /**
  * This class contains the quantitative information at the spectrum level.
@@ -11,17 +10,38 @@ import java.util.HashMap;
 public class SpectrumQuantificationDetails {
 
     /**
-     * The reporter ratios.
+     * The channel layout.
      */
-    private HashMap<String, Double> ratios = null;
+    private final ChannelLayout channelLayout;
     /**
-     * The reporter ion matches.
+     * The reporter ratios indexed by channel.
      */
-    private HashMap<String, IonMatch> reporterMatches = null;
+    private double[] ratios = null;
     /**
-     * The deisotoped reporter intensities.
+     * The channels where the ratios are set.
      */
-    private HashMap<String, Double> deisotopedIntensities = null;
+    private long[] ratiosSet = null;
+    /**
+     * The reporter ion matches indexed by channel.
+     */
+    private IonMatch[] reporterMatches = null;
+    /**
+     * The deisotoped reporter intensities indexed by channel.
+     */
+    private double[] deisotopedIntensities = null;
+    /**
+     * The channels where the deisotoped intensities are set.
+     */
+    private long[] deisotopedIntensitiesSet = null;
+
+    /**
+     * Constructor.
+     *
+     * @param channelLayout the channel layout
+     */
+    public SpectrumQuantificationDetails(ChannelLayout channelLayout) {
+        this.channelLayout = channelLayout;
+    }
 
     /**
      * Sets a ratio.
@@ -30,10 +50,22 @@ public class SpectrumQuantificationDetails {
      * @param value the value of the ratio
      */
     public void setRatio(String sampleIndex, double value) {
+        setRatio(getChannel(sampleIndex), value);
+    }
+
+    /**
+     * Sets a ratio.
+     *
+     * @param channel the index of the channel in the channel layout
+     * @param value the value of the ratio
+     */
+    public void setRatio(int channel, double value) {
         if (ratios == null) {
-            ratios = new HashMap<String, Double>();
+            ratios = channelLayout.newValues();
+            ratiosSet = channelLayout.newFlags();
         }
-        ratios.put(sampleIndex, value);
+        ratios[channel] = value;
+        ChannelLayout.setFlag(ratiosSet, channel);
     }
 
     /**
@@ -44,10 +76,11 @@ public class SpectrumQuantificationDetails {
      * @return the ratio for this sample, null if not set
      */
     public Double getRatio(String reporterIonName) {
-        if (ratios == null) {
+        int channel = channelLayout.getIndex(reporterIonName);
+        if (channel == -1 || !ChannelLayout.isSet(ratiosSet, channel)) {
             return null;
         }
-        return ratios.get(reporterIonName);
+        return ratios[channel];
     }
 
     /**
@@ -57,10 +90,22 @@ public class SpectrumQuantificationDetails {
      * @param value the value of the deisotoped intensity
      */
     public void setDeisotopedIntensity(String reporterIonName, double value) {
+        setDeisotopedIntensity(getChannel(reporterIonName), value);
+    }
+
+    /**
+     * Sets the value of a deisotoped intensity.
+     *
+     * @param channel the index of the channel in the channel layout
+     * @param value the value of the deisotoped intensity
+     */
+    public void setDeisotopedIntensity(int channel, double value) {
         if (deisotopedIntensities == null) {
-            deisotopedIntensities = new HashMap<String, Double>();
+            deisotopedIntensities = channelLayout.newValues();
+            deisotopedIntensitiesSet = channelLayout.newFlags();
         }
-        deisotopedIntensities.put(reporterIonName, value);
+        deisotopedIntensities[channel] = value;
+        ChannelLayout.setFlag(deisotopedIntensitiesSet, channel);
     }
 
     /**
@@ -71,10 +116,25 @@ public class SpectrumQuantificationDetails {
      * @return the intensity
      */
     public Double getDeisotopedIntensity(String reporterIonName) {
-        if (deisotopedIntensities == null) {
+        int channel = channelLayout.getIndex(reporterIonName);
+        if (channel == -1 || !ChannelLayout.isSet(deisotopedIntensitiesSet, channel)) {
             return null;
         }
-        return deisotopedIntensities.get(reporterIonName);
+        return deisotopedIntensities[channel];
+    }
+
+    /**
+     * Returns the intensity of the given channel. NaN if not set.
+     *
+     * @param channel the index of the channel in the channel layout
+     *
+     * @return the intensity
+     */
+    public double getDeisotopedIntensity(int channel) {
+        if (deisotopedIntensities == null) {
+            return Double.NaN;
+        }
+        return deisotopedIntensities[channel];
     }
 
     /**
@@ -84,10 +144,20 @@ public class SpectrumQuantificationDetails {
      * @param reporterMatch the reporter ion match
      */
     public void setReporterMatch(String reporterIonName, IonMatch reporterMatch) {
+        setReporterMatch(getChannel(reporterIonName), reporterMatch);
+    }
+
+    /**
+     * Sets the value of a reporter ion match.
+     *
+     * @param channel the index of the channel in the channel layout
+     * @param reporterMatch the reporter ion match
+     */
+    public void setReporterMatch(int channel, IonMatch reporterMatch) {
         if (reporterMatches == null) {
-            reporterMatches = new HashMap<String, IonMatch>();
+            reporterMatches = new IonMatch[channelLayout.size()];
         }
-        reporterMatches.put(reporterIonName, reporterMatch);
+        reporterMatches[channel] = reporterMatch;
     }
 
     /**
@@ -98,9 +168,45 @@ public class SpectrumQuantificationDetails {
      * @return the reporter ion match
      */
     public IonMatch getRepoterMatch(String reporterIonName) {
-        if (reporterMatches == null) {
+        int channel = channelLayout.getIndex(reporterIonName);
+        if (reporterMatches == null || channel == -1) {
             return null;
         }
-        return reporterMatches.get(reporterIonName);
+        return reporterMatches[channel];
+    }
+
+    /**
+     * Returns an estimate of the memory used by these details in bytes.
+     *
+     * @return an estimate of the memory used by these details in bytes
+     */
+    public long getWeight() {
+        long weight = 40
+                + ChannelLayout.getWeight(ratios) + ChannelLayout.getWeight(ratiosSet)
+                + ChannelLayout.getWeight(deisotopedIntensities) + ChannelLayout.getWeight(deisotopedIntensitiesSet);
+        if (reporterMatches != null) {
+            weight += 16 + 4 * reporterMatches.length;
+            for (IonMatch reporterMatch : reporterMatches) {
+                if (reporterMatch != null) {
+                    weight += 48;
+                }
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Returns the index of the channel of the given reagent.
+     *
+     * @param reporterIonName the name of the reagent
+     *
+     * @return the index of the channel of the given reagent
+     */
+    private int getChannel(String reporterIonName) {
+        int channel = channelLayout.getIndex(reporterIonName);
+        if (channel == -1) {
+            throw new IllegalArgumentException("Reagent " + reporterIonName + " not found in the channel layout.");
+        }
+        return channel;
     }
 }
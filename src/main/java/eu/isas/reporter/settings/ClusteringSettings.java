@@ -1,6 +1,7 @@
 package eu.isas.reporter.settings;
 
 import com.compomics.util.math.clustering.settings.KMeansClusteringSettings;
+import eu.isas.reporter.calculation.clustering.HierarchicalLinkage;
 import eu.isas.reporter.calculation.clustering.keys.PeptideClusterClassKey;
 import eu.isas.reporter.calculation.clustering.keys.ProteinClusterClassKey;
 import eu.isas.reporter.calculation.clustering.keys.PsmClusterClassKey;
@@ -61,6 +62,30 @@ public class ClusteringSettings implements Serializable {
      * The k-means clustering settings.
      */
     private KMeansClusteringSettings kMeansClusteringSettings;
+    /**
+     * Boolean indicating whether the number of clusters shall be selected
+     * automatically.
+     */
+    private Boolean autoNClusters = false;
+    /**
+     * The smallest number of clusters tested when selecting the number of
+     * clusters automatically.
+     */
+    private Integer minNClusters = 2;
+    /**
+     * The largest number of clusters tested when selecting the number of
+     * clusters automatically.
+     */
+    private Integer maxNClusters = 20;
+    /**
+     * Boolean indicating whether the profiles shall be clustered
+     * hierarchically instead of using k-means.
+     */
+    private Boolean hierarchicalClustering = false;
+    /**
+     * The linkage of the hierarchical clustering.
+     */
+    private HierarchicalLinkage hierarchicalLinkage = HierarchicalLinkage.ward;
 
     /**
      * Constructor.
@@ -235,6 +260,123 @@ public class ClusteringSettings implements Serializable {
         this.kMeansClusteringSettings = kMeansClusteringSettings;
     }
 
+    /**
+     * Indicates whether the number of clusters shall be selected
+     * automatically.
+     *
+     * @return a boolean indicating whether the number of clusters shall be
+     * selected automatically
+     */
+    public boolean isAutoNClusters() {
+        if (autoNClusters == null) {
+            autoNClusters = false;
+        }
+        return autoNClusters;
+    }
+
+    /**
+     * Sets whether the number of clusters shall be selected automatically.
+     *
+     * @param autoNClusters a boolean indicating whether the number of
+     * clusters shall be selected automatically
+     */
+    public void setAutoNClusters(boolean autoNClusters) {
+        this.autoNClusters = autoNClusters;
+    }
+
+    /**
+     * Returns the smallest number of clusters tested when selecting the
+     * number of clusters automatically.
+     *
+     * @return the smallest number of clusters tested
+     */
+    public int getMinNClusters() {
+        if (minNClusters == null) {
+            minNClusters = 2;
+        }
+        return minNClusters;
+    }
+
+    /**
+     * Sets the smallest number of clusters tested when selecting the number
+     * of clusters automatically.
+     *
+     * @param minNClusters the smallest number of clusters tested
+     */
+    public void setMinNClusters(int minNClusters) {
+        this.minNClusters = minNClusters;
+    }
+
+    /**
+     * Returns the largest number of clusters tested when selecting the
+     * number of clusters automatically.
+     *
+     * @return the largest number of clusters tested
+     */
+    public int getMaxNClusters() {
+        if (maxNClusters == null) {
+            maxNClusters = 20;
+        }
+        return maxNClusters;
+    }
+
+    /**
+     * Sets the largest number of clusters tested when selecting the number
+     * of clusters automatically.
+     *
+     * @param maxNClusters the largest number of clusters tested
+     */
+    public void setMaxNClusters(int maxNClusters) {
+        this.maxNClusters = maxNClusters;
+    }
+
+    /**
+     * Indicates whether the profiles shall be clustered hierarchically
+     * instead of using k-means. The dendrogram is then cut into the number
+     * of clusters of the k-means settings.
+     *
+     * @return a boolean indicating whether the profiles shall be clustered
+     * hierarchically
+     */
+    public boolean isHierarchicalClustering() {
+        if (hierarchicalClustering == null) {
+            hierarchicalClustering = false;
+        }
+        return hierarchicalClustering;
+    }
+
+    /**
+     * Sets whether the profiles shall be clustered hierarchically instead of
+     * using k-means.
+     *
+     * @param hierarchicalClustering a boolean indicating whether the profiles
+     * shall be clustered hierarchically
+     */
+    public void setHierarchicalClustering(boolean hierarchicalClustering) {
+        this.hierarchicalClustering = hierarchicalClustering;
+    }
+
+    /**
+     * Returns the linkage of the hierarchical clustering.
+     *
+     * @return the linkage of the hierarchical clustering
+     */
+    public HierarchicalLinkage getHierarchicalLinkage() {
+        if (hierarchicalLinkage == null) {
+            hierarchicalLinkage = HierarchicalLinkage.ward;
+        }
+        return hierarchicalLinkage;
+    }
+
+    /**
+     * Sets the linkage of the hierarchical clustering.
+     *
+     * @param hierarchicalLinkage the linkage of the hierarchical clustering
+     */
+    public void setHierarchicalLinkage(HierarchicalLinkage hierarchicalLinkage) {
+        this.hierarchicalLinkage = hierarchicalLinkage;
+    }
+
     /**
      * Returns the possible protein classes names.
      *
@@ -1,16 +1,13 @@
 package eu.isas.reporter.settings;
 
-import com.compomics.util.experiment.identification.protein_inference.fm_index.FMIndex;
-import com.compomics.util.experiment.io.biology.protein.FastaParameters;
-import com.compomics.util.parameters.identification.advanced.PeptideVariantsParameters;
-import com.compomics.util.parameters.identification.search.SearchParameters;
-import com.compomics.util.waiting.WaitingHandler;
+import com.compomics.util.exceptions.ExceptionHandler;
 import eu.isas.reporter.Reporter;
 import eu.isas.reporter.calculation.normalization.NormalizationType;
+import eu.isas.reporter.io.FastaAccessionsScanner;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
-import java.util.Collection;
+import java.util.HashSet;
 
 /**
  * Settings used for the normalization.
@@ -40,6 +37,11 @@ public class NormalizationSettings implements Serializable {
      * FASTA file containing the contaminants.
      */
     private File contaminantsFastaFile = getDefaultContaminantFile();
+    /**
+     * Indicates whether the quantiles used for the normalization are
+     * estimated using sketches instead of storing all ratios.
+     */
+    private boolean approximateQuantiles = false;
 
     /**
      * Constructor.
@@ -57,6 +59,7 @@ public class NormalizationSettings implements Serializable {
         clone.setProteinNormalization(proteinNormalization);
         clone.setStableProteinsFastaFile(stableProteinsFastaFile);
         clone.setContaminantsFastaFile(contaminantsFastaFile);
+        clone.setApproximateQuantiles(approximateQuantiles);
         return clone;
 
     }
@@ -91,7 +94,8 @@ public class NormalizationSettings implements Serializable {
 
         return psmNormalization == anotherSetting.getPsmNormalization()
                 && peptideNormalization == anotherSetting.getPeptideNormalization()
-                && proteinNormalization == anotherSetting.getProteinNormalization();
+                && proteinNormalization == anotherSetting.getProteinNormalization()
+                && approximateQuantiles == anotherSetting.isApproximateQuantiles();
     }
 
     /**
@@ -189,38 +193,49 @@ public class NormalizationSettings implements Serializable {
         this.contaminantsFastaFile = contaminantsFastaFile;
     }
 
+    /**
+     * Indicates whether the quantiles used for the normalization are
+     * estimated using sketches instead of storing all ratios. The sketches
+     * use a bounded amount of memory, and the rank of the estimated quantiles
+     * is within 1.7% of the number of ratios of the exact rank with 99%
+     * confidence.
+     *
+     * @return a boolean indicating whether the quantiles are estimated using
+     * sketches
+     */
+    public boolean isApproximateQuantiles() {
+        return approximateQuantiles;
+    }
+
+    /**
+     * Sets whether the quantiles used for the normalization are estimated
+     * using sketches instead of storing all ratios.
+     *
+     * @param approximateQuantiles a boolean indicating whether the quantiles
+     * are estimated using sketches
+     */
+    public void setApproximateQuantiles(boolean approximateQuantiles) {
+        this.approximateQuantiles = approximateQuantiles;
+    }
+
     /**
      * Returns the accessions of the stable proteins as a set taken from the
-     * stableProteinsFastaFile. Null if no file is set.
+     * stableProteinsFastaFile. Null if no file is set. The set is shared and
+     * must not be modified.
      *
-     * @param searchParameters the search parameters
-     * @param fastaParameters the FASTA parameters
-     * @param peptideVariantsPreferences the peptide variants parameters
-     * @param waitingHandler the waiting handler
-     * @return the accessions of the stable proteins as a collection
+     * @param exceptionHandler handler for the exceptions occurring while
+     * saving the accessions, can be null, in which case the exceptions are
+     * thrown
+     *
+     * @return the accessions of the stable proteins as a set
      *
      * @throws IOException exception thrown whenever an error occurred while
      * accessing the file.
      */
-    public Collection<String> getStableProteins(
-            SearchParameters searchParameters,
-            FastaParameters fastaParameters,
-            PeptideVariantsParameters peptideVariantsPreferences,
-            WaitingHandler waitingHandler
-    ) throws IOException {
+    public HashSet<String> getStableProteins(ExceptionHandler exceptionHandler) throws IOException {
 
         if (stableProteinsFastaFile != null) {
-
-            FMIndex fmIndex = new FMIndex(
-                    stableProteinsFastaFile,
-                    fastaParameters,
-                    waitingHandler,
-                    true,
-                    peptideVariantsPreferences,
-                    searchParameters
-            );
-
-            return fmIndex.getAccessions();
+            return FastaAccessionsScanner.getAccessions(stableProteinsFastaFile, exceptionHandler);
         }
 
         return null;
@@ -229,36 +244,22 @@ public class NormalizationSettings implements Serializable {
 
     /**
      * Returns the accessions of the contaminants as a set taken from the
-     * contaminantsFastaFile. Null if no file is set.
+     * contaminantsFastaFile. Null if no file is set. The set is shared and
+     * must not be modified.
+     *
+     * @param exceptionHandler handler for the exceptions occurring while
+     * saving the accessions, can be null, in which case the exceptions are
+     * thrown
      *
-     * @param searchParameters the search parameters
-     * @param fastaParameters the FASTA parameters
-     * @param peptideVariantsPreferences the peptide variants parameters
-     * @param waitingHandler the waiting handler
-     * @return the accessions of the stable proteins as a collection
+     * @return the accessions of the contaminants as a set
      *
      * @throws IOException exception thrown whenever an error occurred while
      * accessing the file.
      */
-    public Collection<String> getContaminants(
-            SearchParameters searchParameters,
-            FastaParameters fastaParameters,
-            PeptideVariantsParameters peptideVariantsPreferences,
-            WaitingHandler waitingHandler
-    ) throws IOException {
+    public HashSet<String> getContaminants(ExceptionHandler exceptionHandler) throws IOException {
 
         if (contaminantsFastaFile != null) {
-
-            FMIndex fmIndex = new FMIndex(
-                    contaminantsFastaFile,
-                    fastaParameters,
-                    waitingHandler,
-                    true,
-                    peptideVariantsPreferences,
-                    searchParameters
-            );
-
-            return fmIndex.getAccessions();
+            return FastaAccessionsScanner.getAccessions(contaminantsFastaFile, exceptionHandler);
         }
 
         return null;
@@ -0,0 +1,60 @@
+package eu.isas.reporter.utils;
+
+/**
+ * 64 bit FNV-1a hash of strings, used to fingerprint settings and files.
+ * Unlike String.hashCode, the hash is 64 bit and its value is specified, it
+ * can hence be saved.
+ *
+ * @author Marc Vaudel
+ */
+public class Fnv1aHash {
+
+    /**
+     * The initial value of the hash.
+     */
+    public static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    /**
+     * The prime multiplied at every character.
+     */
+    private static final long PRIME = 0x100000001b3L;
+
+    /**
+     * Empty default constructor.
+     */
+    private Fnv1aHash() {
+    }
+
+    /**
+     * Returns the hash of the given string.
+     *
+     * @param value the string
+     *
+     * @return the hash
+     */
+    public static long hash(String value) {
+        return hash(OFFSET_BASIS, value);
+    }
+
+    /**
+     * Adds the characters of the given string and a separator to a hash. The
+     * separator ensures that different sequences of strings sharing the same
+     * concatenation have different hashes.
+     *
+     * @param hash the current hash
+     * @param value the string to add
+     *
+     * @return the new hash
+     */
+    public static long hash(long hash, String value) {
+
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= PRIME;
+        }
+
+        hash ^= 0xffff;
+        hash *= PRIME;
+
+        return hash;
+    }
+}
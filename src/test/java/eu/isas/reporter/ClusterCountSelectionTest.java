@@ -0,0 +1,230 @@
+package eu.isas.reporter;
+
+import eu.isas.reporter.calculation.clustering.ClusterCountSelection;
+import eu.isas.reporter.calculation.clustering.ProfileKMeansClustering;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ * Tests of the selection of the number of clusters.
+ *
+ * @author Marc Vaudel
+ */
+public class ClusterCountSelectionTest extends TestCase {
+
+    /**
+     * The number of dimensions of the profiles.
+     */
+    private static final int N_DIMENSIONS = 5;
+    /**
+     * The number of centres of the profiles.
+     */
+    private static final int N_CENTRES = 4;
+
+    /**
+     * Checks that the number of centres of the profiles is selected, with and
+     * without sampling of the rows of the sweep.
+     */
+    public void testSweep() {
+
+        for (int nRows : new int[]{2000, ClusterCountSelection.SWEEP_SAMPLE_SIZE + 5000}) {
+
+            float[] profiles = getProfiles(nRows, 1);
+            ClusterCountSelection selection = new ClusterCountSelection(profiles, N_DIMENSIONS, getKeys(nRows), 2, 8);
+            selection.select(null);
+
+            assertEquals(2, selection.getMinNClusters());
+            assertEquals(8, selection.getMaxNClusters());
+
+            double[] scores = selection.getScores();
+            assertEquals(7, scores.length);
+
+            for (int nClusters = 2; nClusters <= 8; nClusters++) {
+
+                double score = selection.getScore(nClusters);
+                assertEquals(scores[nClusters - 2], score, 0.0);
+                assertTrue(score >= -1 && score <= 1);
+
+                if (nClusters != N_CENTRES) {
+                    assertTrue(score < selection.getScore(N_CENTRES));
+                }
+            }
+
+            assertTrue(Double.isNaN(selection.getScore(1)));
+            assertTrue(Double.isNaN(selection.getScore(9)));
+            assertEquals(N_CENTRES, selection.getBestNClusters());
+
+            // all rows are clustered by centre
+            ProfileKMeansClustering clustering = selection.getClustering();
+            assertEquals(N_CENTRES, clustering.getNumberOfClusters());
+
+            int[] centreClusters = new int[N_CENTRES];
+            Arrays.fill(centreClusters, -1);
+
+            for (int row = 0; row < nRows; row++) {
+
+                int centre = row % N_CENTRES;
+
+                if (centreClusters[centre] == -1) {
+                    centreClusters[centre] = clustering.getCluster(row);
+                }
+
+                assertEquals(centreClusters[centre], clustering.getCluster(row));
+
+            }
+
+            assertEquals(N_CENTRES, Arrays.stream(centreClusters).distinct().count());
+        }
+    }
+
+    /**
+     * Checks that the scores and clustering are identical when selecting with
+     * one and several threads.
+     *
+     * @throws Exception exception thrown if the selection failed
+     */
+    public void testThreadCountInvariance() throws Exception {
+
+        int nRows = ClusterCountSelection.SWEEP_SAMPLE_SIZE + 5000;
+        float[] profiles = getProfiles(nRows, 2);
+        long[] keys = getKeys(nRows);
+
+        ClusterCountSelection reference = select(profiles, keys, 1);
+
+        for (int nThreads : new int[]{2, 8}) {
+
+            ClusterCountSelection selection = select(profiles, keys, nThreads);
+
+            assertTrue(Arrays.equals(reference.getScores(), selection.getScores()));
+            assertEquals(reference.getBestNClusters(), selection.getBestNClusters());
+
+            for (int row = 0; row < nRows; row++) {
+                assertEquals(reference.getClustering().getCluster(row), selection.getClustering().getCluster(row));
+            }
+        }
+    }
+
+    /**
+     * Checks that the range of numbers of clusters is capped to the number of
+     * rows when there are fewer rows than clusters.
+     */
+    public void testFewerRowsThanClusters() {
+
+        for (int nRows = 0; nRows <= 5; nRows++) {
+
+            float[] profiles = getProfiles(nRows, 3);
+            ClusterCountSelection selection = new ClusterCountSelection(profiles, N_DIMENSIONS, getKeys(nRows), 2, 10);
+            selection.select(null);
+
+            int maxNClusters = Math.max(1, nRows);
+
+            assertEquals(maxNClusters, selection.getMaxNClusters());
+            assertEquals(Math.min(2, maxNClusters), selection.getMinNClusters());
+            assertEquals(selection.getMaxNClusters() - selection.getMinNClusters() + 1, selection.getScores().length);
+            assertTrue(Double.isNaN(selection.getScore(maxNClusters + 1)));
+
+            int bestNClusters = selection.getBestNClusters();
+            assertTrue(bestNClusters >= selection.getMinNClusters() && bestNClusters <= maxNClusters);
+
+            ProfileKMeansClustering clustering = selection.getClustering();
+            assertEquals(bestNClusters, clustering.getNumberOfClusters());
+
+            HashSet<Long> members = new HashSet<>();
+
+            for (int cluster = 0; cluster < clustering.getNumberOfClusters(); cluster++) {
+
+                for (long key : clustering.getClusterMemberKeys(cluster)) {
+                    members.add(key);
+                }
+            }
+
+            assertEquals(nRows, members.size());
+
+        }
+    }
+
+    /**
+     * Runs the selection in a pool of the given number of threads.
+     *
+     * @param profiles the profiles in a row-major matrix
+     * @param keys the keys of the rows
+     * @param nThreads the number of threads
+     *
+     * @return the selection
+     *
+     * @throws Exception exception thrown if the selection failed
+     */
+    private static ClusterCountSelection select(float[] profiles, long[] keys, int nThreads) throws Exception {
+
+        ForkJoinPool pool = new ForkJoinPool(nThreads);
+
+        try {
+
+            return pool.submit(() -> {
+
+                ClusterCountSelection selection = new ClusterCountSelection(profiles, N_DIMENSIONS, keys, 2, 8);
+                selection.select(null);
+
+                return selection;
+
+            }).get(10, TimeUnit.MINUTES);
+
+        } finally {
+
+            pool.shutdownNow();
+
+        }
+    }
+
+    /**
+     * Returns random profiles drawn around N_CENTRES distant centres, the row
+     * at a given index belonging to the centre of the index modulo
+     * N_CENTRES.
+     *
+     * @param nRows the number of rows
+     * @param seed the seed of the random generator
+     *
+     * @return the profiles in a row-major matrix
+     */
+    private static float[] getProfiles(int nRows, long seed) {
+
+        Random random = new Random(seed);
+        float[] profiles = new float[nRows * N_DIMENSIONS];
+
+        for (int row = 0; row < nRows; row++) {
+
+            int centre = row % N_CENTRES;
+
+            for (int dimension = 0; dimension < N_DIMENSIONS; dimension++) {
+
+                double centreValue = dimension == centre ? 8 : 0;
+                profiles[row * N_DIMENSIONS + dimension] = (float) (centreValue + 0.3 * random.nextGaussian());
+
+            }
+        }
+
+        return profiles;
+    }
+
+    /**
+     * Returns the keys of the rows.
+     *
+     * @param nRows the number of rows
+     *
+     * @return the keys of the rows
+     */
+    private static long[] getKeys(int nRows) {
+
+        long[] keys = new long[nRows];
+
+        for (int row = 0; row < nRows; row++) {
+            keys[row] = 1000003L * (row + 1);
+        }
+
+        return keys;
+    }
+}
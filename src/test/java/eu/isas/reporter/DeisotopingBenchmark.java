@@ -0,0 +1,238 @@
+package eu.isas.reporter;
+
+import com.compomics.util.experiment.mass_spectrometry.spectra.Spectrum;
+import com.compomics.util.experiment.quantification.reporterion.ReporterMethod;
+import com.compomics.util.experiment.quantification.reporterion.ReporterMethodFactory;
+import eu.isas.reporter.calculation.Deisotoper;
+import eu.isas.reporter.calculation.ReporterPeakExtractor;
+import eu.isas.reporter.calculation.ReporterPeaks;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Throughput benchmark of the reporter peak extraction and deisotoping for
+ * the TMT 10-plex, TMT 11-plex and TMTpro (16 labels) methods. Reports the
+ * median number of spectra per second over the measured iterations for the
+ * peak extraction alone, for the peak extraction followed by the deisotoping
+ * of all labels, and for the previous implementation searching the spectrum
+ * for every reporter ion and isotope as done in DeisotopingTest. Also reports
+ * the time needed to build a deisotoper with and without the process-wide
+ * cache.
+ *
+ * Not run as part of the tests. After building the project with mvn package,
+ * run from the project folder:
+ *
+ * java -cp "target/test-classes:target/classes:target/Reporter-[version]/lib/*"
+ * eu.isas.reporter.DeisotopingBenchmark [methods file]
+ *
+ * @author Marc Vaudel
+ */
+public class DeisotopingBenchmark {
+
+    /**
+     * The methods benchmarked.
+     */
+    private static final String[] METHODS = new String[]{"TMT 10-plex", "TMT 11-plex", "TMTpro"};
+    /**
+     * The reporter ion m/z tolerance, the one of DeisotopingTest.
+     */
+    private static final double TOLERANCE = 0.0016;
+    /**
+     * The number of synthetic spectra.
+     */
+    private static final int N_SPECTRA = 10000;
+    /**
+     * The number of noise peaks per spectrum.
+     */
+    private static final int N_NOISE = 300;
+    /**
+     * The number of warm-up iterations.
+     */
+    private static final int WARMUP_ITERATIONS = 5;
+    /**
+     * The number of measured iterations.
+     */
+    private static final int MEASURED_ITERATIONS = 10;
+    /**
+     * The number of spectra used for the previous implementation, which is
+     * much slower.
+     */
+    private static final int N_REFERENCE_SPECTRA = 1000;
+
+    /**
+     * The benchmarked operations.
+     */
+    private enum Operation {
+
+        /**
+         * Peak extraction only.
+         */
+        extraction,
+        /**
+         * Peak extraction and deisotoping of all labels.
+         */
+        deisotoping,
+        /**
+         * Previous implementation searching the spectrum for every reporter
+         * ion and isotope.
+         */
+        reference
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the path to the methods file, resources/conf/defaultMethods.xml
+     * if not provided
+     *
+     * @throws Exception exception thrown if the methods file cannot be parsed
+     */
+    public static void main(String[] args) throws Exception {
+
+        File methodsFile = new File(args.length > 0 ? args[0] : "resources/conf/defaultMethods.xml");
+        ReporterMethodFactory methodsFactory = ReporterMethodFactory.getInstance();
+        methodsFactory.importMethods(methodsFile);
+
+        for (String methodName : METHODS) {
+
+            ReporterMethod method = methodsFactory.getReporterMethod(methodName);
+
+            long start = System.nanoTime();
+            Deisotoper deisotoper = new Deisotoper(method, TOLERANCE);
+            long construction = System.nanoTime() - start;
+
+            Deisotoper.getDeisotoper(method, TOLERANCE);
+            start = System.nanoTime();
+            Deisotoper.getDeisotoper(method, TOLERANCE);
+            long cached = System.nanoTime() - start;
+
+            Spectrum[] spectra = getSpectra(method, new Random(42));
+
+            System.out.println(methodName + " (" + method.getReagentNames().size() + " labels)");
+
+            for (Operation operation : Operation.values()) {
+
+                Spectrum[] operationSpectra = operation == Operation.reference ? Arrays.copyOf(spectra, N_REFERENCE_SPECTRA) : spectra;
+                System.out.println("    " + operation + ": " + Math.round(measure(deisotoper, method, operationSpectra, operation)) + " spectra/s");
+
+            }
+
+            System.out.println("    deisotoper creation: " + construction / 1000 + " µs, cached: " + cached / 1000 + " µs");
+        }
+    }
+
+    /**
+     * Returns the median throughput in spectra per second of the given
+     * operation over the measured iterations.
+     *
+     * @param deisotoper the deisotoper
+     * @param method the reporter method
+     * @param spectra the spectra
+     * @param operation the operation
+     *
+     * @return the median throughput in spectra per second
+     */
+    private static double measure(Deisotoper deisotoper, ReporterMethod method, Spectrum[] spectra, Operation operation) {
+
+        ReporterPeakExtractor peakExtractor = deisotoper.getPeakExtractor();
+        ReporterPeaks peaks = new ReporterPeaks();
+        String[] labels = method.getReagentNames().toArray(new String[0]);
+        double[] throughputs = new double[MEASURED_ITERATIONS];
+        double sink = 0;
+
+        for (int iteration = 0; iteration < WARMUP_ITERATIONS + MEASURED_ITERATIONS; iteration++) {
+
+            long start = System.nanoTime();
+
+            for (Spectrum spectrum : spectra) {
+
+                switch (operation) {
+
+                    case extraction:
+                        peakExtractor.extract(spectrum, true, peaks);
+                        sink += peaks.getIntensity()[0];
+                        break;
+
+                    case deisotoping:
+                        peakExtractor.extract(spectrum, true, peaks);
+                        deisotoper.deisotope(peaks);
+                        double[] deisotoped = peaks.getDeisotopedIntensity();
+
+                        for (String label : labels) {
+                            sink += deisotoped[deisotoper.getReporterIonTarget(label)];
+                        }
+
+                        break;
+
+                    case reference:
+                        for (String label : labels) {
+                            sink += DeisotopingTest.deisotope(deisotoper, method, label, spectrum, true);
+                        }
+
+                        break;
+
+                    default:
+                        throw new UnsupportedOperationException("Operation " + operation + " not implemented.");
+                }
+            }
+
+            long time = System.nanoTime() - start;
+
+            if (iteration >= WARMUP_ITERATIONS) {
+                throughputs[iteration - WARMUP_ITERATIONS] = spectra.length * 1e9 / time;
+            }
+        }
+
+        if (sink == -1) {
+            System.out.println(sink);
+        }
+
+        Arrays.sort(throughputs);
+
+        return throughputs[MEASURED_ITERATIONS / 2];
+    }
+
+    /**
+     * Returns synthetic spectra with a peak close to every reporter ion and
+     * noise peaks.
+     *
+     * @param method the reporter method
+     * @param random the random number generator
+     *
+     * @return synthetic spectra
+     */
+    private static Spectrum[] getSpectra(ReporterMethod method, Random random) {
+
+        String[] labels = method.getReagentNames().toArray(new String[0]);
+        Spectrum[] spectra = new Spectrum[N_SPECTRA];
+
+        for (int i = 0; i < N_SPECTRA; i++) {
+
+            int nPeaks = labels.length + N_NOISE;
+            double[][] peaks = new double[nPeaks][];
+
+            for (int j = 0; j < labels.length; j++) {
+                double mz = method.getReporterIon(labels[j]).getTheoreticMz(1) + (random.nextDouble() - 0.5) * TOLERANCE;
+                peaks[j] = new double[]{mz, 1000 + 10000 * random.nextDouble()};
+            }
+
+            for (int j = labels.length; j < nPeaks; j++) {
+                peaks[j] = new double[]{100 + 1900 * random.nextDouble(), 100 * random.nextDouble()};
+            }
+
+            Arrays.sort(peaks, (a, b) -> Double.compare(a[0], b[0]));
+            double[] mz = new double[nPeaks];
+            double[] intensity = new double[nPeaks];
+
+            for (int j = 0; j < nPeaks; j++) {
+                mz[j] = peaks[j][0];
+                intensity[j] = peaks[j][1];
+            }
+
+            spectra[i] = new Spectrum(null, mz, intensity);
+        }
+
+        return spectra;
+    }
+}
@@ -0,0 +1,280 @@
+package eu.isas.reporter;
+
+import com.compomics.util.experiment.biology.ions.impl.ReporterIon;
+import com.compomics.util.experiment.identification.matches.IonMatch;
+import com.compomics.util.experiment.mass_spectrometry.spectra.Spectrum;
+import com.compomics.util.experiment.quantification.reporterion.ReporterMethod;
+import com.compomics.util.experiment.quantification.reporterion.ReporterMethodFactory;
+import eu.isas.reporter.calculation.CorrectionMatrix;
+import eu.isas.reporter.calculation.Deisotoper;
+import eu.isas.reporter.calculation.ReporterPeakExtractor;
+import eu.isas.reporter.calculation.ReporterPeaks;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Tests of the reporter peak extraction and of the deisotoping against the
+ * previous implementation, which searched the spectrum for every reporter ion
+ * and every isotope using Reporter.getBestReporterIonMatch and deisotoped the
+ * labels one by one, and of the cache of deisotopers. The methods are loaded
+ * from the default methods file.
+ *
+ * @author Marc Vaudel
+ */
+public class DeisotopingTest extends TestCase {
+
+    /**
+     * The methods tested.
+     */
+    private static final String[] METHODS = new String[]{"TMT 10-plex", "TMT 11-plex", "TMTpro"};
+    /**
+     * The reporter ion m/z tolerance.
+     */
+    private static final double TOLERANCE = 0.0016;
+    /**
+     * The number of synthetic spectra per method.
+     */
+    private static final int N_SPECTRA = 500;
+    /**
+     * The number of noise peaks per spectrum.
+     */
+    private static final int N_NOISE = 300;
+
+    /**
+     * Checks that the peak selected for every reporter ion is the one
+     * selected by Reporter.getBestReporterIonMatch, for the most accurate and
+     * the most intense peaks.
+     *
+     * @throws Exception exception thrown if the methods file cannot be parsed
+     */
+    public void testPeakExtraction() throws Exception {
+
+        for (String methodName : METHODS) {
+
+            ReporterMethod method = getMethod(methodName);
+            Deisotoper deisotoper = new Deisotoper(method, TOLERANCE);
+            ReporterPeakExtractor peakExtractor = deisotoper.getPeakExtractor();
+            ReporterPeaks peaks = new ReporterPeaks();
+
+            for (Spectrum spectrum : getSpectra(method, new Random(42))) {
+
+                for (boolean mostAccurate : new boolean[]{true, false}) {
+
+                    peakExtractor.extract(spectrum, mostAccurate, peaks);
+
+                    for (String label : method.getReagentNames()) {
+
+                        int target = deisotoper.getReporterIonTarget(label);
+                        IonMatch expected = Reporter.getBestReporterIonMatch(method.getReporterIon(label), 1, spectrum, TOLERANCE, mostAccurate);
+
+                        if (expected == null) {
+
+                            assertFalse(peaks.hasPeak(target));
+                            assertEquals(0.0, peaks.getIntensity()[target], 0.0);
+
+                        } else {
+
+                            assertTrue(peaks.hasPeak(target));
+                            assertEquals(expected.peakMz, peaks.getMz()[target], 0.0);
+                            assertEquals(expected.peakIntensity, peaks.getIntensity()[target], 0.0);
+
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that the deisotoped intensities are identical to the ones of the
+     * previous implementation, which searched the spectrum for every isotope
+     * of the correction matrix of every label.
+     *
+     * @throws Exception exception thrown if the methods file cannot be parsed
+     */
+    public void testDeisotoping() throws Exception {
+
+        for (String methodName : METHODS) {
+
+            ReporterMethod method = getMethod(methodName);
+            Deisotoper deisotoper = new Deisotoper(method, TOLERANCE);
+            ReporterPeakExtractor peakExtractor = deisotoper.getPeakExtractor();
+            ReporterPeaks peaks = new ReporterPeaks();
+
+            for (Spectrum spectrum : getSpectra(method, new Random(43))) {
+
+                for (boolean mostAccurate : new boolean[]{true, false}) {
+
+                    peakExtractor.extract(spectrum, mostAccurate, peaks);
+                    deisotoper.deisotope(peaks);
+
+                    for (String label : method.getReagentNames()) {
+
+                        double expected = deisotope(deisotoper, method, label, spectrum, mostAccurate);
+                        double deisotoped = peaks.getDeisotopedIntensity()[deisotoper.getReporterIonTarget(label)];
+
+                        assertEquals(expected, deisotoped, 0.0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that the deisotopers are shared per method and tolerance, and
+     * that the least recently used deisotoper is evicted when the cache is
+     * full.
+     *
+     * @throws Exception exception thrown if the methods file cannot be parsed
+     */
+    public void testDeisotoperCache() throws Exception {
+
+        ReporterMethod method = getMethod(METHODS[0]);
+        Deisotoper deisotoper = Deisotoper.getDeisotoper(method, TOLERANCE);
+        assertSame(deisotoper, Deisotoper.getDeisotoper(method, TOLERANCE));
+
+        // fill the cache, the deisotoper being the least recently used
+        for (int i = 1; i < Deisotoper.MAX_CACHED_DEISOTOPERS; i++) {
+            assertNotSame(deisotoper, Deisotoper.getDeisotoper(method, TOLERANCE / (i + 1)));
+        }
+
+        // use the deisotoper again, another one is evicted
+        assertSame(deisotoper, Deisotoper.getDeisotoper(method, TOLERANCE));
+        Deisotoper.getDeisotoper(method, TOLERANCE / (Deisotoper.MAX_CACHED_DEISOTOPERS + 1));
+        assertSame(deisotoper, Deisotoper.getDeisotoper(method, TOLERANCE));
+
+        // replace all deisotopers of the cache
+        for (int i = 0; i < Deisotoper.MAX_CACHED_DEISOTOPERS; i++) {
+            Deisotoper.getDeisotoper(method, TOLERANCE / (i + 100));
+        }
+
+        assertNotSame(deisotoper, Deisotoper.getDeisotoper(method, TOLERANCE));
+    }
+
+    /**
+     * Returns the deisotoped intensity of a label as computed by the previous
+     * implementation.
+     *
+     * @param deisotoper the deisotoper providing the correction matrices
+     * @param method the reporter method
+     * @param label the label
+     * @param spectrum the spectrum
+     * @param mostAccurate boolean indicating whether the most accurate peak
+     * should be selected, the most intense otherwise
+     *
+     * @return the deisotoped intensity of the label
+     */
+    static double deisotope(Deisotoper deisotoper, ReporterMethod method, String label, Spectrum spectrum, boolean mostAccurate) {
+
+        IonMatch refMatch = Reporter.getBestReporterIonMatch(method.getReporterIon(label), 1, spectrum, TOLERANCE, mostAccurate);
+
+        if (refMatch == null || refMatch.peakIntensity <= 0) {
+            return 0.0;
+        }
+
+        CorrectionMatrix correctionMatrix = deisotoper.getCorrectionMatrix(label);
+        int dimension = correctionMatrix.getDimension();
+        double[] intensities = new double[dimension];
+        int lineNumber = -1;
+
+        for (int i = 0; i < dimension; i++) {
+
+            if (label.equals(correctionMatrix.getReagentsNames().get(i))) {
+                lineNumber = i;
+            }
+
+            ReporterIon tempIon = new ReporterIon("tempIon", correctionMatrix.getReagentMass(i), false);
+            IonMatch ionMatch = Reporter.getBestReporterIonMatch(tempIon, 1, spectrum, TOLERANCE, mostAccurate);
+
+            if (ionMatch != null) {
+                intensities[i] = ionMatch.peakIntensity;
+            }
+        }
+
+        double result = 0;
+
+        for (int j = 0; j < dimension; j++) {
+            result += intensities[j] * correctionMatrix.getValueAt(lineNumber, j);
+        }
+
+        return Math.max(result, 0);
+    }
+
+    /**
+     * Returns the reporter method of the given name from the default methods
+     * file.
+     *
+     * @param methodName the name of the method
+     *
+     * @return the reporter method
+     *
+     * @throws Exception exception thrown if the methods file cannot be parsed
+     */
+    private static ReporterMethod getMethod(String methodName) throws Exception {
+
+        ReporterMethodFactory methodsFactory = ReporterMethodFactory.getInstance();
+        methodsFactory.importMethods(new File("resources/conf/defaultMethods.xml"));
+
+        return methodsFactory.getReporterMethod(methodName);
+    }
+
+    /**
+     * Returns synthetic spectra with peaks close to every reporter ion,
+     * including missing reporter ions, peaks with null intensity, and peaks
+     * at the same distance of a reporter ion, as well as noise peaks.
+     *
+     * @param method the reporter method
+     * @param random the random number generator
+     *
+     * @return synthetic spectra
+     */
+    private static Spectrum[] getSpectra(ReporterMethod method, Random random) {
+
+        String[] labels = method.getReagentNames().toArray(new String[0]);
+        Spectrum[] spectra = new Spectrum[N_SPECTRA];
+
+        for (int i = 0; i < N_SPECTRA; i++) {
+
+            double[][] peaks = new double[3 * labels.length + N_NOISE][];
+            int nPeaks = 0;
+
+            for (String label : labels) {
+
+                double theoreticMz = method.getReporterIon(label).getTheoreticMz(1);
+                int nLabelPeaks = random.nextInt(4);
+
+                for (int j = 0; j < nLabelPeaks; j++) {
+
+                    double mz = theoreticMz + (random.nextDouble() - 0.5) * 2.2 * TOLERANCE;
+
+                    if (j > 0 && random.nextBoolean()) {
+                        mz = 2 * theoreticMz - peaks[nPeaks - 1][0];
+                    }
+
+                    double intensity = random.nextInt(10) == 0 ? 0 : 1000 + 10000 * random.nextDouble();
+                    peaks[nPeaks++] = new double[]{mz, intensity};
+                }
+            }
+
+            for (int j = 0; j < N_NOISE; j++) {
+                peaks[nPeaks++] = new double[]{100 + 1900 * random.nextDouble(), 100 * random.nextDouble()};
+            }
+
+            peaks = Arrays.copyOf(peaks, nPeaks);
+            Arrays.sort(peaks, (a, b) -> Double.compare(a[0], b[0]));
+            double[] mz = new double[nPeaks];
+            double[] intensity = new double[nPeaks];
+
+            for (int j = 0; j < nPeaks; j++) {
+                mz[j] = peaks[j][0];
+                intensity[j] = peaks[j][1];
+            }
+
+            spectra[i] = new Spectrum(null, mz, intensity);
+        }
+
+        return spectra;
+    }
+}
@@ -0,0 +1,286 @@
+package eu.isas.reporter;
+
+import eu.isas.reporter.calculation.clustering.HierarchicalLinkage;
+import eu.isas.reporter.calculation.clustering.ProfileHierarchicalClustering;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Tests of the hierarchical clustering of the ratio profiles.
+ *
+ * @author Marc Vaudel
+ */
+public class HierarchicalClusteringTest extends TestCase {
+
+    /**
+     * The number of rows.
+     */
+    private static final int N_ROWS = 60;
+    /**
+     * The number of dimensions of the profiles.
+     */
+    private static final int N_DIMENSIONS = 4;
+
+    /**
+     * Checks that the merge heights, merge sizes and cuts of the dendrogram
+     * are the ones of the naive algorithm for the Ward and average linkages.
+     */
+    public void testNaiveAgreement() {
+
+        float[] profiles = getProfiles(N_ROWS, 1);
+        long[] keys = new long[N_ROWS];
+
+        for (int row = 0; row < N_ROWS; row++) {
+            keys[row] = row;
+        }
+
+        for (HierarchicalLinkage linkage : HierarchicalLinkage.values()) {
+
+            ProfileHierarchicalClustering clustering = new ProfileHierarchicalClustering(profiles, N_DIMENSIONS, keys, linkage, 1);
+            clustering.cluster(null);
+
+            double[] expectedHeights = new double[N_ROWS - 1];
+            int[] expectedSizes = new int[N_ROWS - 1];
+            int[][] expectedCuts = naive(profiles, linkage, expectedHeights, expectedSizes);
+
+            assertEquals(N_ROWS - 1, clustering.getNMerges());
+
+            for (int merge = 0; merge < N_ROWS - 1; merge++) {
+
+                assertEquals(expectedHeights[merge], clustering.getMergeHeight(merge), 1e-5 * expectedHeights[merge]);
+                assertEquals(expectedSizes[merge], clustering.getMergeSize(merge));
+
+                if (merge > 0) {
+                    assertTrue(clustering.getMergeHeight(merge) >= clustering.getMergeHeight(merge - 1));
+                }
+            }
+
+            for (int nClusters = 1; nClusters <= N_ROWS; nClusters++) {
+
+                clustering.cut(nClusters);
+
+                for (int row = 0; row < N_ROWS; row++) {
+                    assertEquals(expectedCuts[nClusters - 1][row], clustering.getCluster(row));
+                }
+            }
+        }
+    }
+
+    /**
+     * Naive agglomerative clustering: at every step, the distance between all
+     * pairs of clusters is computed from their members and the closest pair
+     * is merged.
+     *
+     * @param profiles the profiles in a row-major matrix
+     * @param linkage the linkage
+     * @param heights the array where to store the height of every merge
+     * @param sizes the array where to store the size of every merge
+     *
+     * @return the cluster of every row for every number of clusters from 1
+     * to N_ROWS, the clusters being numbered in the order of their first row
+     */
+    private static int[][] naive(float[] profiles, HierarchicalLinkage linkage, double[] heights, int[] sizes) {
+
+        ArrayList<ArrayList<Integer>> clusters = new ArrayList<>(N_ROWS);
+
+        for (int row = 0; row < N_ROWS; row++) {
+
+            ArrayList<Integer> cluster = new ArrayList<>();
+            cluster.add(row);
+            clusters.add(cluster);
+
+        }
+
+        int[][] cuts = new int[N_ROWS][];
+        cuts[N_ROWS - 1] = getAssignments(clusters);
+
+        for (int merge = 0; merge < N_ROWS - 1; merge++) {
+
+            int best1 = -1;
+            int best2 = -1;
+            double bestDistance = Double.POSITIVE_INFINITY;
+
+            for (int i = 0; i < clusters.size(); i++) {
+
+                for (int j = i + 1; j < clusters.size(); j++) {
+
+                    double distance = linkage == HierarchicalLinkage.ward
+                            ? wardDistance(profiles, clusters.get(i), clusters.get(j))
+                            : averageDistance(profiles, clusters.get(i), clusters.get(j));
+
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best1 = i;
+                        best2 = j;
+                    }
+                }
+            }
+
+            clusters.get(best1).addAll(clusters.get(best2));
+            clusters.remove(best2);
+
+            heights[merge] = bestDistance;
+            sizes[merge] = clusters.get(best1).size();
+            cuts[clusters.size() - 1] = getAssignments(clusters);
+
+        }
+
+        return cuts;
+    }
+
+    /**
+     * Returns the cluster of every row, the clusters being numbered in the
+     * order of their first row.
+     *
+     * @param clusters the rows of every cluster
+     *
+     * @return the cluster of every row
+     */
+    private static int[] getAssignments(ArrayList<ArrayList<Integer>> clusters) {
+
+        int[] clusterOfRow = new int[N_ROWS];
+
+        for (int cluster = 0; cluster < clusters.size(); cluster++) {
+
+            for (int row : clusters.get(cluster)) {
+                clusterOfRow[row] = cluster;
+            }
+        }
+
+        int[] labels = new int[clusters.size()];
+        Arrays.fill(labels, -1);
+        int nLabels = 0;
+        int[] result = new int[N_ROWS];
+
+        for (int row = 0; row < N_ROWS; row++) {
+
+            int cluster = clusterOfRow[row];
+
+            if (labels[cluster] == -1) {
+                labels[cluster] = nLabels++;
+            }
+
+            result[row] = labels[cluster];
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the Ward distance between two clusters, i.e. the square root of
+     * twice the increase of the within-cluster sum of squares when merging
+     * them.
+     *
+     * @param profiles the profiles in a row-major matrix
+     * @param rows1 the rows of the first cluster
+     * @param rows2 the rows of the second cluster
+     *
+     * @return the Ward distance between the clusters
+     */
+    private static double wardDistance(float[] profiles, ArrayList<Integer> rows1, ArrayList<Integer> rows2) {
+
+        ArrayList<Integer> merged = new ArrayList<>(rows1);
+        merged.addAll(rows2);
+
+        double increase = sumOfSquares(profiles, merged) - sumOfSquares(profiles, rows1) - sumOfSquares(profiles, rows2);
+
+        return Math.sqrt(2 * Math.max(0, increase));
+    }
+
+    /**
+     * Returns the sum of the squared distances of rows to their centroid.
+     *
+     * @param profiles the profiles in a row-major matrix
+     * @param rows the rows
+     *
+     * @return the sum of squares
+     */
+    private static double sumOfSquares(float[] profiles, ArrayList<Integer> rows) {
+
+        double result = 0.0;
+
+        for (int dimension = 0; dimension < N_DIMENSIONS; dimension++) {
+
+            double mean = 0.0;
+
+            for (int row : rows) {
+                mean += profiles[row * N_DIMENSIONS + dimension];
+            }
+
+            mean /= rows.size();
+
+            for (int row : rows) {
+                double difference = profiles[row * N_DIMENSIONS + dimension] - mean;
+                result += difference * difference;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the mean Euclidean distance between the members of two
+     * clusters.
+     *
+     * @param profiles the profiles in a row-major matrix
+     * @param rows1 the rows of the first cluster
+     * @param rows2 the rows of the second cluster
+     *
+     * @return the average distance between the clusters
+     */
+    private static double averageDistance(float[] profiles, ArrayList<Integer> rows1, ArrayList<Integer> rows2) {
+
+        double sum = 0.0;
+
+        for (int row1 : rows1) {
+
+            for (int row2 : rows2) {
+
+                double distance = 0.0;
+
+                for (int dimension = 0; dimension < N_DIMENSIONS; dimension++) {
+                    double difference = profiles[row1 * N_DIMENSIONS + dimension] - profiles[row2 * N_DIMENSIONS + dimension];
+                    distance += difference * difference;
+                }
+
+                sum += Math.sqrt(distance);
+            }
+        }
+
+        return sum / (rows1.size() * rows2.size());
+    }
+
+    /**
+     * Returns random profiles drawn around a few random centres.
+     *
+     * @param nRows the number of rows
+     * @param seed the seed of the random generator
+     *
+     * @return the profiles in a row-major matrix
+     */
+    private static float[] getProfiles(int nRows, long seed) {
+
+        Random random = new Random(seed);
+        int nCentres = 4;
+        double[] centres = new double[nCentres * N_DIMENSIONS];
+
+        for (int i = 0; i < centres.length; i++) {
+            centres[i] = 3 * random.nextGaussian();
+        }
+
+        float[] profiles = new float[nRows * N_DIMENSIONS];
+
+        for (int row = 0; row < nRows; row++) {
+
+            int centre = random.nextInt(nCentres);
+
+            for (int dimension = 0; dimension < N_DIMENSIONS; dimension++) {
+                profiles[row * N_DIMENSIONS + dimension] = (float) (centres[centre * N_DIMENSIONS + dimension] + random.nextGaussian());
+            }
+        }
+
+        return profiles;
+    }
+}
@@ -0,0 +1,210 @@
+package eu.isas.reporter;
+
+import com.compomics.util.experiment.biology.proteins.Peptide;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.matches.PeptideMatch;
+import com.compomics.util.experiment.identification.matches.ProteinMatch;
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import com.compomics.util.experiment.identification.peptide_shaker.PSParameter;
+import com.compomics.util.experiment.identification.validation.MatchValidationLevel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Identification held in memory, filled with random matches for the tests.
+ * The PSMs, peptides and proteins get random validation levels, the peptides
+ * random missed cleavages and modifications, and the proteins random peptides
+ * which can be shared with other proteins.
+ *
+ * @author Marc Vaudel
+ */
+public class IdentificationFixture extends Identification {
+
+    /**
+     * The name of the spectrum file.
+     */
+    public static final String SPECTRUM_FILE = "fixture.mgf";
+    /**
+     * The modifications carried by the peptides.
+     */
+    public static final String[] MODIFICATIONS = new String[]{"Oxidation of M", "Phosphorylation of S"};
+    /**
+     * The amino acids used to build the sequences, without K and R.
+     */
+    private static final String AMINO_ACIDS = "ACDEFGHILMNPQSTVWY";
+    /**
+     * The random generator.
+     */
+    private final Random random;
+    /**
+     * The spectrum matches indexed by key.
+     */
+    private final HashMap<Long, SpectrumMatch> spectrumMatches = new HashMap<>();
+    /**
+     * The peptide matches indexed by key.
+     */
+    private final HashMap<Long, PeptideMatch> peptideMatches = new HashMap<>();
+    /**
+     * The protein matches indexed by key.
+     */
+    private final HashMap<Long, ProteinMatch> proteinMatches = new HashMap<>();
+    /**
+     * The peptide matches in the order of creation.
+     */
+    private final ArrayList<PeptideMatch> peptideList = new ArrayList<>();
+    /**
+     * The number of spectra created.
+     */
+    private int nSpectra = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param seed the seed of the random generator
+     */
+    public IdentificationFixture(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Adds random peptides with their PSMs, and random proteins mapping to
+     * the peptides.
+     *
+     * @param nPeptides the number of peptides to add
+     * @param nProteins the number of proteins to add
+     */
+    public void addMatches(int nPeptides, int nProteins) {
+
+        int firstPeptide = peptideList.size();
+
+        for (int i = 0; i < nPeptides; i++) {
+            addPeptide();
+        }
+
+        for (int i = 0; i < nProteins; i++) {
+
+            ProteinMatch proteinMatch = new ProteinMatch("P" + proteinMatches.size());
+            proteinMatch.addUrParam(getPSParameter());
+            int nProteinPeptides = 1 + random.nextInt(6);
+            TreeSet<Long> proteinPeptides = new TreeSet<>();
+
+            for (int j = 0; j < nProteinPeptides; j++) {
+
+                // peptides shared between proteins
+                PeptideMatch peptideMatch = peptideList.get(firstPeptide + random.nextInt(nPeptides));
+                proteinPeptides.add(peptideMatch.getKey());
+
+            }
+
+            for (long peptideKey : proteinPeptides) {
+                proteinMatch.addPeptideMatchKey(peptideKey);
+            }
+
+            proteinMatches.put(proteinMatch.getKey(), proteinMatch);
+
+        }
+    }
+
+    /**
+     * Adds a random peptide and its PSMs.
+     */
+    private void addPeptide() {
+
+        // tryptic sequence with random missed cleavages and modifications
+        StringBuilder sequence = new StringBuilder();
+        int length = 7 + random.nextInt(10);
+
+        for (int i = 0; i < length - 1; i++) {
+            sequence.append(random.nextInt(8) == 0 ? 'K' : AMINO_ACIDS.charAt(random.nextInt(AMINO_ACIDS.length())));
+        }
+
+        sequence.append(random.nextBoolean() ? 'K' : 'R');
+
+        ArrayList<ModificationMatch> modificationMatches = new ArrayList<>(1);
+
+        if (random.nextInt(4) == 0) {
+            modificationMatches.add(new ModificationMatch(MODIFICATIONS[random.nextInt(MODIFICATIONS.length)], 1 + random.nextInt(length)));
+        }
+
+        Peptide peptide = new Peptide(sequence.toString(), modificationMatches.toArray(new ModificationMatch[modificationMatches.size()]));
+
+        long peptideKey = 1000003L * (peptideMatches.size() + 1);
+        int nPsms = 1 + random.nextInt(5);
+        PeptideMatch peptideMatch = new PeptideMatch(peptide, peptideKey, addSpectrumMatch());
+
+        for (int i = 1; i < nPsms; i++) {
+            peptideMatch.addSpectrumMatchKey(addSpectrumMatch());
+        }
+
+        peptideMatch.addUrParam(getPSParameter());
+        peptideMatches.put(peptideKey, peptideMatch);
+        peptideList.add(peptideMatch);
+
+    }
+
+    /**
+     * Adds a spectrum match with a random validation level.
+     *
+     * @return the key of the spectrum match
+     */
+    private long addSpectrumMatch() {
+
+        SpectrumMatch spectrumMatch = new SpectrumMatch(SPECTRUM_FILE, "spectrum_" + nSpectra++);
+        spectrumMatch.addUrParam(getPSParameter());
+        spectrumMatches.put(spectrumMatch.getKey(), spectrumMatch);
+
+        return spectrumMatch.getKey();
+    }
+
+    /**
+     * Returns a PSParameter with a random validation level.
+     *
+     * @return a PSParameter with a random validation level
+     */
+    private PSParameter getPSParameter() {
+
+        MatchValidationLevel[] levels = MatchValidationLevel.values();
+        PSParameter psParameter = new PSParameter();
+        psParameter.setMatchValidationLevel(levels[random.nextInt(levels.length)]);
+
+        return psParameter;
+    }
+
+    @Override
+    public SpectrumMatch getSpectrumMatch(long key) {
+        return spectrumMatches.get(key);
+    }
+
+    @Override
+    public PeptideMatch getPeptideMatch(long key) {
+        return peptideMatches.get(key);
+    }
+
+    @Override
+    public ProteinMatch getProteinMatch(long key) {
+        return proteinMatches.get(key);
+    }
+
+    @Override
+    public HashMap<String, HashSet<Long>> getSpectrumIdentification() {
+
+        HashMap<String, HashSet<Long>> spectrumIdentification = new HashMap<>(1);
+        spectrumIdentification.put(SPECTRUM_FILE, new HashSet<>(spectrumMatches.keySet()));
+
+        return spectrumIdentification;
+    }
+
+    @Override
+    public HashSet<Long> getPeptideIdentification() {
+        return new HashSet<>(peptideMatches.keySet());
+    }
+
+    @Override
+    public HashSet<Long> getProteinIdentification() {
+        return new HashSet<>(proteinMatches.keySet());
+    }
+}
@@ -0,0 +1,326 @@
+package eu.isas.reporter;
+
+import eu.isas.reporter.calculation.clustering.ProfileKMeansClustering;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ * Tests of the k-means clustering of the ratio profiles.
+ *
+ * @author Marc Vaudel
+ */
+public class KMeansClusteringTest extends TestCase {
+
+    /**
+     * The number of dimensions of the profiles.
+     */
+    private static final int N_DIMENSIONS = 6;
+    /**
+     * The number of clusters.
+     */
+    private static final int N_CLUSTERS = 7;
+
+    /**
+     * Checks that a given seed always gives the same clustering, and that the
+     * default seed is used when none is given.
+     */
+    public void testFixedSeed() {
+
+        float[] profiles = getProfiles(3000, 1);
+        long[] keys = getKeys(3000);
+
+        ProfileKMeansClustering reference = cluster(profiles, keys, ProfileKMeansClustering.DEFAULT_SEED);
+
+        assertIdentical(reference, cluster(profiles, keys, ProfileKMeansClustering.DEFAULT_SEED));
+
+        ProfileKMeansClustering defaultSeed = new ProfileKMeansClustering(profiles, N_DIMENSIONS, keys, N_CLUSTERS);
+        defaultSeed.cluster(null);
+
+        assertIdentical(reference, defaultSeed);
+
+    }
+
+    /**
+     * Checks that the assignments and centroids are identical when clustering
+     * with one and several threads, for the Lloyd and the mini-batch modes.
+     *
+     * @throws Exception exception thrown if the clustering failed
+     */
+    public void testThreadCountInvariance() throws Exception {
+
+        for (int nRows : new int[]{5000, ProfileKMeansClustering.MINI_BATCH_THRESHOLD + 1}) {
+
+            float[] profiles = getProfiles(nRows, 2);
+            long[] keys = getKeys(nRows);
+
+            ProfileKMeansClustering reference = cluster(profiles, keys, 1);
+
+            for (int nThreads : new int[]{2, 3, 8}) {
+                assertIdentical(reference, cluster(profiles, keys, nThreads));
+            }
+        }
+    }
+
+    /**
+     * Checks that the clustering agrees with plain Lloyd iterations started
+     * from the same centroids.
+     */
+    public void testLloydAgreement() {
+
+        int nRows = 500;
+        long[] keys = getKeys(nRows);
+
+        // centroids of a first clustering used as starting point
+        ProfileKMeansClustering previous = cluster(getProfiles(nRows, 3), keys, 7L);
+        double[][] initialCentroids = new double[N_CLUSTERS][];
+
+        for (int cluster = 0; cluster < N_CLUSTERS; cluster++) {
+            initialCentroids[cluster] = previous.getCentroid(cluster);
+        }
+
+        float[] profiles = getProfiles(nRows, 4);
+        ProfileKMeansClustering clustering = new ProfileKMeansClustering(profiles, N_DIMENSIONS, keys, N_CLUSTERS);
+        clustering.warmStart(previous);
+        clustering.cluster(null);
+
+        int[] expectedAssignments = new int[nRows];
+        double[][] expectedCentroids = lloyd(profiles, initialCentroids, expectedAssignments);
+
+        for (int row = 0; row < nRows; row++) {
+            assertEquals(expectedAssignments[row], clustering.getCluster(row));
+        }
+
+        for (int cluster = 0; cluster < N_CLUSTERS; cluster++) {
+
+            double[] centroid = clustering.getCentroid(cluster);
+
+            for (int dimension = 0; dimension < N_DIMENSIONS; dimension++) {
+                assertEquals(expectedCentroids[cluster][dimension], centroid[dimension], 1e-9);
+            }
+        }
+    }
+
+    /**
+     * Plain Lloyd iterations: assigns every row to the closest centroid and
+     * moves the centroids to the mean of their rows until no row changes
+     * cluster. Centroids without rows are not moved.
+     *
+     * @param profiles the profiles in a row-major matrix
+     * @param initialCentroids the initial centroids
+     * @param assignments the array where to store the cluster of every row
+     *
+     * @return the final centroids
+     */
+    private static double[][] lloyd(float[] profiles, double[][] initialCentroids, int[] assignments) {
+
+        int nRows = assignments.length;
+        double[][] centroids = new double[initialCentroids.length][];
+
+        for (int cluster = 0; cluster < centroids.length; cluster++) {
+            centroids[cluster] = initialCentroids[cluster].clone();
+        }
+
+        assign(profiles, centroids, assignments);
+
+        boolean converged = false;
+
+        for (int iteration = 0; iteration < ProfileKMeansClustering.MAX_ITERATIONS && !converged; iteration++) {
+
+            update(profiles, centroids, assignments);
+            converged = !assign(profiles, centroids, assignments);
+
+        }
+
+        if (!converged) {
+            update(profiles, centroids, assignments);
+        }
+
+        return centroids;
+    }
+
+    /**
+     * Assigns every row to the closest centroid.
+     *
+     * @param profiles the profiles in a row-major matrix
+     * @param centroids the centroids
+     * @param assignments the cluster of every row
+     *
+     * @return a boolean indicating whether a row changed cluster
+     */
+    private static boolean assign(float[] profiles, double[][] centroids, int[] assignments) {
+
+        boolean changed = false;
+
+        for (int row = 0; row < assignments.length; row++) {
+
+            int closest = 0;
+            double closestDistance = Double.POSITIVE_INFINITY;
+
+            for (int cluster = 0; cluster < centroids.length; cluster++) {
+
+                double distance = 0.0;
+
+                for (int dimension = 0; dimension < N_DIMENSIONS; dimension++) {
+                    double difference = profiles[row * N_DIMENSIONS + dimension] - centroids[cluster][dimension];
+                    distance += difference * difference;
+                }
+
+                if (distance < closestDistance) {
+                    closestDistance = distance;
+                    closest = cluster;
+                }
+            }
+
+            changed |= assignments[row] != closest;
+            assignments[row] = closest;
+
+        }
+
+        return changed;
+    }
+
+    /**
+     * Moves the centroids to the mean of their rows.
+     *
+     * @param profiles the profiles in a row-major matrix
+     * @param centroids the centroids
+     * @param assignments the cluster of every row
+     */
+    private static void update(float[] profiles, double[][] centroids, int[] assignments) {
+
+        double[][] sums = new double[centroids.length][N_DIMENSIONS];
+        int[] counts = new int[centroids.length];
+
+        for (int row = 0; row < assignments.length; row++) {
+
+            counts[assignments[row]]++;
+
+            for (int dimension = 0; dimension < N_DIMENSIONS; dimension++) {
+                sums[assignments[row]][dimension] += profiles[row * N_DIMENSIONS + dimension];
+            }
+        }
+
+        for (int cluster = 0; cluster < centroids.length; cluster++) {
+
+            if (counts[cluster] > 0) {
+
+                for (int dimension = 0; dimension < N_DIMENSIONS; dimension++) {
+                    centroids[cluster][dimension] = sums[cluster][dimension] / counts[cluster];
+                }
+            }
+        }
+    }
+
+    /**
+     * Clusters the profiles with the given seed.
+     *
+     * @param profiles the profiles in a row-major matrix
+     * @param keys the keys of the rows
+     * @param seed the seed
+     *
+     * @return the clustering
+     */
+    private static ProfileKMeansClustering cluster(float[] profiles, long[] keys, long seed) {
+
+        ProfileKMeansClustering clustering = new ProfileKMeansClustering(profiles, N_DIMENSIONS, keys, N_CLUSTERS, seed);
+        clustering.cluster(null);
+
+        return clustering;
+    }
+
+    /**
+     * Clusters the profiles with the default seed in a pool of the given
+     * number of threads.
+     *
+     * @param profiles the profiles in a row-major matrix
+     * @param keys the keys of the rows
+     * @param nThreads the number of threads
+     *
+     * @return the clustering
+     *
+     * @throws Exception exception thrown if the clustering failed
+     */
+    private static ProfileKMeansClustering cluster(float[] profiles, long[] keys, int nThreads) throws Exception {
+
+        ForkJoinPool pool = new ForkJoinPool(nThreads);
+
+        try {
+
+            return pool.submit(() -> cluster(profiles, keys, ProfileKMeansClustering.DEFAULT_SEED)).get(10, TimeUnit.MINUTES);
+
+        } finally {
+
+            pool.shutdownNow();
+
+        }
+    }
+
+    /**
+     * Checks that two clusterings have the same assignments and centroids.
+     *
+     * @param expected the expected clustering
+     * @param actual the actual clustering
+     */
+    private static void assertIdentical(ProfileKMeansClustering expected, ProfileKMeansClustering actual) {
+
+        assertEquals(expected.getNumberOfClusters(), actual.getNumberOfClusters());
+
+        for (int cluster = 0; cluster < expected.getNumberOfClusters(); cluster++) {
+            assertTrue(Arrays.equals(expected.getCentroid(cluster), actual.getCentroid(cluster)));
+            assertTrue(Arrays.equals(expected.getClusterMemberKeys(cluster), actual.getClusterMemberKeys(cluster)));
+        }
+    }
+
+    /**
+     * Returns random log ratio profiles drawn around a few random centres.
+     *
+     * @param nRows the number of rows
+     * @param seed the seed of the random generator
+     *
+     * @return the profiles in a row-major matrix
+     */
+    private static float[] getProfiles(int nRows, long seed) {
+
+        Random random = new Random(seed);
+        int nCentres = 5;
+        double[] centres = new double[nCentres * N_DIMENSIONS];
+
+        for (int i = 0; i < centres.length; i++) {
+            centres[i] = 2 * random.nextGaussian();
+        }
+
+        float[] profiles = new float[nRows * N_DIMENSIONS];
+
+        for (int row = 0; row < nRows; row++) {
+
+            int centre = random.nextInt(nCentres);
+
+            for (int dimension = 0; dimension < N_DIMENSIONS; dimension++) {
+                profiles[row * N_DIMENSIONS + dimension] = (float) (centres[centre * N_DIMENSIONS + dimension] + random.nextGaussian());
+            }
+        }
+
+        return profiles;
+    }
+
+    /**
+     * Returns the keys of the rows.
+     *
+     * @param nRows the number of rows
+     *
+     * @return the keys of the rows
+     */
+    private static long[] getKeys(int nRows) {
+
+        long[] keys = new long[nRows];
+
+        for (int row = 0; row < nRows; row++) {
+            keys[row] = 1000003L * (row + 1);
+        }
+
+        return keys;
+    }
+}
@@ -0,0 +1,133 @@
+package eu.isas.reporter;
+
+import com.compomics.util.experiment.identification.matches.PeptideMatch;
+import com.compomics.util.experiment.identification.matches.ProteinMatch;
+import eu.isas.reporter.calculation.MatchIncidence;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeSet;
+import junit.framework.TestCase;
+
+/**
+ * Tests of the incidence of the matches.
+ *
+ * @author Marc Vaudel
+ */
+public class MatchIncidenceTest extends TestCase {
+
+    /**
+     * Checks the rows of the PSMs of the peptides, of the peptides of the
+     * proteins, and of the proteins of the peptides, including the peptides
+     * shared between proteins, against the matches.
+     */
+    public void testRows() {
+
+        IdentificationFixture identification = new IdentificationFixture(23);
+        identification.addMatches(200, 80);
+
+        MatchIncidence matchIncidence = new MatchIncidence(identification, peptideKey -> false);
+
+        assertEquals(identification.getSpectrumIdentification().get(IdentificationFixture.SPECTRUM_FILE).size(), matchIncidence.getNPsms());
+        assertEquals(identification.getPeptideIdentification().size(), matchIncidence.getNPeptides());
+        assertEquals(identification.getProteinIdentification().size(), matchIncidence.getNProteins());
+
+        // PSMs of the peptides
+        for (int peptideIndex = 0; peptideIndex < matchIncidence.getNPeptides(); peptideIndex++) {
+
+            PeptideMatch peptideMatch = identification.getPeptideMatch(matchIncidence.getPeptideKey(peptideIndex));
+            long[] psmKeys = peptideMatch.getSpectrumMatchesKeys();
+
+            assertEquals(psmKeys.length, matchIncidence.getPsmsEnd(peptideIndex) - matchIncidence.getPsmsStart(peptideIndex));
+
+            for (int i = 0; i < psmKeys.length; i++) {
+                assertEquals(psmKeys[i], matchIncidence.getPsmKey(matchIncidence.getPsmIndexAt(matchIncidence.getPsmsStart(peptideIndex) + i)));
+            }
+        }
+
+        // peptides of the proteins
+        HashMap<Long, TreeSet<Integer>> expectedPeptideProteins = new HashMap<>();
+
+        for (int proteinIndex = 0; proteinIndex < matchIncidence.getNProteins(); proteinIndex++) {
+
+            ProteinMatch proteinMatch = identification.getProteinMatch(matchIncidence.getProteinKey(proteinIndex));
+            long[] peptideKeys = proteinMatch.getPeptideMatchesKeys();
+
+            assertEquals(peptideKeys.length, matchIncidence.getPeptidesEnd(proteinIndex) - matchIncidence.getPeptidesStart(proteinIndex));
+
+            for (int i = 0; i < peptideKeys.length; i++) {
+
+                assertEquals(peptideKeys[i], matchIncidence.getPeptideKey(matchIncidence.getPeptideIndexAt(matchIncidence.getPeptidesStart(proteinIndex) + i)));
+                expectedPeptideProteins.computeIfAbsent(peptideKeys[i], key -> new TreeSet<>()).add(proteinIndex);
+
+            }
+        }
+
+        // proteins of the peptides in ascending order
+        int nSharedPeptides = 0;
+
+        for (int peptideIndex = 0; peptideIndex < matchIncidence.getNPeptides(); peptideIndex++) {
+
+            TreeSet<Integer> expected = expectedPeptideProteins.get(matchIncidence.getPeptideKey(peptideIndex));
+            ArrayList<Integer> proteinIndexes = new ArrayList<>();
+
+            for (int i = matchIncidence.getProteinsStart(peptideIndex); i < matchIncidence.getProteinsEnd(peptideIndex); i++) {
+                proteinIndexes.add(matchIncidence.getProteinIndexAt(i));
+            }
+
+            if (expected == null) {
+
+                assertTrue(proteinIndexes.isEmpty());
+
+            } else {
+
+                assertEquals(new ArrayList<>(expected), proteinIndexes);
+
+                if (expected.size() > 1) {
+                    nSharedPeptides++;
+                }
+            }
+        }
+
+        // the fixture must contain shared peptides
+        assertTrue(nSharedPeptides > 0);
+
+    }
+
+    /**
+     * Checks that the unique peptides are flagged across the words of the
+     * bitset.
+     */
+    public void testUniquePeptides() {
+
+        IdentificationFixture identification = new IdentificationFixture(29);
+        identification.addMatches(300, 50);
+
+        HashSet<Long> uniquePeptides = new HashSet<>();
+
+        for (long peptideKey : identification.getPeptideIdentification()) {
+            if (Long.hashCode(peptideKey) % 3 == 0) {
+                uniquePeptides.add(peptideKey);
+            }
+        }
+
+        MatchIncidence matchIncidence = new MatchIncidence(identification, uniquePeptides::contains);
+
+        assertTrue(matchIncidence.getNPeptides() > 128);
+
+        int nUnique = 0;
+
+        for (int peptideIndex = 0; peptideIndex < matchIncidence.getNPeptides(); peptideIndex++) {
+
+            boolean unique = uniquePeptides.contains(matchIncidence.getPeptideKey(peptideIndex));
+            assertEquals(unique, matchIncidence.isUniquePeptide(peptideIndex));
+
+            if (unique) {
+                nUnique++;
+            }
+        }
+
+        assertEquals(uniquePeptides.size(), nUnique);
+
+    }
+}
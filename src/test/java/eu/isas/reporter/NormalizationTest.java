@@ -0,0 +1,425 @@
+package eu.isas.reporter;
+
+import eu.isas.reporter.calculation.normalization.OrderedChunkRunner;
+import eu.isas.reporter.calculation.normalization.QuantileSketch;
+import eu.isas.reporter.calculation.normalization.RatioAccumulator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import junit.framework.TestCase;
+
+/**
+ * Tests of the estimation of the normalization factors in parallel and of
+ * the quantile sketch.
+ *
+ * @author Marc Vaudel
+ */
+public class NormalizationTest extends TestCase {
+
+    /**
+     * The number of ratios.
+     */
+    private static final int N_RATIOS = 20000;
+    /**
+     * The number of ratios per chunk.
+     */
+    private static final int CHUNK_SIZE = 256;
+    /**
+     * The error on the rank of the quantiles of a sketch of default size
+     * documented in QuantileSketch, as share of the number of values.
+     */
+    private static final double SKETCH_RANK_ERROR = 0.017;
+    /**
+     * The quantiles checked, the median first.
+     */
+    private static final double[] QUANTILES = new double[]{0.5, 0.1, 0.25, 0.75, 0.9};
+
+    /**
+     * The distributions of the values given to the sketches.
+     */
+    private enum Distribution {
+
+        /**
+         * Uniform values.
+         */
+        uniform,
+        /**
+         * Log-normal values, as the ratios.
+         */
+        logNormal,
+        /**
+         * Two separated modes with a gap at the median.
+         */
+        bimodal,
+        /**
+         * Few distinct values with many ties.
+         */
+        ties,
+        /**
+         * Log-normal values in ascending order.
+         */
+        ascending,
+        /**
+         * Log-normal values in descending order.
+         */
+        descending
+    }
+
+    /**
+     * The ways the values are gathered in sketches.
+     */
+    private enum MergePattern {
+
+        /**
+         * All values added to a single sketch.
+         */
+        single,
+        /**
+         * Sketches of chunks merged one after the other into a single
+         * sketch.
+         */
+        sequential,
+        /**
+         * Sketches of chunks merged pairwise until a single one remains.
+         */
+        tree,
+        /**
+         * Sketches of chunks of random sizes merged into one another in
+         * random order.
+         */
+        uneven
+    }
+
+    /**
+     * Checks that the mean, median, mode and sum of the ratios gathered in
+     * chunks are identical for different numbers of threads and executors,
+     * with exact and approximate quantiles.
+     *
+     * @throws Exception exception thrown if a task failed
+     */
+    public void testThreadCountInvariance() throws Exception {
+
+        double[] ratios = new double[N_RATIOS];
+        Random random = new Random(42);
+
+        for (int i = 0; i < ratios.length; i++) {
+            ratios[i] = Math.pow(2, 0.1 + 0.5 * random.nextGaussian());
+        }
+
+        for (boolean useSketch : new boolean[]{false, true}) {
+
+            RatioAccumulator reference = gather(ratios, useSketch, 1, null);
+
+            assertEquals(N_RATIOS, reference.getCount());
+
+            for (int nThreads : new int[]{2, 3, 8}) {
+
+                assertIdentical(reference, gather(ratios, useSketch, nThreads, null));
+
+                ExecutorService executorService = Executors.newWorkStealingPool(nThreads);
+
+                try {
+                    assertIdentical(reference, gather(ratios, useSketch, nThreads, executorService));
+                } finally {
+                    executorService.shutdownNow();
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that the rank of the median and quartiles estimated by the
+     * sketch is within the documented error of the exact rank for different
+     * distributions, numbers of values, and merge patterns, and that the
+     * error decreases with the size of the sketch.
+     */
+    public void testSketchRankError() {
+
+        for (int k : new int[]{QuantileSketch.DEFAULT_K / 2, QuantileSketch.DEFAULT_K, 2 * QuantileSketch.DEFAULT_K}) {
+
+            double maxRankError = SKETCH_RANK_ERROR * QuantileSketch.DEFAULT_K / k;
+
+            for (Distribution distribution : Distribution.values()) {
+
+                for (int nValues : new int[]{1000, 30000, 200000}) {
+
+                    double[] values = getValues(distribution, nValues, new Random(nValues + distribution.ordinal()));
+                    double[] sortedValues = values.clone();
+                    Arrays.sort(sortedValues);
+
+                    for (MergePattern mergePattern : MergePattern.values()) {
+
+                        QuantileSketch sketch = sketch(values, k, mergePattern, new Random(k + mergePattern.ordinal()));
+
+                        assertEquals(nValues, sketch.getCount());
+
+                        for (double quantile : QUANTILES) {
+
+                            double estimate = quantile == 0.5 ? sketch.getMedian() : sketch.getQuantile(quantile);
+                            double rankError = getRankError(sortedValues, estimate, quantile);
+
+                            assertTrue(
+                                    distribution + ", " + nValues + " values, " + mergePattern + ", k = " + k + ": rank error of quantile " + quantile + " " + rankError,
+                                    rankError <= maxRankError
+                            );
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the error on the rank of an estimate of a quantile as share of
+     * the number of values, i.e. the distance between the target rank and
+     * the ranks of the estimate in the sorted values.
+     *
+     * @param sortedValues the values in ascending order
+     * @param estimate the estimate of the quantile
+     * @param quantile the quantile
+     *
+     * @return the error on the rank of the estimate
+     */
+    private static double getRankError(double[] sortedValues, double estimate, double quantile) {
+
+        int nValues = sortedValues.length;
+        int firstRank = lowerBound(sortedValues, estimate);
+        int lastRank = lowerBound(sortedValues, Math.nextUp(estimate));
+
+        assertTrue("Estimate " + estimate + " not in the values.", lastRank > firstRank);
+
+        double targetRank = quantile * nValues;
+
+        if (targetRank < firstRank) {
+            return (firstRank - targetRank) / nValues;
+        } else if (targetRank > lastRank) {
+            return (targetRank - lastRank) / nValues;
+        }
+
+        return 0.0;
+    }
+
+    /**
+     * Returns the number of values strictly smaller than the given value.
+     *
+     * @param sortedValues the values in ascending order
+     * @param value the value
+     *
+     * @return the number of values strictly smaller than the given value
+     */
+    private static int lowerBound(double[] sortedValues, double value) {
+
+        int low = 0;
+        int high = sortedValues.length;
+
+        while (low < high) {
+
+            int middle = (low + high) >>> 1;
+
+            if (sortedValues[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Returns random values of the given distribution.
+     *
+     * @param distribution the distribution
+     * @param nValues the number of values
+     * @param random the random generator
+     *
+     * @return random values
+     */
+    private static double[] getValues(Distribution distribution, int nValues, Random random) {
+
+        double[] values = new double[nValues];
+
+        for (int i = 0; i < nValues; i++) {
+
+            switch (distribution) {
+
+                case uniform:
+                    values[i] = random.nextDouble();
+                    break;
+
+                case bimodal:
+                    values[i] = (random.nextBoolean() ? -5 : 5) + random.nextGaussian();
+                    break;
+
+                case ties:
+                    values[i] = random.nextInt(7);
+                    break;
+
+                default:
+                    values[i] = Math.pow(2, 0.1 + 0.5 * random.nextGaussian());
+                    break;
+            }
+        }
+
+        if (distribution == Distribution.ascending || distribution == Distribution.descending) {
+
+            Arrays.sort(values);
+
+            if (distribution == Distribution.descending) {
+
+                for (int i = 0; i < nValues / 2; i++) {
+                    double temp = values[i];
+                    values[i] = values[nValues - 1 - i];
+                    values[nValues - 1 - i] = temp;
+                }
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * Adds the given values to sketches following the given merge pattern
+     * and returns the merged sketch.
+     *
+     * @param values the values
+     * @param k the size of the sketches
+     * @param mergePattern the merge pattern
+     * @param random the random generator used for the uneven pattern
+     *
+     * @return the merged sketch
+     */
+    private static QuantileSketch sketch(double[] values, int k, MergePattern mergePattern, Random random) {
+
+        if (mergePattern == MergePattern.single) {
+
+            QuantileSketch sketch = new QuantileSketch(k);
+
+            for (double value : values) {
+                sketch.add(value);
+            }
+
+            return sketch;
+        }
+
+        ArrayList<QuantileSketch> sketches = new ArrayList<>();
+        int from = 0;
+
+        while (from < values.length) {
+
+            int chunkSize = mergePattern == MergePattern.uneven ? 1 + random.nextInt(4 * CHUNK_SIZE) : CHUNK_SIZE;
+            int to = Math.min(from + chunkSize, values.length);
+            QuantileSketch sketch = new QuantileSketch(k);
+
+            for (int i = from; i < to; i++) {
+                sketch.add(values[i]);
+            }
+
+            sketches.add(sketch);
+            from = to;
+        }
+
+        switch (mergePattern) {
+
+            case sequential:
+                QuantileSketch merged = new QuantileSketch(k);
+
+                for (QuantileSketch sketch : sketches) {
+                    merged.merge(sketch);
+                }
+
+                return merged;
+
+            case tree:
+                while (sketches.size() > 1) {
+
+                    ArrayList<QuantileSketch> nextSketches = new ArrayList<>((sketches.size() + 1) / 2);
+
+                    for (int i = 0; i < sketches.size(); i += 2) {
+
+                        QuantileSketch sketch = sketches.get(i);
+
+                        if (i + 1 < sketches.size()) {
+                            sketch.merge(sketches.get(i + 1));
+                        }
+
+                        nextSketches.add(sketch);
+                    }
+
+                    sketches = nextSketches;
+                }
+
+                return sketches.get(0);
+
+            case uneven:
+                while (sketches.size() > 1) {
+
+                    QuantileSketch sketch = sketches.remove(random.nextInt(sketches.size()));
+                    sketches.get(random.nextInt(sketches.size())).merge(sketch);
+
+                }
+
+                return sketches.get(0);
+
+            default:
+                throw new UnsupportedOperationException("Merge pattern " + mergePattern + " not implemented.");
+        }
+    }
+
+    /**
+     * Gathers the given ratios in chunks using the given number of threads.
+     *
+     * @param ratios the ratios
+     * @param useSketch if true the quantiles are estimated using sketches
+     * @param nThreads the number of threads
+     * @param executorService the executor, null to use a fixed thread pool
+     *
+     * @return the merged ratios
+     *
+     * @throws Exception exception thrown if a task failed
+     */
+    private static RatioAccumulator gather(double[] ratios, boolean useSketch, int nThreads, ExecutorService executorService) throws Exception {
+
+        RatioAccumulator merged = new RatioAccumulator(useSketch);
+        OrderedChunkRunner runner = new OrderedChunkRunner(CHUNK_SIZE, executorService);
+
+        boolean completed = runner.run(
+                ratios.length,
+                nThreads,
+                (from, to) -> () -> {
+
+                    RatioAccumulator accumulator = new RatioAccumulator(useSketch);
+
+                    for (int i = from; i < to; i++) {
+                        accumulator.add(ratios[i]);
+                    }
+
+                    return accumulator;
+                },
+                merged::merge,
+                null,
+                null
+        );
+
+        assertTrue(completed);
+
+        return merged;
+    }
+
+    /**
+     * Checks that the statistics of two accumulators are identical.
+     *
+     * @param expected the expected accumulator
+     * @param actual the actual accumulator
+     */
+    private static void assertIdentical(RatioAccumulator expected, RatioAccumulator actual) {
+
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getSum(), actual.getSum(), 0.0);
+        assertEquals(expected.getMean(), actual.getMean(), 0.0);
+        assertEquals(expected.getMedian(), actual.getMedian(), 0.0);
+        assertEquals(expected.getMode(), actual.getMode(), 0.0);
+    }
+}
@@ -0,0 +1,153 @@
+package eu.isas.reporter;
+
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import com.compomics.util.experiment.mass_spectrometry.SpectrumProvider;
+import com.compomics.util.experiment.mass_spectrometry.spectra.Precursor;
+import eu.isas.reporter.calculation.PrecursorIndex;
+import eu.isas.reporter.calculation.SpectrumTitleIndex;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Tests of the indexes of the spectrum titles and precursors of a spectrum
+ * file.
+ *
+ * @author Marc Vaudel
+ */
+public class PrecursorIndexTest extends TestCase {
+
+    /**
+     * The name of the spectrum file.
+     */
+    private static final String SPECTRUM_FILE = "test.mgf";
+    /**
+     * The number of spectra.
+     */
+    private static final int N_SPECTRA = 2000;
+
+    /**
+     * Checks that the index of the spectrum titles resolves the title of
+     * every spectrum without reading the precursors, and that the precursor
+     * index resolves the same titles and the spectra within tolerance as a
+     * linear search.
+     */
+    public void testSpectrumTitles() {
+
+        TestSpectrumProvider spectrumProvider = new TestSpectrumProvider();
+
+        SpectrumTitleIndex spectrumTitleIndex = new SpectrumTitleIndex(SPECTRUM_FILE, spectrumProvider.getProxy().getSpectrumTitles(SPECTRUM_FILE));
+        assertEquals(0, spectrumProvider.nPrecursorsRead.get());
+        assertEquals(N_SPECTRA, spectrumTitleIndex.size());
+
+        for (int i = 0; i < N_SPECTRA; i++) {
+
+            String title = spectrumProvider.titles[i];
+            long key = SpectrumMatch.getKey(SPECTRUM_FILE, title);
+
+            assertEquals(title, spectrumTitleIndex.getSpectrumTitleAt(i));
+            assertEquals(key, spectrumTitleIndex.getSpectrumKeyAt(i));
+            assertEquals(title, spectrumTitleIndex.getSpectrumTitle(key));
+
+        }
+
+        assertNull(spectrumTitleIndex.getSpectrumTitle(SpectrumMatch.getKey(SPECTRUM_FILE, "unknown")));
+
+        PrecursorIndex precursorIndex = new PrecursorIndex(spectrumProvider.getProxy(), spectrumTitleIndex);
+        assertEquals(N_SPECTRA, spectrumProvider.nPrecursorsRead.get());
+        assertSame(spectrumTitleIndex, precursorIndex.getSpectrumTitleIndex());
+        assertEquals(SPECTRUM_FILE, precursorIndex.getSpectrumFile());
+
+        for (int i = 0; i < N_SPECTRA; i++) {
+
+            String title = spectrumProvider.titles[i];
+            assertEquals(title, precursorIndex.getSpectrumTitle(SpectrumMatch.getKey(SPECTRUM_FILE, title)));
+
+            if (i % 100 == 0) {
+
+                Precursor reference = spectrumProvider.precursors[i];
+                ArrayList<Long> keys = new ArrayList<>();
+                precursorIndex.getSpectrumKeys(reference.rt, reference.mz, 5.0, 0.01, false, keys);
+
+                ArrayList<Long> expected = new ArrayList<>();
+
+                for (int j = 0; j < N_SPECTRA; j++) {
+
+                    Precursor precursor = spectrumProvider.precursors[j];
+
+                    if (Math.abs(precursor.rt - reference.rt) <= 5.0 && Math.abs(precursor.mz - reference.mz) <= 0.01) {
+                        expected.add(SpectrumMatch.getKey(SPECTRUM_FILE, spectrumProvider.titles[j]));
+                    }
+                }
+
+                assertEquals(expected, keys);
+
+            }
+        }
+    }
+
+    /**
+     * Random precursors served through a proxy of the spectrum provider
+     * interface, counting the precursors read. The other methods of the
+     * interface are not supported.
+     */
+    private static class TestSpectrumProvider {
+
+        /**
+         * The spectrum titles.
+         */
+        private final String[] titles = new String[N_SPECTRA];
+        /**
+         * The precursors in the order of the titles.
+         */
+        private final Precursor[] precursors = new Precursor[N_SPECTRA];
+        /**
+         * The number of precursors read.
+         */
+        private final AtomicInteger nPrecursorsRead = new AtomicInteger();
+
+        /**
+         * Constructor.
+         */
+        private TestSpectrumProvider() {
+
+            Random random = new Random(42);
+
+            for (int i = 0; i < N_SPECTRA; i++) {
+                titles[i] = "spectrum " + i;
+                precursors[i] = new Precursor(3600 * random.nextDouble(), 400 + random.nextInt(100) + 0.005 * random.nextInt(3));
+            }
+        }
+
+        /**
+         * Returns a spectrum provider serving the spectrum titles and the
+         * precursors.
+         *
+         * @return a spectrum provider
+         */
+        private SpectrumProvider getProxy() {
+
+            return (SpectrumProvider) Proxy.newProxyInstance(
+                    SpectrumProvider.class.getClassLoader(),
+                    new Class<?>[]{SpectrumProvider.class},
+                    (proxy, method, args) -> {
+
+                        switch (method.getName()) {
+
+                            case "getSpectrumTitles":
+                                return titles.clone();
+
+                            case "getPrecursor":
+                                nPrecursorsRead.incrementAndGet();
+                                return precursors[Integer.parseInt(((String) args[1]).substring(9))];
+
+                            default:
+                                throw new UnsupportedOperationException("Method " + method.getName() + " not supported.");
+                        }
+                    }
+            );
+        }
+    }
+}
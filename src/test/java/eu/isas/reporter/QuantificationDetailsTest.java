@@ -0,0 +1,188 @@
+package eu.isas.reporter;
+
+import com.compomics.util.experiment.normalization.NormalizationFactors;
+import eu.isas.reporter.quantificationdetails.ChannelLayout;
+import eu.isas.reporter.quantificationdetails.PeptideQuantificationDetails;
+import eu.isas.reporter.quantificationdetails.ProteinQuantificationDetails;
+import eu.isas.reporter.quantificationdetails.PsmQuantificationDetails;
+import eu.isas.reporter.quantificationdetails.SpectrumQuantificationDetails;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import junit.framework.TestCase;
+
+/**
+ * Tests of the channel-indexed quantification details.
+ *
+ * @author Marc Vaudel
+ */
+public class QuantificationDetailsTest extends TestCase {
+
+    /**
+     * The reagents of a TMT 10-plex.
+     */
+    private static final String[] REAGENTS = new String[]{"126", "127N", "127C", "128N", "128C", "129N", "129C", "130N", "130C", "131"};
+
+    /**
+     * Checks that the getters by reagent name return null for unset values
+     * and unknown reagents, and the value otherwise, NaN included.
+     */
+    public void testUnsetValues() {
+
+        ChannelLayout channelLayout = new ChannelLayout(Arrays.asList(REAGENTS));
+        NormalizationFactors normalizationFactors = new NormalizationFactors();
+
+        PsmQuantificationDetails psmDetails = new PsmQuantificationDetails(channelLayout);
+        assertNull(psmDetails.getRawRatio("126"));
+        assertNull(psmDetails.getRatio("126", normalizationFactors));
+
+        psmDetails.setRawRatio("127N", 2.0);
+        psmDetails.setRawRatio(channelLayout.getIndex("128N"), Double.NaN);
+        assertNull(psmDetails.getRawRatio("126"));
+        assertNull(psmDetails.getRatio("126", normalizationFactors));
+        assertNull(psmDetails.getRawRatio("unknown"));
+        assertEquals(2.0, psmDetails.getRawRatio("127N"), 0.0);
+        assertEquals(2.0, psmDetails.getRatio("127N", normalizationFactors), 0.0);
+        assertTrue(psmDetails.getRawRatio("128N").isNaN());
+        assertTrue(Double.isNaN(psmDetails.getRawRatio(channelLayout.getIndex("126"))));
+
+        ProteinQuantificationDetails proteinDetails = new ProteinQuantificationDetails(channelLayout);
+        proteinDetails.setUniqueRawRatio("131", 0.5);
+        assertNull(proteinDetails.getRawRatio("131"));
+        assertNull(proteinDetails.getSharedRawRatio("131"));
+        assertNull(proteinDetails.getUniqueRawRatio("130C"));
+        assertEquals(0.5, proteinDetails.getUniqueRawRatio("131"), 0.0);
+
+        SpectrumQuantificationDetails spectrumDetails = new SpectrumQuantificationDetails(channelLayout);
+        spectrumDetails.setDeisotopedIntensity("126", 1000.0);
+        assertNull(spectrumDetails.getDeisotopedIntensity("127N"));
+        assertNull(spectrumDetails.getRatio("126"));
+        assertEquals(1000.0, spectrumDetails.getDeisotopedIntensity("126"), 0.0);
+        assertNull(spectrumDetails.getRepoterMatch("126"));
+    }
+
+    /**
+     * Checks that the getters by channel normalized by the factors resolved
+     * by the channel layout return the values of the getters by reagent name,
+     * with and without normalization factors.
+     */
+    public void testNormalizedGetters() {
+
+        ChannelLayout channelLayout = new ChannelLayout(Arrays.asList(REAGENTS));
+        NormalizationFactors normalizationFactors = new NormalizationFactors();
+
+        PsmQuantificationDetails psmDetails = new PsmQuantificationDetails(channelLayout);
+        PeptideQuantificationDetails peptideDetails = new PeptideQuantificationDetails(channelLayout);
+        ProteinQuantificationDetails proteinDetails = new ProteinQuantificationDetails(channelLayout);
+
+        for (int i = 0; i < REAGENTS.length; i++) {
+            psmDetails.setRawRatio(REAGENTS[i], 1.0 + i);
+            peptideDetails.setRawRatio(REAGENTS[i], 2.0 + i);
+            proteinDetails.setRawRatio(REAGENTS[i], 3.0 + i);
+            proteinDetails.setUniqueRawRatio(REAGENTS[i], 4.0 + i);
+            proteinDetails.setSharedRawRatio(REAGENTS[i], 5.0 + i);
+        }
+
+        for (boolean normalized : new boolean[]{false, true}) {
+
+            if (normalized) {
+
+                for (int i = 0; i < REAGENTS.length; i++) {
+                    normalizationFactors.addPsmNormalisationFactor(REAGENTS[i], 0.5 + i);
+                    normalizationFactors.addPeptideNormalisationFactor(REAGENTS[i], 1.5 + i);
+                    normalizationFactors.addProteinNormalisationFactor(REAGENTS[i], 2.5 + i);
+                }
+            }
+
+            double[] psmFactors = channelLayout.getPsmNormalizationFactors(normalizationFactors);
+            double[] peptideFactors = channelLayout.getPeptideNormalizationFactors(normalizationFactors);
+            double[] proteinFactors = channelLayout.getProteinNormalizationFactors(normalizationFactors);
+
+            assertEquals(normalized, psmFactors != null);
+            assertEquals(normalized, peptideFactors != null);
+            assertEquals(normalized, proteinFactors != null);
+
+            for (int channel = 0; channel < channelLayout.size(); channel++) {
+
+                String reagent = channelLayout.getReagentName(channel);
+
+                assertEquals(psmDetails.getRatio(reagent, normalizationFactors), psmDetails.getRatio(channel, psmFactors), 0.0);
+                assertEquals(peptideDetails.getRatio(reagent, normalizationFactors), peptideDetails.getRatio(channel, peptideFactors), 0.0);
+                assertEquals(proteinDetails.getRatio(reagent, normalizationFactors), proteinDetails.getRatio(channel, proteinFactors), 0.0);
+                assertEquals(proteinDetails.getUniqueRatio(reagent, normalizationFactors), proteinDetails.getUniqueRatio(channel, proteinFactors), 0.0);
+                assertEquals(proteinDetails.getSharedRatio(reagent, normalizationFactors), proteinDetails.getSharedRatio(channel, proteinFactors), 0.0);
+
+            }
+        }
+
+        assertTrue(Double.isNaN(new PsmQuantificationDetails(channelLayout).getRatio(0, channelLayout.getPsmNormalizationFactors(normalizationFactors))));
+
+    }
+
+    /**
+     * Measures the memory allocated by the calling thread for the ratios of
+     * matches stored in maps indexed by reagent name as previously done and
+     * in the channel-indexed details, and checks that the details take less
+     * than a third of the maps. Skipped if the JVM does not measure the memory
+     * allocated per thread.
+     */
+    public void testFootprint() {
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadMXBean;
+
+        if (!allocationBean.isThreadAllocatedMemorySupported() || !allocationBean.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+
+        ChannelLayout channelLayout = new ChannelLayout(Arrays.asList(REAGENTS));
+        int nMatches = 10000;
+        long threadId = Thread.currentThread().getId();
+        long maps = 0;
+        long details = 0;
+
+        for (int iteration = 0; iteration < 3; iteration++) {
+
+            ArrayList<Object> retained = new ArrayList<>(nMatches);
+            long start = allocationBean.getThreadAllocatedBytes(threadId);
+
+            for (int i = 0; i < nMatches; i++) {
+
+                HashMap<String, Double> rawRatios = new HashMap<>();
+
+                for (int channel = 0; channel < REAGENTS.length; channel++) {
+                    rawRatios.put(REAGENTS[channel], 1.0 + 1e-3 * i + channel);
+                }
+
+                retained.add(rawRatios);
+            }
+
+            maps = allocationBean.getThreadAllocatedBytes(threadId) - start;
+            retained = new ArrayList<>(nMatches);
+            start = allocationBean.getThreadAllocatedBytes(threadId);
+
+            for (int i = 0; i < nMatches; i++) {
+
+                PsmQuantificationDetails psmDetails = new PsmQuantificationDetails(channelLayout);
+
+                for (int channel = 0; channel < REAGENTS.length; channel++) {
+                    psmDetails.setRawRatio(channel, 1.0 + 1e-3 * i + channel);
+                }
+
+                retained.add(psmDetails);
+            }
+
+            details = allocationBean.getThreadAllocatedBytes(threadId) - start;
+            assertEquals(nMatches, retained.size());
+        }
+
+        assertTrue("Details allocated " + details + " bytes, maps " + maps + " bytes.", 3 * details < maps);
+    }
+}
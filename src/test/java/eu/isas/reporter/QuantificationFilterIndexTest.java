@@ -0,0 +1,132 @@
+package eu.isas.reporter;
+
+import com.compomics.util.experiment.identification.matches.PeptideMatch;
+import com.compomics.util.experiment.identification.peptide_shaker.PSParameter;
+import com.compomics.util.experiment.identification.validation.MatchValidationLevel;
+import com.compomics.util.parameters.identification.search.DigestionParameters;
+import com.compomics.util.parameters.identification.search.SearchParameters;
+import eu.isas.reporter.calculation.MatchIncidence;
+import eu.isas.reporter.calculation.QuantificationFilter;
+import eu.isas.reporter.calculation.QuantificationFilterIndex;
+import eu.isas.reporter.settings.RatioEstimationSettings;
+import junit.framework.TestCase;
+
+/**
+ * Tests of the index of the status of the matches with regard to the
+ * quantification filters.
+ *
+ * @author Marc Vaudel
+ */
+public class QuantificationFilterIndexTest extends TestCase {
+
+    /**
+     * Checks that the index gives the same status as the QuantificationFilter
+     * for all matches, indexed or not, and for different settings.
+     *
+     * @throws Exception exception thrown if the filter failed
+     */
+    public void testIndexAgainstFilter() throws Exception {
+
+        IdentificationFixture identification = new IdentificationFixture(17);
+        identification.addMatches(150, 40);
+
+        MatchIncidence matchIncidence = new MatchIncidence(identification, peptideKey -> true);
+
+        // matches added after the incidence was built are not indexed
+        identification.addMatches(20, 5);
+
+        SearchParameters searchParameters = new SearchParameters();
+        searchParameters.setDigestionParameters(DigestionParameters.getDefaultParameters());
+
+        MatchValidationLevel[] levels = new MatchValidationLevel[]{MatchValidationLevel.not_validated, MatchValidationLevel.doubtful, MatchValidationLevel.confident};
+
+        for (MatchValidationLevel level : levels) {
+
+            for (boolean ignoreMissedCleavages : new boolean[]{false, true}) {
+
+                for (String excludedPtm : new String[]{null, IdentificationFixture.MODIFICATIONS[0]}) {
+
+                    RatioEstimationSettings ratioEstimationSettings = new RatioEstimationSettings();
+                    ratioEstimationSettings.setPsmValidationLevel(level);
+                    ratioEstimationSettings.setPeptideValidationLevel(level);
+                    ratioEstimationSettings.setProteinValidationLevel(level);
+                    ratioEstimationSettings.setIgnoreMissedCleavages(ignoreMissedCleavages);
+                    ratioEstimationSettings.emptyPTMList();
+
+                    if (excludedPtm != null) {
+                        ratioEstimationSettings.addExcludingPtm(excludedPtm);
+                    }
+
+                    QuantificationFilterIndex index = new QuantificationFilterIndex(identification, matchIncidence, searchParameters, ratioEstimationSettings);
+                    assertTrue(index.isUpToDate(ratioEstimationSettings));
+
+                    checkIndex(identification, matchIncidence, searchParameters, ratioEstimationSettings, index);
+
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the status of all matches in the index against the filter.
+     *
+     * @param identification the identification
+     * @param matchIncidence the incidence of the matches
+     * @param searchParameters the search parameters
+     * @param ratioEstimationSettings the ratio estimation settings
+     * @param index the index
+     *
+     * @throws Exception exception thrown if the filter failed
+     */
+    private static void checkIndex(
+            IdentificationFixture identification,
+            MatchIncidence matchIncidence,
+            SearchParameters searchParameters,
+            RatioEstimationSettings ratioEstimationSettings,
+            QuantificationFilterIndex index
+    ) throws Exception {
+
+        int nPsmsIndexed = 0;
+
+        for (long psmKey : identification.getSpectrumIdentification().get(IdentificationFixture.SPECTRUM_FILE)) {
+
+            boolean expected = QuantificationFilter.isPsmValid(ratioEstimationSettings, identification, psmKey);
+            assertEquals(expected, index.isPsmValid(psmKey));
+
+            int psmIndex = matchIncidence.getPsmIndex(psmKey);
+
+            if (psmIndex >= 0) {
+                assertEquals(expected, index.isPsmValidAt(psmIndex));
+                nPsmsIndexed++;
+            }
+        }
+
+        assertEquals(matchIncidence.getNPsms(), nPsmsIndexed);
+
+        int nPeptidesIndexed = 0;
+
+        for (long peptideKey : identification.getPeptideIdentification()) {
+
+            PeptideMatch peptideMatch = identification.getPeptideMatch(peptideKey);
+            boolean expected = QuantificationFilter.isPeptideValid(ratioEstimationSettings, identification, searchParameters, peptideMatch);
+            assertEquals(expected, index.isPeptideValid(peptideMatch));
+
+            PSParameter psParameter = (PSParameter) peptideMatch.getUrParam(PSParameter.dummy);
+            boolean validated = psParameter.getMatchValidationLevel().getIndex() >= ratioEstimationSettings.getPeptideValidationLevel().getIndex();
+            assertEquals(validated, index.isPeptideValidated(peptideKey));
+
+            int peptideIndex = matchIncidence.getPeptideIndex(peptideKey);
+
+            if (peptideIndex >= 0) {
+                assertEquals(expected, index.isPeptideValidAt(peptideIndex));
+                nPeptidesIndexed++;
+            }
+        }
+
+        assertEquals(matchIncidence.getNPeptides(), nPeptidesIndexed);
+
+        for (long proteinKey : identification.getProteinIdentification()) {
+            assertEquals(QuantificationFilter.isProteinValid(ratioEstimationSettings, identification, proteinKey), index.isProteinValid(proteinKey));
+        }
+    }
+}
@@ -1,8 +1,16 @@
 package eu.isas.reporter;
 
+import eu.isas.reporter.calculation.ChannelBuffers;
 import eu.isas.reporter.calculation.RatioEstimator;
+import eu.isas.reporter.calculation.normalization.RatioAccumulator;
+import eu.isas.reporter.settings.RatioEstimationSettings;
 import eu.isas.reporter.settings.ReporterPreferences;
 import eu.isas.reporter.settings.ReporterSettings;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 import junit.framework.TestCase;
 
 /**
@@ -12,13 +20,299 @@ import junit.framework.TestCase;
  */
 public class RatioTest extends TestCase {
 
+    /**
+     * Ratios reported by Eystein.
+     */
+    private static final double[] RATIOS_EYSTEIN = new double[]{-0.311194748, -0.311194748, -0.301029996, -0.301029996, -0.301029996, -0.301029996, -0.301029996, -0.301029996, -0.301029996, -0.301029996, -0.301029996};
+
+    /**
+     * Checks that the ratios reported by Eystein are compiled into a ratio
+     * within their range, matching the reference implementation.
+     */
     public void testRatioEystein() {
+
+        ReporterSettings reporterSettings = new ReporterSettings();
+        RatioEstimationSettings ratioEstimationSettings = reporterSettings.getRatioEstimationSettings();
+        double[] ratios = RATIOS_EYSTEIN;
+        double result = RatioEstimator.mEstimate(ratioEstimationSettings, ratios);
+
+        assertEquals(RatioEstimator.mEstimateReference(ratioEstimationSettings, ratios), result, 1e-9);
+        assertTrue(result >= ratios[0]);
+        assertTrue(result <= ratios[ratios.length - 1]);
+    }
+
+    /**
+     * Checks that the M-estimator using prefix sums returns the value of the
+     * reference implementation up to the rounding of the integrals, on small
+     * and large inputs with outliers and ties.
+     */
+    public void testPrefixSumMEstimator() {
+
+        RatioEstimationSettings ratioEstimationSettings = new RatioEstimationSettings();
+        assertEquals(
+                RatioEstimator.mEstimateReference(ratioEstimationSettings, RATIOS_EYSTEIN),
+                RatioEstimator.mEstimate(ratioEstimationSettings, RATIOS_EYSTEIN),
+                1e-9
+        );
+
+        Random random = new Random(42);
+
+        for (int i = 0; i < 250; i++) {
+
+            int nRatios = i < 200 ? 6 + random.nextInt(300) : 1000 + random.nextInt(4000);
+            double[] ratios = new double[nRatios];
+            double center = 2 * random.nextGaussian();
+            double spread = 0.05 + random.nextDouble();
+            boolean quantized = i % 4 == 0;
+
+            for (int j = 0; j < nRatios; j++) {
+
+                if (random.nextInt(10) == 0) {
+                    ratios[j] = center + 10 * spread * random.nextGaussian();
+                } else if (random.nextInt(5) == 0) {
+                    ratios[j] = Math.round(center * 100) / 100.0;
+                } else {
+                    ratios[j] = center + spread * random.nextGaussian();
+                }
+
+                if (quantized) {
+                    ratios[j] = Math.round(ratios[j] * 20) / 20.0;
+                }
+            }
+
+            Arrays.sort(ratios);
+
+            ratioEstimationSettings.setPercentile(50 + random.nextInt(45));
+            ratioEstimationSettings.setRatioResolution(random.nextBoolean() ? 0.01 : 0.001);
+
+            assertEquals(
+                    RatioEstimator.mEstimateReference(ratioEstimationSettings, ratios),
+                    RatioEstimator.mEstimate(ratioEstimationSettings, ratios),
+                    1e-9
+            );
+        }
+    }
+
+    /**
+     * Checks that the primitive ratio estimation only uses the given number
+     * of values and matches the boxed version.
+     */
+    public void testPrimitiveRatioEstimation() {
+
+        RatioEstimationSettings ratioEstimationSettings = new RatioEstimationSettings();
+        Random random = new Random(7);
+
+        for (int i = 0; i < 100; i++) {
+
+            int nRatios = 1 + random.nextInt(50);
+            ArrayList<Double> ratios = new ArrayList<>(nRatios);
+            double[] buffer = new double[nRatios + 10];
+            Arrays.fill(buffer, 1000.0);
+
+            for (int j = 0; j < nRatios; j++) {
+                double ratio = random.nextInt(10) == 0 ? 0.0 : Math.exp(random.nextGaussian());
+                ratios.add(ratio);
+                buffer[j] = ratio;
+            }
+
+            assertEquals(
+                    RatioEstimator.estimateRatios(ratioEstimationSettings, ratios),
+                    RatioEstimator.estimateRatios(ratioEstimationSettings, buffer, nRatios),
+                    0.0
+            );
+        }
+    }
+
+    /**
+     * Checks that an estimate nested in another estimate on the same thread
+     * gets its own buffers, and that released buffers are reused.
+     */
+    public void testChannelBuffersNesting() {
+
+        ChannelBuffers outer = ChannelBuffers.acquire(2);
+        outer.add(0, 1.0);
+
+        ChannelBuffers inner = ChannelBuffers.acquire(2);
+        assertNotSame(outer, inner);
+        inner.add(0, 2.0);
+        inner.add(1, 3.0);
+        inner.release();
+
+        assertEquals(1, outer.getLength(0));
+        assertEquals(0, outer.getLength(1));
+        assertEquals(1.0, outer.getValues(0)[0], 0.0);
+
+        ChannelBuffers reused = ChannelBuffers.acquire(2);
+        assertSame(inner, reused);
+        assertEquals(0, reused.getLength(0));
+        assertEquals(0, reused.getLength(1));
+        reused.release();
+        outer.release();
+
         try {
-            ReporterSettings reporterSettings = new ReporterSettings();
-            double[] ratios = new double[]{-0.311194748, -0.311194748, -0.301029996, -0.301029996, -0.301029996, -0.301029996, -0.301029996, -0.301029996, -0.301029996, -0.301029996, -0.301029996};
-            double result = RatioEstimator.mEstimate(reporterSettings.getRatioEstimationSettings(), ratios);
-        } catch (Exception e) {
-            e.printStackTrace();
+            outer.release();
+            fail("Buffers released twice.");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Measures the memory allocated by the calling thread to gather and
+     * estimate the ratios of matches in boxed lists and in primitive buffers,
+     * and checks that the buffers allocate less than a third of the lists.
+     * Skipped if the JVM does not measure the memory allocated per thread.
+     */
+    public void testChannelBuffersAllocation() {
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadMXBean;
+
+        if (!allocationBean.isThreadAllocatedMemorySupported() || !allocationBean.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+
+        RatioEstimationSettings ratioEstimationSettings = new RatioEstimationSettings();
+        int nChannels = 10;
+        int nMatches = 2000;
+        double[][] matchRatios = new double[nMatches][];
+        Random random = new Random(17);
+
+        for (int i = 0; i < nMatches; i++) {
+
+            matchRatios[i] = new double[1 + random.nextInt(5)];
+
+            for (int j = 0; j < matchRatios[i].length; j++) {
+                matchRatios[i][j] = Math.exp(0.2 * random.nextGaussian());
+            }
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long boxed = 0;
+        long primitive = 0;
+        double sink = 0;
+
+        for (int iteration = 0; iteration < 3; iteration++) {
+
+            long start = allocationBean.getThreadAllocatedBytes(threadId);
+
+            for (double[] ratios : matchRatios) {
+                for (int channel = 0; channel < nChannels; channel++) {
+
+                    ArrayList<Double> channelRatios = new ArrayList<>();
+
+                    for (double ratio : ratios) {
+                        channelRatios.add(channel * ratio);
+                    }
+
+                    sink += RatioEstimator.estimateRatios(ratioEstimationSettings, channelRatios);
+                }
+            }
+
+            boxed = allocationBean.getThreadAllocatedBytes(threadId) - start;
+            start = allocationBean.getThreadAllocatedBytes(threadId);
+
+            for (double[] ratios : matchRatios) {
+
+                ChannelBuffers buffers = ChannelBuffers.acquire(nChannels);
+
+                for (double ratio : ratios) {
+                    for (int channel = 0; channel < nChannels; channel++) {
+                        buffers.add(channel, channel * ratio);
+                    }
+                }
+
+                for (int channel = 0; channel < nChannels; channel++) {
+                    sink += RatioEstimator.estimateRatios(ratioEstimationSettings, buffers.getValues(channel), buffers.getLength(channel));
+                }
+
+                buffers.release();
+            }
+
+            primitive = allocationBean.getThreadAllocatedBytes(threadId) - start;
+        }
+
+        assertFalse(Double.isNaN(sink));
+        assertTrue("Buffers allocated " + primitive + " bytes, lists " + boxed + " bytes.", 3 * primitive < boxed);
+    }
+
+    /**
+     * Checks that the median of merged sketches is within the documented
+     * rank error of the exact median, and that the exact mode returns the
+     * exact median.
+     */
+    public void testNormalizationMedianSketch() {
+
+        Random random = new Random(11);
+
+        for (int i = 0; i < 10; i++) {
+
+            int nRatios = 1000 + random.nextInt(200000);
+            double[] ratios = new double[nRatios];
+            RatioAccumulator exact = new RatioAccumulator(false);
+            RatioAccumulator[] sketches = new RatioAccumulator[4];
+
+            for (int j = 0; j < sketches.length; j++) {
+                sketches[j] = new RatioAccumulator(true);
+            }
+
+            for (int j = 0; j < nRatios; j++) {
+                double ratio = Math.exp(random.nextGaussian() + i % 3);
+                ratios[j] = ratio;
+                exact.add(ratio);
+                sketches[random.nextInt(sketches.length)].add(ratio);
+            }
+
+            RatioAccumulator merged = sketches[0];
+
+            for (int j = 1; j < sketches.length; j++) {
+                merged.merge(sketches[j]);
+            }
+
+            Arrays.sort(ratios);
+            double exactMedian = nRatios % 2 == 1 ? ratios[nRatios / 2] : (ratios[nRatios / 2 - 1] + ratios[nRatios / 2]) / 2;
+
+            assertEquals(exactMedian, exact.getMedian(), 0.0);
+            assertEquals(nRatios, merged.getCount());
+            assertEquals(exact.getMean(), merged.getMean(), 1e-9 * exact.getMean());
+
+            int rank = Arrays.binarySearch(ratios, merged.getMedian());
+            assertTrue(rank >= 0);
+            assertTrue(Math.abs(rank - nRatios / 2.0) <= 0.017 * nRatios);
+        }
+    }
+
+    /**
+     * Checks that the mode estimated from the histogram of log ratios is
+     * close to the center of the main population of ratios.
+     */
+    public void testNormalizationMode() {
+
+        Random random = new Random(13);
+
+        for (double center : new double[]{0.5, 1.0, 1.7, 3.0}) {
+
+            RatioAccumulator accumulator = new RatioAccumulator(true);
+
+            for (int j = 0; j < 100000; j++) {
+
+                double logRatio;
+
+                if (random.nextInt(5) == 0) {
+                    logRatio = 2 + 2 * random.nextGaussian();
+                } else {
+                    logRatio = Math.log(center) / Math.log(2) + 0.3 * random.nextGaussian();
+                }
+
+                accumulator.add(Math.pow(2, logRatio));
+            }
+
+            assertEquals(center, accumulator.getMode(), 0.02 * center);
         }
     }
 }
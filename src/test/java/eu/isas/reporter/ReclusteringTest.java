@@ -0,0 +1,377 @@
+package eu.isas.reporter;
+
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.reporter.calculation.clustering.MatchLevel;
+import eu.isas.reporter.calculation.clustering.ProfileKMeansClustering;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Tests of the reclustering after a change of the selected classes.
+ *
+ * @author Marc Vaudel
+ */
+public class ReclusteringTest extends TestCase {
+
+    /**
+     * The number of rows of the level.
+     */
+    private static final int N_ROWS = 1000;
+    /**
+     * The number of dimensions of the profiles.
+     */
+    private static final int N_DIMENSIONS = 4;
+    /**
+     * The names of the classes.
+     */
+    private static final String[] CLASSES = new String[]{"A", "B", "C"};
+    /**
+     * The profiles of all rows in a row-major matrix.
+     */
+    private static final float[] PROFILES = getProfiles();
+
+    /**
+     * Checks that only the classes not evaluated before are evaluated, and
+     * that only the profiles not loaded before are loaded.
+     */
+    public void testNewClassesOnly() {
+
+        MatchLevel<float[]> level = new MatchLevel<>(getKeys(N_ROWS));
+        WaitingHandler waitingHandler = new WaitingHandlerCLIImpl();
+        ConcurrentHashMap<String, AtomicInteger> evaluations = new ConcurrentHashMap<>();
+        AtomicInteger nLoaded = new AtomicInteger();
+
+        // select A and B
+        ArrayList<String> selection = new ArrayList<>(Arrays.asList("A", "B"));
+        select(level, selection, evaluations, nLoaded, waitingHandler);
+
+        assertEquals(N_ROWS, evaluations.get("A").get());
+        assertEquals(N_ROWS, evaluations.get("B").get());
+        assertNull(evaluations.get("C"));
+
+        int[] rows = level.getRows(selection);
+        assertTrue(Arrays.equals(getExpectedRows(selection), rows));
+        assertEquals(rows.length, nLoaded.get());
+
+        // add C: only C is evaluated and only the rows of C not in A or B are loaded
+        selection.add("C");
+        nLoaded.set(0);
+        select(level, selection, evaluations, nLoaded, waitingHandler);
+
+        assertEquals(N_ROWS, evaluations.get("A").get());
+        assertEquals(N_ROWS, evaluations.get("B").get());
+        assertEquals(N_ROWS, evaluations.get("C").get());
+
+        int[] newRows = level.getRows(selection);
+        assertTrue(Arrays.equals(getExpectedRows(selection), newRows));
+        assertEquals(newRows.length - rows.length, nLoaded.get());
+
+        for (int row = 0; row < N_ROWS; row++) {
+
+            for (String className : CLASSES) {
+                assertEquals(isMember(className, row), level.isMember(className, row));
+            }
+        }
+
+        // remove A and add it back: nothing is reloaded
+        selection.remove("A");
+        nLoaded.set(0);
+        select(level, selection, evaluations, nLoaded, waitingHandler);
+
+        assertTrue(Arrays.equals(getExpectedRows(selection), level.getRows(selection)));
+
+        selection.add("A");
+        select(level, selection, evaluations, nLoaded, waitingHandler);
+
+        assertEquals(0, nLoaded.get());
+
+        for (String className : CLASSES) {
+            assertEquals(N_ROWS, evaluations.get(className).get());
+        }
+
+        // cleared profiles are loaded again, the classes are kept
+        level.clearProfiles();
+        select(level, selection, evaluations, nLoaded, waitingHandler);
+
+        assertEquals(newRows.length, nLoaded.get());
+
+        for (String className : CLASSES) {
+            assertEquals(N_ROWS, evaluations.get(className).get());
+        }
+    }
+
+    /**
+     * Checks that a canceled evaluation is not cached.
+     */
+    public void testCanceledEvaluation() {
+
+        MatchLevel<float[]> level = new MatchLevel<>(getKeys(N_ROWS));
+        WaitingHandler waitingHandler = new WaitingHandlerCLIImpl();
+        ArrayList<String> selection = new ArrayList<>(Arrays.asList("A"));
+
+        waitingHandler.setRunCanceled();
+        level.evaluateClasses(selection, row -> new boolean[]{true}, waitingHandler);
+
+        assertEquals(selection, level.getNewClasses(selection));
+
+    }
+
+    /**
+     * Checks that clustering warm-started from the clustering of the
+     * previously selected classes gives the same clusters as clustering from
+     * scratch after adding a class.
+     */
+    public void testWarmStart() {
+
+        MatchLevel<float[]> level = new MatchLevel<>(getKeys(N_ROWS));
+        WaitingHandler waitingHandler = new WaitingHandlerCLIImpl();
+        ConcurrentHashMap<String, AtomicInteger> evaluations = new ConcurrentHashMap<>();
+        AtomicInteger nLoaded = new AtomicInteger();
+
+        // the profiles of A and B are drawn around four centres, those of C around a fifth one
+        ArrayList<String> selection = new ArrayList<>(Arrays.asList("A", "B"));
+        select(level, selection, evaluations, nLoaded, waitingHandler);
+
+        ProfileKMeansClustering previous = cluster(level, level.getRows(selection), 4, null);
+
+        selection.add("C");
+        select(level, selection, evaluations, nLoaded, waitingHandler);
+        int[] rows = level.getRows(selection);
+
+        // the centroid missing for C is seeded
+        assertSamePartition(cluster(level, rows, 5, null), cluster(level, rows, 5, previous), rows.length);
+
+    }
+
+    /**
+     * Evaluates the new classes of the selection and loads the profiles not
+     * loaded yet, counting the evaluations and loadings.
+     *
+     * @param level the level
+     * @param selection the selected classes
+     * @param evaluations the number of evaluations of every class
+     * @param nLoaded the number of profiles loaded
+     * @param waitingHandler the waiting handler
+     */
+    private static void select(
+            MatchLevel<float[]> level,
+            ArrayList<String> selection,
+            ConcurrentHashMap<String, AtomicInteger> evaluations,
+            AtomicInteger nLoaded,
+            WaitingHandler waitingHandler
+    ) {
+
+        ArrayList<String> newClasses = level.getNewClasses(selection);
+
+        if (!newClasses.isEmpty()) {
+
+            level.evaluateClasses(
+                    newClasses,
+                    row -> {
+
+                        boolean[] result = new boolean[newClasses.size()];
+
+                        for (int i = 0; i < newClasses.size(); i++) {
+
+                            String className = newClasses.get(i);
+                            evaluations.computeIfAbsent(className, key -> new AtomicInteger()).incrementAndGet();
+                            result[i] = isMember(className, row);
+
+                        }
+
+                        return result;
+                    },
+                    waitingHandler
+            );
+        }
+
+        level.loadProfiles(
+                level.getRowsWithoutProfile(level.getRows(selection)),
+                row -> {
+
+                    nLoaded.incrementAndGet();
+
+                    return getProfile(row);
+                },
+                waitingHandler
+        );
+    }
+
+    /**
+     * Indicates whether a row belongs to a class of the fixture: A contains
+     * the multiples of 3, B the multiples of 5, and C the rows ending with 7.
+     *
+     * @param className the name of the class
+     * @param row the row
+     *
+     * @return a boolean indicating whether the row belongs to the class
+     */
+    private static boolean isMember(String className, int row) {
+
+        switch (className) {
+            case "A":
+                return row % 3 == 0;
+            case "B":
+                return row % 5 == 0;
+            case "C":
+                return row % 10 == 7;
+            default:
+                throw new IllegalArgumentException("Class " + className + " not implemented.");
+        }
+    }
+
+    /**
+     * Returns the rows belonging to at least one of the given classes in
+     * ascending order.
+     *
+     * @param classNames the names of the classes
+     *
+     * @return the rows belonging to the classes
+     */
+    private static int[] getExpectedRows(ArrayList<String> classNames) {
+
+        ArrayList<Integer> result = new ArrayList<>();
+
+        for (int row = 0; row < N_ROWS; row++) {
+
+            for (String className : classNames) {
+
+                if (isMember(className, row)) {
+                    result.add(row);
+                    break;
+                }
+            }
+        }
+
+        return result.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Returns the profile of a row, drawn around one of four centres for the
+     * rows of A and B, and around a fifth centre for the other rows.
+     *
+     * @param row the row
+     *
+     * @return the profile of the row
+     */
+    private static float[] getProfile(int row) {
+        return Arrays.copyOfRange(PROFILES, row * N_DIMENSIONS, (row + 1) * N_DIMENSIONS);
+    }
+
+    /**
+     * Returns the profiles of all rows in a row-major matrix.
+     *
+     * @return the profiles of all rows
+     */
+    private static float[] getProfiles() {
+
+        Random random = new Random(42);
+        float[] profiles = new float[N_ROWS * N_DIMENSIONS];
+
+        for (int row = 0; row < N_ROWS; row++) {
+
+            int centre = isMember("A", row) || isMember("B", row) ? row % 4 : 4;
+
+            for (int dimension = 0; dimension < N_DIMENSIONS; dimension++) {
+
+                double centreValue = dimension == centre % N_DIMENSIONS ? (centre < 4 ? 10 : -10) : 0;
+                profiles[row * N_DIMENSIONS + dimension] = (float) (centreValue + 0.2 * random.nextGaussian());
+
+            }
+        }
+
+        return profiles;
+    }
+
+    /**
+     * Clusters the profiles of the given rows.
+     *
+     * @param level the level
+     * @param rows the rows
+     * @param nClusters the number of clusters
+     * @param previous the clustering to warm-start from, null for none
+     *
+     * @return the clustering
+     */
+    private static ProfileKMeansClustering cluster(MatchLevel<float[]> level, int[] rows, int nClusters, ProfileKMeansClustering previous) {
+
+        float[] profiles = new float[rows.length * N_DIMENSIONS];
+        long[] keys = new long[rows.length];
+
+        for (int i = 0; i < rows.length; i++) {
+            System.arraycopy(level.getProfile(rows[i]), 0, profiles, i * N_DIMENSIONS, N_DIMENSIONS);
+            keys[i] = level.getKey(rows[i]);
+        }
+
+        ProfileKMeansClustering clustering = new ProfileKMeansClustering(profiles, N_DIMENSIONS, keys, nClusters);
+
+        if (previous != null) {
+            clustering.warmStart(previous);
+        }
+
+        clustering.cluster(null);
+
+        return clustering;
+    }
+
+    /**
+     * Checks that two clusterings have the same clusters and centroids up to
+     * the order of the clusters.
+     *
+     * @param expected the expected clustering
+     * @param actual the actual clustering
+     * @param nRows the number of rows
+     */
+    private static void assertSamePartition(ProfileKMeansClustering expected, ProfileKMeansClustering actual, int nRows) {
+
+        assertEquals(expected.getNumberOfClusters(), actual.getNumberOfClusters());
+
+        HashMap<Integer, Integer> clusterMap = new HashMap<>();
+
+        for (int row = 0; row < nRows; row++) {
+
+            Integer mappedCluster = clusterMap.putIfAbsent(actual.getCluster(row), expected.getCluster(row));
+
+            if (mappedCluster != null) {
+                assertEquals(mappedCluster.intValue(), expected.getCluster(row));
+            }
+        }
+
+        assertEquals(expected.getNumberOfClusters(), clusterMap.size());
+        assertEquals(expected.getNumberOfClusters(), clusterMap.values().stream().distinct().count());
+
+        for (int cluster = 0; cluster < actual.getNumberOfClusters(); cluster++) {
+
+            double[] expectedCentroid = expected.getCentroid(clusterMap.get(cluster));
+            double[] actualCentroid = actual.getCentroid(cluster);
+
+            for (int dimension = 0; dimension < N_DIMENSIONS; dimension++) {
+                assertEquals(expectedCentroid[dimension], actualCentroid[dimension], 1e-9);
+            }
+        }
+    }
+
+    /**
+     * Returns the keys of the rows.
+     *
+     * @param nRows the number of rows
+     *
+     * @return the keys of the rows
+     */
+    private static long[] getKeys(int nRows) {
+
+        long[] keys = new long[nRows];
+
+        for (int row = 0; row < nRows; row++) {
+            keys[row] = 1000003L * (row + 1);
+        }
+
+        return keys;
+    }
+}
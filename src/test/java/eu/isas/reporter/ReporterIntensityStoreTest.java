@@ -0,0 +1,156 @@
+package eu.isas.reporter;
+
+import eu.isas.reporter.calculation.ReporterIntensityExtractor;
+import eu.isas.reporter.calculation.ReporterIntensityStore;
+import eu.isas.reporter.calculation.ReporterIntensityStoreWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import junit.framework.TestCase;
+
+/**
+ * Tests of the memory-mapped store of the reporter intensities.
+ *
+ * @author Marc Vaudel
+ */
+public class ReporterIntensityStoreTest extends TestCase {
+
+    /**
+     * The number of channels.
+     */
+    private static final int N_CHANNELS = 3;
+
+    /**
+     * Checks that the records are written and read back across segments, that
+     * the extraction flag does not depend on the values stored, and that the
+     * store cannot be opened before being completed.
+     *
+     * @throws IOException exception thrown if an error occurred while writing
+     * or reading the store
+     */
+    public void testSegments() throws IOException {
+
+        String[] spectrumTitles = new String[101];
+
+        for (int i = 0; i < spectrumTitles.length; i++) {
+            spectrumTitles[i] = "spectrum_" + i;
+        }
+
+        // segments of 7 records of 40 bytes
+        int maxSegmentSize = 7 * 40 + 13;
+        long fingerprint = 12345L;
+
+        File file = File.createTempFile("reporter_intensity_store", ".rep");
+        file.deleteOnExit();
+
+        try {
+
+            try (ReporterIntensityStoreWriter writer = new ReporterIntensityStoreWriter(file, fingerprint, spectrumTitles.length, N_CHANNELS)) {
+
+                float[] values = new float[3 * N_CHANNELS];
+
+                // the records of every fifth spectrum are not written
+                for (int i = 0; i < spectrumTitles.length; i++) {
+
+                    if (i % 5 != 0) {
+
+                        for (int channel = 0; channel < N_CHANNELS; channel++) {
+
+                            // NaN in the first channel must not be read as not extracted
+                            values[3 * channel] = channel == 0 ? Float.NaN : i * 10 + channel;
+                            values[3 * channel + 1] = -channel;
+                            values[3 * channel + 2] = i + channel;
+
+                        }
+
+                        writer.writeRecord(i, values);
+                    }
+                }
+
+                assertNull(ReporterIntensityStore.open(file, fingerprint, spectrumTitles, N_CHANNELS, maxSegmentSize));
+
+                writer.complete();
+
+            }
+
+            assertNull(ReporterIntensityStore.open(file, fingerprint + 1, spectrumTitles, N_CHANNELS, maxSegmentSize));
+
+            // read back with the same and with a single segment
+            for (int segmentSize : new int[]{maxSegmentSize, ReporterIntensityStore.MAX_SEGMENT_SIZE}) {
+
+                ReporterIntensityStore openedStore = ReporterIntensityStore.open(file, fingerprint, spectrumTitles, N_CHANNELS, segmentSize);
+                assertNotNull(openedStore);
+
+                for (int i = 0; i < spectrumTitles.length; i++) {
+
+                    assertEquals(i, openedStore.getSpectrumIndex(spectrumTitles[i]));
+                    assertEquals(i % 5 != 0, openedStore.isExtracted(i));
+
+                    if (i % 5 != 0) {
+
+                        assertTrue(Float.isNaN(openedStore.getIntensity(i, 0)));
+
+                        for (int channel = 1; channel < N_CHANNELS; channel++) {
+                            assertEquals(i * 10 + channel, openedStore.getIntensity(i, channel), 0.0);
+                        }
+
+                        for (int channel = 0; channel < N_CHANNELS; channel++) {
+                            assertEquals(-channel, openedStore.getMzError(i, channel), 0.0);
+                            assertEquals(i + channel, openedStore.getDeisotopedIntensity(i, channel), 0.0);
+                        }
+                    }
+                }
+            }
+
+            assertEquals(-1, ReporterIntensityStore.open(file, fingerprint, spectrumTitles, N_CHANNELS).getSpectrumIndex("unknown"));
+
+        } finally {
+
+            file.delete();
+
+        }
+    }
+
+    /**
+     * Checks that the stores of a spectrum file obtained with another
+     * fingerprint are deleted, and that the current store, the temporary
+     * files and the stores of other spectrum files are kept.
+     *
+     * @throws IOException exception thrown if an error occurred while writing
+     * the files
+     */
+    public void testDeleteSupersededStores() throws IOException {
+
+        File folder = Files.createTempDirectory("reporter_intensities").toFile();
+
+        try {
+
+            File current = new File(folder, "run.mgf_3039.rep");
+            File superseded = new File(folder, "run.mgf_12ab.rep");
+            File temporary = new File(folder, "run.mgf_3039123.rep.tmp");
+            File otherFile = new File(folder, "run.mgf_other_12ab.rep");
+            File otherSpectrumFile = new File(folder, "run2.mgf_12ab.rep");
+
+            for (File file : new File[]{current, superseded, temporary, otherFile, otherSpectrumFile}) {
+                assertTrue(file.createNewFile());
+            }
+
+            ReporterIntensityExtractor.deleteSupersededStores(folder, "run.mgf", current);
+
+            assertTrue(current.exists());
+            assertFalse(superseded.exists());
+            assertTrue(temporary.exists());
+            assertTrue(otherFile.exists());
+            assertTrue(otherSpectrumFile.exists());
+
+        } finally {
+
+            for (File file : folder.listFiles()) {
+                file.delete();
+            }
+
+            folder.delete();
+
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package eu.isas.reporter;
+
+import com.compomics.util.experiment.mass_spectrometry.SpectrumProvider;
+import com.compomics.util.experiment.quantification.Quantification;
+import com.compomics.util.experiment.quantification.reporterion.ReporterIonQuantification;
+import com.compomics.util.experiment.quantification.reporterion.ReporterMethod;
+import com.compomics.util.experiment.quantification.reporterion.ReporterMethodFactory;
+import eu.isas.reporter.calculation.QuantificationFeaturesCache;
+import eu.isas.reporter.calculation.QuantificationFeaturesGenerator;
+import eu.isas.reporter.calculation.QuantificationPipeline;
+import eu.isas.reporter.calculation.QuantificationResults;
+import eu.isas.reporter.quantificationdetails.ChannelLayout;
+import eu.isas.reporter.quantificationdetails.PeptideQuantificationDetails;
+import eu.isas.reporter.quantificationdetails.ProteinQuantificationDetails;
+import eu.isas.reporter.quantificationdetails.PsmQuantificationDetails;
+import eu.isas.reporter.settings.ReporterSettings;
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Tests of the reuse of the quantification results saved in a project.
+ *
+ * @author Marc Vaudel
+ */
+public class SavedResultsTest extends TestCase {
+
+    /**
+     * The reporter method.
+     */
+    private static final String METHOD = "TMT 10-plex";
+
+    /**
+     * Checks that when a project is reopened with the settings used to save
+     * it, the saved levels are not quantified again: the spectra are not read
+     * and the details are the saved ones, which no estimation would give.
+     * Also checks that the PSMs computed by the quantification pipeline do
+     * not hide the saved peptides and proteins, and that the results are not
+     * used with other settings or matches.
+     *
+     * @throws Exception exception thrown if the reporter methods cannot be
+     * parsed
+     */
+    public void testReopen() throws Exception {
+
+        IdentificationFixture identification = new IdentificationFixture(31);
+        identification.addMatches(100, 30);
+
+        ReporterSettings reporterSettings = new ReporterSettings();
+        ReporterIonQuantification reporterIonQuantification = getReporterIonQuantification();
+        ChannelLayout channelLayout = new ChannelLayout(reporterIonQuantification.getSampleIndexes());
+
+        long[] psmKeys = getSortedKeys(identification.getSpectrumIdentification().get(IdentificationFixture.SPECTRUM_FILE));
+        long[] peptideKeys = getSortedKeys(identification.getPeptideIdentification());
+        long[] proteinKeys = getSortedKeys(identification.getProteinIdentification());
+
+        PsmQuantificationDetails[] psmDetails = new PsmQuantificationDetails[psmKeys.length];
+
+        for (int i = 0; i < psmKeys.length; i++) {
+
+            psmDetails[i] = new PsmQuantificationDetails(channelLayout);
+
+            for (int channel = 0; channel < channelLayout.size(); channel++) {
+                psmDetails[i].setRawRatio(channel, getRatio(psmKeys[i], channel));
+            }
+        }
+
+        PeptideQuantificationDetails[] peptideDetails = new PeptideQuantificationDetails[peptideKeys.length];
+
+        for (int i = 0; i < peptideKeys.length; i++) {
+
+            peptideDetails[i] = new PeptideQuantificationDetails(channelLayout);
+
+            for (int channel = 0; channel < channelLayout.size(); channel++) {
+                peptideDetails[i].setRawRatio(channel, getRatio(peptideKeys[i], channel));
+            }
+        }
+
+        ProteinQuantificationDetails[] proteinDetails = new ProteinQuantificationDetails[proteinKeys.length];
+
+        for (int i = 0; i < proteinKeys.length; i++) {
+
+            proteinDetails[i] = new ProteinQuantificationDetails(channelLayout);
+
+            for (int channel = 0; channel < channelLayout.size(); channel++) {
+                proteinDetails[i].setRawRatio(channel, getRatio(proteinKeys[i], channel));
+                proteinDetails[i].setUniqueRawRatio(channel, getRatio(proteinKeys[i], channel) + 1);
+                proteinDetails[i].setSharedRawRatio(channel, getRatio(proteinKeys[i], channel) + 2);
+            }
+        }
+
+        // results saved by a previous run
+        QuantificationResults savedResults = getGenerator(identification, reporterSettings, reporterIonQuantification).getEmptyQuantificationResults();
+        savedResults.setPsmQuantificationDetails(psmKeys, psmDetails);
+        savedResults.setPeptideQuantificationDetails(peptideKeys, peptideDetails);
+        savedResults.setProteinQuantificationDetails(proteinKeys, proteinDetails);
+
+        // reopen the project
+        AtomicInteger nSpectrumProviderCalls = new AtomicInteger();
+        SpectrumProvider spectrumProvider = getSpectrumProvider(nSpectrumProviderCalls);
+
+        QuantificationFeaturesGenerator generator = getGenerator(identification, reporterSettings, reporterIonQuantification);
+        assertTrue(generator.setSavedResults(savedResults));
+
+        for (QuantificationPipeline.Level level : QuantificationPipeline.Level.values()) {
+            assertTrue(QuantificationPipeline.isSaved(identification, generator, level));
+        }
+
+        checkDetails(generator, spectrumProvider, channelLayout, psmKeys, peptideKeys, proteinKeys);
+        assertEquals(0, nSpectrumProviderCalls.get());
+
+        // the PSMs computed by the pipeline do not replace the saved peptides and proteins
+        generator = getGenerator(identification, reporterSettings, reporterIonQuantification);
+        assertTrue(generator.setSavedResults(savedResults));
+
+        QuantificationResults computedResults = generator.getEmptyQuantificationResults();
+        computedResults.setPsmQuantificationDetails(psmKeys, psmDetails);
+        generator.setComputedResults(computedResults);
+
+        checkDetails(generator, spectrumProvider, channelLayout, psmKeys, peptideKeys, proteinKeys);
+        assertEquals(0, nSpectrumProviderCalls.get());
+
+        // other settings
+        ReporterSettings otherSettings = new ReporterSettings();
+        otherSettings.getRatioEstimationSettings().setIgnoreMissedCleavages(!reporterSettings.getRatioEstimationSettings().isIgnoreMissedCleavages());
+
+        generator = getGenerator(identification, otherSettings, reporterIonQuantification);
+        assertFalse(generator.setSavedResults(savedResults));
+        assertFalse(QuantificationPipeline.isSaved(identification, generator, QuantificationPipeline.Level.psm));
+
+        // new matches
+        identification.addMatches(1, 1);
+
+        generator = getGenerator(identification, reporterSettings, reporterIonQuantification);
+        assertTrue(generator.setSavedResults(savedResults));
+
+        for (QuantificationPipeline.Level level : QuantificationPipeline.Level.values()) {
+            assertFalse(QuantificationPipeline.isSaved(identification, generator, level));
+        }
+    }
+
+    /**
+     * Checks that the details of all matches given by the generator are the
+     * saved ones.
+     *
+     * @param generator the quantification features generator
+     * @param spectrumProvider the spectrum provider
+     * @param channelLayout the layout of the channels
+     * @param psmKeys the keys of the PSMs
+     * @param peptideKeys the keys of the peptides
+     * @param proteinKeys the keys of the proteins
+     */
+    private static void checkDetails(
+            QuantificationFeaturesGenerator generator,
+            SpectrumProvider spectrumProvider,
+            ChannelLayout channelLayout,
+            long[] psmKeys,
+            long[] peptideKeys,
+            long[] proteinKeys
+    ) {
+
+        for (long psmKey : psmKeys) {
+
+            PsmQuantificationDetails details = generator.getPSMQuantificationDetails(spectrumProvider, psmKey);
+
+            for (int channel = 0; channel < channelLayout.size(); channel++) {
+                assertEquals(getRatio(psmKey, channel), details.getRawRatio(channel), 0.0);
+            }
+        }
+
+        for (long peptideKey : peptideKeys) {
+
+            PeptideQuantificationDetails details = generator.getPeptideMatchQuantificationDetails(spectrumProvider, peptideKey, null);
+
+            for (int channel = 0; channel < channelLayout.size(); channel++) {
+                assertEquals(getRatio(peptideKey, channel), details.getRawRatio(channel), 0.0);
+            }
+        }
+
+        for (long proteinKey : proteinKeys) {
+
+            ProteinQuantificationDetails details = generator.getProteinMatchQuantificationDetails(spectrumProvider, proteinKey, null);
+
+            for (int channel = 0; channel < channelLayout.size(); channel++) {
+                assertEquals(getRatio(proteinKey, channel), details.getRawRatio(channel), 0.0);
+                assertEquals(getRatio(proteinKey, channel) + 1, details.getUniqueRawRatio(channel), 0.0);
+                assertEquals(getRatio(proteinKey, channel) + 2, details.getSharedRawRatio(channel), 0.0);
+            }
+        }
+    }
+
+    /**
+     * Returns the ratio saved for a match and channel.
+     *
+     * @param matchKey the key of the match
+     * @param channel the channel
+     *
+     * @return the ratio saved for a match and channel
+     */
+    private static double getRatio(long matchKey, int channel) {
+        return Math.floorMod(matchKey, 97L) + 0.125 * channel + 0.5;
+    }
+
+    /**
+     * Returns a new quantification features generator with an empty cache.
+     *
+     * @param identification the identification
+     * @param reporterSettings the reporter settings
+     * @param reporterIonQuantification the reporter ion quantification
+     *
+     * @return a new quantification features generator
+     */
+    private static QuantificationFeaturesGenerator getGenerator(
+            IdentificationFixture identification,
+            ReporterSettings reporterSettings,
+            ReporterIonQuantification reporterIonQuantification
+    ) {
+
+        return new QuantificationFeaturesGenerator(
+                new QuantificationFeaturesCache(),
+                identification,
+                null,
+                reporterSettings,
+                reporterIonQuantification,
+                null,
+                null
+        );
+    }
+
+    /**
+     * Returns a reporter ion quantification with a sample assigned to every
+     * reagent of the method.
+     *
+     * @return a reporter ion quantification
+     *
+     * @throws Exception exception thrown if the reporter methods cannot be
+     * parsed
+     */
+    private static ReporterIonQuantification getReporterIonQuantification() throws Exception {
+
+        ReporterMethodFactory methodsFactory = ReporterMethodFactory.getInstance();
+        methodsFactory.importMethods(new File("resources/conf/defaultMethods.xml"));
+        ReporterMethod method = methodsFactory.getReporterMethod(METHOD);
+
+        ReporterIonQuantification reporterIonQuantification = new ReporterIonQuantification(Quantification.QuantificationMethod.REPORTER_IONS);
+        reporterIonQuantification.setMethod(method);
+
+        for (String reagentName : method.getReagentNames()) {
+            reporterIonQuantification.assignSample(reagentName, "Sample " + reagentName);
+        }
+
+        return reporterIonQuantification;
+    }
+
+    /**
+     * Returns a spectrum provider counting the calls to any of its methods
+     * and failing.
+     *
+     * @param nCalls the counter of the calls
+     *
+     * @return a spectrum provider counting the calls
+     */
+    private static SpectrumProvider getSpectrumProvider(AtomicInteger nCalls) {
+
+        return (SpectrumProvider) Proxy.newProxyInstance(
+                SpectrumProvider.class.getClassLoader(),
+                new Class<?>[]{SpectrumProvider.class},
+                (proxy, method, args) -> {
+
+                    nCalls.incrementAndGet();
+
+                    throw new UnsupportedOperationException("Spectra not available: " + method.getName() + ".");
+
+                }
+        );
+    }
+
+    /**
+     * Returns the given keys in ascending order.
+     *
+     * @param keys the keys
+     *
+     * @return the sorted keys
+     */
+    private static long[] getSortedKeys(HashSet<Long> keys) {
+
+        long[] result = keys.stream()
+                .mapToLong(Long::longValue)
+                .toArray();
+        Arrays.sort(result);
+
+        return result;
+    }
+}
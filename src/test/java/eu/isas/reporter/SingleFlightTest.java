@@ -0,0 +1,178 @@
+package eu.isas.reporter;
+
+import eu.isas.reporter.calculation.SingleFlight;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import junit.framework.TestCase;
+
+/**
+ * Tests of the single execution of concurrent computations.
+ *
+ * @author Marc Vaudel
+ */
+public class SingleFlightTest extends TestCase {
+
+    /**
+     * The number of concurrent callers.
+     */
+    private static final int N_THREADS = 8;
+
+    /**
+     * Checks that the value is computed once for concurrent callers and
+     * returned to all of them, and computed again once completed.
+     *
+     * @throws Exception exception thrown if a caller failed
+     */
+    public void testSingleExecution() throws Exception {
+
+        LongAdder avoided = new LongAdder();
+        SingleFlight<Long, Object> singleFlight = new SingleFlight<>(avoided);
+        AtomicInteger nComputations = new AtomicInteger();
+        Object value = new Object();
+
+        ArrayList<Object> results = run(() -> singleFlight.get(1L, () -> {
+
+            nComputations.incrementAndGet();
+
+            // wait for all other callers to wait for this computation
+            awaitAvoided(avoided, N_THREADS - 1);
+
+            return value;
+
+        }));
+
+        assertEquals(1, nComputations.get());
+        assertEquals(N_THREADS - 1, avoided.sum());
+
+        for (Object result : results) {
+            assertSame(value, result);
+        }
+
+        // the completed computation is not reused
+        Object newValue = new Object();
+        assertSame(newValue, singleFlight.get(1L, () -> newValue));
+        assertEquals(N_THREADS - 1, avoided.sum());
+
+    }
+
+    /**
+     * Checks that an exception thrown by the computation is thrown to all
+     * waiting callers, and that the key can be computed again afterwards.
+     *
+     * @throws Exception exception thrown if a caller failed unexpectedly
+     */
+    public void testExceptionPropagation() throws Exception {
+
+        LongAdder avoided = new LongAdder();
+        SingleFlight<Long, Object> singleFlight = new SingleFlight<>(avoided);
+        AtomicInteger nComputations = new AtomicInteger();
+        IllegalStateException exception = new IllegalStateException("Computation failed.");
+
+        ArrayList<Object> results = run(() -> {
+
+            try {
+
+                return singleFlight.get(1L, () -> {
+
+                    nComputations.incrementAndGet();
+                    awaitAvoided(avoided, N_THREADS - 1);
+
+                    throw exception;
+
+                });
+
+            } catch (IllegalStateException e) {
+
+                return e;
+
+            }
+        });
+
+        assertEquals(1, nComputations.get());
+
+        for (Object result : results) {
+            assertSame(exception, result);
+        }
+
+        Object value = new Object();
+        assertSame(value, singleFlight.get(1L, () -> value));
+
+    }
+
+    /**
+     * Runs the given task on N_THREADS threads started together and returns
+     * the results.
+     *
+     * @param task the task
+     *
+     * @return the results of the threads
+     *
+     * @throws Exception exception thrown if a task failed
+     */
+    private static ArrayList<Object> run(Callable<Object> task) throws Exception {
+
+        ExecutorService pool = Executors.newFixedThreadPool(N_THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+
+        try {
+
+            ArrayList<Future<Object>> futures = new ArrayList<>(N_THREADS);
+
+            for (int i = 0; i < N_THREADS; i++) {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    return task.call();
+                }));
+            }
+
+            start.countDown();
+
+            ArrayList<Object> results = new ArrayList<>(N_THREADS);
+
+            for (Future<Object> future : futures) {
+
+                try {
+                    results.add(future.get(1, TimeUnit.MINUTES));
+                } catch (ExecutionException e) {
+                    throw (Exception) e.getCause();
+                }
+            }
+
+            return results;
+
+        } finally {
+
+            pool.shutdownNow();
+
+        }
+    }
+
+    /**
+     * Waits until the given number of computations were avoided.
+     *
+     * @param avoided the counter of the computations avoided
+     * @param n the number of computations avoided to wait for
+     */
+    private static void awaitAvoided(LongAdder avoided, int n) {
+
+        long end = System.currentTimeMillis() + 60000;
+
+        while (avoided.sum() < n) {
+
+            if (System.currentTimeMillis() > end) {
+                throw new IllegalStateException("Callers not waiting.");
+            }
+
+            Thread.yield();
+
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package eu.isas.reporter;
+
+import eu.isas.reporter.calculation.QuantificationFeaturesCache;
+import eu.isas.reporter.calculation.WeightedCache;
+import eu.isas.reporter.quantificationdetails.ChannelLayout;
+import eu.isas.reporter.quantificationdetails.SpectrumQuantificationDetails;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Tests of the weighted cache and of its use by the quantification features
+ * cache.
+ *
+ * @author Marc Vaudel
+ */
+public class WeightedCacheTest extends TestCase {
+
+    /**
+     * Checks that the collection usage thresholds of the heap are only set if
+     * none is set, and restored when the last cache is closed.
+     */
+    public void testCollectionUsageThresholds() {
+
+        ArrayList<MemoryPoolMXBean> pools = new ArrayList<>();
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP
+                    && pool.isCollectionUsageThresholdSupported()
+                    && pool.getUsage().getMax() > 0) {
+                pools.add(pool);
+            }
+        }
+
+        if (pools.isEmpty()) {
+            return;
+        }
+
+        long[] initialThresholds = new long[pools.size()];
+
+        for (int i = 0; i < pools.size(); i++) {
+            initialThresholds[i] = pools.get(i).getCollectionUsageThreshold();
+        }
+
+        try {
+
+            // a threshold set by the application is not changed
+            MemoryPoolMXBean presetPool = pools.get(0);
+            presetPool.setCollectionUsageThreshold(1024);
+
+            WeightedCache cache1 = new WeightedCache(1 << 20);
+            WeightedCache cache2 = new WeightedCache(1 << 20);
+
+            assertEquals(1024, presetPool.getCollectionUsageThreshold());
+
+            for (int i = 1; i < pools.size(); i++) {
+                if (initialThresholds[i] == 0) {
+                    assertTrue(pools.get(i).getCollectionUsageThreshold() > 0);
+                }
+            }
+
+            // the thresholds are kept while a cache is registered
+            cache1.close();
+            cache1.close();
+
+            for (int i = 1; i < pools.size(); i++) {
+                if (initialThresholds[i] == 0) {
+                    assertTrue(pools.get(i).getCollectionUsageThreshold() > 0);
+                }
+            }
+
+            cache2.close();
+
+            assertEquals(1024, presetPool.getCollectionUsageThreshold());
+
+            for (int i = 1; i < pools.size(); i++) {
+                assertEquals(initialThresholds[i], pools.get(i).getCollectionUsageThreshold());
+            }
+
+        } finally {
+
+            for (int i = 0; i < pools.size(); i++) {
+                pools.get(i).setCollectionUsageThreshold(initialThresholds[i]);
+            }
+        }
+    }
+
+    /**
+     * Checks that the spectrum quantification details are only cached when
+     * enabled.
+     */
+    public void testSpectrumCaching() {
+
+        ChannelLayout channelLayout = new ChannelLayout(Arrays.asList("126", "127"));
+        QuantificationFeaturesCache quantificationFeaturesCache = new QuantificationFeaturesCache(1 << 20);
+
+        try {
+
+            assertFalse(quantificationFeaturesCache.isSpectrumCaching());
+
+            quantificationFeaturesCache.addSpectrumQuantificationDetails(1L, new SpectrumQuantificationDetails(channelLayout));
+            assertNull(quantificationFeaturesCache.getSpectrumQuantificationDetails(1L));
+
+            quantificationFeaturesCache.setSpectrumCaching(true);
+            SpectrumQuantificationDetails details = new SpectrumQuantificationDetails(channelLayout);
+            quantificationFeaturesCache.addSpectrumQuantificationDetails(1L, details);
+            assertSame(details, quantificationFeaturesCache.getSpectrumQuantificationDetails(1L));
+
+        } finally {
+
+            quantificationFeaturesCache.close();
+
+        }
+    }
+}